@@ -1,11 +1,17 @@
 package io.github.bigbio.pgatk.io.apl;
 
-import io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile;
 import io.github.bigbio.pgatk.io.common.*;
 import lombok.extern.slf4j.Slf4j;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -37,21 +43,66 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
      * Position from the "BEGIN IONS" fields in the file to
      * the "END IONS"
      */
-    private List<IndexElement> index = new ArrayList<>();
+    private SpectrumIndex index = SpectrumIndex.EMPTY;
     /**
-     * MS2 peak lists. The index of the query in the file as key
-     * and the respective query as value.
+     * MS2 peak lists set through {@link #setPeakLists(List)}. The index of the
+     * query as key and the respective query as value.
      */
     private HashMap<Integer, AplSpectrum> peakLists;
     /**
-     * Indicates whether the cache should be used
+     * Cache of the peak lists loaded from the source file, null if the peak lists are not cached
      */
-    private boolean useCache = false;
+    private transient volatile SpectrumCache spectrumCache;
 
     private int currentPosition = 0;
 
     private List<Integer> keys;
 
+    /**
+     * Format of the {@link IndexFile}s written for APL files.
+     */
+    private static final String INDEX_FORMAT = "apl";
+
+    /**
+     * Random access to the source file if it is gzip compressed, null otherwise.
+     */
+    private SeekableGzipFile gzipFile;
+
+    /**
+     * Buffers used to read the peak lists from the files.
+     */
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(64, 4 * 1024 * 1024);
+
+    /**
+     * Channel used to read batches of peak lists from the source file, opened on first use.
+     */
+    private transient volatile FileChannel channel;
+
+    /**
+     * Reads the source file ahead while iterating, created on first use.
+     */
+    private transient SequentialRecordReader scanner;
+
+    /**
+     * The parts of the peak lists read from the source file.
+     */
+    private SpectrumFields spectrumFields = SpectrumFields.ALL;
+
+    /**
+     * The filter on the header of the peak lists returned by {@link #next()}, null to return all peak lists.
+     */
+    private SpectrumFilter spectrumFilter;
+
+    /**
+     * The next peak list accepted by the filter, null if it was not read yet.
+     */
+    private AplSpectrum nextAccepted;
+
+    /**
+     * Peak lists closer than this are read at once by {@link #getSpectraByIndex(int[])}.
+     */
+    private int maxCoalescedGap = CoalescedRangeReader.DEFAULT_MAX_GAP;
+
     /**
      * Loads a (MS2) spectrum from an  APL file who's
      * position in the file is already known.
@@ -69,7 +120,7 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
             throw new PgatkIOException("Required parameter indexElement must not be null.");
 
         // load the spectrum from the file
-        return loadIndexedQueryFromFile(sourcefile, indexElement, 1);
+        return loadIndexedQueryFromFile(sourcefile, indexElement, 1, SpectrumFields.ALL, null);
     }
 
     /**
@@ -87,15 +138,60 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
      * @throws PgatkIOException Error processing the file.
      */
     public AplIndexedReader(File file) throws PgatkIOException {
+        this(file, new IndexingOptions());
+    }
 
-        // open the file
-        try {
-            // save the file
-            sourceFile = file;
+    /**
+     * Creates the APL file object from an existing APL file. If the options
+     * enable index files the index is read from the file's {@link IndexFile}
+     * when it is up to date. Gzip compressed files are read through a
+     * {@link SeekableGzipFile}.
+     *
+     * @param file    The APL file
+     * @param options Options used to build the index
+     * @throws PgatkIOException Error processing the file.
+     */
+    public AplIndexedReader(File file, IndexingOptions options) throws PgatkIOException {
+        // save the file
+        sourceFile = file;
+        gzipFile = openGzipFile(file, options);
+
+        IndexFile indexFile = options.isUseIndexFile() ? IndexFile.read(file, INDEX_FORMAT, options) : null;
+        if (indexFile != null) {
+            index = SpectrumIndex.fromIndexFile(indexFile);
+        } else {
+            buildIndex();
+            if (options.isUseIndexFile())
+                index.toIndexFile(null).write(file, INDEX_FORMAT, options);
+        }
+
+        peakLists = new HashMap<>(index.size());
+        keys = new ArrayList<>(index.size());
+    }
 
-            String path = file.getAbsolutePath();
+    /**
+     * Opens the file for random access if it is gzip compressed.
+     *
+     * @return the opened file or null if the file is not compressed
+     */
+    private static SeekableGzipFile openGzipFile(File file, IndexingOptions options) throws PgatkIOException {
+        if (!SeekableGzipFile.isGzip(file))
+            return null;
+        try {
+            return SeekableGzipFile.open(file, options);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from gzip compressed APL file.", e);
+        }
+    }
 
-            BufferedRandomAccessFile braf = new BufferedRandomAccessFile(path, "r", 1024 * 100);
+    /**
+     * Builds the index of the peak lists in the source file.
+     */
+    private void buildIndex() throws PgatkIOException {
+        // open the file, the positions of gzip files are the uncompressed ones
+        try (PositionedLineReader braf = new PositionedLineReader((gzipFile != null)
+                ? gzipFile.newInputStream() : new FileInputStream(sourceFile))) {
+            SpectrumIndex.Builder builder = new SpectrumIndex.Builder();
 
             // process the file line by line
             String line;
@@ -103,7 +199,7 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
             long lastPosition = 0;
             long beginIonsIndex = 0; // the index where the last "peaklist end"" was encountered
 
-            while ((line = braf.getNextLine()) != null) {
+            while ((line = braf.readLine()) != null) {
 
                 // ignore empty lines
                 if (line.length() < 1) {
@@ -124,7 +220,7 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
 
                     //index.put(new IndexElement(beginIonsIndex, reader.getFilePointer()));
                     int size = (int) (braf.getFilePointer() - beginIonsIndex);
-                    index.add(new IndexElementImpl(beginIonsIndex, size));
+                    builder.add(beginIonsIndex, size);
 
                     //always update file pointer before continue
                     lastPosition = braf.getFilePointer();
@@ -134,9 +230,7 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
                 //always update file pointer before continue
                 lastPosition = braf.getFilePointer();
             }
-            peakLists= new HashMap<>(index.size());
-            keys = new ArrayList<>(index.size());
-            braf.close();
+            index = builder.build();
         } catch (FileNotFoundException e) {
             throw new PgatkIOException("APLFile does not exist.", e);
         } catch (IOException e) {
@@ -160,14 +254,16 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
             // save the file
             sourceFile = file;
             // save the index
-            this.index = index;
+            this.index = SpectrumIndex.fromIndexElements(index);
+            gzipFile = openGzipFile(file, new IndexingOptions());
 
-            BufferedRandomAccessFile reader = new BufferedRandomAccessFile(sourceFile, "r", 1024 * 1000);
+            PositionedLineReader reader = new PositionedLineReader((gzipFile != null)
+                    ? gzipFile.newInputStream() : new FileInputStream(sourceFile));
 
             // process the file line by line
             String line;
 
-            while ((line = reader.getNextLine()) != null) {
+            while ((line = reader.readLine()) != null) {
 
                 // ignore empty lines
                 if (line.length() < 1) {
@@ -197,7 +293,7 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
     public void setPeakLists(List<AplSpectrum> aplSpectrums) {
         // remove the source file link
         sourceFile = null;
-        index.clear();
+        index = SpectrumIndex.EMPTY;
 
         // save the queries in the HashMap
         for (int index = 0; index < aplSpectrums.size(); index++){
@@ -225,9 +321,23 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
      * @return Spectrum
      */
     public AplSpectrum getPeakList(int nIndex) throws PgatkIOException {
+        return getPeakList(nIndex, null, false);
+    }
+
+    /**
+     * Returns the peak list with the given (0-based) index if it is accepted by the filter.
+     * Peak lists read from the file are only parsed up to their first peak if they are rejected.
+     *
+     * @param filter     The filter on the peak list's header, null to accept all peak lists.
+     * @param sequential Indicates whether the peak list is read with the following ones while iterating.
+     * @return The peak list or null if it is rejected.
+     */
+    private AplSpectrum getPeakList(int nIndex, SpectrumFilter filter, boolean sequential) throws PgatkIOException {
         // check if the ms2 query was already loaded
-        if (peakLists.containsKey(nIndex))
-            return peakLists.get(nIndex);
+        if (peakLists.containsKey(nIndex)) {
+            AplSpectrum peakList = peakLists.get(nIndex);
+            return (filter == null || filter.test(peakList)) ? peakList : null;
+        }
 
         // if there is no file to load the query from throw an Exception
         if (sourceFile == null)
@@ -237,18 +347,162 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
         if (nIndex < 0 || nIndex > index.size() - 1)
             throw new PgatkIOException("MS2 query with index " + (nIndex + 1) + " does not exist in the APL file");
 
+        SpectrumCache cache = spectrumCache;
+        if (cache != null) {
+            Spectrum cached = cache.get(this, nIndex);
+            if (cached != null)
+                return (filter == null || filter.test(cached)) ? (AplSpectrum) cached : null;
+        }
+
         // load the query from the file
         AplSpectrum query;
 
-        query = loadIndexedQueryFromFile(nIndex);
+        query = sequential ? scanPeakList(nIndex, filter) : loadIndexedQueryFromFile(nIndex, filter);
 
-        // save the query in the HashMap
-        if (useCache)
-            peakLists.put(nIndex, query);
+        if (cache != null && query != null)
+            cache.put(this, nIndex, query);
 
         return query;
     }
 
+    /**
+     * Returns the peak lists with the given (0-based) indexes. The peak lists
+     * that are neither set nor cached are read in file order, peak lists close
+     * to each other are read at once, and parsed in parallel.
+     *
+     * @param nIndexes Indexes to be search.
+     * @return The peak lists in the order of the passed indexes.
+     */
+    public List<Spectrum> getPeakLists(int[] nIndexes) throws PgatkIOException {
+        Spectrum[] spectra = new Spectrum[nIndexes.length];
+        SpectrumCache cache = spectrumCache;
+        for (int i = 0; i < nIndexes.length; i++) {
+            int nIndex = nIndexes[i];
+            spectra[i] = peakLists.get(nIndex);
+            if (spectra[i] != null)
+                continue;
+            if (sourceFile == null)
+                throw new PgatkIOException("MS2 query with index " + (nIndex + 1) + " does not exist");
+            if (nIndex < 0 || nIndex > index.size() - 1)
+                throw new PgatkIOException("MS2 query with index " + (nIndex + 1) + " does not exist in the APL file");
+            if (cache != null)
+                spectra[i] = cache.get(this, nIndex);
+        }
+
+        SpectrumFields fields = spectrumFields;
+        boolean[] loaded = new boolean[spectra.length];
+        for (int i = 0; i < spectra.length; i++)
+            loaded[i] = spectra[i] == null;
+
+        CoalescedRangeReader.read(index, nIndexes, spectra, maxCoalescedGap, BUFFER_POOL, this::readRegion,
+                (bytes, offset, length, nIndex) -> new AplSpectrum(new String(bytes, offset, length), (long) (nIndex + 1), fields));
+
+        if (cache != null) {
+            for (int i = 0; i < spectra.length; i++) {
+                if (loaded[i])
+                    cache.put(this, nIndexes[i], spectra[i]);
+            }
+        }
+        return Arrays.asList(spectra);
+    }
+
+    /**
+     * Reads a peak list while iterating: the file is read ahead and the following peak lists are cut from the same region.
+     */
+    private AplSpectrum scanPeakList(int nIndex, SpectrumFilter filter) throws PgatkIOException {
+        if (scanner == null)
+            scanner = new SequentialRecordReader(index, this::readRegion, BUFFER_POOL, SequentialRecordReader.DEFAULT_READ_AHEAD);
+        SpectrumFields fields = spectrumFields;
+        return scanner.read(nIndex, (bytes, offset, length, ordinal) ->
+                AplSpectrum.parse(new String(bytes, offset, length), (long) (ordinal + 1), fields, filter));
+    }
+
+    /**
+     * Reads a record of the source file into a new buffer, the bytes are read directly into it.
+     */
+    private ByteBuffer readRawRecord(long start, int size) throws PgatkIOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        try {
+            if (gzipFile != null) {
+                gzipFile.readFully(start, buffer.array(), 0, size);
+                return buffer;
+            }
+            try {
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            } catch (ClosedChannelException e) {
+                // the channel is closed when a reading thread is interrupted, the other threads retry once
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+                buffer.clear();
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            }
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from APL file", e);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a region of the source file into a buffer of the {@link #BUFFER_POOL}.
+     */
+    private ByteBuffer readRegion(long start, int length) throws IOException {
+        if (gzipFile != null)
+            return gzipFile.read(BUFFER_POOL, start, length);
+        try {
+            return BUFFER_POOL.read(getChannel(), start, length);
+        } catch (ClosedChannelException e) {
+            // the channel is closed when a reading thread is interrupted, the other threads retry once
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return BUFFER_POOL.read(getChannel(), start, length);
+        }
+    }
+
+    /**
+     * Returns the channel shared by all threads, (re)opening it if needed.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen())
+            return current;
+
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(sourceFile, "r").getChannel();
+            return channel;
+        }
+    }
+
+    public boolean isUseCache() {
+        return spectrumCache != null;
+    }
+
+    /**
+     * Enables or disables the cache of the peak lists loaded from the file. If no cache
+     * was set a {@link LruSpectrumCache} with the default size is used.
+     *
+     * @param useCache Indicates whether the cache should be used
+     */
+    public void setUseCache(boolean useCache) {
+        if (!useCache)
+            setSpectrumCache(null);
+        else if (spectrumCache == null)
+            setSpectrumCache(new LruSpectrumCache());
+    }
+
+    @Override
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
+
+    @Override
+    public void setSpectrumCache(SpectrumCache spectrumCache) {
+        if (this.spectrumCache != null && this.spectrumCache != spectrumCache)
+            this.spectrumCache.invalidate(this);
+        this.spectrumCache = spectrumCache;
+    }
+
     /**
      * Loads a query from the APL file.
      *
@@ -257,7 +511,14 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
      * @return Spectrum
      * @oaram index The query's 1-based index in the APL file. This index is stored in the returned Ms2Query object.
      */
-    private static AplSpectrum loadIndexedQueryFromFile(File file, IndexElement indexElement, int index) throws PgatkIOException {
+    private static AplSpectrum loadIndexedQueryFromFile(File file, IndexElement indexElement, int index, SpectrumFields fields,
+                                                        SpectrumFilter filter) throws PgatkIOException {
+        if (SeekableGzipFile.isGzip(file)) {
+            try (SeekableGzipFile gzip = openGzipFile(file, new IndexingOptions())) {
+                return loadIndexedQueryFromFile(gzip, indexElement, index, fields, filter);
+            }
+        }
+
         try (RandomAccessFile accFile = new RandomAccessFile(file, "r")) {
 
             // read the indexed element
@@ -268,7 +529,7 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
             accFile.read(byteBuffer);
             String ms2Buffer = new String(byteBuffer);
             // create the query
-            return new AplSpectrum(ms2Buffer, (long)index);
+            return AplSpectrum.parse(ms2Buffer, (long)index, fields, filter);
         } catch (FileNotFoundException e) {
             throw new PgatkIOException("APL file could not be found.", e);
         } catch (IOException e) {
@@ -277,20 +538,36 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
         // ignore
     }
 
+    /**
+     * Loads a query from a gzip compressed APL file.
+     */
+    private static AplSpectrum loadIndexedQueryFromFile(SeekableGzipFile gzip, IndexElement indexElement, int index, SpectrumFields fields,
+                                                        SpectrumFilter filter) throws PgatkIOException {
+        try {
+            byte[] byteBuffer = new byte[indexElement.getSize()];
+            gzip.readFully(indexElement.getStart(), byteBuffer, 0, byteBuffer.length);
+            return AplSpectrum.parse(new String(byteBuffer), (long) index, fields, filter);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from APL file", e);
+        }
+    }
+
     /**
      * Loads a query from the APL file who's index was buffered.
      *
      * @param nQueryIndex The queries index.
      * @return
      */
-    private AplSpectrum loadIndexedQueryFromFile(int nQueryIndex) throws PgatkIOException {
+    private AplSpectrum loadIndexedQueryFromFile(int nQueryIndex, SpectrumFilter filter) throws PgatkIOException {
         if (nQueryIndex < 0 || nQueryIndex > index.size() - 1)
             throw new PgatkIOException("Tried to load non existing query from file");
 
         // read the indexed element
-        IndexElement indexElement = index.get(nQueryIndex);
+        IndexElement indexElement = index.getIndexElement(nQueryIndex);
 
-        return loadIndexedQueryFromFile(sourceFile, indexElement, nQueryIndex + 1);
+        if (gzipFile != null)
+            return loadIndexedQueryFromFile(gzipFile, indexElement, nQueryIndex + 1, spectrumFields, filter);
+        return loadIndexedQueryFromFile(sourceFile, indexElement, nQueryIndex + 1, spectrumFields, filter);
     }
 
     @Override
@@ -314,10 +591,10 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
      * lines until the end of the "END IONS" lines
      * in the file in the order they are present.
      *
-     * @return An array of "BEGIN IONS" lines offsets.
+     * @return A read-only list of the "BEGIN IONS" lines offsets.
      */
     public List<IndexElement> getIndex() {
-        return new ArrayList<>(index);
+        return index.getIndexElements();
     }
 
     /**
@@ -338,6 +615,9 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
     }
 
     public List<String> getSpectraIds() {
+        if (sourceFile != null)
+            return index.getIds();
+
         // simply create a list of ids 1..size
         List<String> ids = new ArrayList<>(getPeakListCount());
 
@@ -359,13 +639,86 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
         return getPeakList(index - 1);
     }
 
+    @Override
+    public List<Spectrum> getSpectra(Collection<String> ids) throws PgatkIOException {
+        int[] nIndexes = new int[ids.size()];
+        int i = 0;
+        for (String id : ids)
+            nIndexes[i++] = Integer.parseInt(id) - 1;
+        return getPeakLists(nIndexes);
+    }
+
+    @Override
+    public List<Spectrum> getSpectraByIndex(int[] indexes) throws PgatkIOException {
+        int[] nIndexes = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            nIndexes[i] = indexes[i] - 1;
+        return getPeakLists(nIndexes);
+    }
+
+    /**
+     * Returns the bytes of a peak list as they are stored in the APL file, from its "peaklist start" line to its "peaklist end" line.
+     *
+     * @param index The peak list's 1-based index.
+     * @return A new buffer holding the bytes between 0 and its limit.
+     */
+    @Override
+    public ByteBuffer getRawSpectrumBytes(int index) throws PgatkIOException {
+        if (sourceFile == null)
+            throw new PgatkIOException("The peak lists were not read from an APL file");
+        if (index < 1 || index > this.index.size())
+            throw new PgatkIOException("MS2 query with index " + index + " does not exist in the APL file");
+        return readRawRecord(this.index.getStart(index - 1), this.index.getSize(index - 1));
+    }
+
+    /**
+     * Copies the peak lists to a channel as they are stored in the APL file, without parsing them.
+     *
+     * @param indexes The peak lists' 1-based indexes.
+     * @param target  The channel the peak lists are written to in the order of the indexes.
+     * @return The number of bytes written.
+     */
+    @Override
+    public long writeSpectra(int[] indexes, WritableByteChannel target) throws PgatkIOException {
+        if (sourceFile == null)
+            throw new PgatkIOException("The peak lists were not read from an APL file");
+        int[] nIndexes = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            nIndexes[i] = indexes[i] - 1;
+
+        if (gzipFile != null)
+            return RecordSubsetWriter.write(index, nIndexes, 0, BUFFER_POOL, this::readRegion, target);
+        try {
+            return RecordSubsetWriter.write(index, nIndexes, 0, getChannel(), target);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from APL file", e);
+        }
+    }
+
+    @Override
+    public SpectrumFields getSpectrumFields() {
+        return spectrumFields;
+    }
+
+    @Override
+    public void setSpectrumFields(SpectrumFields fields) {
+        if (spectrumCache != null && fields != spectrumFields)
+            spectrumCache.invalidate(this);
+        this.spectrumFields = fields;
+    }
+
+    @Override
+    public void setMaxCoalescedGap(int maxCoalescedGap) {
+        this.maxCoalescedGap = maxCoalescedGap;
+    }
+
     @Override
     public List<IndexElement> getMsNIndexes(
             int msLevel) {
         if (msLevel != 2)
             return Collections.emptyList();
 
-        return new ArrayList<>(index);
+        return index.getIndexElements();
     }
 
     @Override
@@ -379,17 +732,71 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
 
     @Override
     public Map<String, IndexElement> getIndexElementForIds() {
-        Map<String, IndexElement> idToIndexMap = new HashMap<>(index.size());
-
-        for (int i = 0; i < index.size(); i++) {
-            idToIndexMap.put(String.format("%d", i + 1), index.get(i));
-        }
+        return index.getIndexElementForIds();
+    }
 
-        return idToIndexMap;
+    @Override
+    public SpectrumIndex getSpectrumIndex() {
+        return index;
     }
 
     @Override
     public AplSpectrum next() {
+        if (spectrumFilter != null || nextAccepted != null) {
+            if (!hasNext())
+                throw new NoSuchElementException("No more peak lists in " + sourceFile);
+            AplSpectrum next = nextAccepted;
+            nextAccepted = null;
+            return next;
+        }
+        return nextPeakList();
+    }
+
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    /**
+     * Moves to the next peak list accepted by the filter, the rejected peak lists are only parsed up to their first peak.
+     *
+     * @return the peak list or null at the end of the file
+     */
+    private AplSpectrum readNextAccepted() {
+        SpectrumFilter filter = spectrumFilter;
+        while (hasNextPosition()) {
+            if (sourceFile == null) {
+                AplSpectrum peakList = nextPeakList();
+                if (filter == null || filter.test(peakList))
+                    return peakList;
+                continue;
+            }
+            try {
+                AplSpectrum peakList = getPeakList(currentPosition++, filter, true);
+                if (peakList != null)
+                    return peakList;
+            } catch (PgatkIOException e) {
+                throw new RuntimeException("Failed to load query from file.", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the iteration to a peak list, the next call to {@link #next()} returns the peak list with the
+     * given index or the first one accepted by the filter after it.
+     *
+     * @param index The peak list's 1-based index.
+     */
+    public void seek(int index) throws PgatkIOException {
+        int count = (sourceFile == null) ? peakLists.size() : this.index.size();
+        if (index < 1 || index > count + 1)
+            throw new PgatkIOException("MS2 query with index " + index + " does not exist");
+        currentPosition = index - 1;
+        nextAccepted = null;
+    }
+
+    private AplSpectrum nextPeakList() {
         // if there is not file set, get the object from the HashMap
         if (sourceFile == null) {
             // make sure the current position is valid
@@ -405,35 +812,46 @@ public class AplIndexedReader implements MzReader, MzIterableReader {
 
             return peakLists.get(key);
         } else {
-            // check if the object was cached
-            if (peakLists.containsKey(currentPosition))
-                return peakLists.get(currentPosition);
-
-            // read the query from file
-            AplSpectrum query;
+            // read the query from the cache or the file and move to the next position
             try {
-                query = loadIndexedQueryFromFile(currentPosition);
-
-                // if caching is enabled do so
-                if (useCache)
-                    peakLists.put(currentPosition, query);
-
-                // move to the next position
-                currentPosition++;
-
-                // return the query
-                return query;
+                return getPeakList(currentPosition++, null, true);
             } catch (PgatkIOException e) {
                 throw new RuntimeException("Failed to load query from file.", e);
             }
         }
     }
 
+    /**
+     * Closes the file and removes the peak lists of this reader from the cache.
+     */
     @Override
-    public void close() {}
+    public synchronized void close() {
+        if (spectrumCache != null)
+            spectrumCache.invalidate(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close APL file " + sourceFile, e);
+            }
+            channel = null;
+        }
+        if (scanner != null) {
+            scanner.close();
+            scanner = null;
+        }
+        if (gzipFile != null)
+            gzipFile.close();
+    }
 
     @Override
     public boolean hasNext() {
+        if (spectrumFilter != null || nextAccepted != null)
+            return nextAccepted != null || (nextAccepted = readNextAccepted()) != null;
+        return hasNextPosition();
+    }
+
+    private boolean hasNextPosition() {
         if (sourceFile == null) {
             return currentPosition < peakLists.size();
         } else {
@@ -2,7 +2,10 @@ package io.github.bigbio.pgatk.io.apl;
 
 import io.github.bigbio.pgatk.io.common.Param;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.util.*;
 import java.util.regex.Matcher;
@@ -17,7 +20,8 @@ public class AplSpectrum implements Spectrum {
     /**
      * The spectrum's peaks
      */
-    private Map<Double, Double> peakList;
+    private PeakArrays peaks;
+
     private String header;
     private Double mz;
     private String fragmentation;
@@ -25,14 +29,58 @@ public class AplSpectrum implements Spectrum {
     private Long index;
 
     public AplSpectrum(String mgfQuery, Long index) throws PgatkIOException {
+        this(mgfQuery, index, SpectrumFields.ALL);
+    }
+
+    /**
+     * Parses the selected parts of a peak list. Without the peaks the parsing stops at the
+     * first peak, without the additional parameters the fragmentation is skipped.
+     *
+     * @param mgfQuery The peak list including the "peaklist start" and "peaklist end" lines
+     * @param index    The 1-based index of the peak list in the file
+     * @param fields   The parts of the peak list to parse
+     * @throws PgatkIOException
+     */
+    public AplSpectrum(String mgfQuery, Long index, SpectrumFields fields) throws PgatkIOException {
         this.index = index;
+        parse(mgfQuery, fields, null);
+    }
+
+    private AplSpectrum(Long index) {
+        this.index = index;
+    }
+
+    /**
+     * Parses a peak list if its header is accepted by the filter, the filter is tested at the first peak.
+     *
+     * @param mgfQuery The peak list including the "peaklist start" and "peaklist end" lines
+     * @param index    The 1-based index of the peak list in the file
+     * @param fields   The parts of the peak list to parse
+     * @param filter   The filter on the header of the peak list, null to accept all peak lists
+     * @return The peak list or null if it is rejected by the filter
+     * @throws PgatkIOException
+     */
+    public static AplSpectrum parse(String mgfQuery, Long index, SpectrumFields fields, SpectrumFilter filter) throws PgatkIOException {
+        AplSpectrum spectrum = new AplSpectrum(index);
+        return spectrum.parse(mgfQuery, fields, filter) ? spectrum : null;
+    }
 
+    /**
+     * @return false if the header is rejected by the filter, the peaks are not parsed
+     */
+    private boolean parse(String mgfQuery, SpectrumFields fields, SpectrumFilter filter) throws PgatkIOException {
         // process the mgf section line by line
-        String[] lines = mgfQuery.trim().split("\n");
+        String query = mgfQuery.trim();
         boolean inAttributeSection = true;
 
-        for (int nLineNumber = 0; nLineNumber < lines.length; nLineNumber++) {
-            String line = lines[nLineNumber].trim();
+        int lineStart = 0;
+        for (int nLineNumber = 0; lineStart <= query.length(); nLineNumber++) {
+            int lineEnd = query.indexOf('\n', lineStart);
+            boolean lastLine = lineEnd < 0;
+            if (lastLine)
+                lineEnd = query.length();
+            String line = query.substring(lineStart, lineEnd).trim();
+            lineStart = lineEnd + 1;
 
             // ignore empty lines
             if (line.length() < 1)
@@ -44,10 +92,10 @@ public class AplSpectrum implements Spectrum {
 
             if (nLineNumber == 0) continue;
 
-            if (nLineNumber == lines.length - 1 && !"peaklist end".equals(line))
+            if (lastLine && !"peaklist end".equals(line))
                 throw new PgatkIOException("MS2 query must end with 'peaklist end'");
 
-            if (nLineNumber == lines.length -1) continue;
+            if (lastLine) continue;
 
             // check if it's a property
             Matcher attributeMatcher = AplIndexedReader.attributePattern.matcher(line);
@@ -60,9 +108,17 @@ public class AplSpectrum implements Spectrum {
                 String value	= attributeMatcher.group(2);
 
                 // save the attribute
-                saveAttribute(name, value);
+                if (fields.hasParams() || !"fragmentation".equals(name))
+                    saveAttribute(name, value);
             }
             else {
+                // the rest of the peak list only holds peaks
+                if (inAttributeSection && filter != null && !filter.test(this))
+                    return false;
+                inAttributeSection = false;
+                if (!fields.hasPeaks())
+                    break;
+
                 Matcher peakMatcher = peakPattern.matcher(line);
 
                 if (!peakMatcher.find() || peakMatcher.groupCount() != 2)
@@ -70,10 +126,11 @@ public class AplSpectrum implements Spectrum {
 
                 // put the peak
                 addPeak(Double.parseDouble(peakMatcher.group(1)), Double.parseDouble(peakMatcher.group(2)));
-
-                inAttributeSection = false;
             }
         }
+        if (peaks != null)
+            peaks.seal();
+        return !inAttributeSection || filter == null || filter.test(this);
     }
 
     /**
@@ -100,10 +157,19 @@ public class AplSpectrum implements Spectrum {
      * @param intensity
      */
     public void addPeak(Double mz, Double intensity) {
-        if (peakList == null)
-            peakList = new HashMap<>(1);
+        addPeak(mz.doubleValue(), intensity.doubleValue());
+    }
 
-        peakList.put(mz, intensity);
+    /**
+     * Adds a peak to the spectrum.
+     * @param mz
+     * @param intensity
+     */
+    public void addPeak(double mz, double intensity) {
+        if (peaks == null)
+            peaks = new PeakArrays();
+
+        peaks.add(mz, intensity);
     }
 
     @Override
@@ -150,7 +216,12 @@ public class AplSpectrum implements Spectrum {
 
     @Override
     public Map<Double, Double> getPeakList() {
-        return peakList;
+        return (peaks != null) ? peaks.toMap() : null;
+    }
+
+    @Override
+    public PeakArrays getPeakArrays() {
+        return (peaks != null) ? peaks : new PeakArrays(0);
     }
 
     @Override
@@ -177,12 +248,12 @@ public class AplSpectrum implements Spectrum {
         if (header != null)
             query.append("header=").append(header).append('\n');
 
-        List<Double> masses = new ArrayList<>(peakList.keySet());
-        Collections.sort(masses);
+        double[] masses = getMzArray();
+        double[] intensities = getIntensityArray();
 
         // process the peak list
-        for (Double mz : masses)
-            query.append(mz).append('\t').append(peakList.get(mz)).append('\n');
+        for (int i = 0; i < masses.length; i++)
+            query.append(masses[i]).append('\t').append(intensities[i]).append('\n');
 
         query.append("peaklist end\n");
 
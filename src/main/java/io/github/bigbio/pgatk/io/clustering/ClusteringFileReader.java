@@ -4,7 +4,10 @@ package io.github.bigbio.pgatk.io.clustering;
 import io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile;
 import io.github.bigbio.pgatk.io.clustering.indexing.ClusteringFileIndex;
 import io.github.bigbio.pgatk.io.clustering.indexing.ClusteringIndexElement;
+import io.github.bigbio.pgatk.io.common.IndexingOptions;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.RecordSpliterator;
+import io.github.bigbio.pgatk.io.common.SeekableGzipFile;
 import io.github.bigbio.pgatk.io.common.cluster.ClusteringFileCluster;
 import io.github.bigbio.pgatk.io.common.cluster.ISpectrumReference;
 import io.github.bigbio.pgatk.io.common.psms.SequenceCount;
@@ -13,7 +16,10 @@ import io.github.bigbio.pgatk.io.common.cluster.ClusteringFileSpectrumReference;
 import io.github.bigbio.pgatk.io.common.cluster.ICluster;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -22,10 +28,16 @@ import java.util.zip.GZIPInputStream;
 @Slf4j
 public class ClusteringFileReader implements IClusterSourceReader {
 
+    private static final byte[] CLUSTER_START = "=Cluster=\n".getBytes(StandardCharsets.US_ASCII);
+
     private final File clusteringFile;
     private BufferedReader br;
     private boolean inCluster = false;
     private Map<String, ClusteringIndexElement> index;
+    /**
+     * Random access to a gzip compressed clustering file, opened on first use.
+     */
+    private SeekableGzipFile gzipFile;
 
     ICluster nextCluster = null;
 
@@ -101,16 +113,73 @@ public class ClusteringFileReader implements IClusterSourceReader {
         // read the cluster string
         ClusteringIndexElement indexElement = index.get(id);
         byte[] byteBuffer = new byte[indexElement.getSize()];
-        BufferedRandomAccessFile randomAccessFile = new BufferedRandomAccessFile(clusteringFile,
-                "r", 1024 * 100);
-        randomAccessFile.seek(indexElement.getStart());
-        randomAccessFile.read(byteBuffer);
-        randomAccessFile.close();
+        if (SeekableGzipFile.isGzip(clusteringFile)) {
+            // the index holds the uncompressed positions
+            synchronized (this) {
+                if (gzipFile == null)
+                    gzipFile = SeekableGzipFile.open(clusteringFile, new IndexingOptions());
+            }
+            gzipFile.readFully(indexElement.getStart(), byteBuffer, 0, byteBuffer.length);
+        } else {
+            BufferedRandomAccessFile randomAccessFile = new BufferedRandomAccessFile(clusteringFile,
+                    "r", 1024 * 100);
+            randomAccessFile.seek(indexElement.getStart());
+            randomAccessFile.read(byteBuffer);
+            randomAccessFile.close();
+        }
         String clusteringString = new String(byteBuffer);
 
         return readNextCluster(new BufferedReader(new StringReader(clusteringString)), true);
     }
 
+    /**
+     * Creates a stream over the clusters of a file, a parallel stream is split at "=Cluster=" lines. The
+     * clusters include their spectra. Gzip compressed files are read sequentially. The stream holds the file
+     * open until it is closed.
+     *
+     * @param clusteringFile the clustering file
+     * @param parallel true for a parallel stream
+     * @return the stream
+     */
+    public static Stream<ICluster> stream(File clusteringFile, boolean parallel) throws PgatkIOException {
+        if (SeekableGzipFile.isGzip(clusteringFile)) {
+            ClusteringFileReader reader = new ClusteringFileReader(clusteringFile);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new Iterator<ICluster>() {
+                @Override
+                public boolean hasNext() {
+                    return reader.hasNext();
+                }
+
+                @Override
+                public ICluster next() {
+                    return reader.nextCluster;
+                }
+            }, Spliterator.ORDERED | Spliterator.NONNULL), parallel).onClose(reader::closeReader);
+        }
+
+        return RecordSpliterator.stream(clusteringFile, line -> line.startsWith("=Cluster=", line.trimStart()) && line.trimEnd() - line.trimStart() == 9,
+                line -> false,
+                (record, length, index) -> {
+                    try {
+                        // the following "=Cluster=" line completes the cluster as in the file
+                        BufferedReader recordReader = new BufferedReader(new InputStreamReader(new SequenceInputStream(
+                                new ByteArrayInputStream(record, 0, length), new ByteArrayInputStream(CLUSTER_START))));
+                        return new ClusteringFileReader(clusteringFile).readNextCluster(recordReader, true);
+                    } catch (Exception e) {
+                        throw new PgatkIOException("Error parsing cluster " + index, e);
+                    }
+                }, parallel);
+    }
+
+    private void closeReader() {
+        try {
+            if (br != null)
+                br.close();
+        } catch (IOException e) {
+            log.error("Error closing " + clusteringFile, e);
+        }
+    }
+
     /**
      * Open the clustering file for reading.
      * @param file
@@ -315,6 +384,7 @@ public class ClusteringFileReader implements IClusterSourceReader {
 
     @Override
     public void close() {
-
+        if (gzipFile != null)
+            gzipFile.close();
     }
 }
@@ -1,13 +1,18 @@
 package io.github.bigbio.pgatk.io.clustering.indexing;
 
-import io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile;
+import io.github.bigbio.pgatk.io.common.PositionedLineReader;
+import io.github.bigbio.pgatk.io.common.SeekableGzipFile;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
- * Indexer to index .clustering files.
+ * Indexer to index .clustering files. The positions in gzip compressed
+ * files are the uncompressed ones, to be read through a {@link SeekableGzipFile}.
  *
  * Created by jg on 27.09.17.
  */
@@ -16,7 +21,10 @@ public class ClusteringFileIndexer implements IIndexer {
     @Override
     public ClusteringFileIndex indexFile(File resultFile) throws Exception {
         // open the file
-        BufferedRandomAccessFile randomAccessFile = new BufferedRandomAccessFile(resultFile, "r", 1024 * 100);
+        InputStream inputStream = new FileInputStream(resultFile);
+        if (SeekableGzipFile.isGzip(resultFile))
+            inputStream = new GZIPInputStream(inputStream, 1024 * 64);
+        PositionedLineReader randomAccessFile = new PositionedLineReader(inputStream, 1024 * 100);
 
         Map<String, ClusteringIndexElement> clusterIndexes = new HashMap<>();
 
@@ -0,0 +1,109 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free pool of heap {@link ByteBuffer}s used to read records from a shared {@link FileChannel}.
+ *
+ * Reads use {@link FileChannel#read(ByteBuffer, long)}, which does not change the position of the
+ * channel, so any number of threads can read from the same channel at the same time.
+ *
+ * @author ypriverol
+ */
+public final class ByteBufferPool {
+
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /** Maximum number of buffers kept in the pool */
+    private final int maxPooled;
+
+    /** Buffers larger than this are not returned to the pool */
+    private final int maxBufferSize;
+
+    /**
+     * @param maxPooled maximum number of buffers kept in the pool
+     * @param maxBufferSize size in bytes above which buffers are not kept
+     */
+    public ByteBufferPool(int maxPooled, int maxBufferSize) {
+        this.maxPooled = maxPooled;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Returns a buffer with at least the requested capacity. The buffer's position
+     * is 0 and its limit is set to the requested size.
+     * @param size the number of bytes needed
+     * @return the buffer, to be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null)
+            pooled.decrementAndGet();
+
+        if (buffer == null || buffer.capacity() < size)
+            buffer = ByteBuffer.allocate(Math.max(size, DEFAULT_BUFFER_SIZE));
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > maxBufferSize)
+            return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Reads a region of a file into a pooled buffer without changing the position of the channel.
+     * @param channel the file
+     * @param position the position of the first byte to read
+     * @param length the number of bytes to read
+     * @return a buffer holding the bytes between 0 and its limit, to be given back with {@link #release(ByteBuffer)}
+     * @throws IOException if the file could not be read or ends before the region
+     */
+    public ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = acquire(length);
+        try {
+            readFully(channel, buffer, position);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Fills the remaining bytes of the buffer from the passed position of the file.
+     * @param channel the file
+     * @param buffer the buffer to fill
+     * @param position the position of the first byte to read
+     * @throws IOException if the file could not be read or ends before the buffer is full
+     */
+    public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of file at position " + position);
+            position += read;
+        }
+    }
+}
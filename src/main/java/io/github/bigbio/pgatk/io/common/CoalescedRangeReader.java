@@ -0,0 +1,147 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Reads a batch of records of an indexed file. The records are read in file order, records that are close
+ * to each other are read with a single positional read and the records of each read are decoded in parallel.
+ *
+ * The reads are done by the calling thread one after the other, so the disk sees a forward sequential scan
+ * over the requested regions instead of one random seek per record.
+ *
+ * @author ypriverol
+ */
+public final class CoalescedRangeReader {
+
+    /** Records closer than this are read at once by default */
+    public static final int DEFAULT_MAX_GAP = 64 * 1024;
+
+    /** Maximum number of bytes read at once, unless a single record is larger */
+    public static final int MAX_READ_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Reads a region of the file.
+     */
+    @FunctionalInterface
+    public interface RegionReader {
+
+        /**
+         * @param start  the position of the region in the file
+         * @param length the length of the region in bytes
+         * @return a buffer of the pool passed to {@link #read} holding the region between 0 and its limit
+         * @throws IOException if the file can't be read
+         */
+        ByteBuffer read(long start, int length) throws IOException;
+    }
+
+    /**
+     * Decodes a record, it is called by several threads at once.
+     */
+    @FunctionalInterface
+    public interface RecordDecoder<T> {
+
+        /**
+         * @param bytes   the bytes of the region holding the record, they must not be kept after the call
+         * @param offset  the position of the record in the bytes
+         * @param length  the length of the record
+         * @param ordinal the 0-based index of the record in the file
+         * @return the decoded record
+         * @throws PgatkIOException if the record can't be decoded
+         */
+        T decode(byte[] bytes, int offset, int length, int ordinal) throws PgatkIOException;
+    }
+
+    private CoalescedRangeReader() {
+    }
+
+    /**
+     * Reads the records at the passed ordinals of the index. Results that are already set, for example
+     * from a cache, are not read again.
+     *
+     * @param index    the index of the file
+     * @param ordinals the ordinals of the requested records, duplicates are allowed
+     * @param results  the records in the order of the ordinals, missing ones are filled in
+     * @param maxGap   records separated by at most this many bytes are read at once
+     * @param pool     the pool the buffers of the region reader are released to
+     * @param regions  reads the regions of the file
+     * @param decoder  decodes the records
+     * @throws PgatkIOException if the file can't be read or a record can't be decoded
+     */
+    public static <T> void read(SpectrumIndex index, int[] ordinals, T[] results, int maxGap, ByteBufferPool pool,
+                                RegionReader regions, RecordDecoder<T> decoder) throws PgatkIOException {
+        if (ordinals.length != results.length)
+            throw new IllegalArgumentException("One result is required per ordinal");
+
+        // the requests that are not set, in file order
+        int count = 0;
+        Integer[] requests = new Integer[ordinals.length];
+        for (int request = 0; request < ordinals.length; request++) {
+            if (results[request] == null)
+                requests[count++] = request;
+        }
+        Arrays.sort(requests, 0, count, Comparator.comparingLong(r -> index.getStart(ordinals[r])));
+
+        for (int first = 0; first < count; ) {
+            // coalesce the following records that are close enough, nested records are within their parent
+            long start = index.getStart(ordinals[requests[first]]);
+            long end = start + index.getSize(ordinals[requests[first]]);
+            int last = first + 1;
+            while (last < count) {
+                long nextStart = index.getStart(ordinals[requests[last]]);
+                long nextEnd = Math.max(end, nextStart + index.getSize(ordinals[requests[last]]));
+                if (nextStart - end > maxGap || nextEnd - start > MAX_READ_SIZE)
+                    break;
+                end = nextEnd;
+                last++;
+            }
+
+            ByteBuffer buffer;
+            try {
+                buffer = regions.read(start, (int) (end - start));
+            } catch (IOException e) {
+                throw new PgatkIOException("Failed to read the region " + start + "-" + end + " of the file", e);
+            }
+            try {
+                decode(index, ordinals, results, requests, first, last, buffer, start, decoder);
+            } finally {
+                pool.release(buffer);
+            }
+            first = last;
+        }
+    }
+
+    private static <T> void decode(SpectrumIndex index, int[] ordinals, T[] results, Integer[] requests, int first, int last,
+                                   ByteBuffer buffer, long start, RecordDecoder<T> decoder) throws PgatkIOException {
+        IntStream records = IntStream.range(first, last);
+        if (last - first > 1)
+            records = records.parallel();
+        try {
+            records.forEach(i -> {
+                int request = requests[i];
+                int ordinal = ordinals[request];
+                int offset = buffer.arrayOffset() + (int) (index.getStart(ordinal) - start);
+                try {
+                    results[request] = decoder.decode(buffer.array(), offset, index.getSize(ordinal), ordinal);
+                } catch (PgatkIOException e) {
+                    throw new DecodingException(e);
+                }
+            });
+        } catch (DecodingException e) {
+            throw (PgatkIOException) e.getCause();
+        }
+    }
+
+    /**
+     * Carries the exception of a decoder out of the parallel stream.
+     */
+    private static final class DecodingException extends RuntimeException {
+
+        private DecodingException(PgatkIOException cause) {
+            super(cause);
+        }
+    }
+}
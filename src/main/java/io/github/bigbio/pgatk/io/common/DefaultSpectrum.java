@@ -1,5 +1,6 @@
 package io.github.bigbio.pgatk.io.common;
 
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
 
 import java.io.Serializable;
@@ -15,7 +16,7 @@ public class DefaultSpectrum implements Spectrum, Serializable {
 	private final int precursorCharge;
 	private final Double precursorMz;
 	private final Double precursorIntensity;
-	private final Map<Double, Double> peakList;
+	private final PeakArrays peaks;
 	private final Integer msLevel;
 	private final List<CvParam> params;
 
@@ -23,12 +24,19 @@ public class DefaultSpectrum implements Spectrum, Serializable {
 	public DefaultSpectrum(String id, long index, int precursorCharge,
 						   double precursorMz, double precursorIntensity,
 						   Map<Double, Double> peakList, Integer msLevel, List<CvParam> params ) {
+		this(id, index, precursorCharge, precursorMz, precursorIntensity,
+				(peakList != null) ? PeakArrays.fromMap(peakList) : null, msLevel, params);
+	}
+
+	public DefaultSpectrum(String id, long index, int precursorCharge,
+						   double precursorMz, double precursorIntensity,
+						   PeakArrays peaks, Integer msLevel, List<CvParam> params ) {
 		this.id = id;
 		this.index = index;
 		this.precursorCharge = precursorCharge;
 		this.precursorMz = precursorMz;
 		this.precursorIntensity = precursorIntensity;
-		this.peakList = peakList;
+		this.peaks = peaks;
 		this.msLevel = msLevel;
 		this.params = params;
 	}
@@ -58,7 +66,12 @@ public class DefaultSpectrum implements Spectrum, Serializable {
 	}
 
 	public Map<Double, Double> getPeakList() {
-		return peakList;
+		return (peaks != null) ? peaks.toMap() : null;
+	}
+
+	@Override
+	public PeakArrays getPeakArrays() {
+		return (peaks != null) ? peaks : new PeakArrays(0);
 	}
 
 	public Integer getMsLevel() {
@@ -71,7 +84,7 @@ public class DefaultSpectrum implements Spectrum, Serializable {
 		int result = 1;
 		result = prime * result + ((id == null) ? 0 : id.hashCode());
 		result = prime * result
-				+ ((peakList == null) ? 0 : peakList.hashCode());
+				+ ((peaks == null) ? 0 : peaks.hashCode());
 		result = prime * result
 				+ ((precursorCharge == -1) ? 0 : precursorCharge);
 		result = prime
@@ -99,10 +112,10 @@ public class DefaultSpectrum implements Spectrum, Serializable {
 				return false;
 		} else if (!id.equals(other.id))
 			return false;
-		if (peakList == null) {
-			if (other.peakList != null)
+		if (peaks == null) {
+			if (other.peaks != null)
 				return false;
-		} else if (!peakList.equals(other.peakList))
+		} else if (!peaks.equals(other.peaks))
 			return false;
 		if (precursorCharge == -1) {
 			if (other.precursorCharge != -1)
@@ -0,0 +1,666 @@
+package io.github.bigbio.pgatk.io.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Checkpoints allowing to start decompressing a gzip file close to any uncompressed position
+ * (the approach of zlib's "zran" example).
+ *
+ * While the index is built the file is decompressed once by a decoder that knows where the deflate
+ * blocks start. At the first block following every {@link IndexingOptions#getGzipCheckpointSpacing()}
+ * bytes of output, the position of the block in bits and the last 32 KB of output (the window the next
+ * blocks may refer to) are stored. The beginning of every gzip member is a checkpoint as well, so
+ * concatenated gzip files are supported. Decompressing from a checkpoint is done by a raw
+ * {@link Inflater} using the window as dictionary.
+ *
+ * The windows are kept deflated in memory. The index is stored next to the gzip file (for example
+ * {@code file.mgf.gz.pgzidx}) and only used again while the gzip file is unchanged.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public final class GzipCheckpointIndex {
+
+    /**
+     * Extension appended to the name of the gzip file.
+     */
+    public static final String EXTENSION = ".pgzidx";
+
+    private static final String FORMAT = "gzip";
+
+    /** Size of the deflate window */
+    static final int WINDOW_SIZE = 32 * 1024;
+
+    /** Position of the checkpoints in the gzip file in bytes */
+    private final long[] inputOffsets;
+
+    /** Number of bits of the byte at the input offset that belong to the previous block */
+    private final byte[] inputBits;
+
+    /** Uncompressed positions of the checkpoints */
+    private final long[] outputOffsets;
+
+    /** Indicates whether a checkpoint is the beginning of a gzip member */
+    private final boolean[] memberStarts;
+
+    /** Deflated windows of the checkpoints, empty for member starts */
+    private final byte[][] windows;
+
+    /** Uncompressed sizes of the windows */
+    private final int[] windowSizes;
+
+    private final long uncompressedSize;
+
+    private GzipCheckpointIndex(long[] inputOffsets, byte[] inputBits, long[] outputOffsets, boolean[] memberStarts,
+                                byte[][] windows, int[] windowSizes, long uncompressedSize) {
+        this.inputOffsets = inputOffsets;
+        this.inputBits = inputBits;
+        this.outputOffsets = outputOffsets;
+        this.memberStarts = memberStarts;
+        this.windows = windows;
+        this.windowSizes = windowSizes;
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    /**
+     * Returns the index of a gzip file, reading it from the index file if it is up to date
+     * or building and storing it otherwise.
+     * @param file the gzip file
+     * @param options the options setting the checkpoint spacing and the index directory
+     * @return the index
+     * @throws IOException if the gzip file cannot be read or is not a valid gzip file
+     */
+    public static GzipCheckpointIndex open(File file, IndexingOptions options) throws IOException {
+        GzipCheckpointIndex index = read(file, options);
+        if (index != null)
+            return index;
+
+        long time = System.currentTimeMillis();
+        index = build(file, options.getGzipCheckpointSpacing());
+        log.debug("Time building the gzip checkpoints -- " + (System.currentTimeMillis() - time));
+
+        index.write(file, options);
+        return index;
+    }
+
+    /**
+     * Builds the index by decompressing the whole file.
+     * @param file the gzip file
+     * @param spacing minimum number of uncompressed bytes between two checkpoints
+     * @return the index
+     * @throws IOException if the file cannot be read or is not a valid gzip file
+     */
+    public static GzipCheckpointIndex build(File file, long spacing) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            return new Decoder(input, spacing).decode();
+        }
+    }
+
+    /**
+     * Reads the index of a gzip file.
+     * @param file the gzip file
+     * @param options the options setting the index directory, may be null
+     * @return the index or null if there is no index or it does not match the gzip file
+     */
+    public static GzipCheckpointIndex read(File file, IndexingOptions options) {
+        File indexFile = IndexFile.getIndexFile(file, options, EXTENSION);
+        try {
+            ByteBuffer buffer = IndexFile.readChecked(indexFile, file, FORMAT);
+            if (buffer == null)
+                return null;
+
+            long uncompressedSize = buffer.getLong();
+            int count = buffer.getInt();
+            long[] inputOffsets = new long[count];
+            byte[] inputBits = new byte[count];
+            long[] outputOffsets = new long[count];
+            boolean[] memberStarts = new boolean[count];
+            byte[][] windows = new byte[count][];
+            int[] windowSizes = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                inputOffsets[i] = buffer.getLong();
+                inputBits[i] = buffer.get();
+                outputOffsets[i] = buffer.getLong();
+                memberStarts[i] = buffer.get() != 0;
+                windowSizes[i] = buffer.getInt();
+                windows[i] = new byte[buffer.getInt()];
+                buffer.get(windows[i]);
+            }
+
+            return new GzipCheckpointIndex(inputOffsets, inputBits, outputOffsets, memberStarts, windows, windowSizes, uncompressedSize);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to read gzip index file " + indexFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the index next to the gzip file or in the index directory. Failures are logged and otherwise ignored.
+     * @param file the gzip file
+     * @param options the options setting the index directory, may be null
+     * @return true if the index was written
+     */
+    public boolean write(File file, IndexingOptions options) {
+        return IndexFile.writeChecked(IndexFile.getIndexFile(file, options, EXTENSION), file, FORMAT, output -> {
+            output.writeLong(uncompressedSize);
+            output.writeInt(size());
+            for (int i = 0; i < size(); i++) {
+                output.writeLong(inputOffsets[i]);
+                output.writeByte(inputBits[i]);
+                output.writeLong(outputOffsets[i]);
+                output.writeByte(memberStarts[i] ? 1 : 0);
+                output.writeInt(windowSizes[i]);
+                output.writeInt(windows[i].length);
+                output.write(windows[i]);
+            }
+        });
+    }
+
+    /**
+     * @return the number of checkpoints
+     */
+    public int size() {
+        return outputOffsets.length;
+    }
+
+    /**
+     * @return the size of the decompressed file
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * @param position an uncompressed position
+     * @return the last checkpoint at or before the position
+     */
+    public int getCheckpoint(long position) {
+        int low = 0;
+        int high = outputOffsets.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (outputOffsets[middle] <= position)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * @param position an uncompressed position
+     * @param inputOffset compressed position the member must start after
+     * @return the first gzip member starting at that position after the compressed position or -1 if there is none
+     */
+    int getMemberStart(long position, long inputOffset) {
+        int member = -1;
+        for (int i = getCheckpoint(position); i >= 0 && outputOffsets[i] == position; i--) {
+            if (memberStarts[i] && inputOffsets[i] > inputOffset)
+                member = i;
+        }
+        return member;
+    }
+
+    long getInputOffset(int checkpoint) {
+        return inputOffsets[checkpoint];
+    }
+
+    int getInputBits(int checkpoint) {
+        return inputBits[checkpoint];
+    }
+
+    long getOutputOffset(int checkpoint) {
+        return outputOffsets[checkpoint];
+    }
+
+    /**
+     * @return the window of the checkpoint, to be used as dictionary
+     */
+    byte[] getWindow(int checkpoint) throws IOException {
+        byte[] window = new byte[windowSizes[checkpoint]];
+        if (window.length == 0)
+            return window;
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(windows[checkpoint]);
+            int read = 0;
+            while (read < window.length) {
+                int n = inflater.inflate(window, read, window.length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new ZipException("Invalid gzip checkpoint window");
+                read += n;
+            }
+            return window;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid gzip checkpoint window: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a gzip file to find the positions of its deflate blocks. The output is only kept in the window.
+     */
+    private static final class Decoder {
+
+        /** Order of the code length codes */
+        private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+        private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+                35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+
+        private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+                3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+
+        private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+                257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+
+        private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+                7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+        private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+        private final InputStream input;
+
+        private final byte[] buffer = new byte[64 * 1024];
+
+        private int bufferPosition = 0;
+
+        private int bufferLimit = 0;
+
+        /** Number of bytes read from the input */
+        private long inputPosition = 0;
+
+        private long bitBuffer = 0;
+
+        private int bitCount = 0;
+
+        private final byte[] window = new byte[WINDOW_SIZE];
+
+        /** Number of uncompressed bytes */
+        private long output = 0;
+
+        /** Uncompressed position of the current gzip member */
+        private long memberOutput = 0;
+
+        private final long spacing;
+
+        private long lastCheckpoint = 0;
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        private int count = 0;
+        private long[] inputOffsets = new long[16];
+        private byte[] inputBits = new byte[16];
+        private long[] outputOffsets = new long[16];
+        private boolean[] memberStarts = new boolean[16];
+        private byte[][] windows = new byte[16][];
+        private int[] windowSizes = new int[16];
+
+        private int[] fixedLiterals;
+        private int[] fixedDistances;
+
+        private Decoder(InputStream input, long spacing) {
+            this.input = input;
+            this.spacing = spacing;
+        }
+
+        GzipCheckpointIndex decode() throws IOException {
+            try {
+                do {
+                    readMember();
+                } while (nextMember());
+
+                return new GzipCheckpointIndex(Arrays.copyOf(inputOffsets, count), Arrays.copyOf(inputBits, count),
+                        Arrays.copyOf(outputOffsets, count), Arrays.copyOf(memberStarts, count),
+                        Arrays.copyOf(windows, count), Arrays.copyOf(windowSizes, count), output);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private int refill() throws IOException {
+            bufferPosition = 0;
+            bufferLimit = Math.max(0, input.read(buffer));
+            inputPosition += bufferLimit;
+            return bufferLimit;
+        }
+
+        /**
+         * Adds bytes to the bit buffer until it holds at least the passed number of bits or the input ends.
+         */
+        private void fill(int bits) throws IOException {
+            while (bitCount < bits) {
+                if (bufferPosition == bufferLimit && refill() == 0)
+                    return;
+                bitBuffer |= (long) (buffer[bufferPosition++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+        }
+
+        private int bits(int n) throws IOException {
+            if (bitCount < n) {
+                fill(n);
+                if (bitCount < n)
+                    throw new EOFException("Unexpected end of gzip file");
+            }
+            int value = (int) (bitBuffer & ((1L << n) - 1));
+            bitBuffer >>>= n;
+            bitCount -= n;
+            return value;
+        }
+
+        /**
+         * @return the position of the next unread bit of the input
+         */
+        private long bitPosition() {
+            return (inputPosition - (bufferLimit - bufferPosition)) * 8 - bitCount;
+        }
+
+        private void alignToByte() {
+            int drop = bitCount & 7;
+            bitBuffer >>>= drop;
+            bitCount -= drop;
+        }
+
+        /**
+         * @return true if another gzip member follows
+         */
+        private boolean nextMember() throws IOException {
+            fill(16);
+            if (bitCount < 16 || (bitBuffer & 0xFFFF) != 0x8b1f)
+                return false;
+            return true;
+        }
+
+        private void readMember() throws IOException {
+            if (bits(8) != 0x1f || bits(8) != 0x8b)
+                throw new ZipException("Not in GZIP format");
+            if (bits(8) != 8)
+                throw new ZipException("Unsupported compression method");
+            int flags = bits(8);
+            bits(16); // modification time
+            bits(16);
+            bits(16); // extra flags and operating system
+
+            if ((flags & 4) != 0) {
+                int length = bits(16);
+                for (int i = 0; i < length; i++)
+                    bits(8);
+            }
+            if ((flags & 8) != 0) {
+                while (bits(8) != 0) ;
+            }
+            if ((flags & 16) != 0) {
+                while (bits(8) != 0) ;
+            }
+            if ((flags & 2) != 0)
+                bits(16);
+
+            memberOutput = output;
+            addCheckpoint(true);
+
+            boolean last;
+            do {
+                if (output - lastCheckpoint >= spacing)
+                    addCheckpoint(false);
+
+                last = bits(1) == 1;
+                int type = bits(2);
+                switch (type) {
+                    case 0:
+                        stored();
+                        break;
+                    case 1:
+                        if (fixedLiterals == null)
+                            buildFixedTables();
+                        codes(fixedLiterals, fixedDistances);
+                        break;
+                    case 2:
+                        dynamic();
+                        break;
+                    default:
+                        throw new ZipException("Invalid deflate block type");
+                }
+            } while (!last);
+
+            // the trailer holds the CRC32 and the size of the member
+            alignToByte();
+            bits(16);
+            bits(16);
+            long size = bits(16) | ((long) bits(16) << 16);
+            if (size != ((output - memberOutput) & 0xFFFFFFFFL))
+                throw new ZipException("Corrupt gzip trailer");
+        }
+
+        private void addCheckpoint(boolean memberStart) {
+            if (count == outputOffsets.length) {
+                int capacity = count * 2;
+                inputOffsets = Arrays.copyOf(inputOffsets, capacity);
+                inputBits = Arrays.copyOf(inputBits, capacity);
+                outputOffsets = Arrays.copyOf(outputOffsets, capacity);
+                memberStarts = Arrays.copyOf(memberStarts, capacity);
+                windows = Arrays.copyOf(windows, capacity);
+                windowSizes = Arrays.copyOf(windowSizes, capacity);
+            }
+
+            long bitPosition = bitPosition();
+            inputOffsets[count] = bitPosition >>> 3;
+            inputBits[count] = (byte) (bitPosition & 7);
+            outputOffsets[count] = output;
+            memberStarts[count] = memberStart;
+
+            // back-references never reach into the previous member
+            int windowSize = (int) Math.min(WINDOW_SIZE, output - memberOutput);
+            byte[] current = new byte[windowSize];
+            int start = (int) ((output - windowSize) & WINDOW_MASK);
+            int first = Math.min(windowSize, WINDOW_SIZE - start);
+            System.arraycopy(window, start, current, 0, first);
+            System.arraycopy(window, 0, current, first, windowSize - first);
+            windowSizes[count] = windowSize;
+            windows[count] = deflate(current);
+
+            count++;
+            lastCheckpoint = output;
+        }
+
+        private byte[] deflate(byte[] data) {
+            if (data.length == 0)
+                return data;
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+            byte[] chunk = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                compressed.write(chunk, 0, n);
+            }
+            return compressed.toByteArray();
+        }
+
+        private void put(byte value) {
+            window[(int) (output & WINDOW_MASK)] = value;
+            output++;
+        }
+
+        private void stored() throws IOException {
+            alignToByte();
+            int length = bits(16);
+            if ((bits(16) ^ 0xFFFF) != length)
+                throw new ZipException("Invalid stored block lengths");
+
+            // the bit buffer only holds whole bytes after the alignment
+            for (; length > 0 && bitCount > 0; length--)
+                put((byte) bits(8));
+
+            while (length > 0) {
+                if (bufferPosition == bufferLimit && refill() == 0)
+                    throw new EOFException("Unexpected end of gzip file");
+                int n = Math.min(length, bufferLimit - bufferPosition);
+                for (int i = 0; i < n; i++)
+                    put(buffer[bufferPosition + i]);
+                bufferPosition += n;
+                length -= n;
+            }
+        }
+
+        private void buildFixedTables() throws ZipException {
+            int[] lengths = new int[288];
+            Arrays.fill(lengths, 0, 144, 8);
+            Arrays.fill(lengths, 144, 256, 9);
+            Arrays.fill(lengths, 256, 280, 7);
+            Arrays.fill(lengths, 280, 288, 8);
+            fixedLiterals = buildTable(lengths, 288);
+
+            int[] distances = new int[30];
+            Arrays.fill(distances, 5);
+            fixedDistances = buildTable(distances, 30);
+        }
+
+        private void dynamic() throws IOException {
+            int literalCount = bits(5) + 257;
+            int distanceCount = bits(5) + 1;
+            int codeLengthCount = bits(4) + 4;
+            if (literalCount > 286 || distanceCount > 30)
+                throw new ZipException("Invalid dynamic block code counts");
+
+            int[] lengths = new int[320];
+            for (int i = 0; i < codeLengthCount; i++)
+                lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+            int[] codeLengthTable = buildTable(lengths, 19);
+
+            int[] codeLengths = new int[literalCount + distanceCount];
+            int index = 0;
+            while (index < codeLengths.length) {
+                int symbol = decode(codeLengthTable);
+                if (symbol < 16) {
+                    codeLengths[index++] = symbol;
+                    continue;
+                }
+
+                int previous = 0;
+                int repeat;
+                if (symbol == 16) {
+                    if (index == 0)
+                        throw new ZipException("Invalid code length repeat");
+                    previous = codeLengths[index - 1];
+                    repeat = 3 + bits(2);
+                } else if (symbol == 17) {
+                    repeat = 3 + bits(3);
+                } else {
+                    repeat = 11 + bits(7);
+                }
+                if (index + repeat > codeLengths.length)
+                    throw new ZipException("Too many code lengths");
+                while (repeat-- > 0)
+                    codeLengths[index++] = previous;
+            }
+
+            if (codeLengths[256] == 0)
+                throw new ZipException("Missing end of block code");
+
+            int[] literals = buildTable(codeLengths, literalCount);
+            int[] distances = buildTable(Arrays.copyOfRange(codeLengths, literalCount, codeLengths.length), distanceCount);
+            codes(literals, distances);
+        }
+
+        private void codes(int[] literals, int[] distances) throws IOException {
+            while (true) {
+                int symbol = decode(literals);
+                if (symbol < 256) {
+                    put((byte) symbol);
+                } else if (symbol == 256) {
+                    return;
+                } else {
+                    symbol -= 257;
+                    if (symbol >= 29)
+                        throw new ZipException("Invalid literal/length code");
+                    int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+
+                    int distanceSymbol = decode(distances);
+                    if (distanceSymbol >= 30)
+                        throw new ZipException("Invalid distance code");
+                    int distance = DISTANCE_BASE[distanceSymbol] + bits(DISTANCE_EXTRA[distanceSymbol]);
+                    if (distance > output - memberOutput)
+                        throw new ZipException("Invalid distance too far back");
+
+                    for (int i = 0; i < length; i++)
+                        put(window[(int) ((output - distance) & WINDOW_MASK)]);
+                }
+            }
+        }
+
+        /**
+         * Builds a lookup table of a canonical Huffman code. The table is indexed by the next
+         * (bit-reversed) input bits and holds the symbol shifted by 4 and the length of its code.
+         * The last element holds the maximum code length.
+         */
+        private static int[] buildTable(int[] lengths, int symbols) throws ZipException {
+            int[] counts = new int[16];
+            for (int i = 0; i < symbols; i++)
+                counts[lengths[i]]++;
+            counts[0] = 0;
+
+            int maxLength = 0;
+            int left = 1;
+            for (int length = 1; length < 16; length++) {
+                left = (left << 1) - counts[length];
+                if (left < 0)
+                    throw new ZipException("Over-subscribed Huffman code");
+                if (counts[length] > 0)
+                    maxLength = length;
+            }
+
+            int[] nextCode = new int[16];
+            for (int length = 1, code = 0; length < 16; length++) {
+                code = (code + counts[length - 1]) << 1;
+                nextCode[length] = code;
+            }
+
+            int size = 1 << maxLength;
+            int[] table = new int[size + 1];
+            table[size] = maxLength;
+            for (int symbol = 0; symbol < symbols; symbol++) {
+                int length = lengths[symbol];
+                if (length == 0)
+                    continue;
+                int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+                for (int i = reversed; i < size; i += 1 << length)
+                    table[i] = (symbol << 4) | length;
+            }
+            return table;
+        }
+
+        private int decode(int[] table) throws IOException {
+            int maxLength = table[table.length - 1];
+            if (bitCount < maxLength)
+                fill(maxLength);
+            int entry = table[(int) (bitBuffer & (table.length - 2))];
+            int length = entry & 15;
+            if (length == 0 || length > bitCount) {
+                if (length == 0)
+                    throw new ZipException("Invalid Huffman code");
+                throw new EOFException("Unexpected end of gzip file");
+            }
+            bitBuffer >>>= length;
+            bitCount -= length;
+            return entry >>> 4;
+        }
+    }
+}
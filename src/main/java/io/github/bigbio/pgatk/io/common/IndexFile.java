@@ -0,0 +1,362 @@
+package io.github.bigbio.pgatk.io.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent index of a spectrum file, stored next to the file (for example {@code file.mgf.pgidx})
+ * or in the directory set in the {@link IndexingOptions}.
+ *
+ * The index holds the offset, size, id and MS level of every spectrum and a list of format specific
+ * Strings (for example the header lines of a MGF file). It is only used if the size, modification
+ * time and a fingerprint of the first and last bytes of the spectrum file are the same as when the
+ * index was written, and if its own checksum is valid. Index files are memory-mapped when read.
+ *
+ * File layout (big-endian): magic, version, format, source size, source modification time, source
+ * fingerprint, number of spectra, flags, offsets, sizes, MS levels, ids, metadata and a CRC32
+ * of all the preceding bytes.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public final class IndexFile {
+
+    /**
+     * Extension appended to the name of the spectrum file.
+     */
+    public static final String EXTENSION = ".pgidx";
+
+    /**
+     * Version of the file layout, files with another version are ignored.
+     */
+    public static final int VERSION = 1;
+
+    private static final long MAGIC = 0x5047415458494458L; // "PGATXIDX"
+
+    private static final int FINGERPRINT_BLOCK = 64 * 1024;
+
+    private static final int FLAG_MS_LEVELS = 1;
+
+    private static final int FLAG_IDS = 2;
+
+    private final long[] offsets;
+
+    private final int[] sizes;
+
+    private final byte[] msLevels;
+
+    private final String[] ids;
+
+    private final List<String> metadata;
+
+    /**
+     * @param offsets start positions of the spectra
+     * @param sizes sizes of the spectra in bytes
+     * @param msLevels MS levels of the spectra, null if not known
+     * @param ids ids of the spectra, null if the spectra have no ids
+     * @param metadata format specific Strings, may be null
+     */
+    public IndexFile(long[] offsets, int[] sizes, byte[] msLevels, String[] ids, List<String> metadata) {
+        if (sizes.length != offsets.length || (msLevels != null && msLevels.length != offsets.length)
+                || (ids != null && ids.length != offsets.length))
+            throw new IllegalArgumentException("All the index arrays must have the same length");
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.msLevels = msLevels;
+        this.ids = ids;
+        this.metadata = (metadata != null) ? metadata : Collections.emptyList();
+    }
+
+    /**
+     * Returns the file the index of a spectrum file is stored in.
+     * @param source the spectrum file
+     * @param options the options setting the index directory, may be null
+     * @return the index file
+     */
+    public static File getIndexFile(File source, IndexingOptions options) {
+        return getIndexFile(source, options, EXTENSION);
+    }
+
+    static File getIndexFile(File source, IndexingOptions options, String extension) {
+        File directory = (options != null && options.getIndexDirectory() != null)
+                ? options.getIndexDirectory() : source.getAbsoluteFile().getParentFile();
+        return new File(directory, source.getName() + extension);
+    }
+
+    /**
+     * Reads the index of a spectrum file.
+     * @param source the spectrum file
+     * @param format the format of the spectrum file, must be the same as when the index was written
+     * @param options the options setting the index directory, may be null
+     * @return the index or null if there is no index or it does not match the spectrum file
+     */
+    public static IndexFile read(File source, String format, IndexingOptions options) {
+        File file = getIndexFile(source, options);
+        try {
+            ByteBuffer buffer = readChecked(file, source, format);
+            if (buffer == null)
+                return null;
+
+            int count = buffer.getInt();
+            int flags = buffer.getInt();
+
+            long[] offsets = new long[count];
+            buffer.asLongBuffer().get(offsets);
+            buffer.position(buffer.position() + count * Long.BYTES);
+            int[] sizes = new int[count];
+            buffer.asIntBuffer().get(sizes);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+
+            byte[] msLevels = null;
+            if ((flags & FLAG_MS_LEVELS) != 0) {
+                msLevels = new byte[count];
+                buffer.get(msLevels);
+            }
+
+            String[] ids = null;
+            if ((flags & FLAG_IDS) != 0) {
+                ids = new String[count];
+                for (int i = 0; i < count; i++)
+                    ids[i] = readString(buffer);
+            }
+
+            int metadataCount = buffer.getInt();
+            List<String> metadata = new ArrayList<>(metadataCount);
+            for (int i = 0; i < metadataCount; i++)
+                metadata.add(readString(buffer));
+
+            return new IndexFile(offsets, sizes, msLevels, ids, metadata);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to read index file " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index of a spectrum file. Failures are logged and otherwise ignored,
+     * the index is then simply rebuilt the next time the spectrum file is opened.
+     * @param source the spectrum file
+     * @param format the format of the spectrum file
+     * @param options the options setting the index directory, may be null
+     * @return true if the index was written
+     */
+    public boolean write(File source, String format, IndexingOptions options) {
+        return writeChecked(getIndexFile(source, options), source, format, output -> {
+            output.writeInt(offsets.length);
+            output.writeInt((msLevels != null ? FLAG_MS_LEVELS : 0) | (ids != null ? FLAG_IDS : 0));
+
+            for (long offset : offsets)
+                output.writeLong(offset);
+            for (int size : sizes)
+                output.writeInt(size);
+            if (msLevels != null)
+                output.write(msLevels);
+            if (ids != null) {
+                for (String id : ids)
+                    writeString(output, id);
+            }
+            output.writeInt(metadata.size());
+            for (String value : metadata)
+                writeString(output, value);
+        });
+    }
+
+    /**
+     * Writes the content of an index file.
+     */
+    interface Content {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * Memory-maps an index file and checks its checksum and header.
+     * @param file the index file
+     * @param source the file the index was written for
+     * @param format the format the index was written for
+     * @return the content following the header or null if the file does not exist or does not match
+     */
+    static ByteBuffer readChecked(File file, File source, String format) throws IOException {
+        if (!file.isFile())
+            return null;
+
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = accessFile.getChannel();
+            long size = channel.size();
+            if (size < Long.BYTES || size > Integer.MAX_VALUE) {
+                log.warn("Ignoring invalid index file " + file);
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // the last 8 bytes hold the checksum of the rest of the file
+            ByteBuffer content = buffer.duplicate();
+            content.limit((int) size - Long.BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if (crc.getValue() != buffer.getLong((int) size - Long.BYTES)) {
+                log.warn("Ignoring corrupted index file " + file);
+                return null;
+            }
+
+            if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION || !format.equals(readString(buffer))) {
+                log.info("Ignoring index file " + file + " written by another version or for another format");
+                return null;
+            }
+            if (buffer.getLong() != source.length() || buffer.getLong() != source.lastModified()
+                    || buffer.getLong() != fingerprint(source)) {
+                log.info("Ignoring outdated index file " + file);
+                return null;
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Writes an index file with the header and checksum checked by {@link #readChecked(File, File, String)}.
+     * The file is written to a temporary file first and then moved, failures are logged.
+     * @param file the index file
+     * @param source the file the index is written for
+     * @param format the format of the index
+     * @param content writes the content following the header
+     * @return true if the file was written
+     */
+    static boolean writeChecked(File file, File source, String format, Content content) {
+        File temporary = null;
+
+        try {
+            temporary = File.createTempFile(source.getName() + ".idx", ".tmp", file.getAbsoluteFile().getParentFile());
+
+            try (FileOutputStream fileOutput = new FileOutputStream(temporary)) {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 1 << 16), new CRC32());
+                DataOutputStream output = new DataOutputStream(checked);
+
+                output.writeLong(MAGIC);
+                output.writeInt(VERSION);
+                writeString(output, format);
+                output.writeLong(source.length());
+                output.writeLong(source.lastModified());
+                output.writeLong(fingerprint(source));
+                content.write(output);
+
+                output.flush();
+                long checksum = checked.getChecksum().getValue();
+                output.writeLong(checksum);
+                output.flush();
+            }
+
+            try {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to write index file " + file, e);
+            if (temporary != null && temporary.exists() && !temporary.delete())
+                log.debug("Failed to delete " + temporary);
+            return false;
+        }
+    }
+
+    /**
+     * Computes a checksum of the first and last bytes of a file.
+     */
+    private static long fingerprint(File source) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(source, "r")) {
+            FileChannel channel = accessFile.getChannel();
+            long size = channel.size();
+            CRC32 crc = new CRC32();
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, FINGERPRINT_BLOCK));
+            ByteBufferPool.readFully(channel, buffer, 0);
+            buffer.flip();
+            crc.update(buffer);
+
+            if (size > FINGERPRINT_BLOCK) {
+                buffer.clear();
+                buffer.limit((int) Math.min(size - FINGERPRINT_BLOCK, FINGERPRINT_BLOCK));
+                ByteBufferPool.readFully(channel, buffer, size - buffer.limit());
+                buffer.flip();
+                crc.update(buffer);
+            }
+            return crc.getValue();
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public long[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getSizes() {
+        return sizes;
+    }
+
+    /**
+     * @return the MS levels or null if they were not stored
+     */
+    public byte[] getMsLevels() {
+        return msLevels;
+    }
+
+    /**
+     * @return the ids or null if they were not stored
+     */
+    public String[] getIds() {
+        return ids;
+    }
+
+    public List<String> getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IndexFile)) return false;
+        IndexFile that = (IndexFile) o;
+        return Arrays.equals(offsets, that.offsets) && Arrays.equals(sizes, that.sizes)
+                && Arrays.equals(msLevels, that.msLevels) && Arrays.equals(ids, that.ids)
+                && metadata.equals(that.metadata);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(offsets) + Arrays.hashCode(sizes);
+    }
+}
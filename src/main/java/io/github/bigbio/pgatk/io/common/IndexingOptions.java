@@ -0,0 +1,131 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * Options controlling how the indexed readers ({@link MzReader})
+ * build the index of a file.
+ *
+ * @author ypriverol
+ */
+public class IndexingOptions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default size of the byte ranges indexed by a single worker (64 MB).
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Default distance between the checkpoints of gzip files (4 MB of uncompressed data).
+     */
+    public static final long DEFAULT_GZIP_CHECKPOINT_SPACING = 4L * 1024 * 1024;
+
+    /**
+     * Number of threads used to build the index. A value of 1
+     * indexes the file sequentially.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Size in bytes of the ranges the file is split into
+     * when the index is built in parallel.
+     */
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Indicates whether the index is stored in an {@link IndexFile}
+     * and read from it when the file is opened again.
+     */
+    private boolean useIndexFile = false;
+
+    /**
+     * Directory of the index files, null to store them next
+     * to the indexed files.
+     */
+    private File indexDirectory;
+
+    /**
+     * Number of uncompressed bytes between two checkpoints of
+     * a {@link GzipCheckpointIndex}.
+     */
+    private long gzipCheckpointSpacing = DEFAULT_GZIP_CHECKPOINT_SPACING;
+
+    public IndexingOptions() {
+    }
+
+    /**
+     * @param parallelism number of threads used to build the index
+     * @param chunkSize size in bytes of the ranges indexed by every worker
+     */
+    public IndexingOptions(int parallelism, long chunkSize) {
+        setParallelism(parallelism);
+        setChunkSize(chunkSize);
+    }
+
+    /**
+     * Options to index a file using all available processors.
+     * @return the options
+     */
+    public static IndexingOptions parallel() {
+        return new IndexingOptions(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("The parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("The chunk size must be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isUseIndexFile() {
+        return useIndexFile;
+    }
+
+    /**
+     * @param useIndexFile true to store the index in an {@link IndexFile} and read it when the file is opened again
+     */
+    public void setUseIndexFile(boolean useIndexFile) {
+        this.useIndexFile = useIndexFile;
+    }
+
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * @param indexDirectory directory of the index files, null to store them next to the indexed files
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    public long getGzipCheckpointSpacing() {
+        return gzipCheckpointSpacing;
+    }
+
+    /**
+     * @param gzipCheckpointSpacing number of uncompressed bytes between two checkpoints of a gzip file.
+     *                              Smaller values speed up random access but need more memory.
+     */
+    public void setGzipCheckpointSpacing(long gzipCheckpointSpacing) {
+        if (gzipCheckpointSpacing < 1)
+            throw new IllegalArgumentException("The gzip checkpoint spacing must be positive");
+        this.gzipCheckpointSpacing = gzipCheckpointSpacing;
+    }
+}
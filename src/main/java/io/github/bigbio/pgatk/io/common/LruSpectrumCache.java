@@ -0,0 +1,284 @@
+package io.github.bigbio.pgatk.io.common;
+
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link SpectrumCache} bounded by the estimated memory used by the spectra. When the budget
+ * is exceeded the least recently used spectra are evicted.
+ *
+ * The cache is split into segments, each with its own lock, its own least recently used order and an
+ * equal share of the budget, so the readers sharing the cache do not wait for a single lock on every
+ * lookup. The eviction order is only exact within a segment; a cache with one segment is a plain LRU
+ * cache behind one lock. Spectra larger than the budget of a segment are not stored.
+ *
+ * @author ypriverol
+ */
+public class LruSpectrumCache implements SpectrumCache {
+
+    /**
+     * Default budget of the cache (128 MB).
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 128L * 1024 * 1024;
+
+    /**
+     * Default number of segments.
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * Estimated size of a spectrum without its peaks.
+     */
+    private static final long SPECTRUM_OVERHEAD = 512;
+
+    /**
+     * Estimated size of a peak: one m/z and one intensity value.
+     */
+    private static final long PEAK_WEIGHT = 2 * Double.BYTES;
+
+    /**
+     * Key of an entry: the owner is compared by identity, the key by equality.
+     */
+    private static final class Key {
+        private final Object owner;
+        private final Object key;
+
+        private Key(Object owner, Object key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return owner == that.owner && Objects.equals(key, that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(owner) + Objects.hashCode(key);
+        }
+    }
+
+    private static final class Entry {
+        private final Spectrum spectrum;
+        private final long weight;
+
+        private Entry(Spectrum spectrum, long weight) {
+            this.spectrum = spectrum;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Part of the cache with its own lock and budget.
+     */
+    private final class Segment {
+
+        /** Entries in access order, the eldest entry is the least recently used one */
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final long maxWeight;
+
+        private long weight;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        private synchronized Spectrum get(Key key) {
+            Entry entry = entries.get(key);
+            return entry == null ? null : entry.spectrum;
+        }
+
+        private synchronized void put(Key key, Spectrum spectrum, long entryWeight) {
+            Entry previous = entries.remove(key);
+            if (previous != null)
+                weight -= previous.weight;
+
+            // spectra larger than the whole segment are not stored
+            if (entryWeight > maxWeight)
+                return;
+
+            entries.put(key, new Entry(spectrum, entryWeight));
+            weight += entryWeight;
+
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (weight > maxWeight && iterator.hasNext()) {
+                weight -= iterator.next().weight;
+                iterator.remove();
+                evictionCount.increment();
+            }
+        }
+
+        private synchronized void invalidate(Object owner) {
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> entry = iterator.next();
+                if (entry.getKey().owner == owner) {
+                    weight -= entry.getValue().weight;
+                    iterator.remove();
+                }
+            }
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        private synchronized int size() {
+            return entries.size();
+        }
+
+        private synchronized long getWeight() {
+            return weight;
+        }
+    }
+
+    private final Segment[] segments;
+
+    private final long maxWeight;
+
+    private final ToLongFunction<Spectrum> weigher;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Creates a cache with the default budget.
+     */
+    public LruSpectrumCache() {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxWeight the maximum estimated size in bytes of the cached spectra
+     */
+    public LruSpectrumCache(long maxWeight) {
+        this(maxWeight, LruSpectrumCache::estimateWeight);
+    }
+
+    /**
+     * @param maxWeight the maximum size of the cached spectra, in the unit returned by the weigher
+     * @param weigher returns the size of a spectrum
+     */
+    public LruSpectrumCache(long maxWeight, ToLongFunction<Spectrum> weigher) {
+        this(maxWeight, weigher, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxWeight the maximum size of the cached spectra, in the unit returned by the weigher
+     * @param weigher returns the size of a spectrum
+     * @param segments the number of segments, 1 for an exact least recently used order
+     */
+    public LruSpectrumCache(long maxWeight, ToLongFunction<Spectrum> weigher, int segments) {
+        if (maxWeight < 0)
+            throw new IllegalArgumentException("The maximum weight must not be negative");
+        if (segments < 1)
+            throw new IllegalArgumentException("The cache needs at least one segment");
+        this.maxWeight = maxWeight;
+        this.weigher = Objects.requireNonNull(weigher);
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++)
+            this.segments[i] = new Segment(maxWeight / segments + (i < maxWeight % segments ? 1 : 0));
+    }
+
+    /**
+     * Estimates the memory used by a spectrum from its number of peaks.
+     * @param spectrum the spectrum
+     * @return the estimated size in bytes
+     */
+    public static long estimateWeight(Spectrum spectrum) {
+        return SPECTRUM_OVERHEAD + PEAK_WEIGHT * spectrum.getNumberOfPeaks();
+    }
+
+    private Segment segment(Key key) {
+        int hash = key.hashCode();
+        return segments[Math.floorMod(hash ^ (hash >>> 16), segments.length)];
+    }
+
+    @Override
+    public Spectrum get(Object owner, Object key) {
+        Key entryKey = new Key(owner, key);
+        Spectrum spectrum = segment(entryKey).get(entryKey);
+        if (spectrum == null)
+            missCount.increment();
+        else
+            hitCount.increment();
+        return spectrum;
+    }
+
+    @Override
+    public void put(Object owner, Object key, Spectrum spectrum) {
+        // weigh outside of the lock, this may sort the peaks of the spectrum
+        long entryWeight = weigher.applyAsLong(spectrum);
+        Key entryKey = new Key(owner, key);
+        segment(entryKey).put(entryKey, spectrum, entryWeight);
+    }
+
+    @Override
+    public void invalidate(Object owner) {
+        for (Segment segment : segments)
+            segment.invalidate(owner);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    @Override
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments)
+            weight += segment.getWeight();
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+}
@@ -0,0 +1,380 @@
+package io.github.bigbio.pgatk.io.common;
+
+import io.github.bigbio.pgatk.io.utils.AsciiNumberParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a file into lines without copying them: the file is walked in memory mapped segments and the
+ * tokenizer itself is a {@link CharSequence} view of the current line, which is replaced by the next
+ * call to {@link #nextLine()}.
+ *
+ * The segments start at {@link #MIN_SEGMENT_SIZE} and double up to {@link #MAX_SEGMENT_SIZE}, positions
+ * are kept as longs so files larger than 2 GB are supported. Lines that are split between two segments are
+ * copied into a reusable buffer, all other lines point into the mapped segment. Lines end with "\n", "\r\n"
+ * or "\r", the line terminator is not part of the line. A UTF-8 byte order mark at the start of the file is skipped.
+ *
+ * Every byte is seen as one ISO-8859-1 character, {@link #toString(Charset)} decodes the line with another charset.
+ *
+ * @author ypriverol
+ */
+public final class MappedLineTokenizer implements CharSequence {
+
+    /** Size of the first mapped segment */
+    public static final int MIN_SEGMENT_SIZE = 1 << 20;
+
+    /** The segments are doubled up to this size */
+    public static final int MAX_SEGMENT_SIZE = 64 << 20;
+
+    private final FileChannel channel;
+
+    private int segmentSize;
+
+    private ByteBuffer segment;
+
+    /** Used to copy bytes out of the segment without changing its position */
+    private ByteBuffer segmentReader;
+
+    /** Position of the segment in the file */
+    private long segmentStart = 0;
+
+    /** Position of the next byte in the segment */
+    private int cursor = 0;
+
+    /** Set if the last line ended with a '\r' at the end of a segment, a following '\n' belongs to it */
+    private boolean skipLineFeed = false;
+
+    /** Bytes of the byte order mark that were not skipped yet */
+    private int byteOrderMarkRemaining = 0;
+
+    /** Lines split between segments */
+    private byte[] carry = new byte[1024];
+
+    private boolean carried = false;
+
+    private int lineFrom = 0;
+
+    private int lineLength = 0;
+
+    private long lineStart = -1;
+
+    /**
+     * @param channel the file, it is not closed by the tokenizer
+     */
+    public MappedLineTokenizer(FileChannel channel) {
+        this(channel, MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param channel            the file, it is not closed by the tokenizer
+     * @param initialSegmentSize the size of the first segment, doubled up to {@link #MAX_SEGMENT_SIZE}
+     */
+    public MappedLineTokenizer(FileChannel channel, int initialSegmentSize) {
+        this(channel, 0, initialSegmentSize);
+    }
+
+    /**
+     * @param channel            the file, it is not closed by the tokenizer
+     * @param position           the position of the first line in the file, it may be inside a line
+     * @param initialSegmentSize the size of the first segment, doubled up to {@link #MAX_SEGMENT_SIZE}
+     */
+    public MappedLineTokenizer(FileChannel channel, long position, int initialSegmentSize) {
+        if (initialSegmentSize < 1 || position < 0)
+            throw new IllegalArgumentException("The segment size must be positive and the position can't be negative");
+        this.channel = channel;
+        this.segmentStart = position;
+        this.segmentSize = Math.min(initialSegmentSize, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Splits bytes that are already in memory, such as a record cut out of a file, into lines.
+     *
+     * @param bytes the bytes from their position to their limit, the buffer is not changed
+     */
+    public MappedLineTokenizer(ByteBuffer bytes) {
+        this.channel = null;
+        this.segment = bytes.slice();
+        this.segmentReader = segment.duplicate();
+        this.segmentSize = segment.limit();
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return false at the end of the file
+     * @throws IOException if the file can't be mapped
+     */
+    public boolean nextLine() throws IOException {
+        boolean pending = false;
+        int carryLength = 0;
+        while (true) {
+            if (segment == null || cursor == segment.limit()) {
+                if (!mapNextSegment()) {
+                    if (!pending) {
+                        lineLength = 0;
+                        return false;
+                    }
+                    setCarriedLine(carryLength);
+                    return true;
+                }
+                continue;
+            }
+
+            if (byteOrderMarkRemaining > 0) {
+                int skipped = Math.min(byteOrderMarkRemaining, segment.limit() - cursor);
+                cursor += skipped;
+                byteOrderMarkRemaining -= skipped;
+                continue;
+            }
+
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (segment.get(cursor) == '\n')
+                    cursor++;
+                continue;
+            }
+
+            if (!pending) {
+                lineStart = segmentStart + cursor;
+                pending = true;
+            }
+
+            int limit = segment.limit();
+            int end = cursor;
+            byte b = 0;
+            while (end < limit && (b = segment.get(end)) != '\n' && b != '\r')
+                end++;
+
+            if (end == limit) {
+                carryLength = appendCarry(carryLength, cursor, end);
+                cursor = end;
+                continue;
+            }
+
+            if (carryLength > 0) {
+                setCarriedLine(appendCarry(carryLength, cursor, end));
+            } else {
+                carried = false;
+                lineFrom = cursor;
+                lineLength = end - cursor;
+            }
+
+            cursor = end + 1;
+            if (b == '\r') {
+                if (cursor < limit) {
+                    if (segment.get(cursor) == '\n')
+                        cursor++;
+                } else {
+                    skipLineFeed = true;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the position of the current line in the file
+     */
+    public long getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @param index the position in the line
+     * @return the byte at the position
+     */
+    public byte byteAt(int index) {
+        if (index < 0 || index >= lineLength)
+            throw new IndexOutOfBoundsException("Index " + index + " outside of line of length " + lineLength);
+        return carried ? carry[index] : segment.get(lineFrom + index);
+    }
+
+    @Override
+    public int length() {
+        return lineLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (byteAt(index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString(start, end, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return true if the line is empty or only holds whitespace
+     */
+    public boolean isBlank() {
+        return trimStart() == lineLength;
+    }
+
+    /**
+     * @return the position of the first character that is not whitespace
+     */
+    public int trimStart() {
+        int start = 0;
+        while (start < lineLength && (byteAt(start) & 0xff) <= ' ')
+            start++;
+        return start;
+    }
+
+    /**
+     * @return the position after the last character that is not whitespace
+     */
+    public int trimEnd() {
+        int end = lineLength;
+        while (end > 0 && (byteAt(end - 1) & 0xff) <= ' ')
+            end--;
+        return end;
+    }
+
+    /**
+     * @param prefix an ASCII string
+     * @param from   the position in the line
+     * @return true if the line holds the prefix at the position
+     */
+    public boolean startsWith(String prefix, int from) {
+        if (from < 0 || from + prefix.length() > lineLength)
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (charAt(from + i) != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param ch   an ASCII character
+     * @param from the position to start from
+     * @return the position of the character or -1
+     */
+    public int indexOf(char ch, int from) {
+        for (int i = Math.max(from, 0); i < lineLength; i++) {
+            if (charAt(i) == ch)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param text an ASCII string
+     * @return the position of the text in the line or -1
+     */
+    public int indexOf(String text) {
+        for (int i = 0; i + text.length() <= lineLength; i++) {
+            if (startsWith(text, i))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Copies bytes of the line.
+     *
+     * @param from   the first byte to copy
+     * @param to     the position after the last byte to copy
+     * @param dest   the destination
+     * @param offset the position in the destination
+     */
+    public void copyBytes(int from, int to, byte[] dest, int offset) {
+        if (from < 0 || to > lineLength || from > to)
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + " outside of line of length " + lineLength);
+        if (carried) {
+            System.arraycopy(carry, from, dest, offset, to - from);
+        } else {
+            segmentReader.position(lineFrom + from);
+            segmentReader.get(dest, offset, to - from);
+        }
+    }
+
+    /**
+     * Parses a number of the line without creating a String.
+     *
+     * @param from the first character of the number
+     * @param to   the position after the last character of the number
+     * @return the same value as {@link Double#parseDouble(String)}
+     * @throws NumberFormatException if the characters are not a valid number
+     */
+    public double parseDouble(int from, int to) {
+        if (carried)
+            return AsciiNumberParser.parseDouble(carry, from, to);
+        return AsciiNumberParser.parseDouble(this, from, to);
+    }
+
+    /**
+     * @param charset the encoding of the file
+     * @return the line decoded with the charset
+     */
+    public String toString(Charset charset) {
+        return toString(0, lineLength, charset);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, lineLength, StandardCharsets.ISO_8859_1);
+    }
+
+    private String toString(int start, int end, Charset charset) {
+        if (start < 0 || end > lineLength || start > end)
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end + " outside of line of length " + lineLength);
+        if (carried)
+            return new String(carry, start, end - start, charset);
+        byte[] bytes = new byte[end - start];
+        segmentReader.position(lineFrom + start);
+        segmentReader.get(bytes);
+        return new String(bytes, charset);
+    }
+
+    private boolean mapNextSegment() throws IOException {
+        if (channel == null)
+            return false;
+        long start = (segment == null) ? segmentStart : segmentStart + segment.limit();
+        long remaining = channel.size() - start;
+        if (remaining <= 0)
+            return false;
+
+        int size = (int) Math.min(segmentSize, remaining);
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        segmentReader = segment.duplicate();
+        segmentStart = start;
+        cursor = 0;
+        segmentSize = (int) Math.min(2L * segmentSize, MAX_SEGMENT_SIZE);
+
+        if (start == 0)
+            skipByteOrderMark();
+        return true;
+    }
+
+    /**
+     * Skips a UTF-8 byte order mark, it may be longer than the first segment.
+     */
+    private void skipByteOrderMark() throws IOException {
+        ByteBuffer mark = ByteBuffer.allocate(3);
+        while (mark.hasRemaining() && channel.read(mark, mark.position()) > 0) ;
+        if (mark.position() == 3 && mark.get(0) == (byte) 0xEF && mark.get(1) == (byte) 0xBB && mark.get(2) == (byte) 0xBF)
+            byteOrderMarkRemaining = 3;
+    }
+
+    private int appendCarry(int carryLength, int from, int to) {
+        int length = to - from;
+        if (carryLength + length > carry.length)
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+        segmentReader.position(from);
+        segmentReader.get(carry, carryLength, length);
+        return carryLength + length;
+    }
+
+    private void setCarriedLine(int carryLength) {
+        carried = true;
+        lineFrom = 0;
+        lineLength = carryLength;
+    }
+}
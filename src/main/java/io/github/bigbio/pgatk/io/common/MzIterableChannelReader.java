@@ -1,13 +1,15 @@
 package io.github.bigbio.pgatk.io.common;
 
-import io.github.bigbio.pgatk.io.mgf.MgfUtils;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
 
+@Slf4j
 public abstract class MzIterableChannelReader {
 
 
@@ -15,6 +17,14 @@ public abstract class MzIterableChannelReader {
     protected MappedByteBuffer buffer;
     protected long nextPosition = 0;
 
+    /**
+     * Size of the next window mapped by {@link #readBuffer()}, it grows as the
+     * {@link MappedLineTokenizer} segments do.
+     */
+    private int windowSize = MappedLineTokenizer.MIN_SEGMENT_SIZE;
+
+    private MappedLineTokenizer lines;
+
 
     public MzIterableChannelReader(File file) throws PgatkIOException {
         try {
@@ -30,15 +40,42 @@ public abstract class MzIterableChannelReader {
         try {
             if(nextPosition >= accessChannel.size()) {
             } else {
-                long remSize = Math.min(MgfUtils.BUFFER_SIZE, accessChannel.size() - nextPosition);
+                long remSize = Math.min(windowSize, accessChannel.size() - nextPosition);
                 buffer = accessChannel.map(FileChannel.MapMode.READ_ONLY, nextPosition, remSize);
                 nextPosition += remSize;
+                windowSize = Math.min(windowSize * 2, MappedLineTokenizer.MAX_SEGMENT_SIZE);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * @return the tokenizer walking the lines of the file, for line based formats.
+     */
+    protected MappedLineTokenizer lines() {
+        if (lines == null)
+            lines = new MappedLineTokenizer(accessChannel);
+        return lines;
+    }
+
+    /**
+     * Moves the {@link #lines()} to the next line.
+     *
+     * @return false at the end of the file
+     * @throws NoSuchElementException if the file can't be read, caused by the IOException
+     */
+    protected boolean nextLine() {
+        try {
+            return lines().nextLine();
+        } catch (IOException e) {
+            NoSuchElementException exception = new NoSuchElementException("Error reading the file at position "
+                    + lines().getLineStart() + " -- " + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
 
 
 
@@ -1,7 +1,9 @@
 package io.github.bigbio.pgatk.io.common;
 
 
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.Serializable;
 import java.util.Iterator;
@@ -32,6 +34,25 @@ public interface MzIterableReader extends Serializable, Iterator<Spectrum> {
     @Override
     Spectrum next() throws NoSuchElementException;
 
+    /**
+     * Sets a filter on the header values of the following spectra. The filter is tested as soon as the
+     * header of a spectrum is read, the rejected spectra are skipped without parsing their peaks.
+     * @param filter the filter or null to read all the spectra
+     */
+    default void setSpectrumFilter(SpectrumFilter filter) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support spectrum filters");
+    }
+
+    /**
+     * Reuses a single {@link MutableSpectrum} for the following spectra: {@link #next()} refills and returns the same
+     * instance, so streaming a file does not allocate a spectrum, its attributes and peak list per record. The
+     * returned spectrum is only valid until the next call to {@link #hasNext()} or {@link #next()}.
+     * @param reuse true to reuse the spectrum, false to create a new spectrum for every record
+     */
+    default void setReuseSpectrum(boolean reuse) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support reusing the spectra");
+    }
+
     /**
      * Close the respective channel and File use to parse the Spectra
      */
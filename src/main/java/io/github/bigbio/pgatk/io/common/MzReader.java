@@ -1,8 +1,13 @@
 package io.github.bigbio.pgatk.io.common;
 
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -71,6 +76,65 @@ public interface MzReader extends Serializable {
 	 */
 	Spectrum getSpectrumByIndex(int index) throws PgatkIOException;
 	
+	/**
+	 * Returns the spectra with the given ids. Readers backed by
+	 * an index read the spectra in file order, coalescing spectra
+	 * that are close to each other into one read, and decode them
+	 * in parallel.
+	 * @param ids The spectra's ids.
+	 * @return The spectra in the order of the passed ids.
+	 */
+	default List<Spectrum> getSpectra(Collection<String> ids) throws PgatkIOException {
+		List<Spectrum> spectra = new ArrayList<>(ids.size());
+		for (String id : ids)
+			spectra.add(getSpectrumById(id));
+		return spectra;
+	}
+
+	/**
+	 * Returns the spectra based on their 1-based indexes in
+	 * the file, see {@link #getSpectra(Collection)}.
+	 * @param indexes The 1-based indexes of the spectra in the file.
+	 * @return The spectra in the order of the passed indexes.
+	 */
+	default List<Spectrum> getSpectraByIndex(int[] indexes) throws PgatkIOException {
+		List<Spectrum> spectra = new ArrayList<>(indexes.length);
+		for (int index : indexes)
+			spectra.add(getSpectrumByIndex(index));
+		return spectra;
+	}
+
+	/**
+	 * Returns the bytes of a spectrum as they are stored in the
+	 * file, without parsing them.
+	 * @param index The 1-based index of the spectrum in the file.
+	 * @return A buffer holding the bytes between 0 and its limit.
+	 */
+	default ByteBuffer getRawSpectrumBytes(int index) throws PgatkIOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support raw spectrum access");
+	}
+
+	/**
+	 * Copies the bytes of the spectra to a channel without parsing
+	 * them, to extract a subset of the file into a new file.
+	 * @param indexes The 1-based indexes of the spectra in the file.
+	 * @param target The channel the spectra are written to in the order of the indexes.
+	 * @return The number of bytes written.
+	 */
+	default long writeSpectra(int[] indexes, WritableByteChannel target) throws PgatkIOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support copying spectra");
+	}
+
+	/**
+	 * Sets the largest gap in bytes between two spectra that are
+	 * read at once by {@link #getSpectra(Collection)} and
+	 * {@link #getSpectraByIndex(int[])}. Readers that do not
+	 * coalesce reads ignore it.
+	 * @param maxCoalescedGap The gap in bytes, 0 only merges adjacent spectra.
+	 */
+	default void setMaxCoalescedGap(int maxCoalescedGap) {
+	}
+
 	/**
 	 * Returns a list of IndexElements for the spectra
 	 * of the given MS level in the file.
@@ -95,4 +159,55 @@ public interface MzReader extends Serializable {
 	 * @return Map with spectra ids as key and their IndexElements as values.
 	 */
 	Map<String, IndexElement> getIndexElementForIds();
+
+	/**
+	 * Returns the compact index of the spectra in the file. The
+	 * ordinals used by the index are the 0-based indexes of the
+	 * spectra.
+	 *
+	 * @return The index or null if the reader does not keep one.
+	 */
+	default SpectrumIndex getSpectrumIndex() {
+		return null;
+	}
+
+	/**
+	 * Returns the cache of the spectra loaded by this reader.
+	 *
+	 * @return The cache or null if the spectra are not cached.
+	 */
+	default SpectrumCache getSpectrumCache() {
+		return null;
+	}
+
+	/**
+	 * Returns the parts of the spectra that are decoded.
+	 *
+	 * @return The selected fields, {@link SpectrumFields#ALL} by default.
+	 */
+	default SpectrumFields getSpectrumFields() {
+		return SpectrumFields.ALL;
+	}
+
+	/**
+	 * Selects the parts of the spectra that are decoded, the peaks
+	 * and additional parameters of spectra read afterwards are
+	 * skipped if they are not selected. Cached spectra of this
+	 * reader are dropped.
+	 *
+	 * @param fields The fields to decode.
+	 */
+	default void setSpectrumFields(SpectrumFields fields) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support selecting the spectrum fields");
+	}
+
+	/**
+	 * Sets the cache of the spectra loaded by this reader. The same
+	 * cache can be shared by several readers.
+	 *
+	 * @param spectrumCache The cache, null disables caching.
+	 */
+	default void setSpectrumCache(SpectrumCache spectrumCache) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support caching spectra");
+	}
 }
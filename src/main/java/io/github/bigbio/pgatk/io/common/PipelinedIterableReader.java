@@ -0,0 +1,239 @@
+package io.github.bigbio.pgatk.io.common;
+
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Reads the spectra of a file in three stages: an I/O thread cuts the records out of the file with a
+ * {@link MappedLineTokenizer}, a pool of worker threads parses them and the parsed spectra are returned by
+ * {@link #next()} in the order of the file.
+ *
+ * The I/O thread hands the records over through a bounded queue of pending results, when the caller does not
+ * keep up the I/O thread waits, so at most {@code capacity} records are held in memory.
+ *
+ * A {@link SpectrumFilter} is passed to the parser of the records cut after it is set, the records that were
+ * already parsed are tested by {@link #hasNext()}.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class PipelinedIterableReader implements MzIterableReader {
+
+    private static final AtomicInteger READER_COUNT = new AtomicInteger();
+
+    /** Marks the end of the file in the queue */
+    private static final Future<Spectrum> END = CompletableFuture.completedFuture(null);
+
+    private final File sourceFile;
+
+    private final transient FileChannel channel;
+
+    private final transient ExecutorService parsers;
+
+    private final transient BlockingQueue<Future<Spectrum>> results;
+
+    private final transient Thread cutter;
+
+    private transient Future<Spectrum> nextResult;
+
+    private volatile boolean closed = false;
+
+    private volatile SpectrumFilter spectrumFilter;
+
+    /**
+     * @param file        the file to read
+     * @param recordStart true for the first line of a record, lines outside of records are skipped
+     * @param recordEnd   true for the last line of a record, the line is part of the record. A record that is
+     *                    not ended is passed to the parser at the end of the file
+     * @param parser      parses the records on the worker threads
+     * @param threads     the number of worker threads
+     */
+    public PipelinedIterableReader(File file, Predicate<MappedLineTokenizer> recordStart, Predicate<MappedLineTokenizer> recordEnd,
+                                   RecordParser<Spectrum> parser, int threads) throws PgatkIOException {
+        this(file, recordStart, recordEnd, parser, threads, 4 * threads);
+    }
+
+    /**
+     * @param file        the file to read
+     * @param recordStart true for the first line of a record, lines outside of records are skipped
+     * @param recordEnd   true for the last line of a record, the line is part of the record. A record that is
+     *                    not ended is passed to the parser at the end of the file
+     * @param parser      parses the records on the worker threads
+     * @param threads     the number of worker threads
+     * @param capacity    the maximum number of records that are cut but not returned yet
+     */
+    public PipelinedIterableReader(File file, Predicate<MappedLineTokenizer> recordStart, Predicate<MappedLineTokenizer> recordEnd,
+                                   RecordParser<Spectrum> parser, int threads, int capacity) throws PgatkIOException {
+        if (threads < 1 || capacity < 1)
+            throw new IllegalArgumentException("The number of threads and the capacity must be positive");
+        this.sourceFile = file;
+        try {
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        } catch (IOException e) {
+            throw new PgatkIOException("Error reading the following file " + file.getAbsolutePath(), e);
+        }
+
+        int reader = READER_COUNT.incrementAndGet();
+        this.parsers = Executors.newFixedThreadPool(threads, daemonThreads("pgatk-parser-" + reader + "-"));
+        this.results = new ArrayBlockingQueue<>(capacity);
+        this.cutter = daemonThreads("pgatk-reader-" + reader + "-").newThread(() -> cutRecords(recordStart, recordEnd, parser));
+        this.cutter.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            if (nextResult == null) {
+                try {
+                    nextResult = results.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NoSuchElementException("Interrupted while waiting for the next spectrum of " + sourceFile);
+                }
+            }
+            if (nextResult == END || isAccepted(nextResult))
+                return nextResult != END;
+            nextResult = null;
+        }
+    }
+
+    /**
+     * Waits for a result, failed results are accepted so their error is thrown by {@link #next()}.
+     *
+     * @return false if the spectrum was rejected by the parser or by the current filter
+     */
+    private boolean isAccepted(Future<Spectrum> result) {
+        Spectrum spectrum;
+        try {
+            spectrum = result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoSuchElementException("Interrupted while waiting for the next spectrum of " + sourceFile);
+        } catch (ExecutionException e) {
+            return true;
+        }
+        SpectrumFilter filter = spectrumFilter;
+        return spectrum != null && (filter == null || filter.test(spectrum));
+    }
+
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    @Override
+    public Spectrum next() throws NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException("No more spectra in " + sourceFile);
+
+        Future<Spectrum> result = nextResult;
+        nextResult = null;
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoSuchElementException("Interrupted while waiting for the next spectrum of " + sourceFile);
+        } catch (ExecutionException e) {
+            NoSuchElementException exception = new NoSuchElementException("Error parsing a spectrum of " + sourceFile + " -- " + e.getCause().getMessage());
+            exception.initCause(e.getCause());
+            throw exception;
+        }
+    }
+
+    @Override
+    public void close() throws PgatkIOException {
+        closed = true;
+        cutter.interrupt();
+        parsers.shutdownNow();
+        results.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new PgatkIOException("The following file can't be close -- " + sourceFile, e);
+        }
+    }
+
+    /**
+     * Runs on the I/O thread: cuts the records, submits them to the parsers and queues the pending results
+     * in the order of the file.
+     */
+    private void cutRecords(Predicate<MappedLineTokenizer> recordStart, Predicate<MappedLineTokenizer> recordEnd, RecordParser<Spectrum> parser) {
+        MappedLineTokenizer line = new MappedLineTokenizer(channel);
+        byte[] record = new byte[64 * 1024];
+        int length = -1; // -1 outside of records
+        long index = 1;
+        try {
+            while (!closed && line.nextLine()) {
+                if (length < 0) {
+                    if (!recordStart.test(line))
+                        continue;
+                    length = 0;
+                }
+
+                if (length + line.length() + 1 > record.length)
+                    record = Arrays.copyOf(record, Math.max(record.length * 2, length + line.length() + 1));
+                line.copyBytes(0, line.length(), record, length);
+                length += line.length();
+                record[length++] = '\n';
+
+                if (recordEnd.test(line)) {
+                    submit(parser, record, length, index++);
+                    length = -1;
+                }
+            }
+            if (length > 0 && !closed)
+                submit(parser, record, length, index);
+            results.put(END);
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                log.error("Error reading the file " + sourceFile + " at position " + line.getLineStart(), e);
+                CompletableFuture<Spectrum> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                try {
+                    results.put(failed);
+                    results.put(END);
+                } catch (InterruptedException interrupted) {
+                    // closed
+                }
+            }
+        } finally {
+            // the submitted records are still parsed
+            parsers.shutdown();
+        }
+    }
+
+    private void submit(RecordParser<Spectrum> parser, byte[] record, int length, long index) throws InterruptedException {
+        byte[] bytes = Arrays.copyOf(record, length);
+        SpectrumFilter filter = spectrumFilter;
+        results.put(parsers.submit(() -> parser.parse(bytes, length, index, filter)));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads lines from a stream and keeps track of the number of bytes read, so the lines of a
+ * decompressed stream can be indexed like the lines of a {@link io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile}.
+ * Lines end with "\n", "\r\n" or "\r".
+ *
+ * @author ypriverol
+ */
+public final class PositionedLineReader implements Closeable {
+
+    private final InputStream input;
+
+    private final byte[] buffer;
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    /** Number of bytes read from the stream before the buffer */
+    private long bufferStart = 0;
+
+    private byte[] line = new byte[256];
+
+    public PositionedLineReader(InputStream input) {
+        this(input, 64 * 1024);
+    }
+
+    public PositionedLineReader(InputStream input, int bufferSize) {
+        this.input = input;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * @return the next line without its line terminator or null at the end of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public String readLine() throws IOException {
+        int length = 0;
+
+        while (true) {
+            if (position == limit && !fill())
+                return (length == 0) ? null : new String(line, 0, length);
+
+            byte b = buffer[position++];
+            if (b == '\n')
+                return new String(line, 0, length);
+            if (b == '\r') {
+                if ((position < limit || fill()) && buffer[position] == '\n')
+                    position++;
+                return new String(line, 0, length);
+            }
+
+            if (length == line.length) {
+                byte[] larger = new byte[length * 2];
+                System.arraycopy(line, 0, larger, 0, length);
+                line = larger;
+            }
+            line[length++] = b;
+        }
+    }
+
+    /**
+     * @return the number of bytes read, the position of the next line
+     */
+    public long getFilePointer() {
+        return bufferStart + position;
+    }
+
+    private boolean fill() throws IOException {
+        bufferStart += limit;
+        position = 0;
+        limit = 0;
+        int read = input.read(buffer);
+        if (read <= 0)
+            return false;
+        limit = read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.bigbio.pgatk.io.common;
+
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+
+/**
+ * Parses a record, such as a MGF or MSP spectrum, that was cut out of a file.
+ *
+ * @param <T> the type of the parsed records
+ * @author ypriverol
+ */
+@FunctionalInterface
+public interface RecordParser<T> {
+
+    /**
+     * @param record the bytes of the record, its lines end with '\n'. The array may be reused once the method returns
+     * @param length the number of bytes of the record
+     * @param index  the 1-based position of the record in the file
+     * @return the parsed record
+     * @throws PgatkIOException if the record can't be parsed
+     */
+    T parse(byte[] record, int length, long index) throws PgatkIOException;
+
+    /**
+     * Parses the record if its header is accepted by the filter. By default the whole record is parsed and
+     * tested, parsers that read the header first override it to skip the rest of the rejected records.
+     *
+     * @param record the bytes of the record, its lines end with '\n'. The array may be reused once the method returns
+     * @param length the number of bytes of the record
+     * @param index  the 1-based position of the record in the file
+     * @param filter the filter on the header of the spectra, null to accept all records
+     * @return the parsed record or null if it is rejected by the filter
+     * @throws PgatkIOException if the record can't be parsed
+     */
+    default T parse(byte[] record, int length, long index, SpectrumFilter filter) throws PgatkIOException {
+        T parsed = parse(record, length, index);
+        if (filter == null || !(parsed instanceof Spectrum))
+            return parsed;
+        return filter.test((Spectrum) parsed) ? parsed : null;
+    }
+}
@@ -0,0 +1,275 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Spliterator} over the records of a file that is split at byte positions, so the parts of a
+ * parallel stream read their own region of the file without a shared cursor.
+ *
+ * A spliterator covers the records whose first line starts in its byte range. A record starts with a line
+ * matching the start predicate and ends with a line matching the end predicate, at the next start line or at
+ * the end of the file. The last record of a range may extend past the end of the range.
+ *
+ * The records keep their 1-based index in the file: the index of the first record of a split is found by
+ * counting the start lines in front of it, which only tokenizes the lines, when the split is traversed. The
+ * ranges in front are counted concurrently in chunks and the counts are summed, each range is counted once.
+ *
+ * @author ypriverol
+ */
+public class RecordSpliterator<T> implements Spliterator<T> {
+
+    /** Ranges smaller than this are not split */
+    private static final long MIN_SPLIT_SIZE = 1 << 20;
+
+    /** Size of the chunks the records in front of a split are counted in */
+    private static final long COUNT_CHUNK_SIZE = 1 << 20;
+
+    /** The first segment is small as a range may only hold a few records */
+    private static final int INITIAL_SEGMENT_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+
+    private final Predicate<MappedLineTokenizer> recordStart;
+
+    private final Predicate<MappedLineTokenizer> recordEnd;
+
+    private final RecordParser<T> parser;
+
+    private long start;
+
+    private final long end;
+
+    /** The number of records in front of the range */
+    private Ordinal ordinal;
+
+    private MappedLineTokenizer lines;
+
+    /** Set if the current line of the tokenizer starts the next record */
+    private boolean atRecordStart = false;
+
+    private long index;
+
+    private byte[] record = new byte[64 * 1024];
+
+    /**
+     * @param channel     the file, it is not closed by the spliterator
+     * @param recordStart true for the first line of a record
+     * @param recordEnd   true for the last line of a record, the line is part of the record
+     * @param parser      parses the records
+     */
+    public RecordSpliterator(FileChannel channel, Predicate<MappedLineTokenizer> recordStart,
+                             Predicate<MappedLineTokenizer> recordEnd, RecordParser<T> parser) throws IOException {
+        this(channel, recordStart, recordEnd, parser, 0, channel.size(), null);
+        this.ordinal = new Ordinal(null, 0, 0);
+    }
+
+    private RecordSpliterator(FileChannel channel, Predicate<MappedLineTokenizer> recordStart,
+                              Predicate<MappedLineTokenizer> recordEnd, RecordParser<T> parser,
+                              long start, long end, Ordinal ordinal) {
+        this.channel = channel;
+        this.recordStart = recordStart;
+        this.recordEnd = recordEnd;
+        this.parser = parser;
+        this.start = start;
+        this.end = end;
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Creates a stream over the records of a file, the file is closed with the stream.
+     *
+     * @param file        the file
+     * @param recordStart true for the first line of a record
+     * @param recordEnd   true for the last line of a record, the line is part of the record
+     * @param parser      parses the records
+     * @param parallel    true for a parallel stream
+     * @return the stream
+     * @throws PgatkIOException if the file can't be opened
+     */
+    public static <T> Stream<T> stream(File file, Predicate<MappedLineTokenizer> recordStart, Predicate<MappedLineTokenizer> recordEnd,
+                                       RecordParser<T> parser, boolean parallel) throws PgatkIOException {
+        try {
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            return StreamSupport.stream(new RecordSpliterator<>(channel, recordStart, recordEnd, parser), parallel)
+                    .onClose(() -> {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new PgatkIOException("Error reading the following file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        try {
+            if (lines == null) {
+                lines = open(start);
+                index = ordinal.get();
+            }
+
+            // the next start line in the range
+            while (!atRecordStart) {
+                if (!lines.nextLine() || lines.getLineStart() >= end)
+                    return false;
+                atRecordStart = recordStart.test(lines);
+            }
+            if (lines.getLineStart() >= end)
+                return false;
+
+            int length = append(0);
+            atRecordStart = false;
+            if (!recordEnd.test(lines)) {
+                while (lines.nextLine()) {
+                    if (recordStart.test(lines)) {
+                        atRecordStart = true;
+                        break;
+                    }
+                    length = append(length);
+                    if (recordEnd.test(lines))
+                        break;
+                }
+            }
+
+            action.accept(parser.parse(record, length, ++index));
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (PgatkIOException e) {
+            throw new IllegalStateException("Error parsing record " + index, e);
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (lines != null || end - start < 2 * MIN_SPLIT_SIZE)
+            return null;
+
+        // the prefix is returned as the spliterator is ordered
+        long middle = start + (end - start) / 2;
+        RecordSpliterator<T> prefix = new RecordSpliterator<>(channel, recordStart, recordEnd, parser, start, middle, ordinal);
+        ordinal = new Ordinal(ordinal, start, middle);
+        start = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        // the number of bytes, the number of records is not known
+        return end - start;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * @return a tokenizer whose next line is the first line starting at or after the position
+     */
+    private MappedLineTokenizer open(long position) throws IOException {
+        MappedLineTokenizer tokenizer = new MappedLineTokenizer(channel, position, INITIAL_SEGMENT_SIZE);
+        if (position > 0) {
+            ByteBuffer previous = ByteBuffer.allocate(1);
+            if (channel.read(previous, position - 1) == 1 && previous.get(0) != '\n' && previous.get(0) != '\r')
+                tokenizer.nextLine(); // the rest of a line starting in front of the position
+        }
+        return tokenizer;
+    }
+
+    private int append(int length) {
+        int required = length + lines.length() + 1;
+        if (required > record.length)
+            record = Arrays.copyOf(record, Math.max(record.length * 2, required));
+        lines.copyBytes(0, lines.length(), record, length);
+        record[required - 1] = '\n';
+        return required;
+    }
+
+    /**
+     * @return the number of records whose first line starts between the positions
+     */
+    private long countRecords(long from, long to) {
+        try {
+            long count = 0;
+            MappedLineTokenizer tokenizer = open(from);
+            while (tokenizer.nextLine() && tokenizer.getLineStart() < to) {
+                if (recordStart.test(tokenizer))
+                    count++;
+            }
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The number of records in front of a range: the number in front of the range it was split
+     * from plus the records starting between both.
+     */
+    private final class Ordinal {
+
+        private final Ordinal before;
+
+        private final long from;
+
+        private final long to;
+
+        /** The number of records starting between from and to, -1 until counted */
+        private volatile long count = -1;
+
+        private Ordinal(Ordinal before, long from, long to) {
+            this.before = before;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Counts the ranges in front that are not counted yet concurrently and sums them.
+         */
+        private long get() throws IOException {
+            List<Ordinal> ranges = new ArrayList<>();
+            for (Ordinal range = this; range != null; range = range.before)
+                ranges.add(range);
+            try {
+                return ranges.parallelStream().mapToLong(Ordinal::count).sum();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * @return the number of records starting in the range, the chunks of the range are counted in parallel
+         */
+        private long count() {
+            if (count < 0) {
+                synchronized (this) {
+                    if (count < 0) {
+                        long chunks = (to - from + COUNT_CHUNK_SIZE - 1) / COUNT_CHUNK_SIZE;
+                        count = LongStream.range(0, chunks).parallel()
+                                .map(chunk -> countRecords(from + chunk * COUNT_CHUNK_SIZE, Math.min(to, from + (chunk + 1) * COUNT_CHUNK_SIZE)))
+                                .sum();
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies records of an indexed file to a channel without parsing them, to extract a subset of the
+ * file into a new file. The bytes of uncompressed files are moved with {@link FileChannel#transferTo},
+ * records that follow each other in the file are copied at once.
+ *
+ * A record ending the file without a line terminator is followed by one, so the copied records stay
+ * on separate lines.
+ *
+ * @author ypriverol
+ */
+public final class RecordSubsetWriter {
+
+    private RecordSubsetWriter() {
+    }
+
+    /**
+     * Copies the header of the file and then the records at the passed ordinals.
+     *
+     * @param index        the index of the file
+     * @param ordinals     the 0-based indexes of the records, written in this order
+     * @param headerLength the number of bytes at the start of the file copied before the records, 0 for none
+     * @param source       the file, its position is not changed
+     * @param target       the channel the bytes are written to
+     * @return the number of bytes written
+     * @throws PgatkIOException if an ordinal does not exist or the bytes can't be copied
+     */
+    public static long write(SpectrumIndex index, int[] ordinals, long headerLength, FileChannel source,
+                             WritableByteChannel target) throws PgatkIOException {
+        checkOrdinals(index, ordinals);
+        try {
+            long fileSize = source.size();
+            long written = transfer(source, 0, headerLength, target);
+            for (int first = 0; first < ordinals.length; ) {
+                long start = index.getStart(ordinals[first]);
+                long end = start + index.getSize(ordinals[first]);
+                int last = first + 1;
+                while (last < ordinals.length && index.getStart(ordinals[last]) == end)
+                    end += index.getSize(ordinals[last++]);
+
+                written += transfer(source, start, end - start, target);
+                if (end >= fileSize && end > start && !endsWithNewLine(source, end))
+                    written += writeFully(ByteBuffer.wrap(new byte[]{'\n'}), target);
+                first = last;
+            }
+            return written;
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to copy the spectra", e);
+        }
+    }
+
+    /**
+     * Copies the header of the file and then the records at the passed ordinals, reading the file
+     * through a region reader, for example to copy the uncompressed bytes of a gzip file.
+     *
+     * @param index        the index of the file
+     * @param ordinals     the 0-based indexes of the records, written in this order
+     * @param headerLength the number of bytes at the start of the file copied before the records, 0 for none
+     * @param pool         the pool the buffers of the region reader are released to
+     * @param regions      reads the regions of the file
+     * @param target       the channel the bytes are written to
+     * @return the number of bytes written
+     * @throws PgatkIOException if an ordinal does not exist or the bytes can't be copied
+     */
+    public static long write(SpectrumIndex index, int[] ordinals, long headerLength, ByteBufferPool pool,
+                             CoalescedRangeReader.RegionReader regions, WritableByteChannel target) throws PgatkIOException {
+        checkOrdinals(index, ordinals);
+        try {
+            long written = 0;
+            for (long position = 0; position < headerLength; ) {
+                int length = (int) Math.min(CoalescedRangeReader.MAX_READ_SIZE, headerLength - position);
+                written += copy(regions, pool, position, length, false, target);
+                position += length;
+            }
+            for (int first = 0; first < ordinals.length; ) {
+                long start = index.getStart(ordinals[first]);
+                long end = start + index.getSize(ordinals[first]);
+                int last = first + 1;
+                while (last < ordinals.length && index.getStart(ordinals[last]) == end
+                        && end + index.getSize(ordinals[last]) - start <= CoalescedRangeReader.MAX_READ_SIZE)
+                    end += index.getSize(ordinals[last++]);
+
+                written += copy(regions, pool, start, (int) (end - start), true, target);
+                first = last;
+            }
+            return written;
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to copy the spectra", e);
+        }
+    }
+
+    /**
+     * Transfers a region of the file to the channel without changing the position of the file.
+     *
+     * @param source   the file
+     * @param position the position of the first byte to copy
+     * @param count    the number of bytes to copy
+     * @param target   the channel the bytes are written to
+     * @return the number of bytes written
+     * @throws IOException if the file can't be read, ends before the region or the channel can't be written
+     */
+    public static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (written < count) {
+            long transferred = source.transferTo(position + written, count - written, target);
+            if (transferred == 0 && position + written >= source.size())
+                throw new EOFException("Unexpected end of file at position " + (position + written));
+            written += transferred;
+        }
+        return written;
+    }
+
+    private static long copy(CoalescedRangeReader.RegionReader regions, ByteBufferPool pool, long start, int length,
+                             boolean newLine, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = regions.read(start, length);
+        try {
+            long written = writeFully(buffer, target);
+            if (newLine && length > 0 && buffer.get(length - 1) != '\n')
+                written += writeFully(ByteBuffer.wrap(new byte[]{'\n'}), target);
+            return written;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static boolean endsWithNewLine(FileChannel source, long end) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        ByteBufferPool.readFully(source, last, end - 1);
+        return last.get(0) == '\n';
+    }
+
+    private static int writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining())
+            written += target.write(buffer);
+        return written;
+    }
+
+    private static void checkOrdinals(SpectrumIndex index, int[] ordinals) throws PgatkIOException {
+        for (int ordinal : ordinals) {
+            if (ordinal < 0 || ordinal >= index.size())
+                throw new PgatkIOException("Record " + (ordinal + 1) + " does not exist in the index");
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package io.github.bigbio.pgatk.io.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to the uncompressed content of a gzip file.
+ *
+ * Reads start at the closest {@link GzipCheckpointIndex checkpoint} before the requested position, so
+ * at most the checkpoint spacing has to be decompressed and skipped. Deflate blocks do not start at byte
+ * boundaries and {@link Inflater} cannot be primed with single bits, so the compressed bytes of a
+ * checkpoint that starts within a byte are shifted before they are passed to the inflater.
+ *
+ * The decompression state of recent reads is kept, a read that continues after a previous one (like
+ * reading the spectra in file order) does not go back to the checkpoint. All methods are thread-safe.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public final class SeekableGzipFile implements Closeable {
+
+    /** Maximum number of decompression states kept for further reads */
+    private static final int MAX_CURSORS = 4;
+
+    private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+
+    private final File file;
+
+    private final GzipCheckpointIndex index;
+
+    private final ConcurrentLinkedQueue<Cursor> cursors = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Channel shared by all threads reading from the file, opened on first use.
+     */
+    private volatile FileChannel channel;
+
+    private SeekableGzipFile(File file, GzipCheckpointIndex index) {
+        this.file = file;
+        this.index = index;
+    }
+
+    /**
+     * @param file the file to check
+     * @return true if the file starts with the gzip magic bytes
+     */
+    public static boolean isGzip(File file) {
+        try (InputStream input = new FileInputStream(file)) {
+            return input.read() == 0x1f && input.read() == 0x8b;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a gzip file for random access. The checkpoints are read from the file's index
+     * if it is up to date, otherwise the file is decompressed once and the index is stored.
+     * @param file the gzip file
+     * @param options the options setting the checkpoint spacing and the index directory
+     * @return the opened file
+     * @throws IOException if the file cannot be read or is not a valid gzip file
+     */
+    public static SeekableGzipFile open(File file, IndexingOptions options) throws IOException {
+        return new SeekableGzipFile(file, GzipCheckpointIndex.open(file, options));
+    }
+
+    /**
+     * @return the gzip file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the uncompressed content
+     */
+    public long length() {
+        return index.getUncompressedSize();
+    }
+
+    /**
+     * @return a stream decompressing the whole file sequentially
+     * @throws IOException if the file cannot be opened
+     */
+    public InputStream newInputStream() throws IOException {
+        return new GZIPInputStream(new FileInputStream(file), INPUT_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads a region of the uncompressed content.
+     * @param position the uncompressed position of the first byte
+     * @param destination the array to read the bytes into
+     * @param offset the position of the first byte in the array
+     * @param length the number of bytes to read
+     * @throws IOException if the file cannot be read or ends before the region
+     */
+    public void readFully(long position, byte[] destination, int offset, int length) throws IOException {
+        if (position < 0 || position + length > length())
+            throw new EOFException("Region " + position + "+" + length + " is outside of " + file);
+
+        Cursor cursor = acquire(position);
+        try {
+            try {
+                cursor.read(getChannel(), position, destination, offset, length);
+            } catch (ClosedChannelException e) {
+                // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+                cursor.reset(index.getCheckpoint(position));
+                cursor.read(getChannel(), position, destination, offset, length);
+            }
+        } catch (IOException | RuntimeException e) {
+            cursor.end();
+            throw e;
+        }
+        release(cursor);
+    }
+
+    /**
+     * Reads a region of the uncompressed content into a buffer of the pool.
+     * @param pool the pool providing the buffer
+     * @param position the uncompressed position of the first byte
+     * @param length the number of bytes to read
+     * @return a buffer holding the bytes between 0 and its limit, to be given back with {@link ByteBufferPool#release(ByteBuffer)}
+     * @throws IOException if the file cannot be read or ends before the region
+     */
+    public ByteBuffer read(ByteBufferPool pool, long position, int length) throws IOException {
+        ByteBuffer buffer = pool.acquire(length);
+        try {
+            readFully(position, buffer.array(), buffer.arrayOffset(), length);
+        } catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a cursor that can reach the position without going back, the closest checkpoint otherwise.
+     */
+    private Cursor acquire(long position) {
+        long checkpointOffset = index.getOutputOffset(index.getCheckpoint(position));
+
+        for (Iterator<Cursor> iterator = cursors.iterator(); iterator.hasNext(); ) {
+            Cursor cursor = iterator.next();
+            if (cursor.output <= position && cursor.output >= checkpointOffset && cursors.remove(cursor))
+                return cursor;
+        }
+
+        Cursor cursor = new Cursor();
+        cursor.reset(index.getCheckpoint(position));
+        return cursor;
+    }
+
+    private void release(Cursor cursor) {
+        if (cursors.size() < MAX_CURSORS)
+            cursors.offer(cursor);
+        else
+            cursor.end();
+    }
+
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen())
+            return current;
+
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(file, "r").getChannel();
+            return channel;
+        }
+    }
+
+    /**
+     * Closes the file. Further reads reopen it.
+     */
+    @Override
+    public synchronized void close() {
+        Cursor cursor;
+        while ((cursor = cursors.poll()) != null)
+            cursor.end();
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close gzip file " + file, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * State of a decompression started at a checkpoint.
+     */
+    private final class Cursor {
+
+        private final Inflater inflater = new Inflater(true);
+
+        private final byte[] input = new byte[INPUT_BUFFER_SIZE + 1];
+
+        private final byte[] shifted = new byte[INPUT_BUFFER_SIZE];
+
+        /** Compressed position of the next byte passed to the inflater */
+        private long inputOffset;
+
+        /** Number of bits of the compressed bytes to skip */
+        private int bits;
+
+        /** Uncompressed position of the next byte returned by the inflater */
+        private long output;
+
+        /** Checkpoint whose window has not been set as dictionary yet, -1 once it is set */
+        private int window;
+
+        private byte[] skipBuffer;
+
+        private void reset(int checkpoint) {
+            inflater.reset();
+            inputOffset = index.getInputOffset(checkpoint);
+            bits = index.getInputBits(checkpoint);
+            output = index.getOutputOffset(checkpoint);
+            window = checkpoint;
+        }
+
+        private void read(FileChannel channel, long position, byte[] destination, int offset, int length) throws IOException {
+            while (output < position) {
+                if (skipBuffer == null)
+                    skipBuffer = new byte[INPUT_BUFFER_SIZE];
+                output += inflate(channel, skipBuffer, 0, (int) Math.min(skipBuffer.length, position - output));
+            }
+            while (length > 0) {
+                int n = inflate(channel, destination, offset, length);
+                output += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Inflates at least one byte, moving on to the next gzip member if needed.
+         */
+        private int inflate(FileChannel channel, byte[] destination, int offset, int length) throws IOException {
+            try {
+                if (window >= 0) {
+                    byte[] dictionary = index.getWindow(window);
+                    if (dictionary.length > 0)
+                        inflater.setDictionary(dictionary);
+                    window = -1;
+                }
+
+                while (true) {
+                    int n = inflater.inflate(destination, offset, length);
+                    if (n > 0)
+                        return n;
+
+                    if (inflater.finished()) {
+                        // continue with the next gzip member
+                        int member = index.getMemberStart(output, inputOffset - inflater.getRemaining());
+                        if (member < 0)
+                            throw new EOFException("Unexpected end of gzip file " + file);
+                        reset(member);
+                    } else if (inflater.needsDictionary()) {
+                        throw new ZipException("Missing gzip checkpoint window");
+                    } else if (inflater.needsInput()) {
+                        fill(channel);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid gzip data in " + file + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Passes the next compressed bytes to the inflater, shifted by the checkpoint's bit offset.
+         */
+        private void fill(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(input, 0, bits == 0 ? INPUT_BUFFER_SIZE : INPUT_BUFFER_SIZE + 1);
+            int read = 0;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, inputOffset + read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+            if (read == 0)
+                throw new EOFException("Unexpected end of gzip file " + file);
+
+            if (bits == 0) {
+                inflater.setInput(input, 0, read);
+                inputOffset += read;
+                return;
+            }
+
+            // the last byte read is only used for its low bits unless the file ends
+            int count = (read == input.length) ? read - 1 : read;
+            for (int i = 0; i < count; i++) {
+                int next = (i + 1 < read) ? input[i + 1] : 0;
+                shifted[i] = (byte) (((input[i] & 0xFF) >>> bits) | ((next << (8 - bits)) & 0xFF));
+            }
+            inflater.setInput(shifted, 0, count);
+            inputOffset += count;
+        }
+
+        private void end() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the records of an indexed file one after the other. The file is read forward in large regions
+ * holding the following records, the index is only used to cut the records out of the region, so a full
+ * pass over the file does one read per region instead of one read per record.
+ *
+ * A record outside of the current region starts a new region at that record, so the reading can start
+ * or continue at any ordinal. The reader keeps a buffer and must only be used by one thread.
+ *
+ * @author ypriverol
+ */
+public final class SequentialRecordReader {
+
+    /** Number of bytes read ahead by default, unless a single record is larger */
+    public static final int DEFAULT_READ_AHEAD = CoalescedRangeReader.MAX_READ_SIZE;
+
+    private final SpectrumIndex index;
+
+    private final CoalescedRangeReader.RegionReader regions;
+
+    private final ByteBufferPool pool;
+
+    private final int readAhead;
+
+    /** The current region, null if no region was read */
+    private ByteBuffer buffer;
+
+    /** The position of the current region in the file */
+    private long bufferStart;
+
+    /** The first and last ordinals held by the current region */
+    private int first;
+    private int last = -1;
+
+    /**
+     * @param index     the index of the file
+     * @param regions   reads the regions of the file into buffers of the pool
+     * @param pool      the pool the buffers are released to
+     * @param readAhead the maximum number of bytes read at once, unless a single record is larger
+     */
+    public SequentialRecordReader(SpectrumIndex index, CoalescedRangeReader.RegionReader regions, ByteBufferPool pool, int readAhead) {
+        this.index = index;
+        this.regions = regions;
+        this.pool = pool;
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Reads and decodes a record, reading the next region of the file if the record is not in the current one.
+     *
+     * @param ordinal the 0-based index of the record in the file
+     * @param decoder decodes the record
+     * @return the decoded record
+     * @throws PgatkIOException if the file can't be read or the record can't be decoded
+     */
+    public <T> T read(int ordinal, CoalescedRangeReader.RecordDecoder<T> decoder) throws PgatkIOException {
+        if (ordinal < 0 || ordinal >= index.size())
+            throw new PgatkIOException("Record " + (ordinal + 1) + " does not exist in the index");
+        if (buffer == null || ordinal < first || ordinal > last)
+            readRegion(ordinal);
+
+        int offset = buffer.arrayOffset() + (int) (index.getStart(ordinal) - bufferStart);
+        return decoder.decode(buffer.array(), offset, index.getSize(ordinal), ordinal);
+    }
+
+    /**
+     * Reads the region starting at the record and holding the following records that fit in the read ahead.
+     */
+    private void readRegion(int ordinal) throws PgatkIOException {
+        release();
+
+        long start = index.getStart(ordinal);
+        long end = start + index.getSize(ordinal);
+        int next = ordinal + 1;
+        while (next < index.size()) {
+            long nextStart = index.getStart(next);
+            long nextEnd = Math.max(end, nextStart + index.getSize(next));
+            // records before the start are only read by a new region
+            if (nextStart < start || nextEnd - start > readAhead)
+                break;
+            end = nextEnd;
+            next++;
+        }
+
+        try {
+            buffer = regions.read(start, (int) (end - start));
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read the region " + start + "-" + end + " of the file", e);
+        }
+        bufferStart = start;
+        first = ordinal;
+        last = next - 1;
+    }
+
+    private void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        last = -1;
+    }
+
+    /**
+     * Gives the buffer of the current region back to the pool, the following reads start a new region.
+     */
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.bigbio.pgatk.io.common;
+
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+
+/**
+ * Cache of the spectra loaded by the {@link MzReader}s. One cache can be shared by several readers:
+ * the entries are stored per reader (the owner) and a reader only sees its own spectra.
+ *
+ * Implementations must be thread-safe.
+ *
+ * @author ypriverol
+ */
+public interface SpectrumCache {
+
+    /**
+     * Returns a cached spectrum.
+     * @param owner the reader the spectrum was loaded by
+     * @param key the key of the spectrum in the reader (index or id)
+     * @return the spectrum or null if it is not in the cache
+     */
+    Spectrum get(Object owner, Object key);
+
+    /**
+     * Adds a spectrum to the cache. Other spectra may be evicted to stay within the size of the cache.
+     * @param owner the reader the spectrum was loaded by
+     * @param key the key of the spectrum in the reader (index or id)
+     * @param spectrum the spectrum
+     */
+    void put(Object owner, Object key, Spectrum spectrum);
+
+    /**
+     * Removes all the spectra of a reader.
+     * @param owner the reader
+     */
+    void invalidate(Object owner);
+
+    /**
+     * Removes all the spectra.
+     */
+    void clear();
+
+    /**
+     * @return the number of spectra in the cache
+     */
+    int size();
+
+    /**
+     * @return the estimated size in bytes of the spectra in the cache
+     */
+    long getWeight();
+
+    /**
+     * @return the number of calls to {@link #get(Object, Object)} that found a spectrum
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of calls to {@link #get(Object, Object)} that did not find a spectrum
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of spectra removed to stay within the size of the cache
+     */
+    long getEvictionCount();
+}
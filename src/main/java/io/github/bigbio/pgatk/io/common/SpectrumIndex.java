@@ -0,0 +1,521 @@
+package io.github.bigbio.pgatk.io.common;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Compact index of the spectra of a file shared by the {@link MzReader}s.
+ *
+ * The positions, sizes and MS levels of the spectra are kept in primitive arrays and the
+ * ids are mapped to the 0-based ordinal of their spectrum by an open-addressing hash table,
+ * so the index needs no object per spectrum. The lists and maps returned are read-only views
+ * that create the {@link IndexElement}s on demand.
+ *
+ * Spectra without ids (for example MGF queries) use their 1-based index as id.
+ *
+ * @author ypriverol
+ */
+public final class SpectrumIndex implements Serializable {
+
+    /**
+     * Index of a file without spectra.
+     */
+    public static final SpectrumIndex EMPTY = new SpectrumIndex(new long[0], new int[0], null, null);
+
+    private final long[] offsets;
+
+    private final int[] sizes;
+
+    /** MS levels of the spectra, null if not known */
+    private final byte[] msLevels;
+
+    /** Ids of the spectra, null if the 1-based index is used as id */
+    private final String[] ids;
+
+    /** Open-addressing table holding the ordinal + 1 of the spectra, 0 marks a free slot */
+    private final int[] idTable;
+
+    /** Number of distinct ids */
+    private final int idCount;
+
+    /**
+     * Creates the index. The arrays are not copied and must not be changed afterwards.
+     * @param offsets start positions of the spectra
+     * @param sizes sizes of the spectra in bytes
+     * @param msLevels MS levels of the spectra, null if not known
+     * @param ids ids of the spectra, null if the spectra have no ids. If several spectra
+     *            have the same id, the id refers to the last one.
+     */
+    public SpectrumIndex(long[] offsets, int[] sizes, byte[] msLevels, String[] ids) {
+        if (sizes.length != offsets.length || (msLevels != null && msLevels.length != offsets.length)
+                || (ids != null && ids.length != offsets.length))
+            throw new IllegalArgumentException("All the index arrays must have the same length");
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.msLevels = msLevels;
+        this.ids = ids;
+
+        if (ids == null) {
+            idTable = null;
+            idCount = offsets.length;
+            return;
+        }
+
+        idTable = new int[tableSize(ids.length)];
+        int distinct = 0;
+        for (int ordinal = 0; ordinal < ids.length; ordinal++) {
+            if (ids[ordinal] == null)
+                continue;
+            int slot = findSlot(ids[ordinal]);
+            if (idTable[slot] == 0)
+                distinct++;
+            idTable[slot] = ordinal + 1;
+        }
+        idCount = distinct;
+    }
+
+    /**
+     * Creates the index of spectra without ids and MS levels.
+     * @param elements the positions of the spectra
+     */
+    public static SpectrumIndex fromIndexElements(List<? extends IndexElement> elements) {
+        long[] offsets = new long[elements.size()];
+        int[] sizes = new int[elements.size()];
+        int i = 0;
+        for (IndexElement element : elements) {
+            offsets[i] = element.getStart();
+            sizes[i++] = element.getSize();
+        }
+        return new SpectrumIndex(offsets, sizes, null, null);
+    }
+
+    /**
+     * Creates the index from an {@link IndexFile}.
+     * @param indexFile the index file
+     */
+    public static SpectrumIndex fromIndexFile(IndexFile indexFile) {
+        return new SpectrumIndex(indexFile.getOffsets(), indexFile.getSizes(), indexFile.getMsLevels(), indexFile.getIds());
+    }
+
+    /**
+     * @param metadata format specific Strings, may be null
+     * @return the {@link IndexFile} holding this index
+     */
+    public IndexFile toIndexFile(List<String> metadata) {
+        return new IndexFile(offsets, sizes, msLevels, ids, metadata);
+    }
+
+    private static int tableSize(int count) {
+        int size = 2;
+        while (size < count * 2 && size < (1 << 30))
+            size <<= 1;
+        return size;
+    }
+
+    /**
+     * Returns the slot of the id in the table or the free slot it would be stored in.
+     */
+    private int findSlot(String id) {
+        int mask = idTable.length - 1;
+        int hash = id.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (idTable[slot] != 0 && !id.equals(ids[idTable[slot] - 1]))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * @return the number of spectra
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @param ordinal the 0-based ordinal of the spectrum
+     * @return the position of the spectrum in the file
+     */
+    public long getStart(int ordinal) {
+        return offsets[ordinal];
+    }
+
+    /**
+     * @param ordinal the 0-based ordinal of the spectrum
+     * @return the size of the spectrum in bytes
+     */
+    public int getSize(int ordinal) {
+        return sizes[ordinal];
+    }
+
+    /**
+     * @return true if the MS levels of the spectra are known
+     */
+    public boolean hasMsLevels() {
+        return msLevels != null;
+    }
+
+    /**
+     * @param ordinal the 0-based ordinal of the spectrum
+     * @return the MS level of the spectrum, 0 if the MS levels are not known
+     */
+    public int getMsLevel(int ordinal) {
+        if (msLevels == null) {
+            if (ordinal < 0 || ordinal >= offsets.length)
+                throw new IndexOutOfBoundsException("Spectrum " + ordinal + " does not exist");
+            return 0;
+        }
+        return msLevels[ordinal];
+    }
+
+    /**
+     * @return true if the spectra have ids, otherwise their 1-based index is used
+     */
+    public boolean hasIds() {
+        return ids != null;
+    }
+
+    /**
+     * @param ordinal the 0-based ordinal of the spectrum
+     * @return the id of the spectrum, null if the spectrum has no id
+     */
+    public String getId(int ordinal) {
+        if (ids == null) {
+            if (ordinal < 0 || ordinal >= offsets.length)
+                throw new IndexOutOfBoundsException("Spectrum " + ordinal + " does not exist");
+            return Integer.toString(ordinal + 1);
+        }
+        return ids[ordinal];
+    }
+
+    /**
+     * @param id the id of the spectrum
+     * @return the 0-based ordinal of the spectrum or -1 if there is no spectrum with that id
+     */
+    public int getOrdinal(String id) {
+        if (id == null)
+            return -1;
+
+        if (ids == null) {
+            try {
+                int ordinal = Integer.parseInt(id) - 1;
+                return (ordinal >= 0 && ordinal < offsets.length) ? ordinal : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        return idTable[findSlot(id)] - 1;
+    }
+
+    /**
+     * @param ordinal the 0-based ordinal of the spectrum
+     * @return the position of the spectrum
+     */
+    public IndexElement getIndexElement(int ordinal) {
+        return new IndexElementImpl(offsets[ordinal], sizes[ordinal]);
+    }
+
+    /**
+     * @return the positions of all the spectra in the order of the file
+     */
+    public List<IndexElement> getIndexElements() {
+        return new IndexElementList(null, offsets.length);
+    }
+
+    /**
+     * @param msLevel the MS level
+     * @return the positions of the spectra of that MS level, empty if the MS levels are not known
+     */
+    public List<IndexElement> getIndexElements(int msLevel) {
+        int count = getMsLevelCount(msLevel);
+        if (count == 0)
+            return Collections.emptyList();
+
+        int[] ordinals = new int[count];
+        for (int ordinal = 0, i = 0; i < count; ordinal++) {
+            if (msLevels[ordinal] == msLevel)
+                ordinals[i++] = ordinal;
+        }
+        return new IndexElementList(ordinals, count);
+    }
+
+    /**
+     * @param msLevel the MS level
+     * @return the number of spectra of that MS level, 0 if the MS levels are not known
+     */
+    public int getMsLevelCount(int msLevel) {
+        if (msLevels == null)
+            return 0;
+        int count = 0;
+        for (byte level : msLevels) {
+            if (level == msLevel)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the MS levels found in the index in ascending order, empty if the MS levels are not known
+     */
+    public List<Integer> getMsLevels() {
+        if (msLevels == null)
+            return Collections.emptyList();
+
+        boolean[] found = new boolean[256];
+        for (byte level : msLevels)
+            found[level & 0xFF] = true;
+
+        List<Integer> levels = new ArrayList<>();
+        for (int level = Byte.MIN_VALUE; level <= Byte.MAX_VALUE; level++) {
+            if (found[level & 0xFF])
+                levels.add(level);
+        }
+        return levels;
+    }
+
+    /**
+     * @return the ids of the spectra in the order of the file
+     */
+    public List<String> getIds() {
+        if (ids != null)
+            return Collections.unmodifiableList(Arrays.asList(ids));
+
+        return new OrdinalIdList(offsets.length);
+    }
+
+    /**
+     * @return a map with the ids of the spectra as keys and their positions as values
+     */
+    public Map<String, IndexElement> getIndexElementForIds() {
+        return new IdMap();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SpectrumIndex)) return false;
+        SpectrumIndex that = (SpectrumIndex) o;
+        return Arrays.equals(offsets, that.offsets) && Arrays.equals(sizes, that.sizes)
+                && Arrays.equals(msLevels, that.msLevels) && Arrays.equals(ids, that.ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(offsets) + Arrays.hashCode(sizes);
+    }
+
+    /**
+     * Collects the spectra of a file while it is indexed.
+     */
+    public static final class Builder {
+
+        private long[] offsets = new long[16];
+
+        private int[] sizes = new int[16];
+
+        private byte[] msLevels;
+
+        private String[] ids;
+
+        private int size = 0;
+
+        /**
+         * Adds a spectrum without id and MS level.
+         * @param start the position of the spectrum
+         * @param length the size of the spectrum in bytes
+         * @return this builder
+         */
+        public Builder add(long start, int length) {
+            grow();
+            offsets[size] = start;
+            sizes[size++] = length;
+            return this;
+        }
+
+        /**
+         * Adds a spectrum.
+         * @param start the position of the spectrum
+         * @param length the size of the spectrum in bytes
+         * @param msLevel the MS level of the spectrum
+         * @param id the id of the spectrum, may be null
+         * @return this builder
+         */
+        public Builder add(long start, int length, int msLevel, String id) {
+            if (msLevels == null)
+                msLevels = new byte[offsets.length];
+            if (ids == null)
+                ids = new String[offsets.length];
+            grow();
+            msLevels[size] = (byte) msLevel;
+            ids[size] = id;
+            return add(start, length);
+        }
+
+        /**
+         * Adds all the spectra of another builder.
+         * @param other the builder
+         * @return this builder
+         */
+        public Builder addAll(Builder other) {
+            for (int i = 0; i < other.size; i++) {
+                if (other.ids != null)
+                    add(other.offsets[i], other.sizes[i], other.msLevels[i], other.ids[i]);
+                else
+                    add(other.offsets[i], other.sizes[i]);
+            }
+            return this;
+        }
+
+        /**
+         * @return the number of spectra added
+         */
+        public int size() {
+            return size;
+        }
+
+        private void grow() {
+            if (size < offsets.length)
+                return;
+            int capacity = offsets.length + (offsets.length >> 1);
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            if (msLevels != null)
+                msLevels = Arrays.copyOf(msLevels, capacity);
+            if (ids != null)
+                ids = Arrays.copyOf(ids, capacity);
+        }
+
+        /**
+         * @return the index of the spectra added
+         */
+        public SpectrumIndex build() {
+            return new SpectrumIndex(Arrays.copyOf(offsets, size), Arrays.copyOf(sizes, size),
+                    (msLevels != null) ? Arrays.copyOf(msLevels, size) : null,
+                    (ids != null) ? Arrays.copyOf(ids, size) : null);
+        }
+    }
+
+    /**
+     * View of the positions of all or some of the spectra.
+     */
+    private final class IndexElementList extends AbstractList<IndexElement> implements RandomAccess {
+
+        /** Ordinals of the spectra in the list, null for all the spectra */
+        private final int[] ordinals;
+
+        private final int count;
+
+        private IndexElementList(int[] ordinals, int count) {
+            this.ordinals = ordinals;
+            this.count = count;
+        }
+
+        @Override
+        public IndexElement get(int index) {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            return getIndexElement((ordinals != null) ? ordinals[index] : index);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * View of the 1-based indexes used as ids of spectra without ids.
+     */
+    private static final class OrdinalIdList extends AbstractList<String> implements RandomAccess {
+
+        private final int count;
+
+        private OrdinalIdList(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            return Integer.toString(index + 1);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * View of the ids and the positions of their spectra.
+     */
+    private final class IdMap extends AbstractMap<String, IndexElement> {
+
+        @Override
+        public IndexElement get(Object key) {
+            int ordinal = (key instanceof String) ? getOrdinal((String) key) : -1;
+            return (ordinal >= 0) ? getIndexElement(ordinal) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && getOrdinal((String) key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return idCount;
+        }
+
+        @Override
+        public Set<Entry<String, IndexElement>> entrySet() {
+            return new AbstractSet<Entry<String, IndexElement>>() {
+                @Override
+                public Iterator<Entry<String, IndexElement>> iterator() {
+                    return new Iterator<Entry<String, IndexElement>>() {
+                        private int next = advance(0);
+
+                        /** Skips the spectra without id and the ones whose id refers to a later spectrum */
+                        private int advance(int ordinal) {
+                            while (ordinal < offsets.length && (ids != null
+                                    && (ids[ordinal] == null || getOrdinal(ids[ordinal]) != ordinal)))
+                                ordinal++;
+                            return ordinal;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < offsets.length;
+                        }
+
+                        @Override
+                        public Entry<String, IndexElement> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            int ordinal = next;
+                            next = advance(ordinal + 1);
+                            return new SimpleImmutableEntry<>(getId(ordinal), getIndexElement(ordinal));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return idCount;
+                }
+            };
+        }
+    }
+}
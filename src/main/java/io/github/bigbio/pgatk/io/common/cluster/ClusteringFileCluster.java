@@ -3,6 +3,7 @@ package io.github.bigbio.pgatk.io.common.cluster;
 import io.github.bigbio.pgatk.io.common.Param;
 import io.github.bigbio.pgatk.io.common.psms.IPeptideSpectrumMatch;
 import io.github.bigbio.pgatk.io.common.psms.SequenceCount;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 
 import java.util.*;
 
@@ -24,6 +25,7 @@ public class ClusteringFileCluster implements ICluster {
     private final List<Double> consensusMzValues;
     private final List<Double> consensusIntensValues;
     private final List<Integer> consensusCountValues;
+    private final PeakArrays consensusPeaks;
 
     private final String id;
 
@@ -55,6 +57,10 @@ public class ClusteringFileCluster implements ICluster {
         this.consensusMzValues = consensusMzValues;
         this.consensusIntensValues = consensusIntensValues;
         this.consensusCountValues = consensusCountValues;
+        this.consensusPeaks = new PeakArrays(consensusMzValues.size());
+        for (int i = 0; i < consensusMzValues.size(); i++)
+            this.consensusPeaks.add(consensusMzValues.get(i), consensusIntensValues.get(i));
+        this.consensusPeaks.seal();
         this.id = id;
         this.fileName = fileName;
 
@@ -205,10 +211,12 @@ public class ClusteringFileCluster implements ICluster {
 
     @Override
     public Map<Double, Double> getPeakList() {
-        Map<Double, Double> peaks = new HashMap<>();
-        for(int i = 0; i < consensusMzValues.size(); i++)
-            peaks.put(consensusMzValues.get(i), consensusIntensValues.get(i));
-        return peaks;
+        return consensusPeaks.toMap();
+    }
+
+    @Override
+    public PeakArrays getPeakArrays() {
+        return consensusPeaks;
     }
 
     @Override
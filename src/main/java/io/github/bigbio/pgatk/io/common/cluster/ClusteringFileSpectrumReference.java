@@ -3,11 +3,11 @@ package io.github.bigbio.pgatk.io.common.cluster;
 import io.github.bigbio.pgatk.io.common.Param;
 import io.github.bigbio.pgatk.io.common.modification.IModification;
 import io.github.bigbio.pgatk.io.common.psms.IPeptideSpectrumMatch;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
  * Created by jg on 01.08.14.
@@ -34,7 +34,7 @@ public class ClusteringFileSpectrumReference implements ISpectrumReference {
     private final String modifications;
     private final boolean isIdentified;
     private boolean hasPeaks = false;
-    private List<Peak> peaks;
+    private PeakArrays peakArrays;
 
     private List<IPeptideSpectrumMatch> psms = new ArrayList<>();
     private IPeptideSpectrumMatch mostCommonPsm;
@@ -216,10 +216,10 @@ public class ClusteringFileSpectrumReference implements ISpectrumReference {
             throw new Exception("Different number of m/z and intensity values encountered");
         }
 
-        peaks = new ArrayList<>(mzValues.length);
-        for (int i = 0; i < mzValues.length; i++) {
-            peaks.add(new Peak(Float.parseFloat(mzValues[i]), Float.parseFloat(intensValues[i])));
-        }
+        peakArrays = new PeakArrays(mzValues.length);
+        for (int i = 0; i < mzValues.length; i++)
+            peakArrays.add(Float.parseFloat(mzValues[i]), Float.parseFloat(intensValues[i]));
+        peakArrays.seal();
 
         hasPeaks = true;
     }
@@ -229,8 +229,18 @@ public class ClusteringFileSpectrumReference implements ISpectrumReference {
         return hasPeaks;
     }
 
+    /**
+     * @return the peaks sorted by m/z, the list is built from the peak arrays on every call
+     */
     @Override
     public List<Peak> getPeaks() {
+        if (peakArrays == null)
+            return Collections.emptyList();
+        double[] mz = peakArrays.getMz();
+        double[] intensity = peakArrays.getIntensity();
+        List<Peak> peaks = new ArrayList<>(mz.length);
+        for (int i = 0; i < mz.length; i++)
+            peaks.add(new Peak(mz[i], intensity[i]));
         return Collections.unmodifiableList(peaks);
     }
 
@@ -256,7 +266,12 @@ public class ClusteringFileSpectrumReference implements ISpectrumReference {
 
     @Override
     public Map<Double, Double> getPeakList() {
-        return peaks.stream().collect(Collectors.toMap(Peak::getMz, Peak::getIntensity));
+        return (peakArrays != null) ? peakArrays.toMap() : null;
+    }
+
+    @Override
+    public PeakArrays getPeakArrays() {
+        return (peakArrays != null) ? peakArrays : new PeakArrays(0);
     }
 
     @Override
@@ -320,7 +335,7 @@ public class ClusteringFileSpectrumReference implements ISpectrumReference {
             return false;
         if (!Objects.equals(mostCommonPsm, that.mostCommonPsm))
             return false;
-        if (!Objects.equals(peaks, that.peaks)) return false;
+        if (!Objects.equals(peakArrays, that.peakArrays)) return false;
         if (!Objects.equals(psms, that.psms)) return false;
         if (!Objects.equals(sequence, that.sequence)) return false;
         return Objects.equals(species, that.species);
@@ -337,7 +352,7 @@ public class ClusteringFileSpectrumReference implements ISpectrumReference {
         result = 31 * result + (modifications != null ? modifications.hashCode() : 0);
         result = 31 * result + (isIdentified ? 1 : 0);
         result = 31 * result + (hasPeaks ? 1 : 0);
-        result = 31 * result + (peaks != null ? peaks.hashCode() : 0);
+        result = 31 * result + (peakArrays != null ? peakArrays.hashCode() : 0);
         result = 31 * result + (psms != null ? psms.hashCode() : 0);
         result = 31 * result + (mostCommonPsm != null ? mostCommonPsm.hashCode() : 0);
         return result;
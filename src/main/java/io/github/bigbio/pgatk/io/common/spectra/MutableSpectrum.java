@@ -0,0 +1,451 @@
+package io.github.bigbio.pgatk.io.common.spectra;
+
+import io.github.bigbio.pgatk.io.common.CvParam;
+import io.github.bigbio.pgatk.io.common.Param;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spectrum that is refilled by a reader for every record, see {@link io.github.bigbio.pgatk.io.common.MzIterableReader#setReuseSpectrum(boolean)}.
+ *
+ * The header values are held as primitives, the id, title and attributes in reusable {@link StringBuilder}s and
+ * the peaks in growable primitive arrays, so reading a record into it does not allocate once the buffers are large
+ * enough. The peaks are kept in the order of the file: {@link #getPeakCount()}, {@link #getMz(int)} and
+ * {@link #getIntensity(int)} read them in place, the methods of {@link Spectrum} returning objects, such as
+ * {@link #getPeakArrays()} or {@link #getAdditional()}, create them on every call.
+ *
+ * The content is only valid until the reader moves to the next record, use {@link #copy()} to keep a spectrum.
+ *
+ * @author ypriverol
+ */
+public final class MutableSpectrum implements Spectrum {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int DEFAULT_NUMBER_PEAKS = 100;
+
+    private static final int DEFAULT_NUMBER_ATTRIBUTES = 8;
+
+    private long index;
+
+    private final StringBuilder id = new StringBuilder();
+
+    private final StringBuilder title = new StringBuilder();
+
+    /** 0 if the MS level is not known */
+    private int msLevel;
+
+    private int precursorCharge;
+
+    private boolean hasPrecursorCharge;
+
+    private double precursorMz = Double.NaN;
+
+    private double precursorIntensity = Double.NaN;
+
+    /** The retention time in seconds */
+    private double retentionTime = Double.NaN;
+
+    private double[] mz;
+
+    private double[] intensity;
+
+    private int size;
+
+    private StringBuilder[] attributeNames = new StringBuilder[DEFAULT_NUMBER_ATTRIBUTES];
+
+    private StringBuilder[] attributeValues = new StringBuilder[DEFAULT_NUMBER_ATTRIBUTES];
+
+    private int attributeCount;
+
+    public MutableSpectrum() {
+        this(DEFAULT_NUMBER_PEAKS);
+    }
+
+    /**
+     * @param capacity the expected number of peaks
+     */
+    public MutableSpectrum(int capacity) {
+        mz = new double[Math.max(capacity, 1)];
+        intensity = new double[mz.length];
+    }
+
+    /**
+     * Removes all the values, the buffers are kept.
+     */
+    public void clear() {
+        index = 0;
+        id.setLength(0);
+        title.setLength(0);
+        msLevel = 0;
+        hasPrecursorCharge = false;
+        precursorMz = Double.NaN;
+        precursorIntensity = Double.NaN;
+        retentionTime = Double.NaN;
+        size = 0;
+        attributeCount = 0;
+    }
+
+    /**
+     * @return a copy of the spectrum that is not changed by the reader
+     */
+    public MutableSpectrum copy() {
+        MutableSpectrum copy = new MutableSpectrum(size);
+        copy.index = index;
+        copy.id.append(id);
+        copy.title.append(title);
+        copy.msLevel = msLevel;
+        copy.precursorCharge = precursorCharge;
+        copy.hasPrecursorCharge = hasPrecursorCharge;
+        copy.precursorMz = precursorMz;
+        copy.precursorIntensity = precursorIntensity;
+        copy.retentionTime = retentionTime;
+        System.arraycopy(mz, 0, copy.mz, 0, size);
+        System.arraycopy(intensity, 0, copy.intensity, 0, size);
+        copy.size = size;
+        for (int i = 0; i < attributeCount; i++)
+            copy.addAttribute(attributeNames[i], attributeValues[i], 0, attributeValues[i].length());
+        return copy;
+    }
+
+    @Override
+    public Long getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the 1-based index of the spectrum in the file
+     */
+    public long getIndexValue() {
+        return index;
+    }
+
+    public void setIndex(long index) {
+        this.index = index;
+    }
+
+    /**
+     * @return the id or null if it is not set
+     */
+    @Override
+    public String getId() {
+        return (id.length() > 0) ? id.toString() : null;
+    }
+
+    /**
+     * @return the id, empty if it is not set
+     */
+    public CharSequence getIdSequence() {
+        return id;
+    }
+
+    /**
+     * @param value the characters holding the id
+     * @param from  the first character of the id
+     * @param to    the position after the last character of the id
+     */
+    public void setId(CharSequence value, int from, int to) {
+        id.setLength(0);
+        id.append(value, from, to);
+    }
+
+    /**
+     * @param value the id, as the index of the spectrum for formats without ids
+     */
+    public void setId(long value) {
+        id.setLength(0);
+        id.append(value);
+    }
+
+    /**
+     * @return the title, empty if it is not set
+     */
+    public CharSequence getTitle() {
+        return title;
+    }
+
+    /**
+     * @param value the characters holding the title
+     * @param from  the first character of the title
+     * @param to    the position after the last character of the title
+     */
+    public void setTitle(CharSequence value, int from, int to) {
+        title.setLength(0);
+        title.append(value, from, to);
+    }
+
+    @Override
+    public Integer getMsLevel() {
+        return (msLevel > 0) ? msLevel : null;
+    }
+
+    /**
+     * @return the MS level or 0 if it is not known
+     */
+    public int getMsLevelValue() {
+        return msLevel;
+    }
+
+    public void setMsLevel(int msLevel) {
+        this.msLevel = msLevel;
+    }
+
+    @Override
+    public Integer getPrecursorCharge() {
+        return hasPrecursorCharge ? precursorCharge : null;
+    }
+
+    /**
+     * @return true if the precursor charge is known
+     */
+    public boolean hasPrecursorCharge() {
+        return hasPrecursorCharge;
+    }
+
+    /**
+     * @return the precursor charge, only valid if {@link #hasPrecursorCharge()}
+     */
+    public int getPrecursorChargeValue() {
+        return precursorCharge;
+    }
+
+    public void setPrecursorCharge(int precursorCharge) {
+        this.precursorCharge = precursorCharge;
+        this.hasPrecursorCharge = true;
+    }
+
+    @Override
+    public Double getPrecursorMZ() {
+        return Double.isNaN(precursorMz) ? null : precursorMz;
+    }
+
+    /**
+     * @return the precursor m/z or NaN if it is not known
+     */
+    public double getPrecursorMzValue() {
+        return precursorMz;
+    }
+
+    public void setPrecursorMz(double precursorMz) {
+        this.precursorMz = precursorMz;
+    }
+
+    @Override
+    public Double getPrecursorIntensity() {
+        return Double.isNaN(precursorIntensity) ? null : precursorIntensity;
+    }
+
+    /**
+     * @return the precursor intensity or NaN if it is not known
+     */
+    public double getPrecursorIntensityValue() {
+        return precursorIntensity;
+    }
+
+    public void setPrecursorIntensity(double precursorIntensity) {
+        this.precursorIntensity = precursorIntensity;
+    }
+
+    /**
+     * @return the retention time in seconds or NaN if it is not known
+     */
+    public double getRetentionTime() {
+        return retentionTime;
+    }
+
+    public void setRetentionTime(double retentionTime) {
+        this.retentionTime = retentionTime;
+    }
+
+    /**
+     * Adds a peak, the peaks are kept in the order they are added.
+     * @param mz        the m/z value
+     * @param intensity the intensity value
+     */
+    public void addPeak(double mz, double intensity) {
+        if (size == this.mz.length)
+            ensurePeakCapacity(size + (size >> 1) + 1);
+        this.mz[size] = mz;
+        this.intensity[size] = intensity;
+        size++;
+    }
+
+    /**
+     * @param capacity the number of peaks the arrays hold without growing
+     */
+    public void ensurePeakCapacity(int capacity) {
+        if (capacity > mz.length) {
+            mz = Arrays.copyOf(mz, capacity);
+            intensity = Arrays.copyOf(intensity, capacity);
+        }
+    }
+
+    /**
+     * @return the number of peaks that were added
+     */
+    public int getPeakCount() {
+        return size;
+    }
+
+    /**
+     * @param peak the position of the peak in the file order
+     * @return the m/z value of the peak
+     */
+    public double getMz(int peak) {
+        checkPeak(peak);
+        return mz[peak];
+    }
+
+    /**
+     * @param peak the position of the peak in the file order
+     * @return the intensity of the peak
+     */
+    public double getIntensity(int peak) {
+        checkPeak(peak);
+        return intensity[peak];
+    }
+
+    /**
+     * @return the m/z values in the file order, only the first {@link #getPeakCount()} values are set.
+     * The array is refilled by the reader.
+     */
+    public double[] getMzValues() {
+        return mz;
+    }
+
+    /**
+     * @return the intensities in the same order as {@link #getMzValues()}, the array is refilled by the reader
+     */
+    public double[] getIntensityValues() {
+        return intensity;
+    }
+
+    /**
+     * @return a copy of the peaks sorted by m/z
+     */
+    @Override
+    public PeakArrays getPeakArrays() {
+        return new PeakArrays(Arrays.copyOf(mz, size), Arrays.copyOf(intensity, size)).seal();
+    }
+
+    @Override
+    public Map<Double, Double> getPeakList() {
+        return getPeakArrays().toMap();
+    }
+
+    /**
+     * Adds an attribute of the record, such as a MGF attribute that is not part of the header.
+     * @param name  the name of the attribute
+     * @param value the characters holding the value
+     * @param from  the first character of the value
+     * @param to    the position after the last character of the value
+     */
+    public void addAttribute(CharSequence name, CharSequence value, int from, int to) {
+        addAttribute(name, 0, name.length(), value, from, to);
+    }
+
+    /**
+     * Adds an attribute whose name is part of a larger sequence, such as the line holding the attribute.
+     * @param name      the characters holding the name
+     * @param nameFrom  the first character of the name
+     * @param nameTo    the position after the last character of the name
+     * @param value     the characters holding the value
+     * @param valueFrom the first character of the value
+     * @param valueTo   the position after the last character of the value
+     */
+    public void addAttribute(CharSequence name, int nameFrom, int nameTo, CharSequence value, int valueFrom, int valueTo) {
+        if (attributeCount == attributeNames.length) {
+            attributeNames = Arrays.copyOf(attributeNames, attributeCount * 2);
+            attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
+        }
+        if (attributeNames[attributeCount] == null) {
+            attributeNames[attributeCount] = new StringBuilder();
+            attributeValues[attributeCount] = new StringBuilder();
+        }
+        attributeNames[attributeCount].setLength(0);
+        attributeNames[attributeCount].append(name, nameFrom, nameTo);
+        attributeValues[attributeCount].setLength(0);
+        attributeValues[attributeCount].append(value, valueFrom, valueTo);
+        attributeCount++;
+    }
+
+    /**
+     * @return the number of attributes
+     */
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * @param attribute the position of the attribute
+     * @return the name of the attribute
+     */
+    public CharSequence getAttributeName(int attribute) {
+        checkAttribute(attribute);
+        return attributeNames[attribute];
+    }
+
+    /**
+     * @param attribute the position of the attribute
+     * @return the value of the attribute
+     */
+    public CharSequence getAttributeValue(int attribute) {
+        checkAttribute(attribute);
+        return attributeValues[attribute];
+    }
+
+    /**
+     * @param name the name of an attribute
+     * @return the value of the first attribute with the name or null
+     */
+    public CharSequence getAttribute(CharSequence name) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (contentEquals(attributeNames[i], name))
+                return attributeValues[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return the title and the attributes as parameters, created on every call
+     */
+    @Override
+    public Collection<? extends Param> getAdditional() {
+        List<CvParam> params = new ArrayList<>(attributeCount + 1);
+        if (title.length() > 0)
+            params.add(new CvParam("spectrum title", title.toString(), "MS", "MS:1000796"));
+        for (int i = 0; i < attributeCount; i++)
+            params.add(new CvParam(attributeNames[i].toString(), attributeValues[i].toString(), null, null));
+        return params;
+    }
+
+    private void checkPeak(int peak) {
+        if (peak < 0 || peak >= size)
+            throw new IndexOutOfBoundsException("Peak " + peak + " outside of " + size + " peaks");
+    }
+
+    private void checkAttribute(int attribute) {
+        if (attribute < 0 || attribute >= attributeCount)
+            throw new IndexOutOfBoundsException("Attribute " + attribute + " outside of " + attributeCount + " attributes");
+    }
+
+    private static boolean contentEquals(CharSequence a, CharSequence b) {
+        if (a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "MutableSpectrum{index=" + index + ", id=" + id + ", title=" + title + ", msLevel=" + msLevel
+                + ", precursorCharge=" + getPrecursorCharge() + ", precursorMz=" + getPrecursorMZ() + ", peaks=" + size + '}';
+    }
+}
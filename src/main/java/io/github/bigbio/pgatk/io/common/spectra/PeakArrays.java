@@ -0,0 +1,267 @@
+package io.github.bigbio.pgatk.io.common.spectra;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Primitive storage for the peaks of a {@link Spectrum}. Peaks are appended while a spectrum is
+ * parsed and are exposed as two parallel arrays sorted by ascending m/z.
+ *
+ * The arrays behave like the former {@code Map<Double, Double>} peak lists: when the same m/z value
+ * is added more than once only the last intensity is kept. Sorting and duplicate removal happen once, in
+ * {@link #seal()}, which the readers call when they are done filling a spectrum. The read methods never modify
+ * the peak list: on a peak list that is not sealed they sort a copy on every call.
+ *
+ * The arrays returned by {@link #getMz()} and {@link #getIntensity()} are shared and must not be modified.
+ *
+ * A peak list is not locked: it is filled and sealed by one thread, usually the parser of its spectrum. Once
+ * sealed and safely published, for example through a concurrent collection or a final field, it can be read
+ * by any number of threads.
+ *
+ * @author ypriverol
+ */
+public final class PeakArrays implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int DEFAULT_CAPACITY = 100;
+
+    private static final double[] EMPTY = new double[0];
+
+    private double[] mz;
+
+    private double[] intensity;
+
+    private int size;
+
+    /** True when the arrays are sorted, free of duplicates and trimmed to size */
+    private boolean normalized;
+
+    public PeakArrays() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty peak list.
+     * @param capacity expected number of peaks
+     */
+    public PeakArrays(int capacity) {
+        mz = capacity > 0 ? new double[capacity] : EMPTY;
+        intensity = capacity > 0 ? new double[capacity] : EMPTY;
+        normalized = capacity == 0;
+    }
+
+    /**
+     * Creates a peak list from parallel arrays. The arrays are used as they are (no copy) and are never
+     * modified, sorting and duplicate removal write into new arrays.
+     * @param mz m/z values
+     * @param intensity intensity values, same length as mz
+     */
+    public PeakArrays(double[] mz, double[] intensity) {
+        if (mz.length != intensity.length)
+            throw new IllegalArgumentException("Different number of m/z (" + mz.length + ") and intensity (" + intensity.length + ") values");
+        this.mz = mz;
+        this.intensity = intensity;
+        this.size = mz.length;
+    }
+
+    /**
+     * Creates a peak list from the first values of parallel arrays. The arrays are used as they are (no copy)
+     * and are taken over by the peak list: the peaks added afterwards may be written into them.
+     * @param mz m/z values
+     * @param intensity intensity values
+     * @param size number of peaks in the arrays
+     */
+    public PeakArrays(double[] mz, double[] intensity, int size) {
+        if (size > mz.length || size > intensity.length)
+            throw new IllegalArgumentException("Less than " + size + " values in the m/z (" + mz.length + ") or intensity (" + intensity.length + ") array");
+        this.mz = mz;
+        this.intensity = intensity;
+        this.size = size;
+    }
+
+    /**
+     * Creates a peak list from a map with the m/z values as keys and the intensities as values.
+     * @param peakList the peak list, may be null
+     * @return the peaks sorted by m/z
+     */
+    public static PeakArrays fromMap(Map<Double, Double> peakList) {
+        if (peakList == null)
+            return new PeakArrays(0);
+        PeakArrays peaks = new PeakArrays(peakList.size());
+        for (Map.Entry<Double, Double> peak : peakList.entrySet())
+            peaks.add(peak.getKey(), peak.getValue());
+        return peaks.seal();
+    }
+
+    /**
+     * Adds a peak.
+     * @param mz the m/z value
+     * @param intensity the intensity value
+     */
+    public void add(double mz, double intensity) {
+        if (size == this.mz.length) {
+            int capacity = Math.max(DEFAULT_CAPACITY, size + (size >> 1));
+            this.mz = Arrays.copyOf(this.mz, capacity);
+            this.intensity = Arrays.copyOf(this.intensity, capacity);
+        }
+        this.mz[size] = mz;
+        this.intensity[size] = intensity;
+        size++;
+        normalized = false;
+    }
+
+    /**
+     * Sorts the peaks by m/z and removes the duplicate m/z values. Called once the peak list is filled,
+     * adding peaks afterwards requires another call.
+     * @return this peak list
+     */
+    public PeakArrays seal() {
+        normalize();
+        return this;
+    }
+
+    /**
+     * Removes all peaks.
+     */
+    public void clear() {
+        size = 0;
+        normalized = false;
+    }
+
+    /**
+     * @return the number of peaks
+     */
+    public int size() {
+        return sealed().size;
+    }
+
+    /**
+     * @return the m/z values in ascending order
+     */
+    public double[] getMz() {
+        return sealed().mz;
+    }
+
+    /**
+     * @return the intensities, in the same order as {@link #getMz()}
+     */
+    public double[] getIntensity() {
+        return sealed().intensity;
+    }
+
+    /**
+     * Returns the peaks as a map with the m/z values as keys and the intensities as values.
+     * A new map is created on every call.
+     * @return the peak list
+     */
+    public Map<Double, Double> toMap() {
+        PeakArrays peaks = sealed();
+        Map<Double, Double> peakList = new HashMap<>(Math.max(16, (int) (peaks.size / 0.75f) + 1));
+        for (int i = 0; i < peaks.size; i++)
+            peakList.put(peaks.mz[i], peaks.intensity[i]);
+        return peakList;
+    }
+
+    /**
+     * @return this peak list if it is sealed, otherwise a sealed copy
+     */
+    private PeakArrays sealed() {
+        if (normalized)
+            return this;
+        return new PeakArrays(Arrays.copyOf(mz, size), Arrays.copyOf(intensity, size)).seal();
+    }
+
+    private void normalize() {
+        if (normalized)
+            return;
+
+        boolean sorted = true;
+        boolean unique = true;
+        for (int i = 1; i < size && sorted; i++) {
+            int cmp = Double.compare(mz[i - 1], mz[i]);
+            if (cmp > 0)
+                sorted = false;
+            else if (cmp == 0)
+                unique = false;
+        }
+
+        if (!sorted) {
+            // stable sort keeps the insertion order of equal m/z values so the last one wins
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            mergeSort(order, new int[size], 0, size);
+            double[] sortedMz = new double[size];
+            double[] sortedIntensity = new double[size];
+            for (int i = 0; i < size; i++) {
+                sortedMz[i] = mz[order[i]];
+                sortedIntensity[i] = intensity[order[i]];
+            }
+            mz = sortedMz;
+            intensity = sortedIntensity;
+            unique = false;
+        }
+
+        if (!unique) {
+            // the last of equal m/z values is kept, the arrays may be the caller's so new ones are written
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == size - 1 || Double.compare(mz[i], mz[i + 1]) != 0)
+                    count++;
+            }
+            double[] uniqueMz = new double[count];
+            double[] uniqueIntensity = new double[count];
+            int last = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == size - 1 || Double.compare(mz[i], mz[i + 1]) != 0) {
+                    uniqueMz[last] = mz[i];
+                    uniqueIntensity[last] = intensity[i];
+                    last++;
+                }
+            }
+            mz = uniqueMz;
+            intensity = uniqueIntensity;
+            size = count;
+        }
+
+        if (mz.length != size) {
+            mz = size == 0 ? EMPTY : Arrays.copyOf(mz, size);
+            intensity = size == 0 ? EMPTY : Arrays.copyOf(intensity, size);
+        }
+        normalized = true;
+    }
+
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2)
+            return;
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle);
+        mergeSort(order, buffer, middle, to);
+        if (Double.compare(mz[order[middle - 1]], mz[order[middle]]) <= 0)
+            return;
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from, right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && Double.compare(mz[buffer[left]], mz[buffer[right]]) <= 0))
+                order[i] = buffer[left++];
+            else
+                order[i] = buffer[right++];
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PeakArrays)) return false;
+        PeakArrays that = (PeakArrays) o;
+        return Arrays.equals(getMz(), that.getMz()) && Arrays.equals(getIntensity(), that.getIntensity());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(getMz()) + Arrays.hashCode(getIntensity());
+    }
+}
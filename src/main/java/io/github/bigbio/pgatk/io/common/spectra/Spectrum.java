@@ -60,6 +60,45 @@ public interface Spectrum extends Serializable {
 	 */
 	Map<Double, Double> getPeakList();
 
+	/**
+	 * Returns the spectrum's peaks as primitive
+	 * arrays sorted by m/z. Readers fill these arrays
+	 * while parsing, {@link #getPeakList()} is only
+	 * built on demand from them.
+	 * @return The peaks, never null.
+	 */
+	default PeakArrays getPeakArrays() {
+		return PeakArrays.fromMap(getPeakList());
+	}
+
+	/**
+	 * Returns the m/z values of the peaks in
+	 * ascending order. The returned array must
+	 * not be modified.
+	 * @return
+	 */
+	default double[] getMzArray() {
+		return getPeakArrays().getMz();
+	}
+
+	/**
+	 * Returns the intensities of the peaks in the
+	 * same order as {@link #getMzArray()}. The returned
+	 * array must not be modified.
+	 * @return
+	 */
+	default double[] getIntensityArray() {
+		return getPeakArrays().getIntensity();
+	}
+
+	/**
+	 * Returns the number of peaks of the spectrum.
+	 * @return
+	 */
+	default int getNumberOfPeaks() {
+		return getPeakArrays().size();
+	}
+
 	/**
 	 * Returns the msLevel of the spectrum. NULL
 	 * in case the MS level is not available or
@@ -0,0 +1,78 @@
+package io.github.bigbio.pgatk.io.common.spectra;
+
+import java.io.Serializable;
+
+/**
+ * Selects the parts of the spectra that are decoded by a reader.
+ *
+ * The header of a spectrum, its id, index, MS level, precursor m/z, charge and intensity, its title and
+ * retention time when the format stores them with the header, is always read. The peaks and the additional
+ * parameters are only decoded when they are selected: without the peaks a spectrum has an empty peak list,
+ * without the parameters it only holds the parameters built from the header values.
+ *
+ * @author ypriverol
+ */
+public final class SpectrumFields implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The whole spectrum */
+    public static final SpectrumFields ALL = new SpectrumFields(true, true);
+
+    /** The header and the peaks, the additional parameters are skipped */
+    public static final SpectrumFields PEAKS = new SpectrumFields(true, false);
+
+    /** The header and the additional parameters, the peaks are skipped */
+    public static final SpectrumFields PARAMS = new SpectrumFields(false, true);
+
+    /** Only the header */
+    public static final SpectrumFields HEADER = new SpectrumFields(false, false);
+
+    private final boolean peaks;
+
+    private final boolean params;
+
+    private SpectrumFields(boolean peaks, boolean params) {
+        this.peaks = peaks;
+        this.params = params;
+    }
+
+    /**
+     * @param peaks  true to decode the peaks
+     * @param params true to decode the additional parameters
+     * @return the selection
+     */
+    public static SpectrumFields of(boolean peaks, boolean params) {
+        return peaks ? (params ? ALL : PEAKS) : (params ? PARAMS : HEADER);
+    }
+
+    /**
+     * @return true if the peaks are decoded
+     */
+    public boolean hasPeaks() {
+        return peaks;
+    }
+
+    /**
+     * @return true if the additional parameters are decoded
+     */
+    public boolean hasParams() {
+        return params;
+    }
+
+    /**
+     * @return true if nothing is skipped
+     */
+    public boolean isAll() {
+        return peaks && params;
+    }
+
+    private Object readResolve() {
+        return of(peaks, params);
+    }
+
+    @Override
+    public String toString() {
+        return "SpectrumFields{peaks=" + peaks + ", params=" + params + '}';
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.bigbio.pgatk.io.common.spectra;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Filter on the header values of a spectrum that is pushed down into the readers: a reader tests it as soon
+ * as the header of a record is read, for example the PEPMASS and CHARGE attributes of a MGF spectrum or the
+ * attributes of a mzXML scan, and skips the peaks of the spectra that are rejected.
+ *
+ * A value that is missing from the header is passed as null, the filters created by this interface reject
+ * spectra with a missing value they test.
+ *
+ * @author ypriverol
+ */
+@FunctionalInterface
+public interface SpectrumFilter extends Serializable {
+
+    /**
+     * @param msLevel         the MS level of the spectrum or null
+     * @param precursorCharge the charge of the precursor or null
+     * @param precursorMz     the m/z of the precursor or null
+     * @return true if the spectrum is read, false if it is skipped
+     */
+    boolean accept(Integer msLevel, Integer precursorCharge, Double precursorMz);
+
+    /**
+     * @param spectrum a spectrum, only its header values are used
+     * @return true if the spectrum is accepted
+     */
+    default boolean test(Spectrum spectrum) {
+        return accept(spectrum.getMsLevel(), spectrum.getPrecursorCharge(), spectrum.getPrecursorMZ());
+    }
+
+    /**
+     * @param other another filter
+     * @return a filter accepting the spectra accepted by both filters
+     */
+    default SpectrumFilter and(SpectrumFilter other) {
+        return (msLevel, precursorCharge, precursorMz) -> accept(msLevel, precursorCharge, precursorMz)
+                && other.accept(msLevel, precursorCharge, precursorMz);
+    }
+
+    /**
+     * @param msLevels the accepted MS levels
+     * @return a filter on the MS level
+     */
+    static SpectrumFilter msLevels(int... msLevels) {
+        int[] accepted = msLevels.clone();
+        return (msLevel, precursorCharge, precursorMz) -> msLevel != null && Arrays.stream(accepted).anyMatch(level -> level == msLevel);
+    }
+
+    /**
+     * @param charges the accepted precursor charges
+     * @return a filter on the precursor charge
+     */
+    static SpectrumFilter charges(int... charges) {
+        int[] accepted = charges.clone();
+        return (msLevel, precursorCharge, precursorMz) -> precursorCharge != null && Arrays.stream(accepted).anyMatch(charge -> charge == precursorCharge);
+    }
+
+    /**
+     * @param from the lowest accepted precursor m/z
+     * @param to   the highest accepted precursor m/z
+     * @return a filter on the precursor m/z
+     */
+    static SpectrumFilter precursorMz(double from, double to) {
+        return (msLevel, precursorCharge, precursorMz) -> precursorMz != null && precursorMz >= from && precursorMz <= to;
+    }
+}
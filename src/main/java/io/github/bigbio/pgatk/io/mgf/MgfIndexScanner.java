@@ -0,0 +1,416 @@
+package io.github.bigbio.pgatk.io.mgf;
+
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.SpectrumIndex;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Builds the index of the MS2 queries of a MGF file by scanning the raw bytes of the file.
+ *
+ * Inside a "BEGIN IONS" / "END IONS" block no String is created: the scanner only looks for line
+ * terminators and the "END IONS" marker. Outside of the blocks the "BEGIN IONS" lines and the comments
+ * are recognized on the bytes, only the other lines (the file header) are decoded as UTF-8 and passed
+ * to a {@link LineHandler}. The positions reported are the same as the ones found by reading
+ * the file line by line with the {@link io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile}:
+ * '\n', '\r\n' and '\r' are all accepted as line terminators.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+final class MgfIndexScanner {
+
+    /**
+     * Size of the file regions that are mapped into memory at once.
+     */
+    static final int MAPPING_SIZE = 1 << 28;
+
+    /**
+     * Size of the buffer used to look for the next "BEGIN IONS" line.
+     */
+    private static final int SNAP_BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] BEGIN_IONS = "BEGIN IONS".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] END_IONS = "END IONS".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Receives the lines found outside of the MS2 blocks.
+     */
+    interface LineHandler {
+        /**
+         * @param line the line, with comments removed and trimmed. Empty lines are not reported.
+         * @param position the position of the line in the file
+         */
+        void handleLine(String line, long position) throws PgatkIOException;
+    }
+
+    /**
+     * Line outside of the MS2 blocks kept until it can be processed in order.
+     */
+    private static final class HeaderLine {
+        private final String line;
+        private final long position;
+
+        private HeaderLine(String line, long position) {
+            this.line = line;
+            this.position = position;
+        }
+    }
+
+    private final LineHandler handler;
+
+    private final SpectrumIndex.Builder index = new SpectrumIndex.Builder();
+
+    /** Indicates whether the scanner is between a "BEGIN IONS" and "END IONS" line */
+    private boolean inMs2 = false;
+
+    /** Position of the "BEGIN IONS" line of the current block */
+    private long beginIonsPosition;
+
+    /** Position of the first byte of the current line */
+    private long lineStart;
+
+    /** Number of bytes of the current line (without the line terminator) */
+    private int lineLength = 0;
+
+    /** Number of characters of "END IONS" matched in the current line */
+    private int endMatch = 0;
+
+    /** Set when the "END IONS" marker was found in the current line */
+    private boolean endFound = false;
+
+    /** Set when the last byte was a '\r', which may be followed by a '\n' */
+    private boolean pendingCarriageReturn = false;
+
+    /** Content of the current line when outside of a MS2 block */
+    private byte[] lineBuffer = new byte[1024];
+
+    /**
+     * @param handler receives the lines outside of the MS2 blocks
+     * @param start the position in the file the scan starts at, must be the beginning of a line
+     */
+    MgfIndexScanner(LineHandler handler, long start) {
+        this.handler = handler;
+        this.lineStart = start;
+    }
+
+    /**
+     * Scans the region of a file.
+     * @param channel the file to scan
+     * @param start the first byte to scan, must be the beginning of a line
+     * @param end the position after the last byte to scan
+     * @param handler receives the lines outside of the MS2 blocks
+     * @return the scanner, holding the index of the MS2 blocks that start in the region
+     */
+    static MgfIndexScanner scan(FileChannel channel, long start, long end, LineHandler handler) throws PgatkIOException {
+        MgfIndexScanner scanner = new MgfIndexScanner(handler, start);
+        try {
+            for (long position = start; position < end; position += MAPPING_SIZE) {
+                long size = Math.min(MAPPING_SIZE, end - position);
+                scanner.scan(channel.map(FileChannel.MapMode.READ_ONLY, position, size), position);
+            }
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mgf file.", e);
+        }
+        scanner.finish(end);
+        return scanner;
+    }
+
+    /**
+     * Scans a stream sequentially, for example the decompressed content of a gzip file.
+     * @param input the stream to scan, positions are counted from its first byte
+     * @param handler receives the lines outside of the MS2 blocks
+     * @return the MS2 blocks in the order they appear in the stream
+     */
+    static SpectrumIndex scan(InputStream input, LineHandler handler) throws PgatkIOException {
+        MgfIndexScanner scanner = new MgfIndexScanner(handler, 0);
+        byte[] buffer = new byte[1 << 16];
+        long position = 0;
+        try {
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                scanner.scan(ByteBuffer.wrap(buffer, 0, read), position);
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mgf file.", e);
+        }
+        scanner.finish(position);
+        return scanner.getIndex().build();
+    }
+
+    /**
+     * Builds the index of a whole file in parallel. The file is split into ranges of
+     * {@code chunkSize} bytes, every range is moved to the next line containing "BEGIN IONS"
+     * and indexed by a worker of a {@link ForkJoinPool}. The lines found outside of the MS2
+     * blocks are passed to the handler in the order they appear in the file once all the
+     * workers finished, so the result is identical to a sequential scan.
+     *
+     * @param channel the file to index
+     * @param handler receives the lines outside of the MS2 blocks
+     * @param parallelism number of workers
+     * @param chunkSize size of the ranges in bytes
+     * @return the MS2 blocks in the order they appear in the file
+     */
+    static SpectrumIndex scanParallel(FileChannel channel, LineHandler handler, int parallelism, long chunkSize) throws PgatkIOException {
+        long size;
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mgf file.", e);
+        }
+
+        int nRanges = (int) Math.min(Integer.MAX_VALUE, (size + chunkSize - 1) / chunkSize);
+        if (parallelism < 2 || nRanges < 2)
+            return scan(channel, 0, size, handler).getIndex().build();
+
+        List<List<HeaderLine>> rangeLines = new ArrayList<>(nRanges);
+        List<ForkJoinTask<MgfIndexScanner>> tasks = new ArrayList<>(nRanges);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            for (int range = 0; range < nRanges; range++) {
+                long rangeStart = range * chunkSize;
+                long rangeEnd = Math.min(size, rangeStart + chunkSize);
+                List<HeaderLine> lines = new ArrayList<>();
+                rangeLines.add(lines);
+
+                tasks.add(pool.submit(() -> {
+                    long start = nextBlockStart(channel, rangeStart, size);
+                    long end = nextBlockStart(channel, rangeEnd, size);
+                    return scan(channel, start, Math.max(start, end), (line, position) -> lines.add(new HeaderLine(line, position)));
+                }));
+            }
+
+            SpectrumIndex.Builder index = new SpectrumIndex.Builder();
+            for (int range = 0; range < nRanges; range++) {
+                MgfIndexScanner scanner = tasks.get(range).get();
+
+                // a MS2 block spanning two ranges means the file could not be split at a "BEGIN IONS" line
+                if (scanner.isInMs2() && range < nRanges - 1) {
+                    log.debug("MS2 block crosses the index ranges, falling back to a sequential scan");
+                    return scan(channel, 0, size, handler).getIndex().build();
+                }
+                index.addAll(scanner.getIndex());
+            }
+
+            for (List<HeaderLine> lines : rangeLines) {
+                for (HeaderLine line : lines)
+                    handler.handleLine(line.line, line.position);
+            }
+
+            return index.build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PgatkIOException("Interrupted while indexing the mgf file.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PgatkIOException)
+                throw (PgatkIOException) e.getCause();
+            throw new PgatkIOException("Failed to index the mgf file.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the beginning of the first line at or after the passed position that contains "BEGIN IONS".
+     *
+     * @param channel the file
+     * @param position the position to start searching from
+     * @param size the size of the file
+     * @return the position of the line or the size of the file if there is no further "BEGIN IONS" line
+     */
+    static long nextBlockStart(FileChannel channel, long position, long size) throws IOException {
+        if (position <= 0)
+            return 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(SNAP_BUFFER_SIZE);
+        // start one byte early to know whether the position is the beginning of a line
+        long offset = position - 1;
+        long lineStart = -1;
+        boolean carriageReturn = false;
+        int match = 0;
+
+        while (offset < size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read < 0)
+                break;
+
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                long current = offset + i;
+
+                if (carriageReturn && b != '\n') {
+                    // a single '\r' terminated the last line
+                    lineStart = current;
+                    match = 0;
+                }
+                carriageReturn = false;
+
+                if (b == '\n') {
+                    lineStart = current + 1;
+                    match = 0;
+                } else if (b == '\r') {
+                    carriageReturn = true;
+                } else if (lineStart >= 0) {
+                    if (b == BEGIN_IONS[match]) {
+                        if (++match == BEGIN_IONS.length)
+                            return lineStart;
+                    } else {
+                        match = (b == BEGIN_IONS[0]) ? 1 : 0;
+                    }
+                }
+            }
+            offset += read;
+        }
+
+        return size;
+    }
+
+    /**
+     * Scans the remaining bytes of the passed buffer.
+     * @param bytes the bytes to scan
+     * @param offset the position in the file of the buffer's current position
+     */
+    void scan(ByteBuffer bytes, long offset) throws PgatkIOException {
+        int first = bytes.position();
+        int last = bytes.limit();
+
+        for (int i = first; i < last; i++) {
+            byte b = bytes.get(i);
+
+            if (pendingCarriageReturn) {
+                pendingCarriageReturn = false;
+                if (b == '\n') {
+                    endOfLine(offset + i - first + 1);
+                    continue;
+                }
+                endOfLine(offset + i - first);
+            }
+
+            if (b == '\n') {
+                endOfLine(offset + i - first + 1);
+            } else if (b == '\r') {
+                pendingCarriageReturn = true;
+            } else if (inMs2) {
+                if (!endFound) {
+                    if (b == END_IONS[endMatch]) {
+                        if (++endMatch == END_IONS.length)
+                            endFound = true;
+                    } else {
+                        endMatch = (b == END_IONS[0]) ? 1 : 0;
+                    }
+                }
+                lineLength++;
+            } else {
+                if (lineLength == lineBuffer.length) {
+                    byte[] larger = new byte[lineBuffer.length * 2];
+                    System.arraycopy(lineBuffer, 0, larger, 0, lineLength);
+                    lineBuffer = larger;
+                }
+                lineBuffer[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Processes the last line when the end of the scanned region is reached.
+     * @param end the position after the last scanned byte
+     */
+    void finish(long end) throws PgatkIOException {
+        if (pendingCarriageReturn || lineLength > 0) {
+            pendingCarriageReturn = false;
+            endOfLine(end);
+        }
+    }
+
+    /**
+     * @param nextLineStart the position after the line terminator
+     */
+    private void endOfLine(long nextLineStart) throws PgatkIOException {
+        if (inMs2) {
+            if (endFound)
+                closeBlock(nextLineStart);
+        } else if (lineLength > 0 && !isComment()) {
+            if (contains(BEGIN_IONS)) {
+                beginIonsPosition = lineStart;
+                inMs2 = true;
+                if (contains(END_IONS))
+                    closeBlock(nextLineStart);
+            } else if (!isBlank()) {
+                handler.handleLine(new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8).trim(), lineStart);
+            }
+        }
+
+        lineStart = nextLineStart;
+        lineLength = 0;
+        endMatch = 0;
+        endFound = false;
+    }
+
+    private void closeBlock(long end) throws PgatkIOException {
+        if (end - beginIonsPosition > Integer.MAX_VALUE)
+            throw new PgatkIOException("The MS2 query at position " + beginIonsPosition + " is larger than 2 GB");
+        index.add(beginIonsPosition, (int) (end - beginIonsPosition));
+        inMs2 = false;
+    }
+
+    /**
+     * @return true if the current line is a comment, see {@link MgfUtils#mgfCommentRegex}
+     */
+    private boolean isComment() {
+        byte first = lineBuffer[0];
+        return first == '#' || first == ';' || first == '!' || first == '/';
+    }
+
+    /**
+     * @return true if the current line only holds whitespace
+     */
+    private boolean isBlank() {
+        for (int i = 0; i < lineLength; i++) {
+            if (lineBuffer[i] > ' ')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the current line contains the marker
+     */
+    private boolean contains(byte[] marker) {
+        for (int start = 0; start <= lineLength - marker.length; start++) {
+            int i = 0;
+            while (i < marker.length && lineBuffer[start + i] == marker[i])
+                i++;
+            if (i == marker.length)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the MS2 blocks found so far in the order they appear in the file
+     */
+    SpectrumIndex.Builder getIndex() {
+        return index;
+    }
+
+    /**
+     * @return true if the scan ended inside a MS2 block
+     */
+    boolean isInMs2() {
+        return inMs2;
+    }
+}
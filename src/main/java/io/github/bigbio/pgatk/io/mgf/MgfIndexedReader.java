@@ -1,17 +1,30 @@
 package io.github.bigbio.pgatk.io.mgf;
 
-import io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile;
 import io.github.bigbio.pgatk.io.common.*;
 import lombok.extern.slf4j.Slf4j;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 
 /**
  * Represents a MgfIndexedReader.
  *
+ * Random access to the spectra ({@link #getSpectrumById(String)}, {@link #getSpectrumByIndex(int)},
+ * {@link #getMs2Query(int, boolean)}) is thread-safe: all threads share one {@link FileChannel} and
+ * read the spectra with positional reads into pooled buffers. The iteration methods ({@link #hasNext()},
+ * {@link #next()}, {@link #seek(int)}) keep a position and must only be used by one thread, they read the
+ * file sequentially with a {@link SequentialRecordReader} and only use the index to cut the spectra.
+ *
  * @author jg
  * @author ypriverol
  */
@@ -61,17 +74,17 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
      * Position from the "BEGIN IONS" fields in the file to
      * the "END IONS"
      */
-    private List<IndexElement> index = new ArrayList<>();
+    private SpectrumIndex index = SpectrumIndex.EMPTY;
 
     /**
-     * MS2 queries. The index of the query in the file as key
-     * and the respective query as value.
+     * MS2 queries set through {@link #setMs2Queries(List)}. The index of the query
+     * as key and the respective query as value.
      */
-    private HashMap<Integer, Ms2Query> ms2Queries = new HashMap<>();
+    private Map<Integer, Ms2Query> ms2Queries = new ConcurrentHashMap<>();
     /**
-     * Indicates whether the cache should be used
+     * Cache of the queries loaded from the source file, null if the queries are not cached
      */
-    private boolean useCache = false;
+    private transient volatile SpectrumCache spectrumCache;
     /**
      * Indicates whether the parser will fail on unknown tags
      */
@@ -93,6 +106,51 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
 
     private int currentPosition = -1;
 
+    /**
+     * The parts of the queries read from the source file.
+     */
+    private SpectrumFields spectrumFields = SpectrumFields.ALL;
+
+    /**
+     * The filter on the header of the queries returned by {@link #next()}, null to return all queries.
+     */
+    private SpectrumFilter spectrumFilter;
+
+    /**
+     * The next query accepted by the filter, null if it was not read yet.
+     */
+    private Ms2Query nextAccepted;
+
+    /**
+     * Format of the {@link IndexFile}s written for mgf files.
+     */
+    private static final String INDEX_FORMAT = "mgf";
+
+    /**
+     * Buffers used to read the spectra from the files.
+     */
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(64, 4 * 1024 * 1024);
+
+    /**
+     * Queries closer than this are read at once by {@link #getSpectraByIndex(int[])}.
+     */
+    private int maxCoalescedGap = CoalescedRangeReader.DEFAULT_MAX_GAP;
+
+    /**
+     * Channel shared by all threads reading spectra from the source file, opened on first use.
+     */
+    private transient volatile FileChannel channel;
+
+    /**
+     * Random access to the source file if it is gzip compressed, null otherwise.
+     */
+    private transient SeekableGzipFile gzipFile;
+
+    /**
+     * Reads the source file ahead while iterating, created on first use.
+     */
+    private transient SequentialRecordReader scanner;
+
     /**
      * Default constructor generating an empty mgf file object.
      */
@@ -135,96 +193,76 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
      * @throws PgatkIOException
      */
     public MgfIndexedReader(File file, boolean allowCustomTags, boolean ignoreWrongPeaks) throws PgatkIOException {
+        this(file, allowCustomTags, ignoreWrongPeaks, new IndexingOptions());
+    }
+
+    /**
+     * Creates the mgf file object from an existing
+     * mgf file. If the {@link IndexingOptions} define a parallelism
+     * greater than 1 the file is split into ranges that are indexed
+     * concurrently. The resulting index is the same as the one built
+     * sequentially. If the options enable index files the index is
+     * read from the file's {@link IndexFile} when it is up to date.
+     * Gzip compressed files are indexed sequentially and read through
+     * a {@link SeekableGzipFile}.
+     *
+     * @param file            The mgf file
+     * @param allowCustomTags Indicates if the parser should throw an exception when encountering non-standard tags
+     * @param options         Options used to build the index
+     * @throws PgatkIOException
+     */
+    public MgfIndexedReader(File file, boolean allowCustomTags, boolean ignoreWrongPeaks, IndexingOptions options) throws PgatkIOException {
 
         this.allowCustomTags = allowCustomTags;
         this.ignoreWrongPeaks = ignoreWrongPeaks;
 
-        // open the file
-        try {
-            // save the file
-            sourceFile = file;
+        // save the file
+        sourceFile = file;
+        gzipFile = openGzipFile(file, options);
+
+        // the index file holds the positions of the queries and the header lines
+        if (options.isUseIndexFile()) {
+            IndexFile indexFile = IndexFile.read(sourceFile, INDEX_FORMAT, options);
+            if (indexFile != null) {
+                index = SpectrumIndex.fromIndexFile(indexFile);
+                for (String line : indexFile.getMetadata())
+                    processHeaderLine(line);
+                return;
+            }
+        }
 
-            BufferedRandomAccessFile braf = new BufferedRandomAccessFile(sourceFile.getAbsolutePath(), "r", 1024 * 100);
+        List<String> headerLines = new ArrayList<>();
+        MgfIndexScanner.LineHandler handler = (line, position) -> {
+            headerLines.add(line);
+            processHeaderLine(line);
+        };
 
-            // process the file line by line
-            String line;
-            boolean inHeader = true; // indicates whether we're still in the attribute section
-            boolean inMs2 = false;
-            long lastPosition = 0;
-            long beginIonsIndex = 0; // the index where the last "BEGIN IONS" was encountered
+        // gzip files can only be scanned sequentially, the positions are the uncompressed ones
+        if (gzipFile != null) {
             long time = System.currentTimeMillis();
-            while ((line = braf.getNextLine()) != null) {
-
-                // remove any comments from the line (if the line will be processed)
-                if (!inMs2)
-                    line = line.replaceAll(MgfUtils.mgfCommentRegex, "").trim();
-
-                // ignore empty lines
-                if (line.length() < 1) {
-
-                    //always update file pointer before continue
-                    lastPosition = braf.getFilePointer();
-                    continue;
-                }
-
-                // check if a ms2 block started
-                if (!inMs2 && line.contains("BEGIN IONS")) {
-                    // save the offset of the spectrum
-                    beginIonsIndex = lastPosition;
-                    inMs2 = true;
-                }
-                if (inMs2 && line.contains("END IONS")) {
-                    inMs2 = false;
-
-                    //index.put(new IndexElement(beginIonsIndex, reader.getFilePointer()));
-                    int size = (int) (braf.getFilePointer() - beginIonsIndex);
-                    index.add(new IndexElementImpl(beginIonsIndex, size));
-
-                    //always update file pointer before continue
-                    lastPosition = braf.getFilePointer();
-                    continue;
-                }
-
-                if (inMs2) {
-                    //always update file pointer before continue
-                    lastPosition = braf.getFilePointer();
-                    continue;
-                }
-
-                // check if it's an attribute line
-                if (inHeader && line.contains("=")) {
-                    Matcher matcher = MgfUtils.attributePattern.matcher(line);
-
-                    if (!matcher.find())
-                        throw new PgatkIOException("Malformatted attribute encountered");
-                    if (matcher.groupCount() != 2)
-                        throw new PgatkIOException("Malformatted attribute encountered");
-
-                    // process the attribute
-                    processAttribute(matcher.group(1), matcher.group(2));
-
-                    //always update file pointer before continue
-                    lastPosition = braf.getFilePointer();
-                    continue;
+            try (InputStream input = gzipFile.newInputStream()) {
+                index = MgfIndexScanner.scan(input, handler);
+            } catch (IOException e) {
+                throw new PgatkIOException("Failed to read from mgf file.", e);
+            }
+            log.debug("Time indexing -- " + (System.currentTimeMillis() - time));
 
-                } else if (!inHeader && line.contains("=")) {
-                    throw new PgatkIOException("Attribute encountered at illegal position. Attributes must all be at the beginning of the file");
-                } else {
-                    inHeader = false;
-                }
+            if (options.isUseIndexFile())
+                index.toIndexFile(headerLines).write(sourceFile, INDEX_FORMAT, options);
+            return;
+        }
 
-                // if we're not in the header and it's not a ms2 it must be a pmf query
-                if (!inHeader) {
-                    throw new PgatkIOException("The API do not support PMF spectra please use another library or create an issue");
-                }
+        // the index is built from the raw bytes, only the header lines are converted to Strings
+        try (RandomAccessFile accessFile = new RandomAccessFile(sourceFile, "r")) {
+            FileChannel channel = accessFile.getChannel();
+            long time = System.currentTimeMillis();
 
-                //always update file pointer before continue
-                lastPosition = braf.getFilePointer();
-            }
+            index = MgfIndexScanner.scanParallel(channel, handler, options.getParallelism(), options.getChunkSize());
 
             log.debug("Time indexing -- " + (System.currentTimeMillis() - time));
 
-            braf.close();
+            if (options.isUseIndexFile())
+                index.toIndexFile(headerLines).write(sourceFile, INDEX_FORMAT, options);
         } catch (FileNotFoundException e) {
             throw new PgatkIOException("MgfIndexedReader does not exist.", e);
         } catch (IOException e) {
@@ -232,6 +270,46 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
         }
     }
 
+    /**
+     * Opens the file for random access if it is gzip compressed.
+     *
+     * @return the opened file or null if the file is not compressed
+     */
+    private static SeekableGzipFile openGzipFile(File file, IndexingOptions options) throws PgatkIOException {
+        if (!SeekableGzipFile.isGzip(file))
+            return null;
+        try {
+            return SeekableGzipFile.open(file, options);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from gzip compressed mgf file.", e);
+        }
+    }
+
+    /**
+     * Processes a line found outside of the MS2 queries. These lines must be attributes
+     * of the file's header.
+     *
+     * @param line The line without comments
+     * @throws PgatkIOException
+     */
+    private void processHeaderLine(String line) throws PgatkIOException {
+        // check if it's an attribute line
+        if (line.contains("=")) {
+            Matcher matcher = MgfUtils.attributePattern.matcher(line);
+
+            if (!matcher.find())
+                throw new PgatkIOException("Malformatted attribute encountered");
+            if (matcher.groupCount() != 2)
+                throw new PgatkIOException("Malformatted attribute encountered");
+
+            // process the attribute
+            processAttribute(matcher.group(1), matcher.group(2));
+        } else {
+            // if it's not an attribute and not a ms2 it must be a pmf query
+            throw new PgatkIOException("The API do not support PMF spectra please use another library or create an issue");
+        }
+    }
+
     /**
      * Process a given attribute line and saves the variable in the respective member variable.
      *
@@ -392,15 +470,17 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
             // save the file
             sourceFile = file;
             // save the index
-            this.index = index;
+            this.index = SpectrumIndex.fromIndexElements(index);
+            gzipFile = openGzipFile(file, new IndexingOptions());
 
-            BufferedRandomAccessFile reader = new BufferedRandomAccessFile(sourceFile, "r", 1024 * 1000);
+            PositionedLineReader reader = new PositionedLineReader((gzipFile != null)
+                    ? gzipFile.newInputStream() : new FileInputStream(sourceFile), 1024 * 1000);
 
             // process the file line by line
             String line;
             boolean inHeader = true; // indicates whether we're still in the attribute section
 
-            while ((line = reader.getNextLine()) != null) {
+            while ((line = reader.readLine()) != null) {
                 // remove any comments from the line (if the line will be processed)
                 line = line.replaceAll(MgfUtils.mgfCommentRegex, "").trim();
 
@@ -689,11 +769,32 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
     }
 
     public boolean isUseCache() {
-        return useCache;
+        return spectrumCache != null;
     }
 
+    /**
+     * Enables or disables the cache of the queries loaded from the file. If no cache was
+     * set a {@link LruSpectrumCache} with the default size is used.
+     *
+     * @param useCache Indicates whether the cache should be used
+     */
     public void setUseCache(boolean useCache) {
-        this.useCache = useCache;
+        if (!useCache)
+            setSpectrumCache(null);
+        else if (spectrumCache == null)
+            setSpectrumCache(new LruSpectrumCache());
+    }
+
+    @Override
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
+
+    @Override
+    public void setSpectrumCache(SpectrumCache spectrumCache) {
+        if (this.spectrumCache != null && this.spectrumCache != spectrumCache)
+            this.spectrumCache.invalidate(this);
+        this.spectrumCache = spectrumCache;
     }
 
     /**
@@ -705,7 +806,7 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
     public void setMs2Queries(List<Ms2Query> ms2Queries) {
         // remove the source file link
         sourceFile = null;
-        index.clear();
+        index = SpectrumIndex.EMPTY;
 
         // save the queries in the HashMap
         for (int index = 0; index < ms2Queries.size(); index++)
@@ -730,9 +831,22 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
      * @return
      */
     public Ms2Query getMs2Query(int nIndex, boolean ignoreWrongPeaks) throws PgatkIOException {
-        // check if the ms2 query was already loaded
-        if (ms2Queries.containsKey(nIndex))
-            return ms2Queries.get(nIndex);
+        return getMs2Query(nIndex, ignoreWrongPeaks, null, false);
+    }
+
+    /**
+     * Returns the MS2 query with the given (0-based) index if it is accepted by the filter.
+     * Queries read from the file are only parsed up to their first peak if they are rejected.
+     *
+     * @param filter     The filter on the query's header, null to accept all queries.
+     * @param sequential Indicates whether the query is read with the following ones while iterating.
+     * @return The query or null if it is rejected.
+     */
+    private Ms2Query getMs2Query(int nIndex, boolean ignoreWrongPeaks, SpectrumFilter filter, boolean sequential) throws PgatkIOException {
+        // check if the ms2 query was set in memory
+        Ms2Query query = ms2Queries.get(nIndex);
+        if (query != null)
+            return (filter == null || filter.test(query)) ? query : null;
 
         // if there is no file to load the query from throw an Exception
         if (sourceFile == null)
@@ -742,18 +856,63 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
         if (nIndex < 0 || nIndex > index.size() - 1)
             throw new PgatkIOException("MS2 query with index " + (nIndex + 1) + " does not exist in the MGF file");
 
-        // load the query from the file
-        Ms2Query query;
+        SpectrumCache cache = spectrumCache;
+        if (cache != null) {
+            Spectrum cached = cache.get(this, nIndex);
+            if (cached != null)
+                return (filter == null || filter.test(cached)) ? (Ms2Query) cached : null;
+        }
 
-        query = loadIndexedQueryFromFile(nIndex, ignoreWrongPeaks);
+        // load the query from the file
+        query = sequential ? scanQuery(nIndex, ignoreWrongPeaks, filter) : loadIndexedQueryFromFile(nIndex, ignoreWrongPeaks, filter);
 
-        // save the query in the HashMap
-        if (useCache)
-            ms2Queries.put(nIndex, query);
+        if (cache != null && query != null)
+            cache.put(this, nIndex, query);
 
         return query;
     }
 
+    /**
+     * Returns the MS2 queries with the given (0-based) indexes. The queries
+     * that are neither set nor cached are read in file order, queries close
+     * to each other are read at once, and parsed in parallel.
+     *
+     * @param nIndexes The queries' indexes.
+     * @return The queries in the order of the passed indexes.
+     */
+    public List<Spectrum> getMs2Queries(int[] nIndexes, boolean ignoreWrongPeaks) throws PgatkIOException {
+        Spectrum[] queries = new Spectrum[nIndexes.length];
+        SpectrumCache cache = spectrumCache;
+        for (int i = 0; i < nIndexes.length; i++) {
+            int nIndex = nIndexes[i];
+            queries[i] = ms2Queries.get(nIndex);
+            if (queries[i] != null)
+                continue;
+            if (sourceFile == null)
+                throw new PgatkIOException("MS2 query with index " + (nIndex + 1) + " does not exist");
+            if (nIndex < 0 || nIndex > index.size() - 1)
+                throw new PgatkIOException("MS2 query with index " + (nIndex + 1) + " does not exist in the MGF file");
+            if (cache != null)
+                queries[i] = cache.get(this, nIndex);
+        }
+
+        SpectrumFields fields = spectrumFields;
+        boolean[] loaded = new boolean[queries.length];
+        for (int i = 0; i < queries.length; i++)
+            loaded[i] = queries[i] == null;
+
+        CoalescedRangeReader.read(index, nIndexes, queries, maxCoalescedGap, BUFFER_POOL, this::readRegion,
+                (bytes, offset, length, nIndex) -> new Ms2Query(bytes, offset, length, nIndex + 1, disableCommentSupport, ignoreWrongPeaks, fields));
+
+        if (cache != null) {
+            for (int i = 0; i < queries.length; i++) {
+                if (loaded[i])
+                    cache.put(this, nIndexes[i], queries[i]);
+            }
+        }
+        return Arrays.asList(queries);
+    }
+
     /**
      * Loads a query from the mgf file.
      *
@@ -763,40 +922,165 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
      * @oaram index The query's 1-based index in the MGF file. This index is stored in the returned Ms2Query object.
      */
     private static Ms2Query loadIndexedQueryFromFile(File file, IndexElement indexElement, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks) throws PgatkIOException {
-        try (RandomAccessFile accFile = new RandomAccessFile(file, "r")) {
-
-            // read the indexed element
-            byte[] byteBuffer = new byte[indexElement.getSize()];
-
-            // read the file from there
-            accFile.seek(indexElement.getStart());
-            accFile.read(byteBuffer);
-            String ms2Buffer = new String(byteBuffer);
-            // create the query
+        if (SeekableGzipFile.isGzip(file)) {
+            try (SeekableGzipFile gzip = openGzipFile(file, new IndexingOptions())) {
+                return readQuery(gzip, indexElement, index, disableCommentSupport, ignoreWrongPeaks, SpectrumFields.ALL, null);
+            } catch (IOException e) {
+                throw new PgatkIOException("Failed to read from MGF file", e);
+            }
+        }
 
-            return new Ms2Query(ms2Buffer, index, disableCommentSupport, ignoreWrongPeaks);
+        try (RandomAccessFile accFile = new RandomAccessFile(file, "r")) {
+            return readQuery(accFile.getChannel(), indexElement, index, disableCommentSupport, ignoreWrongPeaks, SpectrumFields.ALL, null);
         } catch (FileNotFoundException e) {
             throw new PgatkIOException("MGF file could not be found.", e);
         } catch (IOException e) {
             throw new PgatkIOException("Failed to read from MGF file", e);
         }
-        // ignore
+    }
+
+    /**
+     * Reads a query from an open mgf file without changing the position of the channel.
+     *
+     * @param channel      The file to read the query from.
+     * @param indexElement The index element pointing to that specific ms2 query.
+     * @param index        The query's 1-based index in the MGF file.
+     * @param fields       The parts of the query to parse.
+     * @param filter       The filter on the query's header or null.
+     * @return The query or null if it is rejected by the filter.
+     */
+    private static Ms2Query readQuery(FileChannel channel, IndexElement indexElement, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks,
+                                      SpectrumFields fields, SpectrumFilter filter) throws IOException, PgatkIOException {
+        ByteBuffer buffer = BUFFER_POOL.read(channel, indexElement.getStart(), indexElement.getSize());
+        try {
+            return Ms2Query.parse(buffer.array(), buffer.arrayOffset(), buffer.limit(), index, disableCommentSupport, ignoreWrongPeaks, fields, filter);
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Reads a query from a gzip compressed mgf file.
+     *
+     * @param gzip         The file to read the query from.
+     * @param indexElement The index element pointing to the uncompressed position of the query.
+     * @param index        The query's 1-based index in the MGF file.
+     * @param fields       The parts of the query to parse.
+     * @param filter       The filter on the query's header or null.
+     * @return The query or null if it is rejected by the filter.
+     */
+    private static Ms2Query readQuery(SeekableGzipFile gzip, IndexElement indexElement, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks,
+                                      SpectrumFields fields, SpectrumFilter filter) throws IOException, PgatkIOException {
+        ByteBuffer buffer = gzip.read(BUFFER_POOL, indexElement.getStart(), indexElement.getSize());
+        try {
+            return Ms2Query.parse(buffer.array(), buffer.arrayOffset(), buffer.limit(), index, disableCommentSupport, ignoreWrongPeaks, fields, filter);
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
     }
 
     /**
      * Loads a query from the mgf file who's index was buffered.
      *
      * @param nQueryIndex The queries index.
-     * @return
+     * @param filter      The filter on the query's header or null.
+     * @return The query or null if it is rejected by the filter.
      */
-    private Ms2Query loadIndexedQueryFromFile(int nQueryIndex, boolean ignoreWrongPeaks) throws PgatkIOException {
+    private Ms2Query loadIndexedQueryFromFile(int nQueryIndex, boolean ignoreWrongPeaks, SpectrumFilter filter) throws PgatkIOException {
         if (nQueryIndex < 0 || nQueryIndex > index.size() - 1)
             throw new PgatkIOException("Tried to load non existing query from file");
 
         // read the indexed element
-        IndexElement indexElement = index.get(nQueryIndex);
+        IndexElement indexElement = index.getIndexElement(nQueryIndex);
+
+        try {
+            if (gzipFile != null)
+                return readQuery(gzipFile, indexElement, nQueryIndex + 1, disableCommentSupport, ignoreWrongPeaks, spectrumFields, filter);
+            try {
+                return readQuery(getChannel(), indexElement, nQueryIndex + 1, disableCommentSupport, ignoreWrongPeaks, spectrumFields, filter);
+            } catch (ClosedChannelException e) {
+                // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+                return readQuery(getChannel(), indexElement, nQueryIndex + 1, disableCommentSupport, ignoreWrongPeaks, spectrumFields, filter);
+            }
+        } catch (FileNotFoundException e) {
+            throw new PgatkIOException("MGF file could not be found.", e);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from MGF file", e);
+        }
+    }
+
+    /**
+     * Reads a query while iterating: the file is read ahead and the following queries are cut from the same region.
+     *
+     * @param nQueryIndex The queries index.
+     * @param filter      The filter on the query's header or null.
+     * @return The query or null if it is rejected by the filter.
+     */
+    private Ms2Query scanQuery(int nQueryIndex, boolean ignoreWrongPeaks, SpectrumFilter filter) throws PgatkIOException {
+        if (scanner == null)
+            scanner = new SequentialRecordReader(index, this::readRegion, BUFFER_POOL, SequentialRecordReader.DEFAULT_READ_AHEAD);
+        SpectrumFields fields = spectrumFields;
+        return scanner.read(nQueryIndex, (bytes, offset, length, ordinal) ->
+                Ms2Query.parse(bytes, offset, length, ordinal + 1, disableCommentSupport, ignoreWrongPeaks, fields, filter));
+    }
+
+    /**
+     * Reads a record of the source file into a new buffer, the bytes are read directly into it.
+     */
+    private ByteBuffer readRawRecord(long start, int size) throws PgatkIOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        try {
+            if (gzipFile != null) {
+                gzipFile.readFully(start, buffer.array(), 0, size);
+                return buffer;
+            }
+            try {
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            } catch (ClosedChannelException e) {
+                // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+                buffer.clear();
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            }
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from MGF file", e);
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-        return loadIndexedQueryFromFile(sourceFile, indexElement, nQueryIndex + 1, disableCommentSupport, ignoreWrongPeaks);
+    /**
+     * Reads a region of the source file into a buffer of the {@link #BUFFER_POOL}.
+     */
+    private ByteBuffer readRegion(long start, int length) throws IOException {
+        if (gzipFile != null)
+            return gzipFile.read(BUFFER_POOL, start, length);
+        try {
+            return BUFFER_POOL.read(getChannel(), start, length);
+        } catch (ClosedChannelException e) {
+            // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return BUFFER_POOL.read(getChannel(), start, length);
+        }
+    }
+
+    /**
+     * Returns the channel shared by all threads, (re)opening it if needed.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen())
+            return current;
+
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(sourceFile, "r").getChannel();
+            return channel;
+        }
     }
 
     /**
@@ -964,26 +1248,94 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
 
     @Override
     public boolean hasNext() {
-        if (sourceFile == null) {
-            return currentPosition < ms2Queries.size();
-        } else {
-            return currentPosition < index.size() - 1 ;
-        }
+        if (spectrumFilter != null || nextAccepted != null)
+            return nextAccepted != null || (nextAccepted = readNextAccepted()) != null;
+        return hasNextPosition();
     }
 
     @Override
     public Spectrum next() throws NoSuchElementException {
+        if (spectrumFilter != null || nextAccepted != null) {
+            if (!hasNext())
+                throw new NoSuchElementException("No more spectra in " + sourceFile);
+            Ms2Query next = nextAccepted;
+            nextAccepted = null;
+            return next;
+        }
         currentPosition++;
         try {
-            return getMs2Query(currentPosition, ignoreWrongPeaks);
+            return getMs2Query(currentPosition, ignoreWrongPeaks, null, true);
         } catch (PgatkIOException e) {
            throw new NoSuchElementException(e.getMessage());
         }
     }
 
     @Override
-    public void close() {
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    /**
+     * Moves the iteration to a query, the next call to {@link #next()} returns the query with the given
+     * index or the first one accepted by the filter after it.
+     *
+     * @param index The query's 1-based index.
+     */
+    public void seek(int index) throws PgatkIOException {
+        int count = (sourceFile == null) ? ms2Queries.size() : this.index.size();
+        if (index < 1 || index > count + 1)
+            throw new PgatkIOException("MS2 query with index " + index + " does not exist");
+        currentPosition = index - 2;
+        nextAccepted = null;
+    }
+
+    private boolean hasNextPosition() {
+        int count = (sourceFile == null) ? ms2Queries.size() : index.size();
+        return currentPosition < count - 1;
+    }
+
+    /**
+     * Moves to the next query accepted by the filter, the rejected queries are only parsed up to their first peak.
+     *
+     * @return the query or null at the end of the file
+     */
+    private Ms2Query readNextAccepted() {
+        SpectrumFilter filter = spectrumFilter;
+        while (hasNextPosition()) {
+            currentPosition++;
+            try {
+                Ms2Query query = getMs2Query(currentPosition, ignoreWrongPeaks, filter, true);
+                if (query != null)
+                    return query;
+            } catch (PgatkIOException e) {
+                throw new NoSuchElementException(e.getMessage());
+            }
+        }
+        return null;
+    }
 
+    /**
+     * Closes the file and removes the queries of this reader from the cache.
+     * Further random access calls reopen the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (spectrumCache != null)
+            spectrumCache.invalidate(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close mgf file " + sourceFile, e);
+            }
+            channel = null;
+        }
+        if (scanner != null) {
+            scanner.close();
+            scanner = null;
+        }
+        if (gzipFile != null)
+            gzipFile.close();
     }
 
     /**
@@ -992,10 +1344,10 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
      * lines until the end of the "END IONS" lines
      * in the file in the order they are present.
      *
-     * @return An array of "BEGIN IONS" lines offsets.
+     * @return A read-only list of the "BEGIN IONS" lines offsets.
      */
     public List<IndexElement> getIndex() {
-        return new ArrayList<>(index);
+        return index.getIndexElements();
     }
 
     /**
@@ -1016,6 +1368,9 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
     }
 
     public List<String> getSpectraIds() {
+        if (sourceFile != null)
+            return index.getIds();
+
         // simply create a list of ids 1..size
         List<String> ids = new ArrayList<>(getMs2QueryCount());
 
@@ -1037,13 +1392,89 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
         return getMs2Query(index - 1, ignoreWrongPeaks);
     }
 
+    @Override
+    public List<Spectrum> getSpectra(Collection<String> ids) throws PgatkIOException {
+        int[] nIndexes = new int[ids.size()];
+        int i = 0;
+        for (String id : ids)
+            nIndexes[i++] = Integer.parseInt(id) - 1;
+        return getMs2Queries(nIndexes, ignoreWrongPeaks);
+    }
+
+    @Override
+    public List<Spectrum> getSpectraByIndex(int[] indexes) throws PgatkIOException {
+        int[] nIndexes = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            nIndexes[i] = indexes[i] - 1;
+        return getMs2Queries(nIndexes, ignoreWrongPeaks);
+    }
+
+    /**
+     * Returns the bytes of a query as they are stored in the MGF file, from its "BEGIN IONS" line to its "END IONS" line.
+     *
+     * @param index The query's 1-based index.
+     * @return A new buffer holding the bytes between 0 and its limit.
+     */
+    @Override
+    public ByteBuffer getRawSpectrumBytes(int index) throws PgatkIOException {
+        if (sourceFile == null)
+            throw new PgatkIOException("The MS2 queries were not read from a MGF file");
+        if (index < 1 || index > this.index.size())
+            throw new PgatkIOException("MS2 query with index " + index + " does not exist in the MGF file");
+        return readRawRecord(this.index.getStart(index - 1), this.index.getSize(index - 1));
+    }
+
+    /**
+     * Copies the queries to a channel as they are stored in the MGF file, without parsing them. The
+     * global parameters before the first query are copied first, so the channel receives a MGF file
+     * holding the selected queries.
+     *
+     * @param indexes The queries' 1-based indexes.
+     * @param target  The channel the queries are written to in the order of the indexes.
+     * @return The number of bytes written.
+     */
+    @Override
+    public long writeSpectra(int[] indexes, WritableByteChannel target) throws PgatkIOException {
+        if (sourceFile == null)
+            throw new PgatkIOException("The MS2 queries were not read from a MGF file");
+        int[] nIndexes = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            nIndexes[i] = indexes[i] - 1;
+        long header = (index.size() > 0) ? index.getStart(0) : 0;
+
+        if (gzipFile != null)
+            return RecordSubsetWriter.write(index, nIndexes, header, BUFFER_POOL, this::readRegion, target);
+        try {
+            return RecordSubsetWriter.write(index, nIndexes, header, getChannel(), target);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from MGF file", e);
+        }
+    }
+
+    @Override
+    public SpectrumFields getSpectrumFields() {
+        return spectrumFields;
+    }
+
+    @Override
+    public void setSpectrumFields(SpectrumFields fields) {
+        if (spectrumCache != null && fields != spectrumFields)
+            spectrumCache.invalidate(this);
+        this.spectrumFields = fields;
+    }
+
+    @Override
+    public void setMaxCoalescedGap(int maxCoalescedGap) {
+        this.maxCoalescedGap = maxCoalescedGap;
+    }
+
     @Override
     public List<IndexElement> getMsNIndexes(
             int msLevel) {
         if (msLevel != 2)
             return Collections.emptyList();
 
-        return new ArrayList<>(index);
+        return index.getIndexElements();
     }
 
     @Override
@@ -1057,13 +1488,12 @@ public class MgfIndexedReader implements MzReader, MzIterableReader {
 
     @Override
     public Map<String, IndexElement> getIndexElementForIds() {
-        Map<String, IndexElement> idToIndexMap = new HashMap<>(index.size());
-
-        for (int i = 0; i < index.size(); i++) {
-            idToIndexMap.put(String.format("%d", i + 1), index.get(i));
-        }
+        return index.getIndexElementForIds();
+    }
 
-        return idToIndexMap;
+    @Override
+    public SpectrumIndex getSpectrumIndex() {
+        return index;
     }
 
     public void setAllowCustomTags(boolean allowCustomTags) {
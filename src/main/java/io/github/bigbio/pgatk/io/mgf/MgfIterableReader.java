@@ -1,21 +1,31 @@
 package io.github.bigbio.pgatk.io.mgf;
 
+import io.github.bigbio.pgatk.io.common.MappedLineTokenizer;
 import io.github.bigbio.pgatk.io.common.MzIterableChannelReader;
 import io.github.bigbio.pgatk.io.common.MzIterableReader;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
-import io.github.bigbio.pgatk.io.utils.StringUtils;
+import io.github.bigbio.pgatk.io.common.PipelinedIterableReader;
+import io.github.bigbio.pgatk.io.common.RecordParser;
+import io.github.bigbio.pgatk.io.common.RecordSpliterator;
+import io.github.bigbio.pgatk.io.utils.AsciiNumberParser;
 import lombok.extern.slf4j.Slf4j;
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
+import java.util.stream.Stream;
 
 /**
  * This implementation only allows to iterate over all the spectra in a file and retrieve the corresponding
- * spectra. This implementation is faster that the MgfIndexedReader for iterable read of files but can't be used for RandomAccess
+ * spectra. This implementation is faster that the MgfIndexedReader for iterable read of files but can't be used for RandomAccess.
+ * The lines are read in place through the {@link MappedLineTokenizer} of the file, with {@link #setReuseSpectrum(boolean)}
+ * they are parsed into a single {@link MutableSpectrum} without creating Strings.
  *
  * @author ypriverol
  */
@@ -42,12 +52,32 @@ public class MgfIterableReader extends MzIterableChannelReader implements MzIter
      */
     private File sourceFile;
 
-    private int channelCursor = 0;
-
     // The index (1-based) is used to know in the order of the spectrum in the file.
     private long specIndex = 1;
 
-    private  Ms2Query spectrum = null;
+    /**
+     * The next spectrum, its peaks and attributes are read by {@link #next()} unless it was read to test the filter.
+     */
+    private Spectrum spectrum = null;
+
+    private boolean spectrumRead = false;
+
+    /**
+     * The spectrum refilled for every record, null to create a {@link Ms2Query} per record.
+     */
+    private MutableSpectrum mutableSpectrum;
+
+    private boolean endOfFile = false;
+
+    /**
+     * The parts of the spectra that are parsed.
+     */
+    private SpectrumFields spectrumFields = SpectrumFields.ALL;
+
+    /**
+     * The filter on the header of the spectra, null to read all spectra.
+     */
+    private SpectrumFilter spectrumFilter;
 
     public MgfIterableReader(File file, boolean ignoreWrongPeaks, boolean disableCommentSupport, boolean allowCustomTags) throws PgatkIOException {
 
@@ -56,107 +86,398 @@ public class MgfIterableReader extends MzIterableChannelReader implements MzIter
         this.disableCommentSupport = disableCommentSupport;
         this.allowCustomTags = allowCustomTags;
         this.sourceFile = file;
-
-        try {
-            RandomAccessFile accessFile = new RandomAccessFile(file, "r");
-            accessChannel = accessFile.getChannel();
-        } catch (IOException e) {
-           throw new PgatkIOException("Error reading the following file " + file.getAbsolutePath(), e);
-        }
-
     }
 
     @Override
     public boolean hasNext() {
-        StringBuilder stringBuffer = new StringBuilder(100);
-        if (buffer == null || !buffer.hasRemaining())
-            readBuffer();
-        char ch = '\n';
-        channelCursor = buffer.position();
-        while((ch != '\u0000') && (buffer.hasRemaining())){
-            ch = ((char) buffer.get());
-            channelCursor = buffer.position();
-            stringBuffer.append(ch);
-            if(ch == '\n' && stringBuffer.toString().contains("BEGIN IONS")){
-                spectrum = new Ms2Query(this.disableCommentSupport);
-                return true;
-            }
-            if(!buffer.hasRemaining()){
-               readBuffer();
+        MappedLineTokenizer line = lines();
+        while (spectrum == null && !endOfFile) {
+            if (!nextLine()) {
+                endOfFile = true;
+            } else if (isBeginIons(line, disableCommentSupport)) {
+                // with a filter the spectrum is read now, the rejected ones keep their index in the file
+                Spectrum candidate = newSpectrum();
+                if (spectrumFilter == null) {
+                    spectrum = candidate;
+                } else if (readSpectrum(candidate, spectrumFilter)) {
+                    spectrum = candidate;
+                    spectrumRead = true;
+                } else {
+                    specIndex++;
+                }
             }
         }
-
-        return false;
+        return spectrum != null;
     }
 
     @Override
     public Spectrum next() throws NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException("No more spectra in " + sourceFile);
         log.debug("Start reading the following spectrum -- ");
-        if(spectrum == null)
-            throw new NoSuchElementException("First check if the file contains an spectum using hasNext()");
 
-        if(buffer == null || !buffer.hasRemaining()){
-            readBuffer();
+        Spectrum current = spectrum;
+        spectrum = null;
+        if (!spectrumRead)
+            readSpectrum(current, null);
+        spectrumRead = false;
+        specIndex++;
+        return current;
+    }
+
+    @Override
+    public void setReuseSpectrum(boolean reuse) {
+        this.mutableSpectrum = reuse ? new MutableSpectrum() : null;
+    }
+
+    /**
+     * @return the spectrum the next record is read into, its index is set
+     */
+    private Spectrum newSpectrum() {
+        if (mutableSpectrum == null) {
+            Ms2Query query = new Ms2Query(this.disableCommentSupport);
+            query.setIndex(specIndex);
+            return query;
         }
+        mutableSpectrum.clear();
+        mutableSpectrum.setIndex(specIndex);
+        mutableSpectrum.setId(specIndex);
+        mutableSpectrum.setMsLevel(2);
+        return mutableSpectrum;
+    }
 
-        boolean inAttributeSection = true;
-        StringBuffer stringBuffer = new StringBuffer();
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
 
-        while (buffer.hasRemaining()) {
-            char ch = ((char) buffer.get());
-            channelCursor = buffer.position();
+    /**
+     * @return false if the spectrum is rejected by the filter
+     * @throws NoSuchElementException if the file can't be read, caused by the IOException
+     */
+    private boolean readSpectrum(Spectrum query, SpectrumFilter filter) {
+        try {
+            if (query == mutableSpectrum)
+                return readSpectrum(lines(), mutableSpectrum, ignoreWrongPeaks, spectrumFields, filter);
+            return readSpectrum(lines(), (Ms2Query) query, ignoreWrongPeaks, spectrumFields, filter);
+        } catch (IOException e) {
+            NoSuchElementException exception = new NoSuchElementException("Error reading the file " + sourceFile
+                    + " at position " + lines().getLineStart() + " -- " + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
 
-            if(ch=='\n'){
-                stringBuffer.append(ch);
-                String line = StringUtils.removeBOMString(stringBuffer.toString().trim());
-                if(line.contains("END IONS")) {
-                    spectrum.setIndex(specIndex);
-                    specIndex++;
-                    return spectrum;
-                }else if(spectrum != null){
-
-                    // Some files can have a lot of empty and nonsense information between Spectrums
-                    if (!disableCommentSupport)
-                        line = line.replaceAll(MgfUtils.mgfCommentRegex, line);
-                    if (line.length() < 1) { // ignore empty lines
-                        continue;
-                    }
+    /**
+     * Selects the parts of the following spectra that are decoded, the peaks and additional
+     * parameters are skipped if they are not selected.
+     * @param fields the fields to decode
+     */
+    public void setSpectrumFields(SpectrumFields fields) {
+        this.spectrumFields = fields;
+    }
 
-                    Matcher attributeMatcher = MgfUtils.attributePattern.matcher(line); // check if it's a property
-                    boolean matchesAttributePattern = false;
-                    if (inAttributeSection) {
-                        matchesAttributePattern = attributeMatcher.find();
+    /**
+     * Creates a reader that cuts the spectra out of the file on an I/O thread and parses them
+     * on a pool of worker threads, the spectra are returned in the order of the file.
+     *
+     * @param threads the number of parser threads
+     * @return the reader
+     */
+    public static MzIterableReader pipelined(File file, boolean ignoreWrongPeaks, boolean disableCommentSupport, int threads) throws PgatkIOException {
+        return new PipelinedIterableReader(file,
+                line -> isBeginIons(line, disableCommentSupport),
+                line -> line.indexOf("END IONS") >= 0,
+                new RecordParser<Spectrum>() {
+                    @Override
+                    public Spectrum parse(byte[] record, int length, long index) throws PgatkIOException {
+                        return parseRecord(record, length, index, ignoreWrongPeaks, disableCommentSupport);
                     }
-                    if (matchesAttributePattern) {
-                        if (attributeMatcher.groupCount() != 2) {
-                            throw new NoSuchElementException("Invalid attribute line encountered in MS2 query: " + line);
-                        }
-                        String name = attributeMatcher.group(1);
-                        String value = attributeMatcher.group(2);
-                        spectrum.saveAttribute(name, value);
-                    } else {
-                        double[] peakArray = MgfUtils.parsePeakLine(line);
-                        if (peakArray != null && peakArray.length == 2) {
-                            spectrum.addPeak(peakArray[0], peakArray[1]);
-                        } else {  // no index could be found
-                            if (ignoreWrongPeaks) {
-                                log.error("The following peaks and wronly annotated -- " + line);
-                            } else
-                                throw new NoSuchElementException("Unable to parse 'mz' and 'intensity' values for " + line);
-                        }
-                        inAttributeSection = false;
+
+                    @Override
+                    public Spectrum parse(byte[] record, int length, long index, SpectrumFilter filter) throws PgatkIOException {
+                        return parseRecord(record, length, index, ignoreWrongPeaks, disableCommentSupport, filter);
                     }
+                },
+                threads);
+    }
+
+    /**
+     * Creates a stream over the spectra of a file, a parallel stream is split at "BEGIN IONS" lines. The
+     * stream holds the file open until it is closed.
+     *
+     * @param file the MGF file
+     * @param parallel true for a parallel stream
+     * @return the stream
+     */
+    public static Stream<Spectrum> stream(File file, boolean parallel) throws PgatkIOException {
+        return RecordSpliterator.stream(file,
+                line -> isBeginIons(line, false),
+                line -> line.indexOf("END IONS") >= 0,
+                (record, length, index) -> parseRecord(record, length, index, MgfUtils.DEFAULT_IGNORE_WRONG_PEAKS, false),
+                parallel);
+    }
+
+    private static Spectrum parseRecord(byte[] record, int length, long index, boolean ignoreWrongPeaks, boolean disableCommentSupport) throws PgatkIOException {
+        return parseRecord(record, length, index, ignoreWrongPeaks, disableCommentSupport, null);
+    }
+
+    /**
+     * @return the spectrum or null if it is rejected by the filter, its peaks are then not parsed
+     */
+    private static Spectrum parseRecord(byte[] record, int length, long index, boolean ignoreWrongPeaks, boolean disableCommentSupport,
+                                        SpectrumFilter filter) throws PgatkIOException {
+        MappedLineTokenizer line = new MappedLineTokenizer(ByteBuffer.wrap(record, 0, length));
+        Ms2Query spectrum = new Ms2Query(disableCommentSupport);
+        try {
+            line.nextLine(); // BEGIN IONS
+            if (!readSpectrum(line, spectrum, ignoreWrongPeaks, SpectrumFields.ALL, filter))
+                return null;
+        } catch (IOException e) {
+            throw new PgatkIOException("Error parsing the spectrum " + index, e);
+        }
+        spectrum.setIndex(index);
+        return spectrum;
+    }
+
+    /**
+     * Reads the attributes and peaks of a spectrum up to its "END IONS" line.
+     *
+     * @param line the lines after the "BEGIN IONS" line
+     * @param spectrum the spectrum to fill
+     */
+    static void readSpectrum(MappedLineTokenizer line, Ms2Query spectrum, boolean ignoreWrongPeaks) throws IOException {
+        readSpectrum(line, spectrum, ignoreWrongPeaks, SpectrumFields.ALL, null);
+    }
+
+    /**
+     * Reads the selected parts of a spectrum up to its "END IONS" line. The attributes that are not part of the
+     * header and the peak lines are only checked for the "END IONS" line if they are not selected.
+     *
+     * @param line the lines after the "BEGIN IONS" line
+     * @param spectrum the spectrum to fill
+     * @param fields the parts of the spectrum to read
+     * @param filter the filter tested at the first peak line, the rest of a rejected spectrum is skipped
+     * @return false if the spectrum is rejected by the filter
+     */
+    static boolean readSpectrum(MappedLineTokenizer line, Ms2Query spectrum, boolean ignoreWrongPeaks, SpectrumFields fields,
+                                SpectrumFilter filter) throws IOException {
+        boolean inAttributeSection = true;
+        while (line.nextLine()) {
+            int from = line.trimStart();
+            int to = line.trimEnd();
+            if (from == to) { // ignore empty lines
+                continue;
+            }
+            if (line.indexOf("END IONS") >= 0)
+                break;
 
+            // the line is matched in place, only the name and value are copied
+            if (inAttributeSection) {
+                if (!fields.hasParams() && isSkippedAttribute(line, from, to))
+                    continue;
+                Matcher attributeMatcher = MgfUtils.attributePattern.matcher(line).region(from, to);
+                if (attributeMatcher.find()) {
+                    if (attributeMatcher.groupCount() != 2) {
+                        throw new NoSuchElementException("Invalid attribute line encountered in MS2 query: " + line);
+                    }
+                    spectrum.saveAttribute(attributeMatcher.group(1), attributeMatcher.group(2));
+                    continue;
                 }
-                stringBuffer = new StringBuffer();
+            }
 
-            }else{
-                stringBuffer.append(ch);
+            if (inAttributeSection && filter != null && !filter.test(spectrum)) {
+                skipPeaks(line);
+                return false;
+            }
+            inAttributeSection = false;
+            if (!fields.hasPeaks())
+                continue;
+
+            double[] peakArray = MgfUtils.parsePeakLine(line);
+            if (peakArray != null && peakArray.length == 2) {
+                spectrum.addPeak(peakArray[0], peakArray[1]);
+            } else {  // no index could be found
+                if (ignoreWrongPeaks) {
+                    log.error("The following peaks and wronly annotated -- " + line);
+                } else
+                    throw new NoSuchElementException("Unable to parse 'mz' and 'intensity' values for " + line);
             }
-            if(!buffer.hasRemaining())
-                readBuffer();
         }
-        return spectrum;
+        spectrum.getPeakArrays().seal();
+        return !inAttributeSection || filter == null || filter.test(spectrum);
+    }
+
+    /**
+     * Reads the selected parts of a spectrum up to its "END IONS" line into a reused spectrum. The TITLE, CHARGE,
+     * PEPMASS and RTINSECONDS attributes set the header values, the attributes are kept as they are in the file.
+     *
+     * @param line the lines after the "BEGIN IONS" line
+     * @param spectrum the cleared spectrum to fill
+     * @param fields the parts of the spectrum to read
+     * @param filter the filter tested at the first peak line, the rest of a rejected spectrum is skipped
+     * @return false if the spectrum is rejected by the filter
+     */
+    static boolean readSpectrum(MappedLineTokenizer line, MutableSpectrum spectrum, boolean ignoreWrongPeaks, SpectrumFields fields,
+                                SpectrumFilter filter) throws IOException {
+        boolean inAttributeSection = true;
+        while (line.nextLine()) {
+            int from = line.trimStart();
+            int to = line.trimEnd();
+            if (from == to) { // ignore empty lines
+                continue;
+            }
+            if (line.indexOf("END IONS") >= 0)
+                return !inAttributeSection || filter == null || filter.test(spectrum);
+
+            if (inAttributeSection && line.indexOf('=', from) >= 0 && saveAttribute(line, from, to, spectrum, fields.hasParams()))
+                continue;
+
+            if (inAttributeSection && filter != null && !filter.test(spectrum)) {
+                skipPeaks(line);
+                return false;
+            }
+            inAttributeSection = false;
+            if (!fields.hasPeaks())
+                continue;
+
+            if (!MgfUtils.parsePeakLine(line, spectrum)) {
+                if (ignoreWrongPeaks) {
+                    log.error("The following peaks and wronly annotated -- " + line);
+                } else
+                    throw new NoSuchElementException("Unable to parse 'mz' and 'intensity' values for " + line);
+            }
+        }
+        return !inAttributeSection || filter == null || filter.test(spectrum);
+    }
+
+    /**
+     * Saves an attribute line in the reused spectrum, lines that are not a plain "NAME=value" are matched
+     * against {@link MgfUtils#attributePattern}.
+     *
+     * @param params false to only keep the header attributes
+     * @return true if the line is an attribute
+     */
+    private static boolean saveAttribute(MappedLineTokenizer line, int from, int to, MutableSpectrum spectrum, boolean params) {
+        int nameStart = from;
+        int nameEnd = from;
+        while (nameEnd < to && isWordCharacter(line.charAt(nameEnd)))
+            nameEnd++;
+        int valueStart = nameEnd + 1;
+        int valueEnd = to;
+        if (nameEnd == from || nameEnd == to || line.charAt(nameEnd) != '=') {
+            Matcher attributeMatcher = MgfUtils.attributePattern.matcher(line).region(from, to);
+            if (!attributeMatcher.find())
+                return false;
+            nameStart = attributeMatcher.start(1);
+            nameEnd = attributeMatcher.end(1);
+            valueStart = attributeMatcher.start(2);
+            valueEnd = attributeMatcher.end(2);
+        }
+
+        if (isName(line, nameStart, nameEnd, "TITLE")) {
+            spectrum.setTitle(line, valueStart, valueEnd);
+            return true;
+        }
+        if (!params && !MgfUtils.isHeaderAttribute(line, nameStart, nameEnd))
+            return true;
+
+        spectrum.addAttribute(line, nameStart, nameEnd, line, valueStart, valueEnd);
+        while (valueStart < valueEnd && line.charAt(valueStart) <= ' ')
+            valueStart++;
+        if (isName(line, nameStart, nameEnd, "PEPMASS")) {
+            // the optional intensity follows the m/z
+            int mzEnd = valueStart;
+            while (mzEnd < valueEnd && line.charAt(mzEnd) > ' ')
+                mzEnd++;
+            spectrum.setPrecursorMz(AsciiNumberParser.parseDouble(line, valueStart, mzEnd));
+            int intensityStart = mzEnd;
+            while (intensityStart < valueEnd && line.charAt(intensityStart) <= ' ')
+                intensityStart++;
+            int intensityEnd = intensityStart;
+            while (intensityEnd < valueEnd && line.charAt(intensityEnd) > ' ')
+                intensityEnd++;
+            if (intensityEnd > intensityStart)
+                spectrum.setPrecursorIntensity(AsciiNumberParser.parseDouble(line, intensityStart, intensityEnd));
+        } else if (isName(line, nameStart, nameEnd, "CHARGE")) {
+            setCharge(line, valueStart, valueEnd, spectrum);
+        } else if (isName(line, nameStart, nameEnd, "RTINSECONDS")) {
+            try {
+                spectrum.setRetentionTime(AsciiNumberParser.parseDouble(line, valueStart, valueEnd));
+            } catch (NumberFormatException e) {
+                // a range or a list of times is only kept as attribute
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the charge of a CHARGE value such as "2+", several charges such as "2+,3+" or "2+ and 3+" are not set.
+     */
+    private static void setCharge(MappedLineTokenizer line, int from, int to, MutableSpectrum spectrum) {
+        int charge = 0;
+        int digits = 0;
+        boolean negative = false;
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                charge = charge * 10 + (c - '0');
+                digits++;
+            } else if (c == '-') {
+                negative = true;
+            } else if (c == '.') {
+                break; // value should be reported as integer not decimal
+            } else if (c != '+' && c > ' ') {
+                return;
+            } else if (c <= ' ' && digits > 0) {
+                return;
+            }
+        }
+        if (digits > 0)
+            spectrum.setPrecursorCharge(negative ? -charge : charge);
+    }
+
+    private static boolean isName(MappedLineTokenizer line, int from, int to, String name) {
+        return to - from == name.length() && line.startsWith(name, from);
+    }
+
+    /**
+     * Moves to the "END IONS" line, only the lines that don't start with a digit are searched.
+     */
+    private static void skipPeaks(MappedLineTokenizer line) throws IOException {
+        while (line.nextLine()) {
+            int from = line.trimStart();
+            if (from < line.length() && !Character.isDigit(line.charAt(from)) && line.indexOf("END IONS") >= 0)
+                return;
+        }
+    }
+
+    /**
+     * @return true if the line is an attribute that is not part of the header
+     */
+    private static boolean isSkippedAttribute(MappedLineTokenizer line, int from, int to) {
+        int nameEnd = from;
+        while (nameEnd < to && isWordCharacter(line.charAt(nameEnd)))
+            nameEnd++;
+        return nameEnd > from && line.indexOf('=', nameEnd) >= 0 && !MgfUtils.isHeaderAttribute(line, from, nameEnd);
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * @return true if the line starts a spectrum, comments between the spectra may mention "BEGIN IONS"
+     */
+    private static boolean isBeginIons(MappedLineTokenizer line, boolean disableCommentSupport) {
+        int from = line.trimStart();
+        if (!disableCommentSupport && from < line.length() && isCommentStart(line.charAt(from)))
+            return false;
+        return line.indexOf("BEGIN IONS") >= 0;
+    }
+
+    private static boolean isCommentStart(char c) {
+        return c == '#' || c == ';' || c == '!' || c == '/';
     }
 
     @Override
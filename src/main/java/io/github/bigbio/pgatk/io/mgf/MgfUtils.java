@@ -1,45 +1,110 @@
 package io.github.bigbio.pgatk.io.mgf;
 
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
+import io.github.bigbio.pgatk.io.utils.AsciiNumberParser;
+
 import java.util.regex.Pattern;
 
 public class MgfUtils {
 
     public static int BUFFER_SIZE = 1024 * 100;
 
+    /**
+     * Parses a peak line: the m/z value and the intensity are the first two
+     * values separated by spaces or tabs, further values are ignored.
+     *
+     * @param line the peak line
+     * @return the m/z value and the intensity or null if the line contains less than two values
+     * @throws NumberFormatException if a value is not a number
+     */
     public static double[] parsePeakLine(String line) {
-        char[] lineArray = line.toCharArray();
-        //If available
-        boolean secondGap = false;
-        boolean massFound = false;
-        boolean intensityFound = false;
-        StringBuilder mass = new StringBuilder(100);
-        StringBuilder intensity = new StringBuilder(100);
-        for( int i = 0; i < line.length(); i++){
-            if(lineArray[i] == ' ' || lineArray[i] == '\t'){
-               if(massFound)
-                   secondGap = true;
-               if(intensityFound)
-                   break;
-            }else {
-                if(!secondGap){
-                    mass.append(lineArray[i]);
-                    massFound = true;
-                }else{
-                    intensity.append(lineArray[i]);
-                    intensityFound = true;
-
-                }
-            }
-        }
-        if(intensity.length() > 0 && mass.length() > 0){
-            double[] peaks = new double[2];
-            peaks[0] = Double.parseDouble(mass.toString());
-            peaks[1] = Double.parseDouble(intensity.toString());
-            return peaks;
+        return parsePeakLine((CharSequence) line);
+    }
+
+    /**
+     * Parses a peak line held by any {@link CharSequence}, such as the current line
+     * of a {@link io.github.bigbio.pgatk.io.common.MappedLineTokenizer}.
+     *
+     * @param line the peak line
+     * @return the m/z value and the intensity or null if the line contains less than two values
+     * @throws NumberFormatException if a value is not a number
+     */
+    public static double[] parsePeakLine(CharSequence line) {
+        double[] peak = new double[2];
+        return parsePeak(line, null, peak) ? peak : null;
+    }
+
+    /**
+     * Parses a peak line into a reused spectrum without allocating.
+     *
+     * @param line the peak line
+     * @param spectrum the spectrum the peak is added to
+     * @return false if the line contains less than two values
+     * @throws NumberFormatException if a value is not a number
+     */
+    public static boolean parsePeakLine(CharSequence line, MutableSpectrum spectrum) {
+        return parsePeak(line, spectrum, null);
+    }
+
+    /**
+     * Finds the first two values of a peak line and adds them to the spectrum or stores them in the array.
+     *
+     * @param spectrum the spectrum the peak is added to, or null
+     * @param peak the array receiving the m/z value and the intensity, or null
+     * @return false if the line contains less than two values
+     */
+    private static boolean parsePeak(CharSequence line, MutableSpectrum spectrum, double[] peak) {
+        int length = line.length();
+        int massStart = 0;
+        while (massStart < length && isPeakSeparator(line.charAt(massStart)))
+            massStart++;
+        int massEnd = massStart;
+        while (massEnd < length && !isPeakSeparator(line.charAt(massEnd)))
+            massEnd++;
+        int intensityStart = massEnd;
+        while (intensityStart < length && isPeakSeparator(line.charAt(intensityStart)))
+            intensityStart++;
+        int intensityEnd = intensityStart;
+        while (intensityEnd < length && !isPeakSeparator(line.charAt(intensityEnd)))
+            intensityEnd++;
+
+        if (massEnd == massStart || intensityEnd == intensityStart)
+            return false;
+        double mz = AsciiNumberParser.parseDouble(line, massStart, massEnd);
+        double intensity = AsciiNumberParser.parseDouble(line, intensityStart, intensityEnd);
+        if (spectrum != null)
+            spectrum.addPeak(mz, intensity);
+        if (peak != null) {
+            peak[0] = mz;
+            peak[1] = intensity;
         }
+        return true;
+    }
 
-        return null;
+    /**
+     * Checks whether an attribute is part of the header of a spectrum, the other attributes are
+     * skipped when the additional parameters are not read.
+     *
+     * @param line the line holding the attribute
+     * @param from the position of the attribute's name
+     * @param to   the position after the attribute's name
+     * @return true for the TITLE, CHARGE, PEPMASS, RTINSECONDS and SCANS attributes
+     */
+    public static boolean isHeaderAttribute(CharSequence line, int from, int to) {
+        for (String name : HEADER_ATTRIBUTES) {
+            if (to - from != name.length())
+                continue;
+            int i = 0;
+            while (i < name.length() && line.charAt(from + i) == name.charAt(i))
+                i++;
+            if (i == name.length())
+                return true;
+        }
+        return false;
+    }
 
+    private static boolean isPeakSeparator(char c) {
+        return c == ' ' || c == '\t';
     }
 
     public enum FragmentToleranceUnits {DA, MMU}
@@ -94,6 +159,11 @@ public class MgfUtils {
     public static final boolean  DEFAULT_ALLOW_CUSTOM_TAGS = false;
     public static final boolean DEFAULT_IGNORE_WRONG_PEAKS = false;
 
+    /**
+     * Attributes read when the additional parameters of the spectra are skipped.
+     */
+    static final String[] HEADER_ATTRIBUTES = {"TITLE", "CHARGE", "PEPMASS", "RTINSECONDS", "SCANS"};
+
     /**
      * Regex to capture mgf comments in mgf files.
      */
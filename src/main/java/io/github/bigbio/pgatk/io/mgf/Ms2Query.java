@@ -3,10 +3,16 @@ package io.github.bigbio.pgatk.io.mgf;
 import io.github.bigbio.pgatk.io.common.CvParam;
 import io.github.bigbio.pgatk.io.common.Param;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import io.github.bigbio.pgatk.io.utils.AsciiNumberParser;
 import io.github.bigbio.pgatk.io.utils.StringUtils;
 import lombok.extern.slf4j.Slf4j;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Matcher;
 
@@ -22,6 +28,17 @@ public class Ms2Query implements Spectrum {
 
   private static final int DEFAULT_NUMBER_PEAKS = 100;
 
+  private static final byte[] BEGIN_IONS = "BEGIN IONS".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] END_IONS = "END IONS".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[][] HEADER_ATTRIBUTES = new byte[MgfUtils.HEADER_ATTRIBUTES.length][];
+
+  static {
+    for (int i = 0; i < HEADER_ATTRIBUTES.length; i++)
+      HEADER_ATTRIBUTES[i] = MgfUtils.HEADER_ATTRIBUTES[i].getBytes(StandardCharsets.US_ASCII);
+  }
+
   // It is important to notice that
   private final int DEFAULT_MS_LEVEL = 2;
 
@@ -67,7 +84,7 @@ public class Ms2Query implements Spectrum {
   private String variableModifications;
 
   // The spectrum's peaks
-  private Map<Double, Double> peakList;
+  private PeakArrays peaks;
 
   // Optional peptide mass
   private Double peptideMass;
@@ -101,61 +118,258 @@ public class Ms2Query implements Spectrum {
    * @throws PgatkIOException any problems parsing the mgf part
    */
   public Ms2Query(String mgfQuery, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks) throws PgatkIOException {
+    this(mgfQuery.getBytes(StandardCharsets.UTF_8), 0, -1, StandardCharsets.UTF_8, index, disableCommentSupport, ignoreWrongPeaks);
+  }
+
+  /**
+   * Generates a Ms2Query from the raw bytes of a mgf part representing an Ms2Query (including "BEGIN IONS"
+   * and "END IONS"). Text values are decoded as UTF-8.
+   * @param bytes the bytes holding the mgf part
+   * @param offset the position of the mgf part in the array
+   * @param length the length of the mgf part
+   * @param index RAW Original scan Number
+   * @param disableCommentSupport true to disable comment support, false otherwise
+   * @throws PgatkIOException any problems parsing the mgf part
+   */
+  public Ms2Query(byte[] bytes, int offset, int length, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks) throws PgatkIOException {
+    this(bytes, offset, length, index, disableCommentSupport, ignoreWrongPeaks, SpectrumFields.ALL);
+  }
+
+  /**
+   * Generates a Ms2Query from the raw bytes of a mgf part, only the selected fields are parsed. Without the
+   * peaks the parsing stops at the first peak line, without the additional parameters only the TITLE, CHARGE,
+   * PEPMASS, RTINSECONDS and SCANS attributes are kept.
+   * The bytes are decoded as UTF-8.
+   * @param bytes the bytes holding the mgf part
+   * @param offset the position of the mgf part in the array
+   * @param length the length of the mgf part
+   * @param index RAW Original scan Number
+   * @param disableCommentSupport true to disable comment support, false otherwise
+   * @param fields the parts of the query to parse
+   * @throws PgatkIOException any problems parsing the mgf part
+   */
+  public Ms2Query(byte[] bytes, int offset, int length, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks,
+                  SpectrumFields fields) throws PgatkIOException {
+    this(bytes, offset, length, StandardCharsets.UTF_8, index, disableCommentSupport, ignoreWrongPeaks, fields);
+  }
 
+  private Ms2Query(byte[] bytes, int offset, int length, Charset charset, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks) throws PgatkIOException {
+    this(bytes, offset, length, charset, index, disableCommentSupport, ignoreWrongPeaks, SpectrumFields.ALL);
+  }
+
+  private Ms2Query(byte[] bytes, int offset, int length, Charset charset, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks,
+                   SpectrumFields fields) throws PgatkIOException {
     this.disableCommentSupport = disableCommentSupport;
     this.index = (long) index;
+    parse(bytes, offset, length < 0 ? bytes.length - offset : length, charset, ignoreWrongPeaks, fields, null);
+  }
 
-    String[] lines = mgfQuery.trim().split("\n");
+  /**
+   * Parses the raw bytes of a mgf part if its header is accepted by the filter. The filter is tested at the
+   * first peak line, the peaks of a rejected query are not parsed.
+   * @param bytes the bytes holding the mgf part
+   * @param offset the position of the mgf part in the array
+   * @param length the length of the mgf part
+   * @param index RAW Original scan Number
+   * @param disableCommentSupport true to disable comment support, false otherwise
+   * @param fields the parts of the query to parse
+   * @param filter the filter on the header values, null to accept all queries
+   * @return the query or null if it is rejected by the filter
+   * @throws PgatkIOException any problems parsing the mgf part
+   */
+  public static Ms2Query parse(byte[] bytes, int offset, int length, int index, boolean disableCommentSupport, boolean ignoreWrongPeaks,
+                               SpectrumFields fields, SpectrumFilter filter) throws PgatkIOException {
+    Ms2Query query = new Ms2Query(disableCommentSupport);
+    query.index = (long) index;
+    return query.parse(bytes, offset, length, StandardCharsets.UTF_8, ignoreWrongPeaks, fields, filter) ? query : null;
+  }
 
+  /**
+   * Parses the mgf part line by line without creating Strings for the peak lines. Lines that are not
+   * plain "NAME=value" or peak lines (comments, BOMs, ...) are decoded and handled as Strings.
+   * @return false if the header is rejected by the filter, the rest of the part is not parsed
+   */
+  private boolean parse(byte[] bytes, int offset, int length, Charset charset, boolean ignoreWrongPeaks, SpectrumFields fields,
+                        SpectrumFilter filter) throws PgatkIOException {
+    // same as String.trim()
+    int start = offset;
+    int end = offset + length;
+    while (start < end && (bytes[start] & 0xff) <= ' ')
+      start++;
+    while (end > start && (bytes[end - 1] & 0xff) <= ' ')
+      end--;
+
+    int lastLineStart = end;
+    while (lastLineStart > start && bytes[lastLineStart - 1] != '\n')
+      lastLineStart--;
+
+    double[] mz = new double[DEFAULT_NUMBER_PEAKS];
+    double[] intensity = new double[DEFAULT_NUMBER_PEAKS];
+    int nPeaks = 0;
     boolean inAttributeSection = true;
 
-    for (int nLineNumber = 0; nLineNumber < lines.length; nLineNumber++) {
-      String line = lines[nLineNumber].trim();
-      // remove comments from the line
+    int lineStart = start;
+    for (int nLineNumber = 0; lineStart < end || nLineNumber == 0; nLineNumber++) {
+      int lineEnd = lineStart;
+      while (lineEnd < end && bytes[lineEnd] != '\n')
+        lineEnd++;
+      boolean lastLine = lineStart == lastLineStart;
+      int nextLineStart = lineEnd + 1;
+
+      byte[] line = bytes;
+      int from = lineStart;
+      int to = lineEnd;
+      while (from < to && (line[from] & 0xff) <= ' ')
+        from++;
+      while (to > from && (line[to - 1] & 0xff) <= ' ')
+        to--;
+
+      // skip comment lines, see MgfUtils.mgfCommentRegex
       //TODO Check if the comment are inside BEGIN/ENDS IONS because comments are not allowed between  BEGIN/ENDS IONS by the specification
-      if (!disableCommentSupport)
-        line = line.replaceAll(MgfUtils.mgfCommentRegex, line);
-      if (line.length() < 1) { // ignore empty lines
+      if (!disableCommentSupport && from < to && isCommentStart(line[from]))
+        from = to;
+      lineStart = nextLineStart;
+
+      if (from == to) { // ignore empty lines
         continue;
       }
       // first line must be "BEGIN IONS" and last line must be "END IONS"
-      if (nLineNumber == 0 && !"BEGIN IONS".equals(StringUtils.removeBOMString(line))) {
-        throw new PgatkIOException("MS2 query must start with 'BEGIN IONS'");
-      }
       if (nLineNumber == 0) {
+        if (!equalsAscii(line, from, to, BEGIN_IONS)
+                && !"BEGIN IONS".equals(StringUtils.removeBOMString(new String(line, from, to - from, charset))))
+          throw new PgatkIOException("MS2 query must start with 'BEGIN IONS'");
         continue;
       }
-      if (nLineNumber == lines.length - 1 && !"END IONS".equals(line)) {
-        throw new PgatkIOException("MS2 query must end with 'END IONS'");
-      }
-      if (nLineNumber == lines.length - 1) {
+      if (lastLine) {
+        if (!equalsAscii(line, from, to, END_IONS))
+          throw new PgatkIOException("MS2 query must end with 'END IONS'");
         continue;
       }
-      Matcher attributeMatcher = MgfUtils.attributePattern.matcher(line); // check if it's a property
-      boolean matchesAttributePattern = false;
-      if (inAttributeSection) {
-        matchesAttributePattern = attributeMatcher.find();
+
+      if (inAttributeSection && indexOf(line, from, to, (byte) '=') >= 0) {
+        if (parseAttribute(line, from, to, charset, fields.hasParams()))
+          continue;
       }
-      if (matchesAttributePattern) {
-        if (attributeMatcher.groupCount() != 2) {
-          throw new PgatkIOException("Invalid attribute line encountered in MS2 query: " + line);
-        }
-        String name = attributeMatcher.group(1);
-        String value = attributeMatcher.group(2);
-        saveAttribute(name, value);
-      } else {
-        double[] peakArray = MgfUtils.parsePeakLine(line);
-        if (peakArray != null && peakArray.length == 2) {
-          addPeak(peakArray[0], peakArray[1]);
-        } else {  // no index could be found
-          if (ignoreWrongPeaks) {
-            log.error("The following peaks and wronly annotated -- " + line);
-          } else
-            throw new NoSuchElementException("Unable to parse 'mz' and 'intensity' values for " + line);
+
+      // the rest of the query only holds peaks
+      if (inAttributeSection && filter != null && !filter.test(this))
+        return false;
+      inAttributeSection = false;
+      if (!fields.hasPeaks())
+        break;
+
+      // peak line: the first two values separated by spaces or tabs
+      int massEnd = from;
+      while (massEnd < to && !isPeakSeparator(line[massEnd]))
+        massEnd++;
+      int intensityStart = massEnd;
+      while (intensityStart < to && isPeakSeparator(line[intensityStart]))
+        intensityStart++;
+      int intensityEnd = intensityStart;
+      while (intensityEnd < to && !isPeakSeparator(line[intensityEnd]))
+        intensityEnd++;
+
+      if (intensityEnd > intensityStart) {
+        if (nPeaks == mz.length) {
+          mz = Arrays.copyOf(mz, nPeaks * 2);
+          intensity = Arrays.copyOf(intensity, nPeaks * 2);
         }
-        inAttributeSection = false;
+        mz[nPeaks] = parseNumber(line, from, massEnd, charset);
+        intensity[nPeaks] = parseNumber(line, intensityStart, intensityEnd, charset);
+        nPeaks++;
+      } else {  // no index could be found
+        String text = new String(line, from, to - from, charset);
+        if (ignoreWrongPeaks) {
+          log.error("The following peaks and wronly annotated -- " + text);
+        } else
+          throw new NoSuchElementException("Unable to parse 'mz' and 'intensity' values for " + text);
+      }
+    }
+
+    if (nPeaks > 0) {
+      peaks = new PeakArrays(mz, intensity, nPeaks).seal();
+    }
+    return !inAttributeSection || filter == null || filter.test(this);
+  }
+
+  /**
+   * Parses an attribute line, lines that are not a plain "NAME=value" are matched
+   * against {@link MgfUtils#attributePattern}.
+   * @param params false to only keep the header attributes
+   * @return true if the line is an attribute
+   */
+  private boolean parseAttribute(byte[] line, int from, int to, Charset charset, boolean params) {
+    int nameEnd = from;
+    while (nameEnd < to && isWordCharacter(line[nameEnd]))
+      nameEnd++;
+
+    if (nameEnd > from && nameEnd < to && line[nameEnd] == '=') {
+      if (!params && !isHeaderAttribute(line, from, nameEnd))
+        return true;
+      boolean plain = true;
+      for (int i = nameEnd + 1; i < to && plain; i++)
+        plain = line[i] >= 0 && line[i] != '\r';
+      if (plain) {
+        saveAttribute(new String(line, from, nameEnd - from, StandardCharsets.US_ASCII),
+                new String(line, nameEnd + 1, to - nameEnd - 1, charset));
+        return true;
       }
     }
+
+    Matcher attributeMatcher = MgfUtils.attributePattern.matcher(new String(line, from, to - from, charset));
+    if (attributeMatcher.find()) {
+      String name = attributeMatcher.group(1);
+      if (params || MgfUtils.isHeaderAttribute(name, 0, name.length()))
+        saveAttribute(name, attributeMatcher.group(2));
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isHeaderAttribute(byte[] line, int from, int to) {
+    for (byte[] name : HEADER_ATTRIBUTES) {
+      if (equalsAscii(line, from, to, name))
+        return true;
+    }
+    return false;
+  }
+
+  private static double parseNumber(byte[] line, int from, int to, Charset charset) {
+    for (int i = from; i < to; i++) {
+      if (line[i] < 0)
+        return Double.parseDouble(new String(line, from, to - from, charset));
+    }
+    return AsciiNumberParser.parseDouble(line, from, to);
+  }
+
+  private static boolean isCommentStart(byte b) {
+    return b == '#' || b == ';' || b == '!' || b == '/';
+  }
+
+  private static boolean isPeakSeparator(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  private static boolean isWordCharacter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+  }
+
+  private static int indexOf(byte[] bytes, int from, int to, byte b) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == b)
+        return i;
+    }
+    return -1;
+  }
+
+  private static boolean equalsAscii(byte[] bytes, int from, int to, byte[] expected) {
+    if (to - from != expected.length)
+      return false;
+    for (int i = 0; i < expected.length; i++) {
+      if (bytes[from + i] != expected[i])
+        return false;
+    }
+    return true;
   }
 
   /**
@@ -226,10 +440,19 @@ public class Ms2Query implements Spectrum {
    * @param intensity the intensity value
    */
   public void addPeak(Double mz, Double intensity) {
-    if (peakList == null) {
-      peakList = new HashMap<>(DEFAULT_NUMBER_PEAKS);
+    addPeak(mz.doubleValue(), intensity.doubleValue());
+  }
+
+  /**
+   * Adds a peak to the spectrum.
+   * @param mz the mz value
+   * @param intensity the intensity value
+   */
+  public void addPeak(double mz, double intensity) {
+    if (peaks == null) {
+      peaks = new PeakArrays(DEFAULT_NUMBER_PEAKS);
     }
-    peakList.put(mz, intensity);
+    peaks.add(mz, intensity);
   }
 
   /**
@@ -369,12 +592,22 @@ public class Ms2Query implements Spectrum {
     this.variableModifications = variableModifications;
   }
 
+  /**
+   * Returns the peaks as a map. A new map is built from the peak arrays on every call,
+   * use {@link #getPeakArrays()} to avoid the boxing.
+   * @return the peak list or null if the query has no peaks
+   */
   public Map<Double, Double> getPeakList() {
-    return peakList;
+    return (peaks != null) ? peaks.toMap() : null;
   }
 
   public void setPeakList(Map<Double, Double> peakList) {
-    this.peakList = peakList;
+    this.peaks = (peakList != null) ? PeakArrays.fromMap(peakList) : null;
+  }
+
+  @Override
+  public PeakArrays getPeakArrays() {
+    return (peaks != null) ? peaks : new PeakArrays(0);
   }
 
   public Double getPeptideMass() {
@@ -454,10 +687,11 @@ public class Ms2Query implements Spectrum {
     if (toleranceUnit != null) {
       query.append("TOLU=").append(toleranceUnit).append('\n');
     }
-    List<Double> masses = new ArrayList<>(peakList.keySet());
-    Collections.sort(masses);
-    for (Double mz : masses) {
-      query.append(mz).append(' ').append(peakList.get(mz)).append('\n');
+    PeakArrays peakArrays = getPeakArrays();
+    double[] masses = peakArrays.getMz();
+    double[] intensities = peakArrays.getIntensity();
+    for (int i = 0; i < masses.length; i++) {
+      query.append(masses[i]).append(' ').append(intensities[i]).append('\n');
     }
     query.append("END IONS\n");
     return query.toString();
@@ -27,126 +27,326 @@
  */
 package io.github.bigbio.pgatk.io.msp;
 
+import io.github.bigbio.pgatk.io.common.MappedLineTokenizer;
 import io.github.bigbio.pgatk.io.common.MzIterableChannelReader;
 import io.github.bigbio.pgatk.io.common.MzIterableReader;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.PipelinedIterableReader;
+import io.github.bigbio.pgatk.io.common.RecordParser;
+import io.github.bigbio.pgatk.io.common.RecordSpliterator;
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 import io.github.bigbio.pgatk.io.mgf.MgfUtils;
-import io.github.bigbio.pgatk.io.utils.StringUtils;
+import io.github.bigbio.pgatk.io.utils.AsciiNumberParser;
+import lombok.extern.slf4j.Slf4j;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
+import java.util.stream.Stream;
 
 /**
  * An IterativeReader that can read nist msp files. See http://peptide.nist.gov/
+ * The lines are read in place through the {@link MappedLineTokenizer} of the file, with {@link #setReuseSpectrum(boolean)}
+ * they are parsed into a single {@link MutableSpectrum} without creating Strings.
  */
+@Slf4j
 public class MspIterableReader extends MzIterableChannelReader implements MzIterableReader {
 
     private final File sourceFile;
-    private int channelCursor = 0;
 
     // The index (1-based) is used to know in the order of the spectrum in the file.
     private long specIndex = 1;
 
-    private MspSpectrum spectrum = null;
+    /**
+     * The next spectrum, its peaks and comment are read by {@link #next()} unless it was read to test the filter.
+     */
+    private Spectrum spectrum = null;
+    private boolean spectrumRead = false;
+    private boolean endOfFile = false;
     private LibrarySpectrumBuilder builder;
 
+    /**
+     * The spectrum refilled for every record, null to create a {@link MspSpectrum} per record.
+     */
+    private MutableSpectrum mutableSpectrum;
+
+    /**
+     * The filter on the header of the spectra, null to read all spectra.
+     */
+    private SpectrumFilter spectrumFilter;
+
     public MspIterableReader(File source) throws PgatkIOException {
         super(source);
         this.sourceFile = source;
-
-        try {
-            RandomAccessFile accessFile = new RandomAccessFile(this.sourceFile, "r");
-            accessChannel = accessFile.getChannel();
-        } catch (IOException e) {
-            throw new PgatkIOException("Error reading the following file " + source.getAbsolutePath(), e);
-        }
     }
 
 
     @Override
     public boolean hasNext() {
-        StringBuilder stringBuffer = new StringBuilder(100);
-        if (buffer == null || !buffer.hasRemaining())
-            readBuffer();
-        char ch = '\n';
-        channelCursor = buffer.position();
-        while((ch != '\u0000') && (buffer.hasRemaining())){
-            ch = ((char) buffer.get());
-            channelCursor = buffer.position();
-            stringBuffer.append(ch);
-            if(ch == '\n' && stringBuffer.toString().contains("Name:")){
+        MappedLineTokenizer line = lines();
+        while (spectrum == null && !endOfFile) {
+            if (!nextLine()) {
+                endOfFile = true;
+            } else if (isName(line)) {
                 try {
-                    builder = new LibrarySpectrumBuilder();
-                    String value = stringBuffer.toString().split(":")[1].trim();
-                    MspAttributeReader.parseName(value, builder);
-                    spectrum = new MspSpectrum(builder.getPeptideSequence(), builder.getCharge());
-                    return true;
+                    Spectrum candidate;
+                    if (mutableSpectrum == null) {
+                        builder = new LibrarySpectrumBuilder();
+                        candidate = readName(line, builder);
+                    } else {
+                        candidate = readName(line, mutableSpectrum);
+                    }
+                    // with a filter the spectrum is read now, the rejected ones keep their index in the file
+                    if (spectrumFilter == null) {
+                        spectrum = candidate;
+                    } else if (readSpectrum(candidate, spectrumFilter)) {
+                        spectrum = candidate;
+                        spectrumRead = true;
+                    } else {
+                        specIndex++;
+                    }
                 } catch (PgatkIOException e) {
                     e.printStackTrace();
                 }
             }
-            if(!buffer.hasRemaining()){
-                readBuffer();
-            }
         }
-
-        return false;
+        return spectrum != null;
     }
 
     @Override
     public Spectrum next() throws NoSuchElementException {
-        if(spectrum == null)
-            throw new NoSuchElementException("First check if the file contains an spectum using hasNext()");
+        if (!hasNext())
+            throw new NoSuchElementException("No more spectra in " + sourceFile);
 
-        if(buffer == null || !buffer.hasRemaining()){
-            readBuffer();
+        Spectrum current = spectrum;
+        spectrum = null;
+        if (!spectrumRead)
+            readSpectrum(current, null);
+        spectrumRead = false;
+        if (current == mutableSpectrum) {
+            mutableSpectrum.setIndex(specIndex++);
+        } else {
+            ((MspSpectrum) current).setIndex(specIndex++);
+            ((MspSpectrum) current).setProperties(builder);
         }
+        return current;
+    }
+
+    @Override
+    public void setReuseSpectrum(boolean reuse) {
+        this.mutableSpectrum = reuse ? new MutableSpectrum() : null;
+    }
 
-        boolean inAttributeSection = true;
-        StringBuffer stringBuffer = new StringBuffer();
-        while (buffer.hasRemaining()) {
-            char ch = ((char) buffer.get());
-            channelCursor = buffer.position();
-
-            if(ch=='\n'){
-                stringBuffer.append(ch);
-                String line = StringUtils.removeBOMString(stringBuffer.toString().trim());
-                if(line.trim().length() == 0) {
-                    spectrum.setIndex(specIndex);
-                    specIndex++;
-                    spectrum.setProperties(builder);
-                    return spectrum;
-                }else if(spectrum != null){
-                    if(line.contains(":")){
-                        if(line.contains("Comment:")){
-                            int index = line.indexOf(":");
-                            MspAttributeReader.parseComment(line.substring(index + 2), builder);
-                        }
-
-                    }else{
-                        double[] peakArray = MgfUtils.parsePeakLine(line);
-                        if (peakArray != null && peakArray.length == 2) {
-                            spectrum.addPeak(peakArray[0], peakArray[1]);
-                        } else {  // no index could be found
-                            inAttributeSection = false;
-                        }
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    /**
+     * @return false if the spectrum is rejected by the filter
+     * @throws NoSuchElementException if the file can't be read, caused by the IOException
+     */
+    private boolean readSpectrum(Spectrum current, SpectrumFilter filter) {
+        try {
+            if (current == mutableSpectrum)
+                return readSpectrum(lines(), mutableSpectrum, filter);
+            return readSpectrum(lines(), (MspSpectrum) current, builder, filter);
+        } catch (IOException e) {
+            NoSuchElementException exception = new NoSuchElementException("Error reading the file " + sourceFile
+                    + " at position " + lines().getLineStart() + " -- " + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Creates a reader that cuts the spectra out of the file on an I/O thread and parses them
+     * on a pool of worker threads, the spectra are returned in the order of the file.
+     *
+     * @param threads the number of parser threads
+     * @return the reader
+     */
+    public static MzIterableReader pipelined(File source, int threads) throws PgatkIOException {
+        return new PipelinedIterableReader(source, MspIterableReader::isName, MappedLineTokenizer::isBlank,
+                new RecordParser<Spectrum>() {
+                    @Override
+                    public Spectrum parse(byte[] record, int length, long index) throws PgatkIOException {
+                        return parseRecord(record, length, index, null);
                     }
-                }
-                stringBuffer = new StringBuffer();
 
-            }else{
-                stringBuffer.append(ch);
+                    @Override
+                    public Spectrum parse(byte[] record, int length, long index, SpectrumFilter filter) throws PgatkIOException {
+                        return parseRecord(record, length, index, filter);
+                    }
+                }, threads);
+    }
+
+    /**
+     * Creates a stream over the spectra of a file, a parallel stream is split at "Name:" lines. The
+     * stream holds the file open until it is closed.
+     *
+     * @param source the MSP file
+     * @param parallel true for a parallel stream
+     * @return the stream
+     */
+    public static Stream<Spectrum> stream(File source, boolean parallel) throws PgatkIOException {
+        return RecordSpliterator.stream(source, MspIterableReader::isName, MappedLineTokenizer::isBlank,
+                (record, length, index) -> parseRecord(record, length, index, null), parallel);
+    }
+
+    /**
+     * @return the spectrum or null if it is rejected by the filter, its peaks are then not parsed
+     */
+    private static Spectrum parseRecord(byte[] record, int length, long index, SpectrumFilter filter) throws PgatkIOException {
+        MappedLineTokenizer line = new MappedLineTokenizer(ByteBuffer.wrap(record, 0, length));
+        LibrarySpectrumBuilder builder = new LibrarySpectrumBuilder();
+        try {
+            line.nextLine();
+            MspSpectrum spectrum = readName(line, builder);
+            if (!readSpectrum(line, spectrum, builder, filter))
+                return null;
+            spectrum.setIndex(index);
+            spectrum.setProperties(builder);
+            return spectrum;
+        } catch (IOException e) {
+            throw new PgatkIOException("Error parsing the spectrum " + index, e);
+        }
+    }
+
+    private static boolean isName(MappedLineTokenizer line) {
+        return line.startsWith("Name:", line.trimStart());
+    }
+
+    /**
+     * Starts a spectrum from its "Name:" line.
+     */
+    private static MspSpectrum readName(MappedLineTokenizer line, LibrarySpectrumBuilder builder) throws PgatkIOException {
+        // the name ends at the next ':'
+        int from = line.trimStart() + 5;
+        int valueEnd = line.indexOf(':', from);
+        String value = line.subSequence(from, (valueEnd < 0) ? Math.max(from, line.trimEnd()) : valueEnd).toString().trim();
+        MspAttributeReader.parseName(value, builder);
+        return new MspSpectrum(builder.getPeptideSequence(), builder.getCharge());
+    }
+
+    /**
+     * Reads the comment and peaks of a spectrum up to the next empty line. The filter is tested at the first
+     * peak line, the peaks of a rejected spectrum are skipped.
+     *
+     * @return false if the spectrum is rejected by the filter
+     */
+    private static boolean readSpectrum(MappedLineTokenizer line, MspSpectrum spectrum, LibrarySpectrumBuilder builder,
+                                        SpectrumFilter filter) throws IOException {
+        boolean inHeader = true;
+        while (line.nextLine()) {
+            if (line.isBlank())
+                break;
+
+            int separator = line.indexOf(':', 0);
+            if (separator >= 0) {
+                int from = line.trimStart();
+                if (line.startsWith("Comment:", from))
+                    MspAttributeReader.parseComment(line.subSequence(Math.min(separator + 2, line.trimEnd()), line.trimEnd()).toString(), builder);
+            } else {
+                if (inHeader && !accept(filter, spectrum, builder)) {
+                    while (line.nextLine() && !line.isBlank()) ;
+                    return false;
+                }
+                inHeader = false;
+                double[] peakArray = MgfUtils.parsePeakLine(line);
+                if (peakArray != null && peakArray.length == 2)
+                    spectrum.addPeak(peakArray[0], peakArray[1]);
             }
-            if(!buffer.hasRemaining())
-                readBuffer();
         }
-        spectrum.setIndex(specIndex);
-        specIndex++;
-        spectrum.setProperties(builder);
+        spectrum.getPeakArrays().seal();
+        return !inHeader || accept(filter, spectrum, builder);
+    }
+
+    /**
+     * Starts a spectrum in the reused spectrum from its "Name:" line, the name is kept as title.
+     */
+    private static MutableSpectrum readName(MappedLineTokenizer line, MutableSpectrum spectrum) {
+        int from = line.trimStart() + 5;
+        int valueEnd = line.indexOf(':', from);
+        int to = (valueEnd < 0) ? Math.max(from, line.trimEnd()) : valueEnd;
+        while (from < to && line.charAt(from) <= ' ')
+            from++;
+        while (to > from && line.charAt(to - 1) <= ' ')
+            to--;
+
+        spectrum.clear();
+        spectrum.setTitle(line, from, to);
+        // the charge is the first character after the '/' of the name
+        int separator = line.indexOf('/', from);
+        if (separator >= 0 && separator + 1 < to && Character.isDigit(line.charAt(separator + 1)))
+            spectrum.setPrecursorCharge(line.charAt(separator + 1) - '0');
         return spectrum;
     }
 
+    /**
+     * Reads the attributes and peaks of a spectrum up to the next empty line into the reused spectrum, the
+     * precursor m/z is read from the "Parent" value of the comment.
+     *
+     * @return false if the spectrum is rejected by the filter
+     */
+    private static boolean readSpectrum(MappedLineTokenizer line, MutableSpectrum spectrum, SpectrumFilter filter) throws IOException {
+        boolean inHeader = true;
+        while (line.nextLine()) {
+            if (line.isBlank())
+                break;
+
+            int separator = line.indexOf(':', 0);
+            if (separator >= 0) {
+                int from = line.trimStart();
+                int to = line.trimEnd();
+                int valueStart = separator + 1;
+                while (valueStart < to && line.charAt(valueStart) <= ' ')
+                    valueStart++;
+                spectrum.addAttribute(line, from, separator, line, valueStart, Math.max(valueStart, to));
+                if (line.startsWith("Comment:", from))
+                    setParent(line, valueStart, to, spectrum);
+            } else {
+                if (inHeader && filter != null && !filter.test(spectrum)) {
+                    while (line.nextLine() && !line.isBlank()) ;
+                    return false;
+                }
+                inHeader = false;
+                MgfUtils.parsePeakLine(line, spectrum);
+            }
+        }
+        return !inHeader || filter == null || filter.test(spectrum);
+    }
+
+    /**
+     * Sets the precursor m/z of the "Parent=" value of a comment, values between quotes are skipped.
+     */
+    private static void setParent(MappedLineTokenizer line, int from, int to, MutableSpectrum spectrum) {
+        boolean inQuotes = false;
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (!inQuotes && (i == from || line.charAt(i - 1) == ' ') && line.startsWith("Parent=", i)) {
+                int valueStart = i + 7;
+                int valueEnd = valueStart;
+                while (valueEnd < to && line.charAt(valueEnd) != ' ')
+                    valueEnd++;
+                spectrum.setPrecursorMz(AsciiNumberParser.parseDouble(line, valueStart, valueEnd));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tests the header values, the precursor m/z is only set on the spectrum when it is read completely.
+     */
+    private static boolean accept(SpectrumFilter filter, MspSpectrum spectrum, LibrarySpectrumBuilder builder) {
+        return filter == null || filter.accept(spectrum.getMsLevel(), spectrum.getPrecursorCharge(), builder.getPrecursorMz());
+    }
+
     @Override
     public void close() throws PgatkIOException {
         try {
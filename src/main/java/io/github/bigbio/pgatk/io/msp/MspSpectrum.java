@@ -1,6 +1,7 @@
 package io.github.bigbio.pgatk.io.msp;
 
 import io.github.bigbio.pgatk.io.common.Param;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
 import io.github.bigbio.pgatk.io.utils.Tuple;
 
@@ -8,7 +9,7 @@ import java.util.*;
 
 public class MspSpectrum implements Spectrum {
     private long index;
-    Map<Double, Double> peakList;
+    PeakArrays peaks;
     private static final int DEFAULT_NUMBER_PEAKS = 100;
     private Integer msLevel;
     private Double precursorIntensity;
@@ -61,7 +62,12 @@ public class MspSpectrum implements Spectrum {
 
     @Override
     public Map<Double, Double> getPeakList() {
-        return peakList;
+        return (peaks != null) ? peaks.toMap() : null;
+    }
+
+    @Override
+    public PeakArrays getPeakArrays() {
+        return (peaks != null) ? peaks : new PeakArrays(0);
     }
 
     @Override
@@ -79,14 +85,14 @@ public class MspSpectrum implements Spectrum {
     }
 
     public void addPeak(double mz, double intensity) {
-        if (peakList == null) {
-            peakList = new HashMap<>(DEFAULT_NUMBER_PEAKS);
+        if (peaks == null) {
+            peaks = new PeakArrays(DEFAULT_NUMBER_PEAKS);
         }
-        peakList.put(mz, intensity);
+        peaks.add(mz, intensity);
     }
 
     public void setPeakList(Map<Double, Double> peakList) {
-        this.peakList = peakList;
+        this.peaks = (peakList != null) ? PeakArrays.fromMap(peakList) : null;
     }
 
     public void setMsLevel(Integer msLevel) {
@@ -117,7 +123,7 @@ public class MspSpectrum implements Spectrum {
     public String toString() {
         return "MspSpectrum{" +
                 "index=" + index +
-                ", peakList=" + peakList +
+                ", peakList=" + getPeakList() +
                 ", msLevel=" + msLevel +
                 ", precursorIntensity=" + precursorIntensity +
                 ", precursorMz=" + precursorMz +
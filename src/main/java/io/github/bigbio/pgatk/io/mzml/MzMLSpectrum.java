@@ -2,6 +2,8 @@ package io.github.bigbio.pgatk.io.mzml;
 
 import io.github.bigbio.pgatk.io.common.CvParam;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
 import uk.ac.ebi.jmzml.model.mzml.*;
 
 import java.util.*;
@@ -34,8 +36,8 @@ public class MzMLSpectrum implements io.github.bigbio.pgatk.io.common.spectra.Sp
 
     private final Integer msLevel;
 
-    // The spectrum's peak list as a Map with the m/z values as keys and their intensities as values.
-    private final Map<Double, Double> peakList;
+    // The spectrum's peaks sorted by m/z.
+    private final PeakArrays peaks;
 
 
     // The spectrum's params
@@ -49,6 +51,19 @@ public class MzMLSpectrum implements io.github.bigbio.pgatk.io.common.spectra.Sp
      * @throws PgatkIOException
      */
     public MzMLSpectrum(uk.ac.ebi.jmzml.model.mzml.Spectrum mzMlSpectrum, Long index) throws PgatkIOException {
+        this(mzMlSpectrum, index, SpectrumFields.ALL);
+    }
+
+    /**
+     * Creates a new MzMlWrapperSpectrum based on the passed mzML Spectrum
+     * object, the binary data arrays are only decoded if the peaks are
+     * selected and the params are only copied if they are selected.
+     *
+     * @param mzMlSpectrum
+     * @param fields The parts of the spectrum to convert
+     * @throws PgatkIOException
+     */
+    public MzMLSpectrum(uk.ac.ebi.jmzml.model.mzml.Spectrum mzMlSpectrum, Long index, SpectrumFields fields) throws PgatkIOException {
 
         id = mzMlSpectrum.getId();
 
@@ -80,9 +95,34 @@ public class MzMLSpectrum implements io.github.bigbio.pgatk.io.common.spectra.Sp
         CVParam msLevelParam = getParamFromGroup(mzMlSpectrum.getCvParam(), MzMlIndexedReader.MZML_PARAMS.MS_LEVEL.getAccess());
         msLevel = msLevelParam != null ? Integer.parseInt(msLevelParam.getValue()) : null;
 
-        peakList = convertPeakList(mzMlSpectrum.getBinaryDataArrayList());
+        peaks = fields.hasPeaks() ? convertPeakList(mzMlSpectrum.getBinaryDataArrayList()) : new PeakArrays(0);
 
-        paramGroup = createParamGroup(mzMlSpectrum.getCvParam(), mzMlSpectrum.getUserParam());
+        paramGroup = fields.hasParams() ? createParamGroup(mzMlSpectrum.getCvParam(), mzMlSpectrum.getUserParam()) : new ArrayList<>();
+    }
+
+    /**
+     * Creates a spectrum from values that were already extracted from the mzML file,
+     * used by the {@link MzMlIterableReader}.
+     *
+     * @param id         The spectrum's id
+     * @param index      The spectrum's index in the file
+     * @param charge     The precursor's charge, may be null
+     * @param mz         The precursor's m/z, may be null
+     * @param intensity  The precursor's intensity, may be null
+     * @param msLevel    The MS level, may be null
+     * @param peaks      The peaks
+     * @param paramGroup The spectrum's cvParams and userParams
+     */
+    public MzMLSpectrum(String id, Long index, Integer charge, Double mz, Double intensity, Integer msLevel,
+                        PeakArrays peaks, Collection<CvParam> paramGroup) {
+        this.id = id;
+        this.index = index;
+        this.charge = charge;
+        this.mz = mz;
+        this.intensity = intensity;
+        this.msLevel = msLevel;
+        this.peaks = peaks;
+        this.paramGroup = paramGroup;
     }
 
     /**
@@ -110,14 +150,13 @@ public class MzMLSpectrum implements io.github.bigbio.pgatk.io.common.spectra.Sp
 
     /**
      * Converts the spectrum's peak list into
-     * a Map as defined by the Spectrum
-     * interface.
+     * primitive arrays sorted by m/z.
      *
      * @param binaryDataArrayList
      * @return
      * @throws PgatkIOException
      */
-    private Map<Double, Double> convertPeakList(
+    private PeakArrays convertPeakList(
             BinaryDataArrayList binaryDataArrayList) throws PgatkIOException {
         // make sure the spectrum contains a m/z and an intensity array
         BinaryDataArray mzArray = null, intenArray = null;
@@ -141,32 +180,25 @@ public class MzMLSpectrum implements io.github.bigbio.pgatk.io.common.spectra.Sp
 
         // if the spectrum doesn't contain a mz and binary array return an empty map
         if (mzArray == null || intenArray == null)
-            return Collections.emptyMap();
+            return new PeakArrays(0);
 
         // get the values as numbers
         Number[] mzNumbers = mzArray.getBinaryDataAsNumberArray();
-        ArrayList<Double> mzValues = new ArrayList<>(mzNumbers.length);
-
-        for (Number n : mzNumbers)
-            mzValues.add(n.doubleValue());
-
         Number[] intenNumbers = intenArray.getBinaryDataAsNumberArray();
-        ArrayList<Double> intenValues = new ArrayList<>(intenNumbers.length);
-
-        for (Number n : intenNumbers)
-            intenValues.add(n.doubleValue());
 
         // make sure both have the same size
-        if (intenValues.size() != mzValues.size())
+        if (intenNumbers.length != mzNumbers.length)
             throw new PgatkIOException("Different sizes for m/z and intensity value arrays for spectrum " + id);
 
-        // create the map
-        Map<Double, Double> peakList = new HashMap<>(mzNumbers.length);
+        double[] mzValues = new double[mzNumbers.length];
+        double[] intenValues = new double[intenNumbers.length];
 
-        for (int i = 0; i < mzNumbers.length; i++)
-            peakList.put(mzValues.get(i), intenValues.get(i));
+        for (int i = 0; i < mzNumbers.length; i++) {
+            mzValues[i] = mzNumbers[i].doubleValue();
+            intenValues[i] = intenNumbers[i].doubleValue();
+        }
 
-        return peakList;
+        return new PeakArrays(mzValues, intenValues).seal();
     }
 
     @Override
@@ -191,7 +223,12 @@ public class MzMLSpectrum implements io.github.bigbio.pgatk.io.common.spectra.Sp
     }
 
     public Map<Double, Double> getPeakList() {
-        return peakList;
+        return peaks.toMap();
+    }
+
+    @Override
+    public PeakArrays getPeakArrays() {
+        return peaks;
     }
 
     public Integer getMsLevel() {
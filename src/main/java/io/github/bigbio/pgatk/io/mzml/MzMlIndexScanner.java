@@ -0,0 +1,346 @@
+package io.github.bigbio.pgatk.io.mzml;
+
+import io.github.bigbio.pgatk.io.common.SpectrumIndex;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds the index of the spectra of a mzML file without unmarshalling them.
+ *
+ * For indexedmzML files the positions of the spectra are taken from the {@code <indexList>} at the
+ * end of the file and only the beginning of every spectrum is read to get its MS level (MS:1000511).
+ * The size of such a spectrum reaches up to the next spectrum and may include the whitespace that
+ * follows it. Files without index, or whose index does not match the spectra, are scanned once:
+ * only the tags are decoded, the base64 encoded peaks are skipped byte by byte.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+final class MzMlIndexScanner {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Number of bytes read at a time at the beginning of a spectrum */
+    private static final int HEAD_SIZE = 4 * 1024;
+
+    /** Maximum number of bytes searched for the MS level of a spectrum */
+    private static final int MAX_HEAD_SIZE = 1 << 20;
+
+    /** Number of bytes at the end of the file searched for the index offset */
+    private static final int TAIL_SIZE = 4 * 1024;
+
+    private static final String MS_LEVEL = "MS:1000511";
+
+    private MzMlIndexScanner() {
+    }
+
+    /**
+     * @param channel the mzML file
+     * @return the index of the spectra in the order they appear in the file, unknown MS levels are -1
+     */
+    static SpectrumIndex scan(FileChannel channel) throws IOException {
+        SpectrumIndex index = readIndexList(channel);
+        if (index != null)
+            return index;
+        return scanSpectra(channel);
+    }
+
+    /**
+     * Reads the positions of the spectra from the index of an indexedmzML file.
+     *
+     * @return the index or null if the file has no index or it does not match the spectra
+     */
+    static SpectrumIndex readIndexList(FileChannel channel) throws IOException {
+        long size = channel.size();
+        String tail = read(channel, Math.max(0, size - TAIL_SIZE), (int) Math.min(size, TAIL_SIZE));
+        int start = tail.lastIndexOf("<indexListOffset>");
+        int end = tail.indexOf("</indexListOffset>", start + 1);
+        if (start < 0 || end < 0)
+            return null;
+
+        long indexListOffset;
+        try {
+            indexListOffset = Long.parseLong(tail.substring(start + "<indexListOffset>".length(), end).trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid indexListOffset of mzML file");
+            return null;
+        }
+        if (indexListOffset < 0 || indexListOffset >= size)
+            return null;
+
+        String[] ids = new String[1024];
+        long[] offsets = new long[1024];
+        int count = 0;
+
+        // the stream is not closed as this would close the channel
+        InputStream input = new BufferedInputStream(Channels.newInputStream(channel.position(indexListOffset)), 1 << 16);
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+            boolean inSpectrumIndex = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("index".equals(reader.getLocalName())) {
+                        inSpectrumIndex = "spectrum".equals(reader.getAttributeValue(null, "name"));
+                    } else if (inSpectrumIndex && "offset".equals(reader.getLocalName())) {
+                        if (count == ids.length) {
+                            ids = Arrays.copyOf(ids, count * 2);
+                            offsets = Arrays.copyOf(offsets, count * 2);
+                        }
+                        ids[count] = reader.getAttributeValue(null, "idRef");
+                        offsets[count] = Long.parseLong(reader.getElementText().trim());
+                        count++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && inSpectrumIndex && "index".equals(reader.getLocalName())) {
+                    break;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException | NumberFormatException e) {
+            log.warn("Ignoring invalid indexList of mzML file: " + e.getMessage());
+            return null;
+        }
+
+        SpectrumIndex.Builder builder = new SpectrumIndex.Builder();
+        for (int i = 0; i < count; i++) {
+            long offset = offsets[i];
+            if (offset < 0 || offset >= size || (i > 0 && offset <= offsets[i - 1]))
+                return invalidIndexList();
+
+            String head = readHead(channel, offset);
+            String spectrumTag = head.substring(0, head.indexOf('>') + 1);
+            if (ids[i] == null || !"spectrum".equals(tagName(spectrumTag)) || !ids[i].equals(attribute(spectrumTag, "id")))
+                return invalidIndexList();
+
+            long stop = (i + 1 < count) ? offsets[i + 1] : findSpectrumEnd(channel, offset);
+            if (stop < 0)
+                return invalidIndexList();
+            builder.add(offset, (int) (stop - offset), msLevel(head), ids[i]);
+        }
+        return builder.build();
+    }
+
+    private static SpectrumIndex invalidIndexList() {
+        log.warn("The indexList of the mzML file does not match the spectra, scanning the file");
+        return null;
+    }
+
+    /**
+     * Scans the whole file for the spectra.
+     */
+    static SpectrumIndex scanSpectra(FileChannel channel) throws IOException {
+        SpectrumIndex.Builder builder = new SpectrumIndex.Builder();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+
+        byte[] tag = new byte[256];
+        int tagLength = -1; // -1 outside of tags
+        long tagStart = 0;
+
+        long spectrumStart = -1;
+        String spectrumId = null;
+        int msLevel = -1;
+
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                if (tagLength < 0) {
+                    if (b == '<') {
+                        tagLength = 0;
+                        tagStart = position + i;
+                        tag[tagLength++] = b;
+                    }
+                    continue;
+                }
+
+                if (tagLength == tag.length)
+                    tag = Arrays.copyOf(tag, tag.length * 2);
+                tag[tagLength++] = b;
+                if (b != '>')
+                    continue;
+
+                String name = tagName(tag, tagLength);
+                if ("spectrum".equals(name)) {
+                    String text = new String(tag, 0, tagLength, StandardCharsets.UTF_8);
+                    spectrumStart = tagStart;
+                    spectrumId = attribute(text, "id");
+                    msLevel = -1;
+                    if (text.endsWith("/>")) {
+                        builder.add(spectrumStart, (int) (position + i + 1 - spectrumStart), msLevel, spectrumId);
+                        spectrumStart = -1;
+                    }
+                } else if ("cvParam".equals(name) && spectrumStart >= 0 && msLevel < 0) {
+                    String text = new String(tag, 0, tagLength, StandardCharsets.UTF_8);
+                    if (MS_LEVEL.equals(attribute(text, "accession")))
+                        msLevel = parseMsLevel(attribute(text, "value"));
+                } else if ("/spectrum".equals(name) && spectrumStart >= 0) {
+                    builder.add(spectrumStart, (int) (position + i + 1 - spectrumStart), msLevel, spectrumId);
+                    spectrumStart = -1;
+                } else if ("/spectrumList".equals(name)) {
+                    // only chromatograms and the index follow
+                    return builder.build();
+                }
+                tagLength = -1;
+            }
+            position += read;
+            buffer.clear();
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Reads the beginning of a spectrum, up to its MS level or its binary data.
+     */
+    private static String readHead(FileChannel channel, long offset) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(HEAD_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(HEAD_SIZE);
+        long position = offset;
+
+        while (head.size() < MAX_HEAD_SIZE) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            head.write(buffer.array(), 0, read);
+            position += read;
+
+            String text = new String(head.toByteArray(), StandardCharsets.UTF_8);
+            int level = text.indexOf(MS_LEVEL);
+            if ((level >= 0 && text.indexOf('>', level) >= 0) || text.contains("<binaryDataArrayList") || text.contains("</spectrum>"))
+                return text;
+        }
+        return new String(head.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the position after the "&lt;/spectrum&gt;" tag following the offset or -1 if there is none
+     */
+    private static long findSpectrumEnd(FileChannel channel, long offset) throws IOException {
+        byte[] end = "</spectrum>".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        int match = 0;
+        long position = offset;
+        int read;
+
+        while ((read = channel.read(buffer, position)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == end[match]) {
+                    if (++match == end.length)
+                        return position + i + 1;
+                } else {
+                    match = (bytes[i] == end[0]) ? 1 : 0;
+                }
+            }
+            position += read;
+            buffer.clear();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the MS level found in the beginning of a spectrum or -1
+     */
+    private static int msLevel(String head) {
+        int accession = head.indexOf(MS_LEVEL);
+        if (accession < 0)
+            return -1;
+        int start = head.lastIndexOf('<', accession);
+        int end = head.indexOf('>', accession);
+        if (start < 0 || end < 0)
+            return -1;
+        return parseMsLevel(attribute(head.substring(start, end + 1), "value"));
+    }
+
+    private static int parseMsLevel(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of mzML file");
+        }
+        return new String(buffer.array(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the name of a tag, starting with '/' for end tags
+     */
+    private static String tagName(byte[] tag, int length) {
+        int end = 1;
+        while (end < length && tag[end] != ' ' && tag[end] != '\t' && tag[end] != '\r' && tag[end] != '\n'
+                && tag[end] != '>' && (tag[end] != '/' || end == 1))
+            end++;
+        return new String(tag, 1, end - 1, StandardCharsets.US_ASCII);
+    }
+
+    private static String tagName(String tag) {
+        byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+        return (bytes.length > 0 && bytes[0] == '<') ? tagName(bytes, bytes.length) : null;
+    }
+
+    /**
+     * @return the unescaped value of an attribute of a tag or null if the tag does not have the attribute
+     */
+    static String attribute(String tag, String name) {
+        int from = 0;
+        while (true) {
+            int index = tag.indexOf(name, from);
+            if (index < 0)
+                return null;
+            from = index + name.length();
+
+            // the name must be a whole attribute name followed by '='
+            if (!Character.isWhitespace(tag.charAt(index - 1)))
+                continue;
+            int equals = from;
+            while (equals < tag.length() && Character.isWhitespace(tag.charAt(equals)))
+                equals++;
+            if (equals >= tag.length() || tag.charAt(equals) != '=')
+                continue;
+            int quote = equals + 1;
+            while (quote < tag.length() && Character.isWhitespace(tag.charAt(quote)))
+                quote++;
+            if (quote >= tag.length())
+                return null;
+            char quoteChar = tag.charAt(quote);
+            int end = tag.indexOf(quoteChar, quote + 1);
+            if (end < 0)
+                return null;
+            return unescape(tag.substring(quote + 1, end));
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('&') < 0)
+            return value;
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+}
@@ -1,30 +1,76 @@
 package io.github.bigbio.pgatk.io.mzml;
 
-import io.github.bigbio.pgatk.io.common.IndexElementImpl;
+import io.github.bigbio.pgatk.io.common.ByteBufferPool;
+import io.github.bigbio.pgatk.io.common.IndexElement;
+import io.github.bigbio.pgatk.io.common.IndexFile;
+import io.github.bigbio.pgatk.io.common.IndexingOptions;
 import io.github.bigbio.pgatk.io.common.MzIterableReader;
 import io.github.bigbio.pgatk.io.common.MzReader;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.RecordSubsetWriter;
+import io.github.bigbio.pgatk.io.common.SpectrumCache;
+import io.github.bigbio.pgatk.io.common.SpectrumIndex;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
-import psidev.psi.tools.xxindex.index.IndexElement;
-import uk.ac.ebi.jmzml.MzMLElement;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import lombok.extern.slf4j.Slf4j;
 
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 /**
- * Wrapper class around the jmzml parser library that's implementing the JMzReader interface.
+ * Reader of the spectra of a mzML file by id or index.
+ *
+ * The index of the spectra is built by {@link MzMlIndexScanner} without unmarshalling the
+ * spectra. A spectrum is read by cutting its element out of the file with the index and
+ * decoding it with the {@link MzMlSpectrumDecoder}, so the file is never read as a whole.
  *
  * @author jg
  * @author ypriverol
  */
+@Slf4j
 public class MzMlIndexedReader implements MzReader, MzIterableReader {
 
-    private HashMap<String, psidev.psi.tools.xxindex.index.IndexElement> idToIndexElementMap;
-    private HashMap<Integer, List<psidev.psi.tools.xxindex.index.IndexElement>> msNScans;
+    /**
+     * Index of the spectra, the spectra's ids are
+     * used as ids and unknown MS levels are -1.
+     */
+    private SpectrumIndex index;
+
+    /**
+     * Format of the {@link IndexFile}s written for mzML files.
+     */
+    private static final String INDEX_FORMAT = "mzml";
 
     private Iterator<String> idIterator;
+
+    /**
+     * Cache of the spectra read from the file, null if the spectra are not cached
+     */
+    private transient volatile SpectrumCache spectrumCache;
+    /**
+     * The parts of the spectra converted from the unmarshalled spectra.
+     */
+    private SpectrumFields spectrumFields = SpectrumFields.ALL;
+    /**
+     * The filter on the header of the spectra returned by {@link #next()}, null to return all spectra.
+     */
+    private SpectrumFilter spectrumFilter;
+    /**
+     * The next spectrum accepted by the filter, null if it was not read yet.
+     */
+    private Spectrum nextAccepted;
     /**
      * MzML cvParams to be used to extract
      * required parameters from the spectra.
@@ -49,15 +95,25 @@ public class MzMlIndexedReader implements MzReader, MzIterableReader {
     }
 
     /**
-     * The unmarshaller to use to unmarshall
-     * the mzML objects.
+     * The mzML file.
      */
-    private final MzMLUnmarshaller unmarshaller;
+    private final File sourceFile;
+
+    /**
+     * Decodes the spectra with the referenceableParamGroups of the file, created when the first
+     * spectrum is read.
+     */
+    private transient volatile MzMlSpectrumDecoder decoder;
+
+    /**
+     * Buffers holding the XML of the spectra while they are decoded.
+     */
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(64, 4 * 1024 * 1024);
+
     /**
-     * List of spectra found in the mzML
-     * file.
+     * Channel shared by all threads reading the spectra, opened on first use.
      */
-    private final List<String> spectraIds;
+    private transient volatile FileChannel channel;
 
     /**
      * Creates a new MzMlIndexedReader object parsing
@@ -67,56 +123,74 @@ public class MzMlIndexedReader implements MzReader, MzIterableReader {
      * @throws PgatkIOException Thrown in case the mzML file cannot be parsed correctly.
      */
     public MzMlIndexedReader(File sourcefile) throws PgatkIOException {
-        // unmarshal the file
-        try {
-            unmarshaller = new MzMLUnmarshaller(sourcefile);
-
-            // save the spectra ids
-            spectraIds = new ArrayList<>(unmarshaller.getSpectrumIDs());
+        this(sourcefile, new IndexingOptions());
+    }
 
-            //initialize spectrum maps
-            initializeSpectrumMaps();
-            idIterator = spectraIds.iterator();
+    /**
+     * Creates a new MzMlIndexedReader object parsing the passed mzML file. If the
+     * options enable index files the positions and MS levels of the spectra are
+     * read from the file's {@link IndexFile} when it is up to date.
+     *
+     * @param sourcefile The mzML file to parse.
+     * @param options    Options used to build the index
+     * @throws PgatkIOException Thrown in case the mzML file cannot be parsed correctly.
+     */
+    public MzMlIndexedReader(File sourcefile, IndexingOptions options) throws PgatkIOException {
+        this.sourceFile = sourcefile;
+
+        //initialize spectrum index
+        IndexFile indexFile = options.isUseIndexFile() ? IndexFile.read(sourcefile, INDEX_FORMAT, options) : null;
+        if (indexFile != null && indexFile.getIds() != null && indexFile.getMsLevels() != null) {
+            index = SpectrumIndex.fromIndexFile(indexFile);
+        } else {
+            index = initializeSpectrumIndex();
+            if (options.isUseIndexFile())
+                index.toIndexFile(null).write(sourcefile, INDEX_FORMAT, options);
+        }
+        idIterator = index.getIds().iterator();
+    }
 
-        } catch (RuntimeException e) {
+    /**
+     * Init spectra index for reading. Only the ids and MS levels of the spectra
+     * are read, the spectra are not unmarshalled.
+     *
+     * @return the index of the spectra
+     */
+    private SpectrumIndex initializeSpectrumIndex() throws PgatkIOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(sourceFile, "r")) {
+            long time = System.currentTimeMillis();
+            SpectrumIndex spectra = MzMlIndexScanner.scan(accessFile.getChannel());
+            log.debug("Time indexing -- " + (System.currentTimeMillis() - time));
+            return spectra;
+        } catch (IOException e) {
             throw new PgatkIOException("Failed to parse mzML file.", e);
         }
     }
 
     /**
-     * Init spectra map for reading.
+     * Returns the decoder, reading the referenceableParamGroups at the start of the file on first use.
      */
-    private void initializeSpectrumMaps() {
-
-        List<psidev.psi.tools.xxindex.index.IndexElement> spectra = unmarshaller.getMzMLIndexer().getIndexElements(MzMLElement.Spectrum.getXpath());
-
-        idToIndexElementMap = new HashMap<>(spectra.size());
-        msNScans = new HashMap<>(spectra.size());
-
-        for (psidev.psi.tools.xxindex.index.IndexElement element : spectra) {
-
-            //unmarshall spectrum
-            uk.ac.ebi.jmzml.model.mzml.Spectrum spectrum = unmarshaller.unmarshalFromIndexElement(element, uk.ac.ebi.jmzml.model.mzml.Spectrum.class);
-
-                //store id-indexElement
-            idToIndexElementMap.put(spectrum.getId(), element);
-
-            int msLevel = -1;
-            for (uk.ac.ebi.jmzml.model.mzml.CVParam param : spectrum.getCvParam()) {
-                if (param.getAccession().equals("MS:1000511")) {
-                    msLevel = Integer.parseInt(param.getValue());
+    private MzMlSpectrumDecoder getDecoder() throws PgatkIOException {
+        MzMlSpectrumDecoder current = decoder;
+        if (current != null)
+            return current;
+
+        synchronized (this) {
+            if (decoder == null) {
+                MzMlSpectrumDecoder created = new MzMlSpectrumDecoder();
+                try (InputStream input = new BufferedInputStream(new FileInputStream(sourceFile), 1 << 16)) {
+                    created.readParamGroups(input);
+                } catch (IOException | XMLStreamException e) {
+                    throw new PgatkIOException("Failed to parse mzML file.", e);
                 }
+                decoder = created;
             }
-            if (!msNScans.containsKey(msLevel))
-                msNScans.put(msLevel, new ArrayList<>());
-                msNScans.get(msLevel).add(element);
+            return decoder;
         }
-
-
     }
 
     public int getSpectraCount() {
-        return spectraIds.size();
+        return index.size();
     }
 
     public boolean acceptsFile() {
@@ -128,84 +202,187 @@ public class MzMlIndexedReader implements MzReader, MzIterableReader {
     }
 
     public List<String> getSpectraIds() {
-        return spectraIds;
+        return index.getIds();
     }
 
     public Spectrum getSpectrumById(String id) throws PgatkIOException {
-        try {
-            uk.ac.ebi.jmzml.model.mzml.Spectrum mzMlSpectrum = unmarshaller.getSpectrumById(id);
-            int index = spectraIds.indexOf(id);
+        return getSpectrumById(id, null);
+    }
+
+    /**
+     * Returns the spectrum if it is accepted by the filter. The filter is tested on the header of the
+     * spectrum, the binary data arrays of rejected spectra are not decoded.
+     *
+     * @param filter the filter or null to accept all spectra
+     * @return the spectrum or null if it is rejected
+     */
+    private Spectrum getSpectrumById(String id, SpectrumFilter filter) throws PgatkIOException {
+        SpectrumCache cache = spectrumCache;
+        if (cache != null) {
+            Spectrum cached = cache.get(this, id);
+            if (cached != null)
+                return (filter == null || filter.test(cached)) ? cached : null;
+        }
+
+        int ordinal = index.getOrdinal(id);
+        if (ordinal < 0)
+            throw new PgatkIOException("Spectrum " + id + " does not exist in the mzML file.");
+        MzMlSpectrumDecoder spectrumDecoder = getDecoder();
 
-            return new MzMLSpectrum(mzMlSpectrum, (long)index);
-        } catch (MzMLUnmarshallerException e) {
+        ByteBuffer buffer;
+        try {
+            buffer = readRegion(index.getStart(ordinal), index.getSize(ordinal));
+        } catch (IOException e) {
             throw new PgatkIOException("Failed to load spectrum " + id + " from mzML file.", e);
         }
+        Spectrum spectrum;
+        try {
+            spectrum = spectrumDecoder.decode(buffer.array(), buffer.arrayOffset(), buffer.limit(), ordinal, spectrumFields, filter);
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+        if (spectrum != null && cache != null)
+            cache.put(this, id, spectrum);
+        return spectrum;
     }
 
     public Spectrum getSpectrumByIndex(int index) throws PgatkIOException {
 
-        if (index < 1 || index > spectraIds.size())
+        if (index < 1 || index > this.index.size())
             throw new PgatkIOException("Index out of range.");
 
-        String id = spectraIds.get(index - 1);
+        String id = this.index.getId(index - 1);
 
         return getSpectrumById(id);
     }
 
+    /**
+     * Returns the XML of a spectrum as it is stored in the mzML file, without parsing it.
+     *
+     * @param index The 1-based index of the spectrum.
+     * @return A new buffer holding the bytes between 0 and its limit.
+     */
     @Override
-    public List<io.github.bigbio.pgatk.io.common.IndexElement> getMsNIndexes(
-            int msLevel) {
-        if (!msNScans.containsKey(msLevel))
-            return Collections.emptyList();
-
-        return convertIndexElements(msNScans.get(msLevel));
+    public ByteBuffer getRawSpectrumBytes(int index) throws PgatkIOException {
+        if (index < 1 || index > this.index.size())
+            throw new PgatkIOException("Index out of range.");
+        return readRawRecord(this.index.getStart(index - 1), this.index.getSize(index - 1));
     }
 
+    /**
+     * Copies the XML of the spectra to a channel as they are stored in the mzML file, without parsing them.
+     * Only the spectrum elements are copied, the caller writes the rest of the document around them.
+     *
+     * @param indexes The 1-based indexes of the spectra.
+     * @param target  The channel the spectra are written to in the order of the indexes.
+     * @return The number of bytes written.
+     */
     @Override
-    public List<Integer> getMsLevels() {
-        return new ArrayList<>(msNScans.keySet());
+    public long writeSpectra(int[] indexes, WritableByteChannel target) throws PgatkIOException {
+        int[] ordinals = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            ordinals[i] = indexes[i] - 1;
+        try {
+            return RecordSubsetWriter.write(this.index, ordinals, 0, getChannel(), target);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mzML file.", e);
+        }
     }
 
-    @Override
-    public Map<String, io.github.bigbio.pgatk.io.common.IndexElement> getIndexElementForIds() {
-        Map<String, io.github.bigbio.pgatk.io.common.IndexElement> idToIndex =
-                new HashMap<>(idToIndexElementMap.size());
-
-        for (Map.Entry<String, IndexElement> stringIndexElementEntry : idToIndexElementMap.entrySet()) {
-            psidev.psi.tools.xxindex.index.IndexElement e = stringIndexElementEntry.getValue();
-            int size = (int) (e.getStop() - e.getStart());
-            idToIndex.put(stringIndexElementEntry.getKey(), new IndexElementImpl(e.getStart(), size));
+    /**
+     * Reads a region of the file into a buffer of the {@link #BUFFER_POOL}.
+     */
+    private ByteBuffer readRegion(long start, int length) throws IOException {
+        try {
+            return BUFFER_POOL.read(getChannel(), start, length);
+        } catch (ClosedChannelException e) {
+            // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return BUFFER_POOL.read(getChannel(), start, length);
         }
-
-        return idToIndex;
     }
 
     /**
-     * Converts a list of xxindex IndexElementS to a
-     * list of JMzReader IndexElementS.
-     *
-     * @param index
-     * @return
+     * Reads a record of the file into a new buffer, the bytes are read directly into it.
      */
-    private List<io.github.bigbio.pgatk.io.common.IndexElement> convertIndexElements(List<psidev.psi.tools.xxindex.index.IndexElement> index) {
-        List<io.github.bigbio.pgatk.io.common.IndexElement> convertedIndex =
-                new ArrayList<>(index.size());
+    private ByteBuffer readRawRecord(long start, int size) throws PgatkIOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        try {
+            try {
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            } catch (ClosedChannelException e) {
+                // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+                buffer.clear();
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            }
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mzML file.", e);
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-        for (psidev.psi.tools.xxindex.index.IndexElement e : index) {
-            int size = (int) (e.getStop() - e.getStart());
-            convertedIndex.add(new IndexElementImpl(e.getStart(), size));
+    /**
+     * Returns the channel shared by all threads, (re)opening it if needed.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen())
+            return current;
+
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(sourceFile, "r").getChannel();
+            return channel;
         }
+    }
 
-        return convertedIndex;
+    @Override
+    public List<IndexElement> getMsNIndexes(
+            int msLevel) {
+        return index.getIndexElements(msLevel);
+    }
+
+    @Override
+    public List<Integer> getMsLevels() {
+        return index.getMsLevels();
+    }
+
+    @Override
+    public Map<String, IndexElement> getIndexElementForIds() {
+        return index.getIndexElementForIds();
+    }
+
+    @Override
+    public SpectrumIndex getSpectrumIndex() {
+        return index;
     }
 
     @Override
     public boolean hasNext() {
+        if (spectrumFilter == null && nextAccepted == null)
             return idIterator.hasNext();
+        try {
+            while (nextAccepted == null && idIterator.hasNext())
+                nextAccepted = getSpectrumById(idIterator.next(), spectrumFilter);
+        } catch (PgatkIOException e) {
+            throw new RuntimeException("Failed to parse mzML spectrum.", e);
+        }
+        return nextAccepted != null;
     }
 
     @Override
     public Spectrum next() {
+        if (spectrumFilter != null || nextAccepted != null) {
+            if (!hasNext())
+                throw new NoSuchElementException("No more spectra in " + sourceFile);
+            Spectrum next = nextAccepted;
+            nextAccepted = null;
+            return next;
+        }
         try {
             return getSpectrumById(idIterator.next());
         } catch (PgatkIOException e) {
@@ -214,8 +391,50 @@ public class MzMlIndexedReader implements MzReader, MzIterableReader {
     }
 
     @Override
-    public void close() {
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    @Override
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
+
+    @Override
+    public void setSpectrumCache(SpectrumCache spectrumCache) {
+        if (this.spectrumCache != null && this.spectrumCache != spectrumCache)
+            this.spectrumCache.invalidate(this);
+        this.spectrumCache = spectrumCache;
+    }
+
+    @Override
+    public SpectrumFields getSpectrumFields() {
+        return spectrumFields;
+    }
+
+    @Override
+    public void setSpectrumFields(SpectrumFields fields) {
+        if (spectrumCache != null && fields != spectrumFields)
+            spectrumCache.invalidate(this);
+        this.spectrumFields = fields;
+    }
 
+    /**
+     * Removes the spectra of this reader from the cache and closes the file.
+     * Further reads reopen the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (spectrumCache != null)
+            spectrumCache.invalidate(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore exceptions
+            }
+            channel = null;
+        }
     }
 
 
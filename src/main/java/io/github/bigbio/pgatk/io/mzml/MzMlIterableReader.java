@@ -0,0 +1,131 @@
+package io.github.bigbio.pgatk.io.mzml;
+
+import io.github.bigbio.pgatk.io.common.MzIterableReader;
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * Forward-only reader of the spectra of a mzML file.
+ *
+ * The file is read with a StAX pull parser and the spectra are decoded by the {@link MzMlSpectrumDecoder},
+ * no jmzml object is created. The buffers used for decoding are reused from one spectrum to the next, so
+ * memory does not depend on the size of the file.
+ * A {@link SpectrumFilter} is tested before the binary data arrays, they are not decoded for rejected spectra.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+public class MzMlIterableReader implements MzIterableReader {
+
+    /**
+     * Source File containing all the spectra.
+     */
+    private final File sourceFile;
+
+    private transient InputStream input;
+
+    private transient XMLStreamReader reader;
+
+    /** Decodes the spectra with the referenceableParamGroups read from the file */
+    private final transient MzMlSpectrumDecoder decoder = new MzMlSpectrumDecoder();
+
+    /** The spectrum returned by the next call to {@link #next()}, null if not read yet */
+    private transient MzMLSpectrum nextSpectrum;
+
+    private boolean finished = false;
+
+    private long specIndex = 1;
+
+    /** The filter on the header of the spectra, null to read all spectra */
+    private SpectrumFilter spectrumFilter;
+
+    public MzMlIterableReader(File file) throws PgatkIOException {
+        this.sourceFile = file;
+        try {
+            input = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            reader = MzMlSpectrumDecoder.createReader(input);
+        } catch (IOException | XMLStreamException e) {
+            throw new PgatkIOException("Error reading the following file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextSpectrum != null)
+            return true;
+        if (finished)
+            return false;
+
+        try {
+            nextSpectrum = readNextSpectrum();
+        } catch (XMLStreamException | PgatkIOException e) {
+            finished = true;
+            throw new RuntimeException("Failed to parse mzML spectrum from " + sourceFile, e);
+        }
+        finished = nextSpectrum == null;
+        return !finished;
+    }
+
+    @Override
+    public Spectrum next() throws NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException("No more spectra in " + sourceFile);
+        Spectrum spectrum = nextSpectrum;
+        nextSpectrum = null;
+        return spectrum;
+    }
+
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    @Override
+    public void close() throws PgatkIOException {
+        finished = true;
+        try {
+            reader.close();
+            input.close();
+        } catch (XMLStreamException | IOException e) {
+            throw new PgatkIOException("The following file can't be close -- " + sourceFile, e);
+        }
+    }
+
+    /**
+     * Moves to the next spectrum and reads it.
+     *
+     * @return the spectrum or null if there are no more spectra
+     */
+    private MzMLSpectrum readNextSpectrum() throws XMLStreamException, PgatkIOException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("spectrum".equals(name)) {
+                    MzMLSpectrum spectrum = decoder.readSpectrum(reader, specIndex++, SpectrumFields.ALL, spectrumFilter);
+                    if (spectrum != null)
+                        return spectrum;
+                }
+                if ("referenceableParamGroup".equals(name))
+                    decoder.readParamGroup(reader);
+            } else if (event == XMLStreamConstants.END_ELEMENT && "spectrumList".equals(reader.getLocalName())) {
+                // only chromatograms and the index follow
+                return null;
+            }
+        }
+        return null;
+    }
+}
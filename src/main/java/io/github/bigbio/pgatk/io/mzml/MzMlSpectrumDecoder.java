@@ -0,0 +1,508 @@
+package io.github.bigbio.pgatk.io.mzml;
+
+import io.github.bigbio.pgatk.io.common.CvParam;
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import io.github.bigbio.pgatk.io.utils.msnumpress.MSNumpress;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes mzML spectrum elements with a StAX pull parser, without creating jmzml objects. It is used by
+ * the {@link MzMlIterableReader} on the whole file and by the {@link MzMlIndexedReader} on the bytes of
+ * single spectra cut out of the file with its index.
+ *
+ * The binary data arrays are decoded while their text is read: base64, zlib and MS-Numpress (linear, pic
+ * and slof, with or without zlib) are supported and the values are written straight into primitive arrays.
+ * The decoding buffers are kept per thread and reused from one spectrum to the next.
+ *
+ * @author ypriverol
+ */
+final class MzMlSpectrumDecoder {
+
+    private static final String MZ_ARRAY = "MS:1000514";
+    private static final String INTENSITY_ARRAY = "MS:1000515";
+
+    private static final String FLOAT_32 = "MS:1000521";
+    private static final String FLOAT_64 = "MS:1000523";
+    private static final String INTEGER_32 = "MS:1000519";
+    private static final String INTEGER_64 = "MS:1000522";
+
+    private static final String ZLIB = "MS:1000574";
+    private static final String NUMPRESS_LINEAR_ZLIB = "MS:1002746";
+    private static final String NUMPRESS_PIC_ZLIB = "MS:1002747";
+    private static final String NUMPRESS_SLOF_ZLIB = "MS:1002748";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    /** The buffers decoding the binary data arrays, one per thread */
+    private static final ThreadLocal<BinaryDecoder> BINARY_DECODERS = ThreadLocal.withInitial(BinaryDecoder::new);
+
+    /**
+     * The cvParams of the referenceableParamGroups with the groups' ids as keys.
+     */
+    private final Map<String, List<CvParam>> paramGroups = new HashMap<>();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Creates a pull parser over mzML text.
+     */
+    static XMLStreamReader createReader(InputStream input) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(input);
+    }
+
+    /**
+     * Reads the referenceableParamGroups at the start of a mzML file, the file is read up to its run element.
+     *
+     * @param input the mzML file
+     */
+    void readParamGroups(InputStream input) throws XMLStreamException {
+        XMLStreamReader reader = createReader(input);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                String name = reader.getLocalName();
+                if ("referenceableParamGroup".equals(name))
+                    readParamGroup(reader);
+                else if ("run".equals(name) || "spectrumList".equals(name))
+                    return;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decodes a spectrum element cut out of a mzML file.
+     *
+     * @param xml    the bytes holding the spectrum element
+     * @param index  the index of the spectrum in the file
+     * @param fields the parts of the spectrum to read
+     * @param filter the filter tested before the binary data arrays or null to read all spectra
+     * @return the spectrum or null if it is rejected by the filter
+     */
+    MzMLSpectrum decode(byte[] xml, int offset, int length, long index, SpectrumFields fields, SpectrumFilter filter)
+            throws PgatkIOException {
+        try {
+            XMLStreamReader reader = createReader(new ByteArrayInputStream(xml, offset, length));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "spectrum".equals(reader.getLocalName()))
+                        return readSpectrum(reader, index, fields, filter);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new PgatkIOException("Failed to parse mzML spectrum " + index, e);
+        }
+        throw new PgatkIOException("No spectrum element found for spectrum " + index);
+    }
+
+    /**
+     * Reads the referenceableParamGroup the reader is positioned at, its cvParams are used by the
+     * referenceableParamGroupRefs of the spectra decoded afterwards.
+     */
+    void readParamGroup(XMLStreamReader reader) throws XMLStreamException {
+        List<CvParam> params = new ArrayList<>();
+        paramGroups.put(reader.getAttributeValue(null, "id"), params);
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("cvParam".equals(reader.getLocalName()))
+                    params.add(readCvParam(reader));
+                else if ("userParam".equals(reader.getLocalName()))
+                    params.add(new CvParam(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"), null, null));
+            } else if (event == XMLStreamConstants.END_ELEMENT && "referenceableParamGroup".equals(reader.getLocalName())) {
+                return;
+            }
+        }
+    }
+
+    private static CvParam readCvParam(XMLStreamReader reader) {
+        return new CvParam(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"),
+                reader.getAttributeValue(null, "cvRef"), reader.getAttributeValue(null, "accession"));
+    }
+
+    /**
+     * Reads the spectrum the reader is positioned at, the reader is left at the end of the spectrum.
+     *
+     * @param index  the index of the spectrum in the file
+     * @param fields the parts of the spectrum to read, the binary data arrays are skipped if the peaks are not selected
+     * @param filter the filter tested before the binary data arrays or null to read all spectra
+     * @return the spectrum or null if it is rejected by the filter
+     */
+    MzMLSpectrum readSpectrum(XMLStreamReader reader, long index, SpectrumFields fields, SpectrumFilter filter)
+            throws XMLStreamException, PgatkIOException {
+        BinaryDecoder decoder = BINARY_DECODERS.get();
+        String id = reader.getAttributeValue(null, "id");
+        int defaultArrayLength = parseInt(reader.getAttributeValue(null, "defaultArrayLength"), 0);
+
+        List<CvParam> params = new ArrayList<>();
+        Integer msLevel = null;
+        Double precursorMz = null;
+        Double precursorIntensity = null;
+        Integer charge = null;
+        double[] mz = null;
+        double[] intensity = null;
+
+        int depth = 0;
+        int precursors = 0;
+        int selectedIons = 0;
+        boolean inSelectedIon = false;
+        BinaryArray array = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = reader.getLocalName();
+                depth--;
+                if ("spectrum".equals(name)) {
+                    break;
+                } else if ("selectedIon".equals(name)) {
+                    inSelectedIon = false;
+                } else if ("binaryDataArray".equals(name)) {
+                    array = null;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            depth++;
+            String name = reader.getLocalName();
+
+            if ("cvParam".equals(name) || "userParam".equals(name) || "referenceableParamGroupRef".equals(name)) {
+                List<CvParam> found;
+                if ("cvParam".equals(name))
+                    found = Collections.singletonList(readCvParam(reader));
+                else if ("userParam".equals(name))
+                    found = Collections.singletonList(new CvParam(reader.getAttributeValue(null, "name"), reader.getAttributeValue(null, "value"), null, null));
+                else
+                    found = paramGroups.getOrDefault(reader.getAttributeValue(null, "ref"), Collections.emptyList());
+
+                for (CvParam param : found) {
+                    String accession = param.getAccession();
+                    if (array != null) {
+                        array.apply(accession);
+                    } else if (inSelectedIon && accession != null) {
+                        if (accession.equals(MzMlIndexedReader.MZML_PARAMS.SELECTED_MZ.getAccess()))
+                            precursorMz = Double.parseDouble(param.getValue());
+                        else if (accession.equals(MzMlIndexedReader.MZML_PARAMS.PEAK_INTENSITY.getAccess()))
+                            precursorIntensity = Double.parseDouble(param.getValue());
+                        else if (accession.equals(MzMlIndexedReader.MZML_PARAMS.CHARGE_STATE.getAccess()))
+                            charge = Integer.parseInt(param.getValue());
+                    } else if (depth == 1) {
+                        if (fields.hasParams())
+                            params.add(param);
+                        if (MzMlIndexedReader.MZML_PARAMS.MS_LEVEL.getAccess().equals(accession))
+                            msLevel = Integer.parseInt(param.getValue());
+                    }
+                }
+            } else if ("precursor".equals(name)) {
+                precursors++;
+            } else if ("selectedIon".equals(name)) {
+                // only the first selected ion of the first precursor is used
+                inSelectedIon = precursors == 1 && ++selectedIons == 1;
+            } else if ("binaryDataArrayList".equals(name)) {
+                // the header is read, the arrays of a rejected spectrum are skipped
+                if (filter != null && !filter.accept(msLevel, charge, precursorMz)) {
+                    skipSpectrum(reader);
+                    return null;
+                }
+                if (!fields.hasPeaks()) {
+                    skipSpectrum(reader);
+                    break;
+                }
+            } else if ("binaryDataArray".equals(name)) {
+                array = new BinaryArray(parseInt(reader.getAttributeValue(null, "arrayLength"), defaultArrayLength));
+            } else if ("binary".equals(name) && array != null) {
+                decoder.readBase64(reader);
+                depth--;
+                if (array.type == ArrayType.MZ)
+                    mz = decoder.decode(array, id);
+                else if (array.type == ArrayType.INTENSITY)
+                    intensity = decoder.decode(array, id);
+            }
+        }
+
+        if (filter != null && !filter.accept(msLevel, charge, precursorMz))
+            return null;
+
+        PeakArrays peaks;
+        if (mz == null || intensity == null) {
+            peaks = new PeakArrays(0);
+        } else if (mz.length != intensity.length) {
+            throw new PgatkIOException("Different sizes for m/z and intensity value arrays for spectrum " + id);
+        } else {
+            peaks = new PeakArrays(mz, intensity).seal();
+        }
+
+        return new MzMLSpectrum(id, index, charge, precursorMz, precursorIntensity, msLevel, peaks, params);
+    }
+
+    /**
+     * Moves to the end of the current spectrum without decoding its content.
+     */
+    private static void skipSpectrum(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.END_ELEMENT && "spectrum".equals(reader.getLocalName()))
+                return;
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private enum ArrayType {MZ, INTENSITY, OTHER}
+
+    /**
+     * Encoding of a binaryDataArray, set from its cvParams.
+     */
+    private static final class BinaryArray {
+
+        private final int length;
+
+        private ArrayType type = ArrayType.OTHER;
+
+        /** Number of bytes per value, 4 or 8 */
+        private int valueSize = 8;
+
+        private boolean integer = false;
+
+        private boolean zlib = false;
+
+        /** MS-Numpress accession without zlib or null if the values are not numpress encoded */
+        private String numpress;
+
+        private BinaryArray(int length) {
+            this.length = length;
+        }
+
+        private void apply(String accession) {
+            if (accession == null)
+                return;
+            switch (accession) {
+                case MZ_ARRAY:
+                    type = ArrayType.MZ;
+                    break;
+                case INTENSITY_ARRAY:
+                    type = ArrayType.INTENSITY;
+                    break;
+                case FLOAT_32:
+                    valueSize = 4;
+                    integer = false;
+                    break;
+                case FLOAT_64:
+                    valueSize = 8;
+                    integer = false;
+                    break;
+                case INTEGER_32:
+                    valueSize = 4;
+                    integer = true;
+                    break;
+                case INTEGER_64:
+                    valueSize = 8;
+                    integer = true;
+                    break;
+                case ZLIB:
+                    zlib = true;
+                    break;
+                case MSNumpress.ACC_NUMPRESS_LINEAR:
+                case MSNumpress.ACC_NUMPRESS_PIC:
+                case MSNumpress.ACC_NUMPRESS_SLOF:
+                    numpress = accession;
+                    break;
+                case NUMPRESS_LINEAR_ZLIB:
+                    numpress = MSNumpress.ACC_NUMPRESS_LINEAR;
+                    zlib = true;
+                    break;
+                case NUMPRESS_PIC_ZLIB:
+                    numpress = MSNumpress.ACC_NUMPRESS_PIC;
+                    zlib = true;
+                    break;
+                case NUMPRESS_SLOF_ZLIB:
+                    numpress = MSNumpress.ACC_NUMPRESS_SLOF;
+                    zlib = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decodes the text of binary elements. The buffers grow to the largest array and are reused.
+     */
+    private static final class BinaryDecoder {
+
+        private static final int[] BASE64 = new int[128];
+
+        static {
+            Arrays.fill(BASE64, -1);
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); i++)
+                BASE64[alphabet.charAt(i)] = i;
+        }
+
+        private final Inflater inflater = new Inflater();
+
+        private byte[] decoded = new byte[64 * 1024];
+
+        private int decodedLength;
+
+        private byte[] inflated = new byte[64 * 1024];
+
+        /**
+         * Decodes the base64 text of the current binary element, the reader is left at its end.
+         */
+        private void readBase64(XMLStreamReader reader) throws XMLStreamException {
+            decodedLength = 0;
+            int bits = 0;
+            int bitCount = 0;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT)
+                    return;
+                if (event != XMLStreamConstants.CHARACTERS && event != XMLStreamConstants.CDATA)
+                    continue;
+
+                char[] text = reader.getTextCharacters();
+                int end = reader.getTextStart() + reader.getTextLength();
+                if (decoded.length - decodedLength < reader.getTextLength())
+                    decoded = Arrays.copyOf(decoded, Math.max(decoded.length * 2, decodedLength + reader.getTextLength()));
+
+                for (int i = reader.getTextStart(); i < end; i++) {
+                    char c = text[i];
+                    int value = (c < 128) ? BASE64[c] : -1;
+                    if (value < 0)
+                        continue; // whitespace and padding
+                    bits = (bits << 6) | value;
+                    bitCount += 6;
+                    if (bitCount >= 8) {
+                        bitCount -= 8;
+                        decoded[decodedLength++] = (byte) (bits >> bitCount);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Converts the decoded bytes into values.
+         */
+        private double[] decode(BinaryArray array, String id) throws PgatkIOException {
+            byte[] data = decoded;
+            int length = decodedLength;
+
+            if (array.zlib) {
+                length = inflate(id, array.numpress != null ? 0 : array.length * array.valueSize);
+                data = inflated;
+            }
+
+            if (array.numpress != null)
+                return decodeNumpress(array.numpress, data, length, id);
+
+            int count = length / array.valueSize;
+            double[] values = new double[count];
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+            if (array.valueSize == 8 && !array.integer) {
+                buffer.asDoubleBuffer().get(values);
+            } else if (array.valueSize == 8) {
+                for (int i = 0; i < count; i++)
+                    values[i] = buffer.getLong(i << 3);
+            } else if (!array.integer) {
+                for (int i = 0; i < count; i++)
+                    values[i] = buffer.getFloat(i << 2);
+            } else {
+                for (int i = 0; i < count; i++)
+                    values[i] = buffer.getInt(i << 2);
+            }
+            return values;
+        }
+
+        /**
+         * Inflates the decoded bytes, the whole zlib stream must be present.
+         *
+         * @param expectedSize the expected number of bytes, 0 if not known
+         * @return the number of inflated bytes
+         */
+        private int inflate(String id, int expectedSize) throws PgatkIOException {
+            if (inflated.length < expectedSize)
+                inflated = new byte[expectedSize];
+
+            inflater.reset();
+            inflater.setInput(decoded, 0, decodedLength);
+            int length = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (length == inflated.length)
+                        inflated = Arrays.copyOf(inflated, inflated.length * 2);
+                    int n = inflater.inflate(inflated, length, inflated.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new PgatkIOException("Truncated zlib compressed binary data in spectrum " + id);
+                    length += n;
+                }
+            } catch (DataFormatException e) {
+                throw new PgatkIOException("Invalid zlib compressed binary data in spectrum " + id, e);
+            }
+            return length;
+        }
+
+        private static double[] decodeNumpress(String accession, byte[] data, int length, String id) throws PgatkIOException {
+            double[] values;
+            int count;
+            switch (accession) {
+                case MSNumpress.ACC_NUMPRESS_LINEAR:
+                    values = new double[length * 2];
+                    count = MSNumpress.decodeLinear(data, length, values);
+                    break;
+                case MSNumpress.ACC_NUMPRESS_PIC:
+                    values = new double[length * 2];
+                    count = MSNumpress.decodePic(data, length, values);
+                    break;
+                default:
+                    values = new double[Math.max(0, (length - 8) / 2)];
+                    count = MSNumpress.decodeSlof(data, length, values);
+                    break;
+            }
+            if (count < 0)
+                throw new PgatkIOException("Invalid MS-Numpress binary data in spectrum " + id);
+            return (count == values.length) ? values : Arrays.copyOf(values, count);
+        }
+    }
+}
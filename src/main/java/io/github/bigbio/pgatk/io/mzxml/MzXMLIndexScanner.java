@@ -0,0 +1,426 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.IndexFile;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Builds the index of the level 1 and level 2 scans of a mzXML file without XPath indexing.
+ *
+ * The positions of the scans are taken from the {@code <index name="scan">} block that {@code <indexOffset>}
+ * points to. Only the start tag of every scan and the few bytes between its peaks and the next scan are read,
+ * the "&lt;/scan&gt;" tags found there give the nesting of the scans and their end. Files without index, or
+ * whose index does not match the scans, are scanned once: only the tags are decoded, the base64 encoded
+ * peaks are skipped byte by byte.
+ *
+ * The returned index holds all level 1 scans followed by all level 2 scans in file order, scans without
+ * num have a null id and scans without msLevel the MS level 0. The only metadata is the number of level 1 scans.
+ *
+ * @author ypriverol
+ */
+@Slf4j
+final class MzXMLIndexScanner {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Number of bytes read at a time at the beginning or the end of a scan */
+    private static final int CHUNK_SIZE = 1024;
+
+    /** Number of bytes at the end of the file searched for the index offset */
+    private static final int TAIL_SIZE = 4 * 1024;
+
+    private static final String SCAN_END = "</scan>";
+
+    private static final String PEAKS_END = "</peaks>";
+
+    private MzXMLIndexScanner() {
+    }
+
+    /**
+     * @param channel the mzXML file
+     * @return the index of the scans
+     */
+    static IndexFile scan(FileChannel channel) throws IOException {
+        IndexFile index = readScanIndex(channel);
+        if (index != null)
+            return index;
+        return scanScans(channel);
+    }
+
+    /**
+     * Reads the positions of the scans from the scan index of the file.
+     *
+     * @return the index or null if the file has no index or it does not match the scans
+     */
+    static IndexFile readScanIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        String tail = read(channel, Math.max(0, size - TAIL_SIZE), (int) Math.min(size, TAIL_SIZE));
+        int start = tail.lastIndexOf("<indexOffset>");
+        int end = tail.indexOf("</indexOffset>", start + 1);
+        if (start < 0 || end < 0)
+            return null;
+
+        long indexOffset;
+        try {
+            indexOffset = Long.parseLong(tail.substring(start + "<indexOffset>".length(), end).trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid indexOffset of mzXML file");
+            return null;
+        }
+        if (indexOffset <= 0 || indexOffset >= size)
+            return null;
+
+        String[] ids = new String[1024];
+        long[] offsets = new long[1024];
+        int count = 0;
+
+        // the stream is not closed as this would close the channel
+        InputStream input = new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset)), 1 << 16);
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+            boolean inScanIndex = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("index".equals(reader.getLocalName())) {
+                        inScanIndex = "scan".equals(reader.getAttributeValue(null, "name"));
+                    } else if (inScanIndex && "offset".equals(reader.getLocalName())) {
+                        if (count == ids.length) {
+                            ids = Arrays.copyOf(ids, count * 2);
+                            offsets = Arrays.copyOf(offsets, count * 2);
+                        }
+                        ids[count] = reader.getAttributeValue(null, "id");
+                        offsets[count] = Long.parseLong(reader.getElementText().trim());
+                        count++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && inScanIndex && "index".equals(reader.getLocalName())) {
+                    break;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException | NumberFormatException e) {
+            log.warn("Ignoring invalid scan index of mzXML file: " + e.getMessage());
+            return null;
+        }
+        if (count == 0)
+            return null;
+
+        Scans scans = new Scans(count);
+        for (int i = 0; i < count; i++) {
+            long offset = offsets[i];
+            if (offset < 0 || offset >= indexOffset || (i > 0 && offset <= offsets[i - 1]))
+                return invalidScanIndex();
+
+            String tag = readStartTag(channel, offset);
+            if (tag == null || ids[i] == null || !"scan".equals(tagName(tag)) || !ids[i].equals(attribute(tag, "num")))
+                return invalidScanIndex();
+            if (!scans.start(offset, ids[i], msLevel(tag)))
+                return invalidScanIndex();
+
+            // the scans ending before the next one are closed at the end of the region
+            long regionEnd = (i + 1 < count) ? offsets[i + 1] : indexOffset;
+            if (tag.endsWith("/>")) {
+                scans.end(offset + tag.length());
+                continue;
+            }
+            if (!closeScans(channel, scans, offset + tag.length(), regionEnd))
+                return invalidScanIndex();
+        }
+
+        return scans.isComplete() ? scans.build() : invalidScanIndex();
+    }
+
+    private static IndexFile invalidScanIndex() {
+        log.warn("The scan index of the mzXML file does not match the scans, scanning the file");
+        return null;
+    }
+
+    /**
+     * Closes the scans whose end tags are found between the end of the scan's peaks and the end of the region.
+     *
+     * @return false if more scans are closed than open
+     */
+    private static boolean closeScans(FileChannel channel, Scans scans, long regionStart, long regionEnd) throws IOException {
+        // read backwards until the end of the peaks, only the scan end tags can follow them
+        int length = (int) Math.min(CHUNK_SIZE, regionEnd - regionStart);
+        String region;
+        while (true) {
+            region = read(channel, regionEnd - length, length);
+            if (region.contains(PEAKS_END) || length == regionEnd - regionStart)
+                break;
+            length = (int) Math.min(length * 2L, regionEnd - regionStart);
+        }
+
+        long regionOffset = regionEnd - length;
+        int peaksEnd = region.lastIndexOf(PEAKS_END);
+        for (int index = region.indexOf(SCAN_END, Math.max(peaksEnd, 0)); index >= 0; index = region.indexOf(SCAN_END, index + 1)) {
+            if (!scans.end(regionOffset + index + SCAN_END.length()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Scans the whole file for the scans.
+     */
+    static IndexFile scanScans(FileChannel channel) throws IOException {
+        Scans scans = new Scans(1024);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+
+        byte[] tag = new byte[256];
+        int tagLength = -1; // -1 outside of tags
+        long tagStart = 0;
+
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                if (tagLength < 0) {
+                    if (b == '<') {
+                        tagLength = 0;
+                        tagStart = position + i;
+                        tag[tagLength++] = b;
+                    }
+                    continue;
+                }
+
+                if (tagLength == tag.length)
+                    tag = Arrays.copyOf(tag, tag.length * 2);
+                tag[tagLength++] = b;
+                if (b != '>')
+                    continue;
+
+                String name = tagName(tag, tagLength);
+                if ("scan".equals(name)) {
+                    String text = new String(tag, 0, tagLength, StandardCharsets.UTF_8);
+                    scans.start(tagStart, attribute(text, "num"), msLevel(text));
+                    if (text.endsWith("/>"))
+                        scans.end(position + i + 1);
+                } else if ("/scan".equals(name)) {
+                    scans.end(position + i + 1);
+                } else if ("/msRun".equals(name)) {
+                    // only the index follows
+                    return scans.build();
+                }
+                tagLength = -1;
+            }
+            position += read;
+            buffer.clear();
+        }
+
+        return scans.build();
+    }
+
+    /**
+     * Reads the start tag of the element at the offset.
+     *
+     * @return the tag or null if the offset does not point to a complete tag
+     */
+    private static String readStartTag(FileChannel channel, long offset) throws IOException {
+        StringBuilder tag = new StringBuilder(CHUNK_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        long position = offset;
+
+        while (tag.length() < BUFFER_SIZE) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                return null;
+            position += read;
+
+            int searchFrom = tag.length();
+            tag.append(new String(buffer.array(), 0, read, StandardCharsets.ISO_8859_1));
+            int end = tag.indexOf(">", searchFrom);
+            if (end >= 0)
+                return (tag.charAt(0) == '<') ? tag.substring(0, end + 1) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the msLevel attribute of a scan tag or 0 if it has none
+     */
+    private static int msLevel(String tag) {
+        String value = attribute(tag, "msLevel");
+        if (value == null)
+            return 0;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of mzXML file");
+        }
+        return new String(buffer.array(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the name of a tag, starting with '/' for end tags
+     */
+    private static String tagName(byte[] tag, int length) {
+        int end = 1;
+        while (end < length && tag[end] != ' ' && tag[end] != '\t' && tag[end] != '\r' && tag[end] != '\n'
+                && tag[end] != '>' && (tag[end] != '/' || end == 1))
+            end++;
+        return new String(tag, 1, end - 1, StandardCharsets.US_ASCII);
+    }
+
+    private static String tagName(String tag) {
+        byte[] bytes = tag.getBytes(StandardCharsets.ISO_8859_1);
+        return tagName(bytes, bytes.length);
+    }
+
+    /**
+     * @return the value of an attribute of a tag or null if the tag does not have the attribute
+     */
+    static String attribute(String tag, String name) {
+        int from = 0;
+        while (true) {
+            int index = tag.indexOf(name, from);
+            if (index < 0)
+                return null;
+            from = index + name.length();
+
+            // the name must be a whole attribute name followed by '='
+            if (!Character.isWhitespace(tag.charAt(index - 1)))
+                continue;
+            int equals = from;
+            while (equals < tag.length() && Character.isWhitespace(tag.charAt(equals)))
+                equals++;
+            if (equals >= tag.length() || tag.charAt(equals) != '=')
+                continue;
+            int quote = equals + 1;
+            while (quote < tag.length() && Character.isWhitespace(tag.charAt(quote)))
+                quote++;
+            if (quote >= tag.length())
+                return null;
+            int end = tag.indexOf(tag.charAt(quote), quote + 1);
+            return (end < 0) ? null : tag.substring(quote + 1, end);
+        }
+    }
+
+    /**
+     * Collects the scans while their nesting is tracked.
+     */
+    private static final class Scans {
+
+        private long[] starts;
+
+        private int[] sizes;
+
+        private byte[] msLevels;
+
+        private String[] nums;
+
+        private byte[] depths;
+
+        private int count = 0;
+
+        /** Scans that are not closed yet */
+        private int[] open = new int[8];
+
+        private int openCount = 0;
+
+        private Scans(int capacity) {
+            starts = new long[capacity];
+            sizes = new int[capacity];
+            msLevels = new byte[capacity];
+            nums = new String[capacity];
+            depths = new byte[capacity];
+        }
+
+        /**
+         * @return false if the scan is nested too deeply
+         */
+        private boolean start(long start, String num, int msLevel) {
+            if (openCount == Byte.MAX_VALUE)
+                return false;
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                msLevels = Arrays.copyOf(msLevels, count * 2);
+                nums = Arrays.copyOf(nums, count * 2);
+                depths = Arrays.copyOf(depths, count * 2);
+            }
+            if (openCount == open.length)
+                open = Arrays.copyOf(open, openCount * 2);
+
+            starts[count] = start;
+            sizes[count] = -1;
+            msLevels[count] = (byte) msLevel;
+            nums[count] = num;
+            depths[count] = (byte) (openCount + 1);
+            open[openCount++] = count++;
+            return true;
+        }
+
+        /**
+         * @return false if no scan is open
+         */
+        private boolean end(long end) {
+            if (openCount == 0)
+                return false;
+            int scan = open[--openCount];
+            sizes[scan] = (int) (end - starts[scan]);
+            return true;
+        }
+
+        private boolean isComplete() {
+            return openCount == 0;
+        }
+
+        private IndexFile build() {
+            int level1Count = 0;
+            int level2Count = 0;
+            for (int i = 0; i < count; i++) {
+                if (sizes[i] < 0)
+                    continue;
+                if (depths[i] == 1)
+                    level1Count++;
+                else if (depths[i] == 2)
+                    level2Count++;
+            }
+
+            long[] offsets = new long[level1Count + level2Count];
+            int[] scanSizes = new int[offsets.length];
+            byte[] scanMsLevels = new byte[offsets.length];
+            String[] ids = new String[offsets.length];
+            int level1 = 0;
+            int level2 = level1Count;
+            for (int i = 0; i < count; i++) {
+                if (sizes[i] < 0 || depths[i] > 2)
+                    continue;
+                int ordinal = (depths[i] == 1) ? level1++ : level2++;
+                offsets[ordinal] = starts[i];
+                scanSizes[ordinal] = sizes[i];
+                scanMsLevels[ordinal] = msLevels[i];
+                ids[ordinal] = nums[i];
+            }
+
+            return new IndexFile(offsets, scanSizes, scanMsLevels, ids, Collections.singletonList(String.valueOf(level1Count)));
+        }
+    }
+}
@@ -5,28 +5,41 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
-import io.github.bigbio.pgatk.io.common.IndexElementImpl;
+import io.github.bigbio.pgatk.io.common.ByteBufferPool;
+import io.github.bigbio.pgatk.io.common.CoalescedRangeReader;
+import io.github.bigbio.pgatk.io.common.IndexElement;
+import io.github.bigbio.pgatk.io.common.IndexFile;
+import io.github.bigbio.pgatk.io.common.IndexingOptions;
 import io.github.bigbio.pgatk.io.common.MzReader;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.RecordSubsetWriter;
+import io.github.bigbio.pgatk.io.common.SpectrumCache;
+import io.github.bigbio.pgatk.io.common.SpectrumIndex;
 import io.github.bigbio.pgatk.io.mzxml.mzxml.unmarshaller.MzXMLUnmarshaller;
 import io.github.bigbio.pgatk.io.mzxml.mzxml.unmarshaller.MzXMLUnmarshallerFactory;
 import psidev.psi.tools.xxindex.StandardXpathAccess;
-import psidev.psi.tools.xxindex.index.IndexElement;
 import psidev.psi.tools.xxindex.index.XpathIndex;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 import io.github.bigbio.pgatk.io.mzxml.mzxml.model.DataProcessing;
 import io.github.bigbio.pgatk.io.mzxml.mzxml.model.MsInstrument;
 import io.github.bigbio.pgatk.io.mzxml.mzxml.model.MzXMLObject;
@@ -51,13 +64,18 @@ public class MzXMLIndexedReader implements MzReader {
      */
     private File sourcefile;
     /**
-     * The random access file object is
-     * used to read the file. This object
-     * is only opened once.
+     * Channel shared by all threads reading scans,
+     * reads are positional so no lock is needed.
+     * It is opened on first use.
      */
-    private RandomAccessFile accessFile;
+    private transient volatile FileChannel channel;
     /**
-     * The actual XPath index to use.
+     * Cache of the spectra read from the file, null if the spectra are not cached
+     */
+    private transient volatile SpectrumCache spectrumCache;
+    /**
+     * The actual XPath index to use. Only created when
+     * elements other than the scans are requested.
      */
     private XpathIndex index;
     /**
@@ -65,21 +83,15 @@ public class MzXMLIndexedReader implements MzReader {
      */
     private StandardXpathAccess xpathAccess;
     /**
-     * The indexes of all level 1
-     * scans in the mzXML file.
+     * The indexes of all level 1 scans followed by
+     * all level 2 scans in the mzXML file. Scans
+     * without msLevel attribute have the MS level 0.
      */
-    private List<IndexElement> level1ScanIndexes;
+    private SpectrumIndex scans;
     /**
-     * The indexes of all level 2
-     * scans in the mzXML file.
+     * The number of level 1 scans.
      */
-    private List<IndexElement> level2ScanIndexes;
-    /**
-     * A Map with the ms level as key and the
-     * list with associated index elements as
-     * values.
-     */
-    private Map<Integer, List<IndexElement>> msNScans;
+    private int level1ScanCount;
     /**
      * Holds the attributes of the run attribute.
      */
@@ -90,14 +102,37 @@ public class MzXMLIndexedReader implements MzReader {
      */
     private static final Pattern xmlAttributePattern = Pattern.compile("(\\w+)=\"([^\"]*)\"");
     /**
-     * Map with the spectra's num attribute as key
-     * and the corresponding IndexElement as value.
+     * Index of the scans with a num attribute sorted
+     * by num. The nums are used as ids.
      */
-    private Map<Long, IndexElement> numToIndexMap;
+    private SpectrumIndex spectrumIndex;
     /**
-     * The unmarshaller to use.
+     * The unmarshallers to use, one per thread as the unmarshaller
+     * is synchronized. Only created when the JAXB model of an
+     * mzXML element is requested.
      */
-    private MzXMLUnmarshaller unmarshaller;
+    private static final ThreadLocal<MzXMLUnmarshaller> UNMARSHALLERS =
+            ThreadLocal.withInitial(() -> MzXMLUnmarshallerFactory.getInstance().initializeUnmarshaller());
+    /**
+     * Buffers holding the XML of the scans while they are decoded.
+     */
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(64, 4 * 1024 * 1024);
+    /**
+     * The parts of the spectra decoded from the scans.
+     */
+    private SpectrumFields spectrumFields = SpectrumFields.ALL;
+    /**
+     * The filter on the header of the spectra returned by the {@link SpectrumIterator}s created afterwards.
+     */
+    private SpectrumFilter spectrumFilter;
+    /**
+     * Spectra closer than this are read at once by {@link #getSpectra(Collection)} and {@link #getScansByNum(Collection)}.
+     */
+    private int maxCoalescedGap = CoalescedRangeReader.DEFAULT_MAX_GAP;
+    /**
+     * Format of the {@link IndexFile}s written for mzXML files.
+     */
+    private static final String INDEX_FORMAT = "mzxml";
 
     /**
      * Creates a new MzXMLIndexedReader object based
@@ -107,126 +142,80 @@ public class MzXMLIndexedReader implements MzReader {
      * @throws MzXMLParsingException
      */
     public MzXMLIndexedReader(File sourcefile) throws MzXMLParsingException {
-        this.sourcefile = sourcefile;
-
-        // index the file
-        indexFile();
-
-        // create the unmarshaller
-        unmarshaller = MzXMLUnmarshallerFactory.getInstance().initializeUnmarshaller();
-
-        // save the scan indexes
-        level1ScanIndexes = index.getElements(MzXmlElement.SCAN_LEVEL1.getXpath());
-        level2ScanIndexes = index.getElements(MzXmlElement.SCAN_LEVEL2.getXpath());
-
-        // read the ms run attributes
-        readMsRunAttributes();
-
-        // build the spectra maps
-        buildSpectraMaps();
-
-        // build the MS N indexes
-        buildMsNIndexes();
+        this(sourcefile, new IndexingOptions());
     }
 
     /**
-     * Creates the maps between the spectra numbers
-     * and their IndexElements
+     * Creates a new MzXMLIndexedReader object based on the given mzXML file.
+     * The scans are read from the file's scan index, or from its {@link IndexFile}
+     * if the options enable index files and it is up to date. The file is only
+     * indexed with XPath once the other mzXML elements are requested.
+     *
+     * @param sourcefile The mzXML file to parse.
+     * @param options    Options used to build the index
+     * @throws MzXMLParsingException
      */
-    private void buildSpectraMaps() throws MzXMLParsingException {
-        // make sure the spectra indexes were loaded
-        if (level1ScanIndexes == null || level2ScanIndexes == null)
-            return;
-
-        // initialize the map
-        numToIndexMap = new HashMap<>(level1ScanIndexes.size() + level2ScanIndexes.size());
-
-        for (IndexElement indexElement : level1ScanIndexes) {
-            // get the attributes
-            Map<String, String> attributes = readElementAttributes(indexElement);
-
-            // make sure there's a num attribute
-            if (!attributes.containsKey("num"))
-                continue;
-
-            Long num = Long.parseLong(attributes.get("num"));
+    public MzXMLIndexedReader(File sourcefile, IndexingOptions options) throws MzXMLParsingException {
+        this.sourcefile = sourcefile;
 
-            numToIndexMap.put(num, indexElement);
+        IndexFile scanIndex = options.isUseIndexFile() ? IndexFile.read(sourcefile, INDEX_FORMAT, options) : null;
+        if (scanIndex == null || scanIndex.getIds() == null || scanIndex.getMsLevels() == null
+                || scanIndex.getMetadata().size() != 1) {
+            // index the scans
+            try (RandomAccessFile file = new RandomAccessFile(sourcefile, "r")) {
+                scanIndex = MzXMLIndexScanner.scan(file.getChannel());
+            } catch (IOException e) {
+                throw new MzXMLParsingException("Failed to index mzXML file.", e);
+            }
+            if (options.isUseIndexFile())
+                scanIndex.write(sourcefile, INDEX_FORMAT, options);
         }
 
-        // process the level 2 indexes
-        for (IndexElement indexElement : level2ScanIndexes) {
-            // get the attributes
-            Map<String, String> attributes = readElementAttributes(indexElement);
-
-            // make sure there's a num attribute
-            if (!attributes.containsKey("num"))
-                continue;
-
-            Long num = Long.parseLong(attributes.get("num"));
+        // read the ms run attributes
+        readMsRunAttributes();
 
-            numToIndexMap.put(num, indexElement);
-        }
+        // build the spectra maps and the MS N indexes
+        buildSpectraMaps(scanIndex);
     }
 
     /**
-     * Reads the given element's attributes and returns
-     * them as a Map with the attribute's name as key
-     * and its value as value.
+     * Creates the index of the scans and the index
+     * of the spectra sorted by their num.
      *
-     * @param indexElement
-     * @return
-     * @throws MzXMLParsingException
+     * @param scanIndex The index of the scans.
      */
-    private Map<String, String> readElementAttributes(IndexElement indexElement) throws MzXMLParsingException {
-        RandomAccessFile access = getRandomAccess();
-
-        // process the file line by line
-        try {
-            // initialize the run attributes
-            HashMap<String, String> foundAttributes = new HashMap<>();
-
-            // go to the beginning of element
-            access.seek(indexElement.getStart());
-
-            // just read the beginning of the element (250 elements should be sufficient)
-            byte[] headerBuffer = new byte[250];
-
-            access.read(headerBuffer);
-
-            StringBuilder headerString = new StringBuilder(new String(headerBuffer));
-
-            // make sure the whole header was retrieved
-            while (!headerString.toString().contains(">")) {
-                // read another header string
-                access.seek(indexElement.getStart() + headerString.length());
-
-                access.read(headerBuffer);
-
-                headerString.append(new String(headerBuffer));
-            }
-
-            // remove all new line characters
-            headerString = new StringBuilder(headerString.toString().replace("\n", ""));
-
-            // remove everything after the first ">"
-            headerString = new StringBuilder(headerString.substring(0, headerString.toString().indexOf('>') + 1));
-
-            // parse the line
-            Matcher matcher = xmlAttributePattern.matcher(headerString.toString());
-
-            while (matcher.find()) {
-                String name = matcher.group(1);
-                String value = matcher.group(2);
+    private void buildSpectraMaps(IndexFile scanIndex) {
+        scans = SpectrumIndex.fromIndexFile(scanIndex);
+        level1ScanCount = Integer.parseInt(scanIndex.getMetadata().get(0));
+
+        // collect the scans with a num attribute
+        int count = 0;
+        long[] nums = new long[scans.size()];
+        Integer[] ordinals = new Integer[scans.size()];
+        boolean sorted = true;
+
+        for (int i = 0; i < scans.size(); i++) {
+            String num = scans.getId(i);
+            if (num == null)
+                continue;
+            nums[i] = Long.parseLong(num);
+            if (count > 0 && nums[ordinals[count - 1]] > nums[i])
+                sorted = false;
+            ordinals[count++] = i;
+        }
 
-                if (name != null && value != null)
-                    foundAttributes.put(name, value);
-            }
+        // the stable sort keeps the last scan of duplicate nums last
+        if (!sorted)
+            Arrays.sort(ordinals, 0, count, Comparator.comparingLong(ordinal -> nums[ordinal]));
 
-            return foundAttributes;
-        } catch (IOException e) {
-            throw new MzXMLParsingException("Failed to read mzXML file.", e);
+        SpectrumIndex.Builder builder = new SpectrumIndex.Builder();
+        for (int i = 0; i < count; i++) {
+            int ordinal = ordinals[i];
+            if (i + 1 < count && nums[ordinals[i + 1]] == nums[ordinal])
+                continue;
+            builder.add(scans.getStart(ordinal), scans.getSize(ordinal), scans.getMsLevel(ordinal), Long.toString(nums[ordinal]));
         }
+        spectrumIndex = builder.build();
     }
 
     /**
@@ -234,10 +223,8 @@ public class MzXMLIndexedReader implements MzReader {
      * runAttributes HashMap.
      */
     private void readMsRunAttributes() throws MzXMLParsingException {
-        RandomAccessFile access = getRandomAccess();
-
         // process the file line by line
-        try {
+        try (RandomAccessFile access = new RandomAccessFile(sourcefile, "r")) {
             // initialize the run attributes
             runAttributes = new HashMap<>();
 
@@ -278,7 +265,10 @@ public class MzXMLIndexedReader implements MzReader {
      *
      * @throws MzXMLParsingException Thrown when the sourcefile cannot be accessed.
      */
-    private void indexFile() throws MzXMLParsingException {
+    private synchronized void indexFile() throws MzXMLParsingException {
+        if (index != null)
+            return;
+
         try {
             // build the xpath
             xpathAccess = new StandardXpathAccess(sourcefile, MzXmlElement.getXpaths());
@@ -290,53 +280,11 @@ public class MzXMLIndexedReader implements MzReader {
         }
     }
 
-    /**
-     * Builds the msNIndex.
-     *
-     * @throws MzXMLParsingException
-     */
-    private void buildMsNIndexes() throws MzXMLParsingException {
-        // initialize the index
-        msNScans = new HashMap<>();
-
-        for (IndexElement element : level1ScanIndexes) {
-            // get the attributes
-            Map<String, String> attributes = readElementAttributes(element);
-
-            // make sure there's a ms level set
-            if (!attributes.containsKey("msLevel"))
-                continue;
-
-            Integer msLevel = Integer.parseInt(attributes.get("msLevel"));
-
-            if (!msNScans.containsKey(msLevel))
-                msNScans.put(msLevel, new ArrayList<>(1));
-
-            msNScans.get(msLevel).add(element);
-        }
-
-        for (IndexElement element : level2ScanIndexes) {
-            // get the attributes
-            Map<String, String> attributes = readElementAttributes(element);
-
-            // make sure there's a ms level set
-            if (!attributes.containsKey("msLevel"))
-                continue;
-
-            Integer msLevel = Integer.parseInt(attributes.get("msLevel"));
-
-            if (!msNScans.containsKey(msLevel))
-                msNScans.put(msLevel, new ArrayList<>(1));
-
-            msNScans.get(msLevel).add(element);
-        }
-    }
-
     @Override
     protected void finalize() throws Throwable {
         // close the file access if there is one
-        if (accessFile != null)
-            accessFile.close();
+        if (channel != null)
+            channel.close();
 
         super.finalize();
     }
@@ -344,62 +292,67 @@ public class MzXMLIndexedReader implements MzReader {
     public static Spectrum getIndexedSpectrum(File sourcefile, io.github.bigbio.pgatk.io.common.IndexElement indexElement) throws PgatkIOException {
         try (RandomAccessFile access = new RandomAccessFile(sourcefile, "r")) {
             // read the XML from the file
-
-            // create the byte buffer
             byte[] bytes = new byte[indexElement.getSize()];
-
-            // move to the position in the file
             access.seek(indexElement.getStart());
+            access.readFully(bytes);
 
-            // read the snipplet
-            access.read(bytes);
-
-            // create and return the string
-            String snipplet = new String(bytes);
-
-            MzXMLUnmarshaller localUnmarshaller = MzXMLUnmarshallerFactory.getInstance().initializeUnmarshaller();
-
-            Scan scan = localUnmarshaller.unmarshal(snipplet, MzXmlElement.SCAN_LEVEL1);
-
-            return new MzXMLSpectrum(scan);
+            return MzXMLScanDecoder.decode(bytes, 0, bytes.length);
         } catch (Exception e) {
             throw new PgatkIOException("Failed to read from mzXML file.", e);
         }
-        // ignore
     }
 
     /**
-     * Returns the random access file object to access
-     * the source file.
+     * Returns the unmarshaller of the current thread.
      *
-     * @return
-     * @throws MzXMLParsingException
+     * @return The unmarshaller.
      */
-    private RandomAccessFile getRandomAccess() throws MzXMLParsingException {
-        if (accessFile != null)
-            return accessFile;
+    private static MzXMLUnmarshaller getUnmarshaller() {
+        return UNMARSHALLERS.get();
+    }
 
-        try {
-            accessFile = new RandomAccessFile(sourcefile, "r");
-        } catch (FileNotFoundException e) {
-            throw new MzXMLParsingException("Could not find mzXML file '" + sourcefile.getPath() + '\'', e);
+    /**
+     * Returns the channel shared by all threads, (re)opening it if needed.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen())
+            return current;
+
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(sourcefile, "r").getChannel();
+            return channel;
         }
+    }
+
+    @Override
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
 
-        return accessFile;
+    @Override
+    public void setSpectrumCache(SpectrumCache spectrumCache) {
+        if (this.spectrumCache != null && this.spectrumCache != spectrumCache)
+            this.spectrumCache.invalidate(this);
+        this.spectrumCache = spectrumCache;
     }
 
     /**
-     * A method to close the RandomAccessFile that is used to access the data in the data file.
+     * A method to close the channel that is used to access the data in the data file.
      * This may be useful if one needs to release resources and the handle to the data file.
+     * The spectra of this reader are removed from the cache. Further reads reopen the file.
      */
-    public void closeRandomAccess() {
-        if (accessFile != null) {
+    public synchronized void closeRandomAccess() {
+        if (spectrumCache != null)
+            spectrumCache.invalidate(this);
+        if (channel != null) {
             try {
-                accessFile.close();
+                channel.close();
             } catch (IOException e) {
                 // ignore exceptions
             }
-            accessFile = null;
+            channel = null;
         }
     }
 
@@ -470,70 +423,25 @@ public class MzXMLIndexedReader implements MzReader {
         if (peaks == null || peaks.getValue() == null)
             return Collections.emptyMap();
 
-        // wrap the data with a ByteBuffer
-        ByteBuffer byteBuffer = ByteBuffer.wrap(peaks.getValue());
-
-        // check if the string is compressed
-        boolean zlibCompression = (peaks.getCompressionType() != null && "zlib".equalsIgnoreCase(peaks.getCompressionType()));
-
-        // handle compressed peak lists
-        if (zlibCompression) {
-            Inflater decompresser = new Inflater();
-
-            // TODO: make sure the call to .array() is working
-            decompresser.setInput(byteBuffer.array());
-
-            // allocate 10x the memory of the original one
-            byte[] decompressedData = new byte[byteBuffer.capacity() * 10];
-
-            try {
-                int usedLength = decompresser.inflate(decompressedData);
-
-                // save it as the new byte buffer
-                byteBuffer = ByteBuffer.wrap(decompressedData, 0, usedLength);
-            } catch (DataFormatException e) {
-                throw new MzXMLParsingException("Failed to decompress spectra data.", e);
-            }
-        }
-
-        if ("network".equalsIgnoreCase(peaks.getByteOrder()))
-            byteBuffer.order(ByteOrder.BIG_ENDIAN);
-        else
-            throw new MzXMLParsingException("Peak lists must be encoded using network (big-endian) byte order");
+        return convertPeaksToArrays(peaks).toMap();
+    }
 
-        double[] values;
+    /**
+     * Extracts the peak list from the given
+     * Peaks object as primitive arrays sorted by m/z.
+     *
+     * @param peaks A peaks object.
+     * @return The peaks, empty if the Peaks object holds no data.
+     */
+    public static PeakArrays convertPeaksToArrays(Peaks peaks) throws MzXMLParsingException {
+        // make sure the scan is not null
+        if (peaks == null || peaks.getValue() == null)
+            return new PeakArrays(0);
 
-        // get the precision
-        if (peaks.getPrecision() != null && peaks.getPrecision() == 64) {
-            values = new double[byteBuffer.asDoubleBuffer().capacity()];
-            byteBuffer.asDoubleBuffer().get(values);
-        }
         // if no precision is set, expect 32bit
-        else {
-            // need to convert the floats to doubles
-            FloatBuffer floats = byteBuffer.asFloatBuffer();
-            values = new double[floats.capacity()];
+        int precision = (peaks.getPrecision() != null) ? peaks.getPrecision().intValue() : 32;
 
-            for (int index = 0; index < floats.capacity(); index++)
-                values[index] = (double) floats.get(index);
-        }
-
-        // make sure there's an even number of values (2 for every peak)
-        if (values.length % 2 > 0)
-            throw new MzXMLParsingException("Different number of m/z and intensity values encountered in peak list.");
-
-        // create the Map
-        HashMap<Double, Double> peakList = new HashMap<>(values.length / 2);
-
-        for (int peakIndex = 0; peakIndex < values.length - 1; peakIndex += 2) {
-            // get the two value
-            Double mz = values[peakIndex];
-            Double intensity = values[peakIndex + 1];
-
-            peakList.put(mz, intensity);
-        }
-
-        return peakList;
+        return MzXMLPeakDecoder.decode(peaks.getValue(), peaks.getCompressionType(), peaks.getByteOrder(), precision);
     }
 
     /**
@@ -553,8 +461,9 @@ public class MzXMLIndexedReader implements MzReader {
         IndexElement indexElement = null;
 
         // get the index element
-        if (numToIndexMap.containsKey(scanNum))
-            indexElement = numToIndexMap.get(scanNum);
+        int ordinal = spectrumIndex.getOrdinal(scanNum.toString());
+        if (ordinal >= 0)
+            indexElement = spectrumIndex.getIndexElement(ordinal);
 
         // in case the spectrum isn't indexed, return null
         if (indexElement == null)
@@ -566,7 +475,7 @@ public class MzXMLIndexedReader implements MzReader {
         // unmarshal the scan object
         try {
 
-            return unmarshaller.unmarshal(snipplet, MzXmlElement.SCAN_LEVEL1);
+            return getUnmarshaller().unmarshal(snipplet, MzXmlElement.SCAN_LEVEL1);
         } catch (Exception e) {
             throw new MzXMLParsingException("Failed to unmarshl Scan object.", e);
         }
@@ -595,6 +504,42 @@ public class MzXMLIndexedReader implements MzReader {
         }
     }
 
+    /**
+     * Unmarshals the scans with the given nums. The scans are
+     * read in file order, scans close to each other are read
+     * at once and unmarshalled in parallel. This function can
+     * only retrieve up to level 2 scans.
+     *
+     * @param scanNums The scans' numbers.
+     * @return The Scan objects in the order of the passed nums.
+     * @throws MzXMLParsingException if a scan is not available or cannot be parsed.
+     */
+    public List<Scan> getScansByNum(Collection<Long> scanNums) throws MzXMLParsingException {
+        int[] ordinals = new int[scanNums.size()];
+        int request = 0;
+        for (Long scanNum : scanNums) {
+            ordinals[request] = spectrumIndex.getOrdinal(scanNum.toString());
+            if (ordinals[request] < 0)
+                throw new MzXMLParsingException("Element with num=\"" + scanNum + "\" could not be found.");
+            request++;
+        }
+
+        Scan[] result = new Scan[ordinals.length];
+        try {
+            CoalescedRangeReader.read(spectrumIndex, ordinals, result, maxCoalescedGap, BUFFER_POOL, this::readChannel,
+                    (bytes, offset, length, ordinal) -> {
+                        try {
+                            return getUnmarshaller().unmarshal(new String(bytes, offset, length), MzXmlElement.SCAN_LEVEL1);
+                        } catch (Exception e) {
+                            throw new PgatkIOException("Failed to unmarshl Scan object.", e);
+                        }
+                    });
+        } catch (PgatkIOException e) {
+            throw new MzXMLParsingException(e.getMessage(), e.getCause());
+        }
+        return Arrays.asList(result);
+    }
+
     /**
      * Returns a list of all scan numbers found
      * in the file.
@@ -603,8 +548,9 @@ public class MzXMLIndexedReader implements MzReader {
      */
     public List<Long> getScanNumbers() {
         // initialize the return variable
-        ArrayList<Long> scanNumbers = new ArrayList<>(numToIndexMap.keySet());
-        Collections.sort(scanNumbers);
+        ArrayList<Long> scanNumbers = new ArrayList<>(spectrumIndex.size());
+        for (String num : spectrumIndex.getIds())
+            scanNumbers.add(Long.parseLong(num));
 
         return scanNumbers;
     }
@@ -620,17 +566,18 @@ public class MzXMLIndexedReader implements MzReader {
     private <T extends MzXMLObject> List<T> unmarshalList(MzXmlElement element) throws MzXMLParsingException {
         try {
             // read the parent file from the index
-            List<IndexElement> parentFileIndex = index.getElements(element.getXpath());
+            indexFile();
+            List<psidev.psi.tools.xxindex.index.IndexElement> parentFileIndex = index.getElements(element.getXpath());
 
             // initialize the list of parent files
             ArrayList<T> objects = new ArrayList<>(parentFileIndex.size());
 
-            for (IndexElement indexElement : parentFileIndex) {
+            for (psidev.psi.tools.xxindex.index.IndexElement indexElement : parentFileIndex) {
                 // read the xml snipplet
-                String xmlSnipplet = readSnipplet(indexElement);
+                String xmlSnipplet = readSnipplet(indexElement.getStart(), (int) (indexElement.getStop() - indexElement.getStart()));
 
                 // unmarshal the object
-                T object = unmarshaller.unmarshal(xmlSnipplet, element);
+                T object = getUnmarshaller().unmarshal(xmlSnipplet, element);
 
                 objects.add(object);
             }
@@ -653,18 +600,20 @@ public class MzXMLIndexedReader implements MzReader {
     private <T extends MzXMLObject> T unmarshalFirstElement(MzXmlElement element) throws MzXMLParsingException {
         try {
             // read the parent file from the index
-            List<IndexElement> parentFileIndex = index.getElements(element.getXpath());
+            indexFile();
+            List<psidev.psi.tools.xxindex.index.IndexElement> parentFileIndex = index.getElements(element.getXpath());
 
             // make sure at least one index was found
             if (parentFileIndex.size() < 1)
                 return null;
 
             // get the first element
-            String xmlSnipplet = readSnipplet(parentFileIndex.get(0));
+            psidev.psi.tools.xxindex.index.IndexElement indexElement = parentFileIndex.get(0);
+            String xmlSnipplet = readSnipplet(indexElement.getStart(), (int) (indexElement.getStop() - indexElement.getStart()));
 
             // unmarshal the object
 
-            return unmarshaller.unmarshal(xmlSnipplet, element);
+            return getUnmarshaller().unmarshal(xmlSnipplet, element);
         } catch (Exception e) {
             throw new MzXMLParsingException("Failed to unmarshall mzXML object.", e);
         }
@@ -679,30 +628,88 @@ public class MzXMLIndexedReader implements MzReader {
      * @throws MzXMLParsingException
      */
     private String readSnipplet(IndexElement indexElement) throws MzXMLParsingException {
-        // read the XML from the file
-        RandomAccessFile access = getRandomAccess();
-
-        // calculate the snipplets length
-        int length = (int) (indexElement.getStop() - indexElement.getStart());
-
-        // create the byte buffer
-        byte[] bytes = new byte[length];
+        return readSnipplet(indexElement.getStart(), indexElement.getSize());
+    }
 
+    /**
+     * Reads a given XML Snipplet from the file and returns
+     * it as a String.
+     *
+     * @param start  The position of the snipplet in the file.
+     * @param length The length of the snipplet in bytes.
+     * @return
+     * @throws MzXMLParsingException
+     */
+    private String readSnipplet(long start, int length) throws MzXMLParsingException {
+        ByteBuffer buffer = readRegion(start, length);
         try {
-            // move to the position in the file
-            access.seek(indexElement.getStart());
-
-            // read the snipplet
-            access.read(bytes);
-
             // create and return the string
-            return new String(bytes);
+            return new String(buffer.array(), buffer.arrayOffset(), buffer.limit());
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
 
+    /**
+     * Reads a region of the file with a positional read, so several threads can read at once.
+     *
+     * @param start  The position of the region in the file.
+     * @param length The length of the region in bytes.
+     * @return A pooled buffer holding the region, to be released to the {@link #BUFFER_POOL}.
+     * @throws MzXMLParsingException
+     */
+    private ByteBuffer readRegion(long start, int length) throws MzXMLParsingException {
+        try {
+            return readChannel(start, length);
+        } catch (FileNotFoundException e) {
+            throw new MzXMLParsingException("Could not find mzXML file '" + sourcefile.getPath() + '\'', e);
         } catch (IOException e) {
             throw new MzXMLParsingException("Failed to read from mzXML file.", e);
         }
     }
 
+    /**
+     * Reads a region of the file from the shared channel into a buffer of the {@link #BUFFER_POOL}.
+     */
+    private ByteBuffer readChannel(long start, int length) throws IOException {
+        try {
+            return BUFFER_POOL.read(getChannel(), start, length);
+        } catch (ClosedChannelException e) {
+            // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return BUFFER_POOL.read(getChannel(), start, length);
+        }
+    }
+
+    /**
+     * Builds the spectrum of a scan without unmarshalling the scan.
+     *
+     * @param indexElement The position of the scan.
+     * @return The spectrum.
+     * @throws MzXMLParsingException
+     */
+    private MzXMLSpectrum readSpectrum(IndexElement indexElement) throws MzXMLParsingException {
+        return readSpectrum(indexElement, null);
+    }
+
+    /**
+     * Builds the spectrum of a scan if its header is accepted by the filter, the peaks of rejected scans are not decoded.
+     *
+     * @param indexElement The position of the scan.
+     * @param filter       The filter on the scan's header or null.
+     * @return The spectrum or null if it is rejected by the filter.
+     * @throws MzXMLParsingException
+     */
+    private MzXMLSpectrum readSpectrum(IndexElement indexElement, SpectrumFilter filter) throws MzXMLParsingException {
+        ByteBuffer buffer = readRegion(indexElement.getStart(), indexElement.getSize());
+        try {
+            return MzXMLScanDecoder.decode(buffer.array(), buffer.arrayOffset(), buffer.limit(), spectrumFields, filter);
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
     /**
      * Returns the run's attributes.
      *
@@ -718,10 +725,7 @@ public class MzXMLIndexedReader implements MzReader {
      * @return
      */
     public int getMS1ScanCount() {
-        if (msNScans.containsKey(1))
-            return msNScans.get(1).size();
-        else
-            return 0;
+        return scans.getMsLevelCount(1);
     }
 
     /**
@@ -731,10 +735,7 @@ public class MzXMLIndexedReader implements MzReader {
      * @return
      */
     public int getMS2ScanCount() {
-        if (msNScans.containsKey(2))
-            return msNScans.get(2).size();
-        else
-            return 0;
+        return scans.getMsLevelCount(2);
     }
 
     /**
@@ -785,12 +786,11 @@ public class MzXMLIndexedReader implements MzReader {
          * This iterator must only be created from
          * inside a MzXMLIndexedReader.
          */
-        @SuppressWarnings("unchecked")
         private MzXMLScanIterator(int msLevel) {
             // get the indexes
             if (msLevel == 0)
-                indexes = index.getElements(MzXmlElement.SCAN_LEVEL1.getXpath());
-            else indexes = msNScans.getOrDefault(msLevel, Collections.EMPTY_LIST);
+                indexes = scans.getIndexElements().subList(0, level1ScanCount);
+            else indexes = scans.getIndexElements(msLevel);
         }
 
         @Override
@@ -809,7 +809,7 @@ public class MzXMLIndexedReader implements MzReader {
 
                 // unmarshal the scan object from the snipplet
 
-                return unmarshaller.unmarshal(snipplet, MzXmlElement.SCAN_LEVEL1);
+                return getUnmarshaller().unmarshal(snipplet, MzXmlElement.SCAN_LEVEL1);
             } catch (Exception e) {
                 throw new RuntimeException("Failed to parse spectrum: " + e.getMessage(), e);
             }
@@ -829,7 +829,7 @@ public class MzXMLIndexedReader implements MzReader {
     @Override
     public int getSpectraCount() {
         // the peak list parser interface only accesses ms2 spectra
-        return numToIndexMap.size();
+        return spectrumIndex.size();
     }
 
     @Override
@@ -844,24 +844,28 @@ public class MzXMLIndexedReader implements MzReader {
 
     @Override
     public List<String> getSpectraIds() {
-        // just convert the stored "nums" from Long to String
-        List<Long> nums = new ArrayList<>(getScanNumbers());
-        List<String> ids = new ArrayList<>(nums.size());
-
-        for (Long num : nums)
-            ids.add(num.toString());
-
-        return ids;
+        // the nums are stored as Strings
+        return spectrumIndex.getIds();
     }
 
     @Override
     public Spectrum getSpectrumById(String id) throws PgatkIOException {
-        // System.out.println(id);
-        // get the scan object
-        try {
-            Scan scan = getScanByStringNum(id);
+        SpectrumCache cache = spectrumCache;
+        if (cache != null) {
+            Spectrum cached = cache.get(this, id);
+            if (cached != null)
+                return cached;
+        }
+
+        int ordinal = spectrumIndex.getOrdinal(id);
+        if (ordinal < 0)
+            throw new PgatkIOException("Failed to parse spectrum", new MzXMLParsingException("Element with num=\"" + id + "\" could not be found."));
 
-            return new MzXMLSpectrum(scan);
+        try {
+            Spectrum spectrum = readSpectrum(spectrumIndex.getIndexElement(ordinal));
+            if (cache != null)
+                cache.put(this, id, spectrum);
+            return spectrum;
         } catch (MzXMLParsingException e) {
             throw new PgatkIOException("Failed to parse spectrum", e);
         }
@@ -877,70 +881,204 @@ public class MzXMLIndexedReader implements MzReader {
      */
     @Override
     public Spectrum getSpectrumByIndex(int index) throws PgatkIOException {
-        if (index < 1 || index > numToIndexMap.size())
+        if (index < 1 || index > spectrumIndex.size())
             throw new PgatkIOException("Spectrum index out of range.");
 
-        Long num = getScanNumbers().get(index - 1);
-        IndexElement indexElement = numToIndexMap.get(num);
+        SpectrumCache cache = spectrumCache;
+        if (cache != null) {
+            Spectrum cached = cache.get(this, index);
+            if (cached != null)
+                return cached;
+        }
 
-        // make sure a spectrum with that index exists
-        if (indexElement == null)
-            throw new PgatkIOException("Spectrum with index " + index + " could not be found.");
+        IndexElement indexElement = spectrumIndex.getIndexElement(index - 1);
 
         try {
-            String snipplet = readSnipplet(indexElement);
-
-            Scan scan = unmarshaller.unmarshal(snipplet, MzXmlElement.SCAN_LEVEL2);
-
-            return new MzXMLSpectrum(scan);
-        } catch (Exception e) {
+            Spectrum spectrum = readSpectrum(indexElement);
+            if (cache != null)
+                cache.put(this, index, spectrum);
+            return spectrum;
+        } catch (MzXMLParsingException e) {
             throw new PgatkIOException("Failed to parse spectrum", e);
         }
     }
 
     @Override
-    public List<io.github.bigbio.pgatk.io.common.IndexElement> getMsNIndexes(
-            int msLevel) {
-        if (!msNScans.containsKey(msLevel))
-            return Collections.emptyList();
+    public List<Spectrum> getSpectra(Collection<String> ids) throws PgatkIOException {
+        int[] ordinals = new int[ids.size()];
+        Object[] keys = ids.toArray();
+        for (int i = 0; i < keys.length; i++) {
+            ordinals[i] = spectrumIndex.getOrdinal((String) keys[i]);
+            if (ordinals[i] < 0)
+                throw new PgatkIOException("Failed to parse spectrum", new MzXMLParsingException("Element with num=\"" + keys[i] + "\" could not be found."));
+        }
 
-        return convertIndexElements(msNScans.get(msLevel));
+        return readSpectra(ordinals, keys);
     }
 
     @Override
-    public List<Integer> getMsLevels() {
-        return new ArrayList<>(msNScans.keySet());
+    public List<Spectrum> getSpectraByIndex(int[] indexes) throws PgatkIOException {
+        int[] ordinals = new int[indexes.length];
+        Object[] keys = new Object[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] < 1 || indexes[i] > spectrumIndex.size())
+                throw new PgatkIOException("Spectrum index out of range.");
+            ordinals[i] = indexes[i] - 1;
+            keys[i] = indexes[i];
+        }
+
+        return readSpectra(ordinals, keys);
     }
 
+    /**
+     * Returns the XML of a scan as it is stored in the mzXML file, without parsing it. The element of
+     * a level 1 scan holds its nested scans.
+     *
+     * @param index The 1-based index of the spectrum.
+     * @return A new buffer holding the bytes between 0 and its limit.
+     */
+    @Override
+    public ByteBuffer getRawSpectrumBytes(int index) throws PgatkIOException {
+        if (index < 1 || index > spectrumIndex.size())
+            throw new PgatkIOException("Spectrum index out of range.");
+        return readRawRecord(spectrumIndex.getStart(index - 1), spectrumIndex.getSize(index - 1));
+    }
+
+    /**
+     * Copies the XML of the scans to a channel as they are stored in the mzXML file, without parsing them.
+     * Only the scan elements are copied, the caller writes the rest of the document around them.
+     *
+     * @param indexes The 1-based indexes of the spectra.
+     * @param target  The channel the spectra are written to in the order of the indexes.
+     * @return The number of bytes written.
+     */
     @Override
-    public Map<String, io.github.bigbio.pgatk.io.common.IndexElement> getIndexElementForIds() {
-        Map<String, io.github.bigbio.pgatk.io.common.IndexElement> idToIndexMap =
-                new HashMap<>(numToIndexMap.size());
+    public long writeSpectra(int[] indexes, WritableByteChannel target) throws PgatkIOException {
+        int[] ordinals = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            ordinals[i] = indexes[i] - 1;
+        try {
+            return RecordSubsetWriter.write(spectrumIndex, ordinals, 0, getChannel(), target);
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mzXML file.", e);
+        }
+    }
 
-        for (Map.Entry<Long, IndexElement> longIndexElementEntry : numToIndexMap.entrySet()) {
-            IndexElement e = longIndexElementEntry.getValue();
-            idToIndexMap.put((longIndexElementEntry.getKey()).toString(), new IndexElementImpl(e.getStart(), (int) (e.getStop() - e.getStart())));
+    /**
+     * Reads a record of the file into a new buffer, the bytes are read directly into it.
+     */
+    private ByteBuffer readRawRecord(long start, int size) throws PgatkIOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        try {
+            try {
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            } catch (ClosedChannelException e) {
+                // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+                if (e instanceof ClosedByInterruptException)
+                    throw e;
+                buffer.clear();
+                ByteBufferPool.readFully(getChannel(), buffer, start);
+            }
+        } catch (IOException e) {
+            throw new PgatkIOException("Failed to read from mzXML file.", e);
         }
+        buffer.flip();
+        return buffer;
+    }
 
-        return idToIndexMap;
+    @Override
+    public SpectrumFields getSpectrumFields() {
+        return spectrumFields;
+    }
+
+    @Override
+    public void setSpectrumFields(SpectrumFields fields) {
+        if (spectrumCache != null && fields != spectrumFields)
+            spectrumCache.invalidate(this);
+        this.spectrumFields = fields;
     }
 
     /**
-     * Converts a list of xxindex IndexElementS
-     * to a list of MzReader IndexElementS.
+     * Sets a filter on the header values of the spectra returned by the {@link SpectrumIterator}s created
+     * afterwards. The filter is tested on the attributes of the scan and its precursor, the peaks of the
+     * rejected scans are not decoded.
      *
-     * @param elements
-     * @return
+     * @param filter the filter or null to iterate over all the spectra
      */
-    private List<io.github.bigbio.pgatk.io.common.IndexElement> convertIndexElements(List<IndexElement> elements) {
-        List<io.github.bigbio.pgatk.io.common.IndexElement> convertedElements = new ArrayList<>(elements.size());
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
+
+    @Override
+    public void setMaxCoalescedGap(int maxCoalescedGap) {
+        this.maxCoalescedGap = maxCoalescedGap;
+    }
 
-        for (IndexElement e : elements) {
-            int size = (int) (e.getStop() - e.getStart());
-            convertedElements.add(new IndexElementImpl(e.getStart(), size));
+    /**
+     * Returns the spectra from the cache or reads them in file order,
+     * spectra close to each other are read at once and decoded in parallel.
+     *
+     * @param ordinals The 0-based indexes of the spectra.
+     * @param keys     The keys of the spectra in the cache.
+     * @return The spectra in the order of the ordinals.
+     */
+    private List<Spectrum> readSpectra(int[] ordinals, Object[] keys) throws PgatkIOException {
+        Spectrum[] spectra = new Spectrum[ordinals.length];
+        SpectrumCache cache = spectrumCache;
+        if (cache != null) {
+            for (int i = 0; i < keys.length; i++)
+                spectra[i] = cache.get(this, keys[i]);
         }
 
-        return convertedElements;
+        SpectrumFields fields = spectrumFields;
+        boolean[] loaded = new boolean[spectra.length];
+        for (int i = 0; i < spectra.length; i++)
+            loaded[i] = spectra[i] == null;
+
+        CoalescedRangeReader.read(spectrumIndex, ordinals, spectra, maxCoalescedGap, BUFFER_POOL, this::readChannel,
+                (bytes, offset, length, ordinal) -> {
+                    try {
+                        return MzXMLScanDecoder.decode(bytes, offset, length, fields);
+                    } catch (MzXMLParsingException e) {
+                        throw new PgatkIOException("Failed to parse spectrum", e);
+                    }
+                });
+
+        if (cache != null) {
+            for (int i = 0; i < spectra.length; i++) {
+                if (loaded[i])
+                    cache.put(this, keys[i], spectra[i]);
+            }
+        }
+        return Arrays.asList(spectra);
+    }
+
+    @Override
+    public List<IndexElement> getMsNIndexes(
+            int msLevel) {
+        // scans without msLevel attribute are not part of any MS level
+        if (msLevel == 0)
+            return Collections.emptyList();
+
+        return scans.getIndexElements(msLevel);
+    }
+
+    @Override
+    public List<Integer> getMsLevels() {
+        List<Integer> msLevels = new ArrayList<>(scans.getMsLevels());
+        msLevels.remove(Integer.valueOf(0));
+
+        return msLevels;
+    }
+
+    @Override
+    public Map<String, IndexElement> getIndexElementForIds() {
+        return spectrumIndex.getIndexElementForIds();
+    }
+
+    @Override
+    public SpectrumIndex getSpectrumIndex() {
+        return spectrumIndex;
     }
 
     /**
@@ -952,19 +1090,34 @@ public class MzXMLIndexedReader implements MzReader {
         // just iterate over ms2 scans
         Iterator<Long> numIterator = getScanNumbers().iterator();
 
+        /** The filter set on the reader when the iterator was created */
+        private final SpectrumFilter filter = spectrumFilter;
+
+        /** The next spectrum accepted by the filter, null if it was not read yet */
+        private Spectrum nextAccepted;
+
         @Override
         public boolean hasNext() {
-            return numIterator.hasNext();
+            while (nextAccepted == null && numIterator.hasNext())
+                nextAccepted = read(numIterator.next());
+            return nextAccepted != null;
         }
 
         @Override
         public Spectrum next() {
-            Long num = numIterator.next();
+            if (!hasNext())
+                throw new NoSuchElementException("No more spectra in " + sourcefile);
+            Spectrum next = nextAccepted;
+            nextAccepted = null;
+            return next;
+        }
 
+        /**
+         * @return the spectrum or null if it is rejected by the filter
+         */
+        private Spectrum read(Long num) {
             try {
-                Scan scan = getScanByNum(num);
-
-                return new MzXMLSpectrum(scan);
+                return readSpectrum(spectrumIndex.getIndexElement(spectrumIndex.getOrdinal(num.toString())), filter);
             } catch (MzXMLParsingException e) {
                 throw new RuntimeException("Failed to parse spectrum " + num + ": " + e.getMessage(), e);
             }
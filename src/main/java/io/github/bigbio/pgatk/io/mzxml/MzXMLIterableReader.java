@@ -4,20 +4,30 @@ package io.github.bigbio.pgatk.io.mzxml;
 import io.github.bigbio.pgatk.io.common.MzIterableChannelReader;
 import io.github.bigbio.pgatk.io.common.MzIterableReader;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.utils.AsciiNumberParser;
 import lombok.extern.slf4j.Slf4j;
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
+/**
+ * Iterates over the MS2 scans of a mzXML file.
+ *
+ * The mapped file is tokenized byte by byte: only the scan, precursorMz and peaks tags are decoded and
+ * their attributes are parsed in place, the base64 peak payload is collected as bytes and handed to the
+ * pooled {@link MzXMLPeakDecoder}. Tags and payloads split between two mapped windows are handled.
+ * A {@link SpectrumFilter} is tested at the peaks tag, the payload of a rejected scan is not collected.
+ * With {@link #setReuseSpectrum(boolean)} the attributes are parsed from the tag bytes into one {@link MutableSpectrum}
+ * per scan nesting level without creating Strings.
+ *
+ * @author ypriverol
+ */
 @Slf4j
 public class MzXMLIterableReader extends MzIterableChannelReader implements MzIterableReader {
 
@@ -26,246 +36,598 @@ public class MzXMLIterableReader extends MzIterableChannelReader implements MzIt
      */
     private File sourceFile;
 
-    private int channelCursor = 0;
     private int specIndex = 1;
-    private MzXMLSpectrum spectrum = null;
+
+    /**
+     * The next MS2 spectrum, null if it was not read yet.
+     */
+    private Spectrum spectrum = null;
+
+    /**
+     * The scans that are not closed yet, nested scans are on top of their parent.
+     */
+    private final Deque<MzXMLSpectrum> openScans = new ArrayDeque<>();
+
+    /** Bytes of the tag being read, from '<' to '>' */
+    private byte[] tag = new byte[256];
+
+    private int tagLength = -1; // -1 outside of tags
+
+    /** Text of the precursorMz or peaks element being read */
+    private byte[] text = new byte[64 * 1024];
+
+    private int textLength = -1; // -1 if the text is not collected
+
+    private boolean inPeaks;
+
+    private boolean mzIntPeaks;
+
+    private String compressionType;
+
+    private String byteOrder;
+
+    private int precision;
+
+    private boolean endOfFile;
+
+    /**
+     * The filter on the header of the MS2 scans, null to read all scans.
+     */
+    private SpectrumFilter spectrumFilter;
+
+    /**
+     * The open MS2 scan that was rejected by the filter.
+     */
+    private Spectrum rejectedScan;
+
+    /**
+     * The scans refilled for every record, one per nesting level, null to create a {@link MzXMLSpectrum} per scan.
+     */
+    private MutableSpectrum[] mutableScans;
+
+    /** The number of open scans in the reused scans */
+    private int mutableDepth;
+
+    private final TagSequence tagChars = new TagSequence();
+
+    private final AttributeRangeConsumer scanAttributes = this::setScanAttribute;
+
+    private final AttributeRangeConsumer precursorAttributes = this::setPrecursorAttribute;
+
+    private final AttributeRangeConsumer peaksAttributes = this::setPeaksAttribute;
 
     public MzXMLIterableReader(File file) throws PgatkIOException {
         super(file);
+        this.sourceFile = file;
     }
 
     @Override
     public boolean hasNext() {
-        StringBuilder stringBuffer = new StringBuilder(100);
-
-        if (buffer == null || !buffer.hasRemaining())
-            readBuffer();
-        char ch = '\n';
-        channelCursor = buffer.position();
-
-        while((ch != '\u0000') && (buffer.hasRemaining())){
-            ch = ((char) buffer.get());
-            channelCursor = buffer.position();
-            stringBuffer.append(ch);
-            String line = stringBuffer.toString();
-            if(ch == '\n' && line.contains("scan num")){
-                spectrum = new MzXMLSpectrum();
-                Matcher matcher = Pattern.compile("num=\"([A-Za-z0-9_]*)\"").matcher(line);
-                while (matcher.find()) {
-                    spectrum.setId(matcher.group(1));
-                }
-                return true;
-            }
-            if(!buffer.hasRemaining()){
-                readBuffer();
-            }
-        }
-
-        return false;
+        if (spectrum == null && !endOfFile)
+            spectrum = readSpectrum();
+        return spectrum != null;
     }
 
     @Override
     public Spectrum next() throws NoSuchElementException {
-        int scanLevel = -1;
+        if (!hasNext())
+            throw new NoSuchElementException("No more spectra in " + sourceFile);
 
-        byte[] peakBytes = null;
-        String compressionType = null;
-        Integer precision = null;
-        String byteOrder = null;
+        Spectrum next = spectrum;
+        spectrum = null;
+        return next;
+    }
 
-        log.debug("Start reading the following spectrum -- ");
-        if(spectrum == null)
-            throw new NoSuchElementException("First check if the file contains an spectum using hasNext()");
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        this.spectrumFilter = filter;
+    }
 
-        if(buffer == null || !buffer.hasRemaining()){
-            readBuffer();
-        }
+    @Override
+    public void setReuseSpectrum(boolean reuse) {
+        this.mutableScans = reuse ? new MutableSpectrum[2] : null;
+        this.mutableDepth = 0;
+    }
 
-        StringBuffer stringBuffer = new StringBuffer();
-
-        while (buffer.hasRemaining()) {
-            char ch = ((char) buffer.get());
-            channelCursor = buffer.position();
-
-            if(ch=='\n'){
-                stringBuffer.append(ch);
-                String line = stringBuffer.toString().trim();
-
-                if(line.contains("</scan") && scanLevel == 2) {
-                    spectrum.setIndex((long)specIndex);
-                    specIndex++;
-                    scanLevel = -1;
-                    return spectrum;
-                }else if(spectrum != null){
-                    if (line.contains("msLevel")) {
-                        scanLevel = Integer.valueOf(line.substring(line.indexOf("=")+2, line.lastIndexOf("\"")));
-                        spectrum.setMsLevel(scanLevel);
-                    }
-                    if (line.contains("polarity"))
-                        spectrum.setPolarity(line.substring(line.indexOf("=")+2, line.lastIndexOf("\"")));
-                    if (line.contains("retentionTime"))
-                        spectrum.setRetentionTime(line.substring(line.indexOf("PT")+2, line.lastIndexOf("S\"")));
-
-                    if (line.contains("<precursorMz") && scanLevel > 1){
-                        spectrum.setPrecursorMz(Double.valueOf(line.substring(line.indexOf(">")+1, line.indexOf("</precursorMz>"))));
-                        Matcher matcher = Pattern.compile("precursorCharge=\"([A-Za-z0-9_]*)\"").matcher(line);
-
-                        while (matcher.find()) {
-                            spectrum.setPrecursorCharge(Integer.parseInt( matcher.group(1)));
-                        }
-                    }
-                    if (line.contains("<precursorMz") && scanLevel > 1){
-                        Matcher matcher = Pattern.compile("precursorIntensity=\"([A-Za-z0-9_]*)\"").matcher(line);
-                        while (matcher.find()) {
-                            spectrum.setPrecursorIntesity(Double.parseDouble(matcher.group(1)));
-                        }
-                    }
-                    if (line.contains("<precursorMz") && scanLevel > 1){
-                        Matcher matcher = Pattern.compile("activationMethod=\"([A-Za-z0-9_]*)\"").matcher(line);
-                        while (matcher.find()) {
-                            spectrum.setActivationMethod(matcher.group(1));
-                        }
-                    }
+    /**
+     * Tokenizes the file up to the end of the next MS2 scan.
+     *
+     * @return the scan or null at the end of the file
+     */
+    private Spectrum readSpectrum() {
+        while (true) {
+            if (buffer == null || !buffer.hasRemaining()) {
+                readBuffer();
+                if (buffer == null || !buffer.hasRemaining()) {
+                    endOfFile = true;
+                    return null;
+                }
+            }
 
-                    if(line.contains("compressionType=")){
-                        Matcher matcher = Pattern.compile("compressionType=\"([A-Za-z0-9_]*)\"").matcher(line);
-                        while (matcher.find()) {
-                            compressionType = (matcher.group(1));
-                        }
-                    }
-                    if(line.contains("precision=")){
-                        Matcher matcher = Pattern.compile("precision=\"([A-Za-z0-9_]*)\"").matcher(line);
-                        while (matcher.find()) {
-                            precision = Integer.parseInt(matcher.group(1));
-                        }
-                    }
-                    if(line.contains("byteOrder=")){
-                        Matcher matcher = Pattern.compile("byteOrder=\"([A-Za-z0-9_]*)\"").matcher(line);
-                        while (matcher.find()) {
-                            byteOrder = (matcher.group(1));
-                        }
+            int limit = buffer.limit();
+            for (int position = buffer.position(); position < limit; position++) {
+                if (tagLength < 0 && textLength < 0) {
+                    // the text that is not collected, such as the payload of the MS1 scans, is skipped up to the next tag
+                    while (position < limit && buffer.get(position) != '<')
+                        position++;
+                    if (position == limit)
+                        break;
+                }
+                byte b = buffer.get(position);
+
+                if (tagLength < 0) {
+                    if (b == '<') {
+                        tagLength = 0;
+                        tag[tagLength++] = b;
+                    } else if (textLength >= 0) {
+                        if (textLength == text.length)
+                            text = Arrays.copyOf(text, text.length * 2);
+                        text[textLength++] = b;
                     }
+                    continue;
+                }
 
-                    if (line.contains("m/z-int"))
-                    {
-                        String mzArray = null;
-                        if (line.contains("==</peaks")) mzArray = line.substring(line.indexOf(">")+1, line.indexOf("==</peaks"));
-                        else if (line.contains("=</peaks")) mzArray = line.substring(line.indexOf(">")+1, line.indexOf("=</peaks"));
-                        else if (line.contains("</peaks")) mzArray = line.substring(line.indexOf(">")+1, line.indexOf("</peaks"));
-
-                        try {
-                            if (mzArray != null){
-                                Map<Double, Double> peaks = convertPeaksToMap(mzArray, compressionType, byteOrder, precision);
-                                spectrum.setPeaks(peaks);
-                            }
-                        } catch (MzXMLParsingException e) {
-                            throw new NoSuchElementException("Error parsing the peak list in mzXML spectra line --" + line);
-                        }
+                if (tagLength == tag.length)
+                    tag = Arrays.copyOf(tag, tag.length * 2);
+                tag[tagLength++] = b;
+                if (b != '>')
+                    continue;
+
+                Spectrum completed = processTag();
+                tagLength = -1;
+                if (completed != null) {
+                    buffer.position(position + 1);
+                    return completed;
+                }
+            }
+            buffer.position(limit);
+        }
+    }
 
-                    }
+    /**
+     * Handles the tag that was just read.
+     *
+     * @return the MS2 scan the tag closes, null otherwise
+     */
+    private Spectrum processTag() {
+        if (tagLength < 3 || tag[1] == '?' || tag[1] == '!')
+            return null;
+
+        boolean endTag = tag[1] == '/';
+        int nameStart = endTag ? 2 : 1;
+        int nameEnd = nameStart;
+        while (nameEnd < tagLength && !isNameEnd(tag[nameEnd]))
+            nameEnd++;
+
+        if (endTag) {
+            if (isName("scan", nameStart, nameEnd))
+                return processScanEnd();
+            if (isName("precursorMz", nameStart, nameEnd) && textLength >= 0) {
+                setPrecursorMz();
+            } else if (isName("peaks", nameStart, nameEnd) && inPeaks) {
+                decodePeaks();
+            }
+            textLength = -1;
+            inPeaks = false;
+            return null;
+        }
 
+        boolean emptyElement = tag[tagLength - 2] == '/';
+        if (isName("scan", nameStart, nameEnd)) {
+            if (mutableScans != null) {
+                openMutableScan();
+                forEachAttribute(nameEnd, scanAttributes);
+            } else {
+                MzXMLSpectrum scan = new MzXMLSpectrum();
+                forEachAttribute(nameEnd, (name, value) -> setScanAttribute(scan, name, value));
+                openScans.push(scan);
+            }
+            if (emptyElement)
+                return processScanEnd();
+        } else if (isName("precursorMz", nameStart, nameEnd)) {
+            if (mutableScans != null) {
+                if (mutableDepth > 0 && mutableScans[mutableDepth - 1].getMsLevelValue() > 1) {
+                    forEachAttribute(nameEnd, precursorAttributes);
+                    textLength = emptyElement ? -1 : 0;
+                }
+            } else {
+                MzXMLSpectrum current = openScans.peekFirst();
+                if (current != null && current.getMsLevel() > 1) {
+                    forEachAttribute(nameEnd, (name, value) -> setPrecursorAttribute(current, name, value));
+                    textLength = emptyElement ? -1 : 0;
                 }
+            }
+        } else if (isName("peaks", nameStart, nameEnd)) {
+            // only the payload of the MS2 scans is decoded, the payload of other and rejected scans is skipped
+            Spectrum current = currentScan();
+            if (current == null || msLevel(current) != 2) {
+                inPeaks = false;
+                textLength = -1;
+                return null;
+            }
+            if (isRejected(current)) {
+                rejectedScan = current;
+                inPeaks = false;
+                textLength = -1;
+                return null;
+            }
+            compressionType = null;
+            byteOrder = "network";
+            precision = 32;
+            mzIntPeaks = true;
+            forEachAttribute(nameEnd, peaksAttributes);
+            inPeaks = !emptyElement;
+            textLength = inPeaks ? 0 : -1;
+        }
+        return null;
+    }
 
-                stringBuffer = new StringBuffer();
+    /**
+     * Closes the innermost open scan.
+     *
+     * @return the scan if it is a MS2 scan, null otherwise
+     */
+    private Spectrum processScanEnd() {
+        Spectrum closed;
+        if (mutableScans != null) {
+            closed = (mutableDepth > 0) ? mutableScans[--mutableDepth] : null;
+        } else {
+            closed = openScans.pollFirst();
+        }
+        if (closed == null || msLevel(closed) != 2)
+            return null;
+        if (closed == rejectedScan || isRejected(closed)) {
+            // the rejected scans keep their index
+            rejectedScan = null;
+            specIndex++;
+            return null;
+        }
+        if (mutableScans != null)
+            ((MutableSpectrum) closed).setIndex(specIndex++);
+        else
+            ((MzXMLSpectrum) closed).setIndex((long) specIndex++);
+        return closed;
+    }
 
-            }else{
-                stringBuffer.append(ch);
-            }
-            if(!buffer.hasRemaining())
-                readBuffer();
+    /**
+     * Opens a reused scan at the next nesting level.
+     */
+    private void openMutableScan() {
+        if (mutableDepth == mutableScans.length)
+            mutableScans = Arrays.copyOf(mutableScans, mutableDepth * 2);
+        if (mutableScans[mutableDepth] == null)
+            mutableScans[mutableDepth] = new MutableSpectrum();
+        mutableScans[mutableDepth++].clear();
+    }
+
+    /**
+     * @return the innermost open scan or null
+     */
+    private Spectrum currentScan() {
+        if (mutableScans != null)
+            return (mutableDepth > 0) ? mutableScans[mutableDepth - 1] : null;
+        return openScans.peekFirst();
+    }
+
+    private static int msLevel(Spectrum scan) {
+        if (scan instanceof MutableSpectrum)
+            return ((MutableSpectrum) scan).getMsLevelValue();
+        return scan.getMsLevel();
+    }
+
+    /**
+     * @return true if the scan is a MS2 scan rejected by the filter
+     */
+    private boolean isRejected(Spectrum scan) {
+        return spectrumFilter != null && msLevel(scan) == 2 && !spectrumFilter.test(scan);
+    }
+
+    /**
+     * Sets the collected precursor m/z of the innermost open scan.
+     */
+    private void setPrecursorMz() {
+        if (mutableScans != null) {
+            int from = 0;
+            int to = textLength;
+            while (from < to && (text[from] & 0xff) <= ' ')
+                from++;
+            while (to > from && (text[to - 1] & 0xff) <= ' ')
+                to--;
+            if (mutableDepth > 0 && from < to)
+                mutableScans[mutableDepth - 1].setPrecursorMz(AsciiNumberParser.parseDouble(text, from, to));
+            return;
         }
-        return spectrum;
+        MzXMLSpectrum current = openScans.peekFirst();
+        String value = new String(text, 0, textLength, StandardCharsets.ISO_8859_1).trim();
+        if (current != null && !value.isEmpty())
+            current.setPrecursorMz(Double.valueOf(value));
     }
 
-    @Override
-    public void close() throws PgatkIOException {
+    /**
+     * Decodes the collected peaks of the innermost open scan.
+     */
+    private void decodePeaks() {
+        Spectrum current = currentScan();
+        if (current == null || !mzIntPeaks)
+            return;
         try {
-            accessChannel.close();
-        } catch (IOException e) {
-            throw new PgatkIOException("The following file can't be close -- " + sourceFile, e);
+            if (current instanceof MutableSpectrum)
+                MzXMLPeakDecoder.decode(text, 0, textLength, compressionType, byteOrder, precision, (MutableSpectrum) current);
+            else
+                ((MzXMLSpectrum) current).setPeaks(MzXMLPeakDecoder.decode(text, 0, textLength, compressionType, byteOrder, precision));
+        } catch (MzXMLParsingException e) {
+            throw new NoSuchElementException("Error parsing the peak list in mzXML scan " + current.getId() + " -- " + e.getMessage());
         }
+    }
+
+    private static void setScanAttribute(MzXMLSpectrum scan, String name, String value) {
+        switch (name) {
+            case "num":
+                scan.setId(value);
+                break;
+            case "msLevel":
+                scan.setMsLevel(Integer.parseInt(value.trim()));
+                break;
+            case "polarity":
+                scan.setPolarity(value);
+                break;
+            case "retentionTime":
+                // the duration in seconds, as PT<seconds>S
+                String time = value.trim();
+                if (time.startsWith("PT") && time.endsWith("S"))
+                    time = time.substring(2, time.length() - 1);
+                scan.setRetentionTime(time);
+                break;
+            default:
+                break;
+        }
+    }
 
+    private static void setPrecursorAttribute(MzXMLSpectrum scan, String name, String value) {
+        switch (name) {
+            case "precursorCharge":
+                scan.setPrecursorCharge(Integer.parseInt(value.trim()));
+                break;
+            case "precursorIntensity":
+                scan.setPrecursorIntesity(Double.parseDouble(value.trim()));
+                break;
+            case "activationMethod":
+                scan.setActivationMethod(value);
+                break;
+            default:
+                break;
+        }
     }
 
     /**
-     * Extracts the peak list from the given
-     * Peaks object and returns it as a Map with
-     * the m/z as key and the intensity as value.
-     *
-     * @param arrayPeaks A peaks object.
-     * @return Map containing the m/z as key and the intensity as value.
+     * Sets an attribute of the innermost reused scan.
      */
-    public static Map<Double, Double> convertPeaksToMap(String arrayPeaks, String compressType, String byteOrder, Integer precision) throws MzXMLParsingException {
+    private void setScanAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        MutableSpectrum scan = mutableScans[mutableDepth - 1];
+        if (isName("num", nameStart, nameEnd)) {
+            scan.setId(tagChars, valueStart, valueEnd);
+        } else if (isName("msLevel", nameStart, nameEnd)) {
+            scan.setMsLevel(parseInt(valueStart, valueEnd));
+        } else if (isName("polarity", nameStart, nameEnd)) {
+            scan.addAttribute("polarity", tagChars, valueStart, valueEnd);
+        } else if (isName("retentionTime", nameStart, nameEnd)) {
+            // the duration in seconds, as PT<seconds>S, other durations are only kept as attribute
+            int from = trimStart(valueStart, valueEnd);
+            int to = trimEnd(from, valueEnd);
+            if (to - from > 3 && tag[from] == 'P' && tag[from + 1] == 'T' && tag[to - 1] == 'S')
+                scan.setRetentionTime(AsciiNumberParser.parseDouble(tag, from + 2, to - 1));
+            else
+                scan.addAttribute("retentionTime", tagChars, valueStart, valueEnd);
+        }
+    }
 
-        byte[] peaks = Base64.getDecoder().decode(arrayPeaks);
-        // make sure the scan is not null
-        if (peaks == null)
-            return Collections.emptyMap();
+    /**
+     * Sets a precursor attribute of the innermost reused scan.
+     */
+    private void setPrecursorAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        MutableSpectrum scan = mutableScans[mutableDepth - 1];
+        if (isName("precursorCharge", nameStart, nameEnd)) {
+            scan.setPrecursorCharge(parseInt(valueStart, valueEnd));
+        } else if (isName("precursorIntensity", nameStart, nameEnd)) {
+            int from = trimStart(valueStart, valueEnd);
+            scan.setPrecursorIntensity(AsciiNumberParser.parseDouble(tag, from, trimEnd(from, valueEnd)));
+        } else if (isName("activationMethod", nameStart, nameEnd)) {
+            scan.addAttribute("activationMethod", tagChars, valueStart, valueEnd);
+        }
+    }
 
-        // wrap the data with a ByteBuffer
-        ByteBuffer byteBuffer = ByteBuffer.wrap(peaks);
+    private void setPeaksAttribute(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (isName("compressionType", nameStart, nameEnd)) {
+            compressionType = constant("zlib", valueStart, valueEnd);
+        } else if (isName("byteOrder", nameStart, nameEnd)) {
+            byteOrder = constant("network", valueStart, valueEnd);
+        } else if (isName("precision", nameStart, nameEnd)) {
+            precision = parseInt(valueStart, valueEnd);
+        } else if (isName("pairOrder", nameStart, nameEnd) || isName("contentType", nameStart, nameEnd)) {
+            mzIntPeaks = isName("m/z-int", valueStart, valueEnd);
+        }
+    }
 
-        // check if the string is compressed
-        boolean zlibCompression = ("zlib".equalsIgnoreCase(compressType));
+    /**
+     * @return the constant if it is the value ignoring the case, the value otherwise
+     */
+    private String constant(String constant, int valueStart, int valueEnd) {
+        if (valueEnd - valueStart == constant.length()) {
+            int i = 0;
+            while (i < constant.length() && Character.toLowerCase((char) tag[valueStart + i]) == Character.toLowerCase(constant.charAt(i)))
+                i++;
+            if (i == constant.length())
+                return constant;
+        }
+        return new String(tag, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+    }
 
-        // handle compressed peak lists
-        if (zlibCompression) {
-            Inflater decompresser = new Inflater();
+    /**
+     * @return the integer value of the tag bytes, surrounding whitespace is ignored
+     */
+    private int parseInt(int from, int to) {
+        from = trimStart(from, to);
+        to = trimEnd(from, to);
+        boolean negative = from < to && tag[from] == '-';
+        if (from < to && (tag[from] == '-' || tag[from] == '+'))
+            from++;
+        if (from == to)
+            throw new NumberFormatException("Empty integer value");
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            if (tag[i] < '0' || tag[i] > '9')
+                throw new NumberFormatException("Invalid integer value " + new String(tag, from, to - from, StandardCharsets.UTF_8));
+            value = value * 10 + (tag[i] - '0');
+        }
+        return negative ? -value : value;
+    }
 
-            // TODO: make sure the call to .array() is working
-            decompresser.setInput(byteBuffer.array());
+    private int trimStart(int from, int to) {
+        while (from < to && (tag[from] & 0xff) <= ' ')
+            from++;
+        return from;
+    }
 
-            // allocate 10x the memory of the original one
-            byte[] decompressedData = new byte[byteBuffer.capacity() * 10];
+    private int trimEnd(int from, int to) {
+        while (to > from && (tag[to - 1] & 0xff) <= ' ')
+            to--;
+        return to;
+    }
 
-            try {
-                int usedLength = decompresser.inflate(decompressedData);
+    /**
+     * Calls the consumer with the name and value of every attribute of the current tag.
+     *
+     * @param from the position after the tag's name
+     */
+    private void forEachAttribute(int from, AttributeConsumer consumer) {
+        forEachAttribute(from, (nameStart, nameEnd, valueStart, valueEnd) ->
+                consumer.accept(new String(tag, nameStart, nameEnd - nameStart, StandardCharsets.US_ASCII),
+                        new String(tag, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8)));
+    }
 
-                // save it as the new byte buffer
-                byteBuffer = ByteBuffer.wrap(decompressedData, 0, usedLength);
-            } catch (DataFormatException e) {
-                throw new MzXMLParsingException("Failed to decompress spectra data.", e);
+    /**
+     * Calls the consumer with the positions of the name and value of every attribute of the current tag.
+     *
+     * @param from the position after the tag's name
+     */
+    private void forEachAttribute(int from, AttributeRangeConsumer consumer) {
+        int position = from;
+        while (position < tagLength) {
+            // skip to the attribute name
+            while (position < tagLength && isNameEnd(tag[position]))
+                position++;
+            int nameStart = position;
+            while (position < tagLength && tag[position] != '=' && !isNameEnd(tag[position]))
+                position++;
+            int nameEnd = position;
+            while (position < tagLength && tag[position] != '=' && tag[position] != '>')
+                position++;
+            if (position >= tagLength || tag[position] != '=')
+                return;
+
+            // the quoted value
+            position++;
+            while (position < tagLength && tag[position] != '"' && tag[position] != '\'')
+                position++;
+            if (position >= tagLength)
+                return;
+            byte quote = tag[position++];
+            int valueStart = position;
+            while (position < tagLength && tag[position] != quote)
+                position++;
+            if (position >= tagLength)
+                return;
+
+            try {
+                consumer.accept(nameStart, nameEnd, valueStart, position);
+            } catch (NumberFormatException e) {
+                throw new NoSuchElementException("Invalid attribute value in mzXML tag -- " + new String(tag, 0, tagLength, StandardCharsets.UTF_8));
             }
+            position++;
         }
+    }
 
-        if ("network".equalsIgnoreCase(byteOrder))
-            byteBuffer.order(ByteOrder.BIG_ENDIAN);
-        else
-            throw new MzXMLParsingException("Peak lists must be encoded using network (big-endian) byte order");
+    private boolean isName(String name, int start, int end) {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (tag[start + i] != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
 
-        double[] values;
+    private static boolean isNameEnd(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '>' || b == '/';
+    }
 
-        // get the precision
-        if (precision != null && precision == 64) {
-            values = new double[byteBuffer.asDoubleBuffer().capacity()];
-            byteBuffer.asDoubleBuffer().get(values);
-        }
-        // if no precision is set, expect 32bit
-        else {
-            // need to convert the floats to doubles
-            FloatBuffer floats = byteBuffer.asFloatBuffer();
-            values = new double[floats.capacity()];
+    private interface AttributeConsumer {
+        void accept(String name, String value);
+    }
+
+    private interface AttributeRangeConsumer {
+        void accept(int nameStart, int nameEnd, int valueStart, int valueEnd);
+    }
+
+    /**
+     * View of the bytes of the current tag as characters.
+     */
+    private final class TagSequence implements CharSequence {
 
-            for (int index = 0; index < floats.capacity(); index++)
-                values[index] = (double) floats.get(index);
+        @Override
+        public int length() {
+            return tagLength;
         }
 
-        // make sure there's an even number of values (2 for every peak)
-        if (values.length % 2 > 0)
-            throw new MzXMLParsingException("Different number of m/z and intensity values encountered in peak list.");
+        @Override
+        public char charAt(int index) {
+            return (char) (tag[index] & 0xFF);
+        }
 
-        // create the Map
-        HashMap<Double, Double> peakList = new HashMap<>(values.length / 2);
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(tag, start, end - start, StandardCharsets.ISO_8859_1);
+        }
 
-        for (int peakIndex = 0; peakIndex < values.length - 1; peakIndex += 2) {
-            // get the two value
-            Double mz = values[peakIndex];
-            Double intensity = values[peakIndex + 1];
+        @Override
+        public String toString() {
+            return new String(tag, 0, tagLength, StandardCharsets.ISO_8859_1);
+        }
+    }
 
-            peakList.put(mz, intensity);
+    @Override
+    public void close() throws PgatkIOException {
+        try {
+            accessChannel.close();
+        } catch (IOException e) {
+            throw new PgatkIOException("The following file can't be close -- " + sourceFile, e);
         }
 
-        return peakList;
+    }
+
+    /**
+     * Extracts the peak list from the given
+     * Peaks object and returns it as a Map with
+     * the m/z as key and the intensity as value.
+     *
+     * @param arrayPeaks A peaks object.
+     * @return Map containing the m/z as key and the intensity as value.
+     */
+    public static Map<Double, Double> convertPeaksToMap(String arrayPeaks, String compressType, String byteOrder, Integer precision) throws MzXMLParsingException {
+        return convertPeaksToArrays(arrayPeaks, compressType, byteOrder, precision).toMap();
+    }
+
+    /**
+     * Extracts the peak list from the given base64
+     * encoded peaks as primitive arrays sorted by m/z.
+     *
+     * @param arrayPeaks the base64 encoded peaks.
+     * @return The peaks.
+     */
+    public static PeakArrays convertPeaksToArrays(String arrayPeaks, String compressType, String byteOrder, Integer precision) throws MzXMLParsingException {
+
+        // if no precision is set, expect 32bit
+        return MzXMLPeakDecoder.decode(arrayPeaks, compressType, byteOrder, (precision != null) ? precision : 32);
     }
 
 
@@ -0,0 +1,319 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the interleaved m/z - intensity pairs of the mzXML peaks element into primitive arrays.
+ *
+ * The {@link Inflater} and the buffers holding the decoded and inflated bytes are kept per thread, so
+ * decoding a scan only allocates the returned arrays. Compressed data is inflated to the end whatever
+ * its compression ratio and the values are read in bulk as big-endian floats or doubles.
+ *
+ * @author ypriverol
+ */
+final class MzXMLPeakDecoder {
+
+    /** Larger buffers are not kept after a scan, so a single huge scan does not stay in memory */
+    private static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private static final byte[] BASE64 = new byte[128];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64[alphabet.charAt(i)] = (byte) i;
+    }
+
+    private static final ThreadLocal<MzXMLPeakDecoder> DECODERS = ThreadLocal.withInitial(MzXMLPeakDecoder::new);
+
+    private final Inflater inflater = new Inflater();
+
+    private byte[] encoded = new byte[MIN_BUFFER_SIZE];
+
+    private byte[] inflated = new byte[MIN_BUFFER_SIZE];
+
+    private float[] floats = new float[MIN_BUFFER_SIZE / 4];
+
+    private double[] doubles = new double[MIN_BUFFER_SIZE / 8];
+
+    private MzXMLPeakDecoder() {
+    }
+
+    /**
+     * Decodes base64 encoded peaks.
+     * @param base64 the base64 text, whitespace and missing padding are accepted
+     * @param compressionType "zlib" for compressed data, anything else for uncompressed data
+     * @param byteOrder the byte order, only "network" is supported
+     * @param precision 64 for doubles, 32 bit floats otherwise
+     * @return the peaks sorted by m/z
+     * @throws MzXMLParsingException if the data cannot be decoded
+     */
+    static PeakArrays decode(CharSequence base64, String compressionType, String byteOrder, int precision) throws MzXMLParsingException {
+        MzXMLPeakDecoder decoder = DECODERS.get();
+        try {
+            int length = decoder.decodeBase64(base64);
+            return decoder.decode(decoder.encoded, length, compressionType, byteOrder, precision);
+        } finally {
+            decoder.trim();
+        }
+    }
+
+    /**
+     * Decodes base64 encoded peaks held as ASCII bytes.
+     * @param base64 the bytes holding the base64 text, whitespace and missing padding are accepted
+     * @param offset the position of the text in the bytes
+     * @param length the length of the text
+     * @param compressionType "zlib" for compressed data, anything else for uncompressed data
+     * @param byteOrder the byte order, only "network" is supported
+     * @param precision 64 for doubles, 32 bit floats otherwise
+     * @return the peaks sorted by m/z
+     * @throws MzXMLParsingException if the data cannot be decoded
+     */
+    static PeakArrays decode(byte[] base64, int offset, int length, String compressionType, String byteOrder, int precision) throws MzXMLParsingException {
+        MzXMLPeakDecoder decoder = DECODERS.get();
+        try {
+            int size = decoder.decodeBase64(new AsciiSequence(base64, offset, length));
+            return decoder.decode(decoder.encoded, size, compressionType, byteOrder, precision);
+        } finally {
+            decoder.trim();
+        }
+    }
+
+    /**
+     * Decodes base64 encoded peaks held as ASCII bytes into a reused spectrum, the peaks are added in the order of the data.
+     * @param base64 the bytes holding the base64 text, whitespace and missing padding are accepted
+     * @param offset the position of the text in the bytes
+     * @param length the length of the text
+     * @param compressionType "zlib" for compressed data, anything else for uncompressed data
+     * @param byteOrder the byte order, only "network" is supported
+     * @param precision 64 for doubles, 32 bit floats otherwise
+     * @param target the spectrum the peaks are added to
+     * @throws MzXMLParsingException if the data cannot be decoded
+     */
+    static void decode(byte[] base64, int offset, int length, String compressionType, String byteOrder, int precision,
+                       MutableSpectrum target) throws MzXMLParsingException {
+        MzXMLPeakDecoder decoder = DECODERS.get();
+        try {
+            int size = decoder.decodeBase64(new AsciiSequence(base64, offset, length));
+            int count = decoder.decodeValues(decoder.encoded, size, compressionType, byteOrder, precision);
+            target.ensurePeakCapacity(target.getPeakCount() + count / 2);
+            if (precision == 64) {
+                for (int peak = 0; peak < count / 2; peak++)
+                    target.addPeak(decoder.doubles[2 * peak], decoder.doubles[2 * peak + 1]);
+            } else {
+                for (int peak = 0; peak < count / 2; peak++)
+                    target.addPeak(decoder.floats[2 * peak], decoder.floats[2 * peak + 1]);
+            }
+        } finally {
+            decoder.trim();
+        }
+    }
+
+    /**
+     * Decodes the already base64 decoded peaks.
+     * @param data the peak data
+     * @param compressionType "zlib" for compressed data, anything else for uncompressed data
+     * @param byteOrder the byte order, only "network" is supported
+     * @param precision 64 for doubles, 32 bit floats otherwise
+     * @return the peaks sorted by m/z
+     * @throws MzXMLParsingException if the data cannot be decoded
+     */
+    static PeakArrays decode(byte[] data, String compressionType, String byteOrder, int precision) throws MzXMLParsingException {
+        MzXMLPeakDecoder decoder = DECODERS.get();
+        try {
+            return decoder.decode(data, data.length, compressionType, byteOrder, precision);
+        } finally {
+            decoder.trim();
+        }
+    }
+
+    private PeakArrays decode(byte[] data, int length, String compressionType, String byteOrder, int precision) throws MzXMLParsingException {
+        int count = decodeValues(data, length, compressionType, byteOrder, precision);
+
+        // split the interleaved m/z - intensity pairs
+        double[] mz = new double[count / 2];
+        double[] intensity = new double[count / 2];
+        if (precision == 64) {
+            for (int peak = 0; peak < mz.length; peak++) {
+                mz[peak] = doubles[2 * peak];
+                intensity[peak] = doubles[2 * peak + 1];
+            }
+        } else {
+            for (int peak = 0; peak < mz.length; peak++) {
+                mz[peak] = floats[2 * peak];
+                intensity[peak] = floats[2 * peak + 1];
+            }
+        }
+
+        return new PeakArrays(mz, intensity).seal();
+    }
+
+    /**
+     * Reads the interleaved values into the doubles buffer for a 64 bit precision, into the floats buffer otherwise.
+     * @return the number of values
+     */
+    private int decodeValues(byte[] data, int length, String compressionType, String byteOrder, int precision) throws MzXMLParsingException {
+        if (!"network".equalsIgnoreCase(byteOrder))
+            throw new MzXMLParsingException("Peak lists must be encoded using network (big-endian) byte order");
+
+        if ("zlib".equalsIgnoreCase(compressionType)) {
+            length = inflate(data, length);
+            data = inflated;
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(data, 0, length).order(ByteOrder.BIG_ENDIAN);
+        boolean doublePrecision = (precision == 64);
+        int count = length / (doublePrecision ? 8 : 4);
+
+        // make sure there's an even number of values (2 for every peak)
+        if (count % 2 > 0)
+            throw new MzXMLParsingException("Different number of m/z and intensity values encountered in peak list.");
+
+        if (doublePrecision) {
+            if (doubles.length < count)
+                doubles = new double[count];
+            bytes.asDoubleBuffer().get(doubles, 0, count);
+        } else {
+            if (floats.length < count)
+                floats = new float[count];
+            bytes.asFloatBuffer().get(floats, 0, count);
+        }
+        return count;
+    }
+
+    /**
+     * Inflates the data into the inflated buffer, growing it until the whole stream is inflated.
+     * @return the number of inflated bytes
+     */
+    private int inflate(byte[] data, int length) throws MzXMLParsingException {
+        if (inflated.length < length * 4)
+            inflated = new byte[length * 4];
+
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == inflated.length) {
+                    byte[] larger = new byte[inflated.length * 2];
+                    System.arraycopy(inflated, 0, larger, 0, size);
+                    inflated = larger;
+                }
+                int n = inflater.inflate(inflated, size, inflated.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new MzXMLParsingException("Failed to decompress spectra data: truncated zlib stream.");
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new MzXMLParsingException("Failed to decompress spectra data.", e);
+        }
+        return size;
+    }
+
+    /**
+     * Decodes the base64 text into the encoded buffer.
+     * @return the number of decoded bytes
+     */
+    private int decodeBase64(CharSequence base64) throws MzXMLParsingException {
+        int length = base64.length();
+        if (encoded.length < length / 4 * 3 + 3)
+            encoded = new byte[length / 4 * 3 + 3];
+
+        int size = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = base64.charAt(i);
+            if (c == '=')
+                break;
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                continue;
+            int value = (c < 128) ? BASE64[c] : -1;
+            if (value < 0)
+                throw new MzXMLParsingException("Invalid base64 character '" + c + "' in peak list.");
+
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                encoded[size++] = (byte) (bits >> 16);
+                encoded[size++] = (byte) (bits >> 8);
+                encoded[size++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // the last incomplete group, its padding may be missing
+        if (count == 1)
+            throw new MzXMLParsingException("Invalid base64 length in peak list.");
+        if (count == 2) {
+            encoded[size++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            encoded[size++] = (byte) (bits >> 10);
+            encoded[size++] = (byte) (bits >> 2);
+        }
+        return size;
+    }
+
+    /**
+     * Drops the buffers grown beyond the retained size.
+     */
+    private void trim() {
+        if (encoded.length > MAX_RETAINED_SIZE)
+            encoded = new byte[MIN_BUFFER_SIZE];
+        if (inflated.length > MAX_RETAINED_SIZE)
+            inflated = new byte[MIN_BUFFER_SIZE];
+        if (floats.length > MAX_RETAINED_SIZE / 4)
+            floats = new float[MIN_BUFFER_SIZE / 4];
+        if (doubles.length > MAX_RETAINED_SIZE / 8)
+            doubles = new double[MIN_BUFFER_SIZE / 8];
+    }
+
+    /**
+     * View of ASCII bytes as characters.
+     */
+    private static final class AsciiSequence implements CharSequence {
+
+        private final byte[] bytes;
+
+        private final int offset;
+
+        private final int length;
+
+        private AsciiSequence(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[offset + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new AsciiSequence(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Builds {@link MzXMLSpectrum}s straight from the XML of a scan with a StAX parser.
+ *
+ * Only the attributes of the scan, its precursor and its peaks are read, the nested scans are skipped
+ * and no JAXB model is created. The spectra hold the same values as the ones created from an unmarshalled
+ * {@link io.github.bigbio.pgatk.io.mzxml.mzxml.model.Scan}, which remains available through
+ * {@link MzXMLIndexedReader#getScanByNum(Long)}.
+ *
+ * @author ypriverol
+ */
+final class MzXMLScanDecoder {
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    /** The factories are not thread-safe */
+    private static final ThreadLocal<DatatypeFactory> DATATYPE_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("No javax.xml.datatype implementation available", e);
+        }
+    });
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private MzXMLScanDecoder() {
+    }
+
+    /**
+     * @param xml    the bytes holding the scan
+     * @param offset the position of the scan's start tag in the bytes
+     * @param length the length of the scan's XML
+     * @return the spectrum
+     * @throws MzXMLParsingException if the XML is not a valid scan
+     */
+    static MzXMLSpectrum decode(byte[] xml, int offset, int length) throws MzXMLParsingException {
+        return decode(xml, offset, length, SpectrumFields.ALL);
+    }
+
+    /**
+     * Decodes the selected parts of a scan. Without the peaks the peaks element is skipped without
+     * decoding it, without the additional parameters only the num, msLevel and retentionTime
+     * attributes of the scan are read.
+     *
+     * @param xml    the bytes holding the scan
+     * @param offset the position of the scan's start tag in the bytes
+     * @param length the length of the scan's XML
+     * @param fields the parts of the scan to decode
+     * @return the spectrum
+     * @throws MzXMLParsingException if the XML is not a valid scan
+     */
+    static MzXMLSpectrum decode(byte[] xml, int offset, int length, SpectrumFields fields) throws MzXMLParsingException {
+        return decode(xml, offset, length, fields, null);
+    }
+
+    /**
+     * Decodes the selected parts of a scan if its header is accepted by the filter. The filter is tested
+     * when the peaks element is reached, the peaks of a rejected scan are not decoded.
+     *
+     * @param xml    the bytes holding the scan
+     * @param offset the position of the scan's start tag in the bytes
+     * @param length the length of the scan's XML
+     * @param fields the parts of the scan to decode
+     * @param filter the filter on the scan's header, null to accept all scans
+     * @return the spectrum or null if it is rejected by the filter
+     * @throws MzXMLParsingException if the XML is not a valid scan
+     */
+    static MzXMLSpectrum decode(byte[] xml, int offset, int length, SpectrumFields fields, SpectrumFilter filter) throws MzXMLParsingException {
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml, offset, length));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        if (!"scan".equals(reader.getLocalName()))
+                            throw new MzXMLParsingException("Expected a scan element but found " + reader.getLocalName());
+                        return decodeScan(reader, fields, filter);
+                    }
+                }
+                throw new MzXMLParsingException("No scan element found.");
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | IllegalArgumentException e) {
+            throw new MzXMLParsingException("Failed to parse Scan object.", e);
+        }
+    }
+
+    private static MzXMLSpectrum decodeScan(XMLStreamReader reader, SpectrumFields fields, SpectrumFilter filter)
+            throws XMLStreamException, MzXMLParsingException {
+        MzXMLSpectrum spectrum = new MzXMLSpectrum();
+
+        spectrum.setId(reader.getAttributeValue(null, "num"));
+        String msLevel = reader.getAttributeValue(null, "msLevel");
+        if (msLevel != null)
+            spectrum.setMsLevel(Integer.parseInt(msLevel.trim()));
+
+        // the parameters are added in the order of the JAXB based spectra
+        String value;
+        if (fields.hasParams()) {
+            if ((value = reader.getAttributeValue(null, "polarity")) != null)
+                spectrum.setPolarity(value);
+            if ((value = reader.getAttributeValue(null, "scanType")) != null)
+                spectrum.setScanType(value);
+            if ((value = reader.getAttributeValue(null, "filterLine")) != null)
+                spectrum.setFilterLine(value);
+            if (isTrue(reader.getAttributeValue(null, "centroided")))
+                spectrum.setCentroid(true);
+            if (isTrue(reader.getAttributeValue(null, "deisotoped")))
+                spectrum.setDeisotoped(true);
+            if (isTrue(reader.getAttributeValue(null, "chargeDeconvoluted")))
+                spectrum.setChargeDeconvoluted();
+        }
+        if ((value = reader.getAttributeValue(null, "retentionTime")) != null)
+            spectrum.setRetentionTime(DATATYPE_FACTORY.get().newDuration(value.trim()));
+        if (fields.hasParams()) {
+            if ((value = reader.getAttributeValue(null, "ionisationEnergy")) != null)
+                spectrum.setIonizationEnergy(Float.valueOf(value.trim()));
+            if ((value = reader.getAttributeValue(null, "collisionEnergy")) != null)
+                spectrum.setCollitionEnergy(Float.valueOf(value.trim()));
+            if ((value = reader.getAttributeValue(null, "cidGasPressure")) != null)
+                spectrum.setCidgasPressure(Float.valueOf(value.trim()));
+            if ((value = reader.getAttributeValue(null, "totIonCurrent")) != null)
+                spectrum.setIonCurrent(Float.valueOf(value.trim()));
+        }
+
+        int precursorCount = 0;
+        String precursorMz = null;
+        String precursorIntensity = null;
+        String precursorCharge = null;
+        int peaksCount = 0;
+        PeakArrays peaks = null;
+        boolean tested = filter == null;
+
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+            if (depth == 1 && "precursorMz".equals(name)) {
+                // the precursor is only reported if there is a single one, as for the JAXB based spectra
+                if (++precursorCount == 1) {
+                    precursorIntensity = reader.getAttributeValue(null, "precursorIntensity");
+                    precursorCharge = reader.getAttributeValue(null, "precursorCharge");
+                    precursorMz = reader.getElementText();
+                } else {
+                    reader.getElementText();
+                }
+            } else if (depth == 1 && "peaks".equals(name)) {
+                // the precursor comes before the peaks, rejected scans are not decoded further
+                if (!tested) {
+                    setPrecursor(spectrum, precursorCount, precursorMz, precursorIntensity, precursorCharge);
+                    if (!filter.test(spectrum))
+                        return null;
+                    tested = true;
+                }
+                peaksCount++;
+                if (!fields.hasPeaks()) {
+                    skipElement(reader);
+                    continue;
+                }
+                String precision = reader.getAttributeValue(null, "precision");
+                String byteOrder = reader.getAttributeValue(null, "byteOrder");
+                String compressionType = reader.getAttributeValue(null, "compressionType");
+                peaks = MzXMLPeakDecoder.decode(reader.getElementText(), compressionType,
+                        (byteOrder != null) ? byteOrder : "network", (precision != null) ? Integer.parseInt(precision.trim()) : 32);
+            } else {
+                depth++;
+            }
+        }
+
+        // only single peak lists are supported by MzXMLSpectrum
+        if (peaksCount != 1)
+            throw new MzXMLParsingException("Multiple peak lists can not be modeled in a mzXMLSpectrum.");
+        spectrum.setPeaks(fields.hasPeaks() ? peaks : new PeakArrays(0));
+
+        setPrecursor(spectrum, precursorCount, precursorMz, precursorIntensity, precursorCharge);
+        if (!tested && !filter.test(spectrum))
+            return null;
+
+        return spectrum;
+    }
+
+    private static void setPrecursor(MzXMLSpectrum spectrum, int precursorCount, String precursorMz, String precursorIntensity,
+                                     String precursorCharge) {
+        if (precursorCount == 1) {
+            spectrum.setPrecursorMz((double) Float.parseFloat(precursorMz.trim()));
+            if (precursorIntensity != null)
+                spectrum.setPrecursorIntesity(Float.parseFloat(precursorIntensity.trim()));
+            if (precursorCharge != null)
+                spectrum.setPrecursorCharge(Integer.parseInt(precursorCharge.trim()));
+        }
+    }
+
+    /**
+     * Moves the reader to the end tag of the current element without reading its content.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    private static boolean isTrue(String value) {
+        return value != null && ("true".equals(value.trim()) || "1".equals(value.trim()));
+    }
+}
@@ -2,6 +2,7 @@ package io.github.bigbio.pgatk.io.mzxml;
 
 import io.github.bigbio.pgatk.io.common.CvParam;
 import io.github.bigbio.pgatk.io.mzxml.mzxml.model.Scan;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
 
 import javax.xml.datatype.Duration;
@@ -35,7 +36,7 @@ public class MzXMLSpectrum implements Spectrum {
 	/**
 	 * The actual peak list
 	 */
-	private Map<Double, Double> peakList;
+	private PeakArrays peaks;
 	/**
 	 * ParamGroup holding additional information
 	 * about the spectrum.
@@ -67,7 +68,7 @@ public class MzXMLSpectrum implements Spectrum {
 		
 		// only single peak lists are supported by this class
 		if (scan.getPeaks().size() == 1)
-			peakList = MzXMLIndexedReader.convertPeaksToMap(scan.getPeaks().get(0));
+			peaks = MzXMLIndexedReader.convertPeaksToArrays(scan.getPeaks().get(0));
 		else
 			throw new MzXMLParsingException("Multiple peak lists can not be modeled in a mzXMLSpectrum.");
 		
@@ -179,7 +180,12 @@ public class MzXMLSpectrum implements Spectrum {
 
 	@Override
 	public Map<Double, Double> getPeakList() {
-		return peakList;
+		return (peaks != null) ? peaks.toMap() : null;
+	}
+
+	@Override
+	public PeakArrays getPeakArrays() {
+		return (peaks != null) ? peaks : new PeakArrays(0);
 	}
 
 	@Override
@@ -210,7 +216,7 @@ public class MzXMLSpectrum implements Spectrum {
 		paramGroup.add(new CvParam("scan polarity", polarity, "MS", "MS:1000465"));
 	}
 
-	private void setScanType(String scanType) {
+	public void setScanType(String scanType) {
 		paramGroup.add(new CvParam("scan type", scanType, null, null));
 	}
 
@@ -231,7 +237,11 @@ public class MzXMLSpectrum implements Spectrum {
 	}
 
 	public void setPeaks(Map<Double, Double> peaks) {
-		this.peakList = peaks;
+		this.peaks = (peaks != null) ? PeakArrays.fromMap(peaks) : null;
+	}
+
+	public void setPeaks(PeakArrays peaks) {
+		this.peaks = peaks;
 	}
 
 	/**
@@ -252,10 +262,10 @@ public class MzXMLSpectrum implements Spectrum {
 
 		query.append(paramGroup.toString());
 
-		List<Double> masses = new ArrayList<>(peakList.keySet());
-		Collections.sort(masses);
-		for (Double mz : masses) {
-			query.append(mz).append(' ').append(peakList.get(mz)).append('\n');
+		double[] masses = getMzArray();
+		double[] intensities = getIntensityArray();
+		for (int i = 0; i < masses.length; i++) {
+			query.append(masses[i]).append(' ').append(intensities[i]).append('\n');
 		}
 		query.append("END IONS\n");
 		return query.toString();
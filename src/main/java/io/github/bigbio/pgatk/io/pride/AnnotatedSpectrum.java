@@ -5,9 +5,13 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonRootName;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import io.github.bigbio.pgatk.io.common.Param;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
 import io.github.bigbio.pgatk.utilities.spectra.SpectraUtilities;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Setter;
 import org.apache.avro.reflect.Nullable;
 
 import java.util.*;
@@ -128,6 +132,13 @@ public class AnnotatedSpectrum implements Spectrum {
     @JsonProperty("binaryPeaks")
     private BinaryPeaks binaryPeaks;
 
+    /**
+     * The decoded binary peaks, built on first access.
+     */
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    private transient volatile PeakArrays peakArrays;
+
     /**
      * Spectrum retention time.
      */
@@ -258,17 +269,57 @@ public class AnnotatedSpectrum implements Spectrum {
      * function.
      */
     public Map<Double, Double> getPeakList() {
-        Map<Double, Double> peaks = new HashMap<>();
-        if(binaryPeaks != null){
-            List<Double> masses = SpectraUtilities.decodeBinary(binaryPeaks.getBinaryMasses());
-            List<Double> intensities = SpectraUtilities.decodeBinary(binaryPeaks.getBinaryIntensities());
-            for(int i = 0; i < masses.size(); i++){
-                peaks.put(masses.get(i), intensities.get(i));
-            }
+        return getPeakArrays().toMap();
+    }
+
+    public void setBinaryPeaks(BinaryPeaks binaryPeaks) {
+        this.binaryPeaks = binaryPeaks;
+        this.peakArrays = null;
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public PeakArrays getPeakArrays() {
+        PeakArrays peaks = peakArrays;
+        if (peaks == null) {
+            peaks = decodePeakArrays();
+            peakArrays = peaks;
         }
         return peaks;
     }
 
+    private PeakArrays decodePeakArrays() {
+        if (binaryPeaks == null)
+            return new PeakArrays(0);
+        List<Double> masses = SpectraUtilities.decodeBinary(binaryPeaks.getBinaryMasses());
+        List<Double> intensities = SpectraUtilities.decodeBinary(binaryPeaks.getBinaryIntensities());
+        double[] mzValues = new double[masses.size()];
+        double[] intensityValues = new double[masses.size()];
+        for (int i = 0; i < mzValues.length; i++) {
+            mzValues[i] = masses.get(i);
+            intensityValues[i] = intensities.get(i);
+        }
+        return new PeakArrays(mzValues, intensityValues).seal();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public double[] getMzArray() {
+        return getPeakArrays().getMz();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public double[] getIntensityArray() {
+        return getPeakArrays().getIntensity();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public int getNumberOfPeaks() {
+        return getPeakArrays().size();
+    }
+
     @Override
     public Integer getMsLevel() {
         return msLevel;
@@ -2,8 +2,13 @@ package io.github.bigbio.pgatk.io.pride;
 
 import com.fasterxml.jackson.annotation.*;
 import io.github.bigbio.pgatk.io.common.Param;
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Setter;
+import lombok.ToString;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -38,6 +43,12 @@ public class ArchiveSpectrum implements Spectrum {
     @JsonProperty("intensities")
     Double[] intensities;
 
+    // The masses and intensities as sorted arrays, built on first access
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient volatile PeakArrays peakArrays;
+
     @JsonProperty("numPeaks")
     Integer numPeaks;
 
@@ -170,17 +181,62 @@ public class ArchiveSpectrum implements Spectrum {
         return null;
     }
 
+    public void setMasses(Double[] masses) {
+        this.masses = masses;
+        this.peakArrays = null;
+    }
+
+    public void setIntensities(Double[] intensities) {
+        this.intensities = intensities;
+        this.peakArrays = null;
+    }
+
     @Override
     public Map<Double, Double> getPeakList() {
-        Map<Double, Double> peaks = new HashMap<>();
-        if(masses != null){
-            for(int i = 0; i < masses.length; i++){
-                peaks.put(masses[i], intensities[i]);
-            }
+        return getPeakArrays().toMap();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public PeakArrays getPeakArrays() {
+        PeakArrays peaks = peakArrays;
+        if (peaks == null) {
+            peaks = buildPeakArrays();
+            peakArrays = peaks;
         }
         return peaks;
     }
 
+    private PeakArrays buildPeakArrays() {
+        if (masses == null)
+            return new PeakArrays(0);
+        double[] mzValues = new double[masses.length];
+        double[] intensityValues = new double[masses.length];
+        for (int i = 0; i < masses.length; i++) {
+            mzValues[i] = masses[i];
+            intensityValues[i] = intensities[i];
+        }
+        return new PeakArrays(mzValues, intensityValues).seal();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public double[] getMzArray() {
+        return getPeakArrays().getMz();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public double[] getIntensityArray() {
+        return getPeakArrays().getIntensity();
+    }
+
+    @Override
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    public int getNumberOfPeaks() {
+        return getPeakArrays().size();
+    }
+
     @Override
     @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     public Collection<? extends Param> getAdditional() {
@@ -5,12 +5,20 @@ import com.fasterxml.jackson.module.paranamer.ParanamerModule;
 import io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile;
 import io.github.bigbio.pgatk.io.common.*;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
-public class PrideJsonIndexedReader implements MzReader {
+public class PrideJsonIndexedReader implements MzReader, AutoCloseable {
 
   File source;
   private static final ObjectMapper objectMapper;
@@ -20,29 +28,61 @@ public class PrideJsonIndexedReader implements MzReader {
     objectMapper.registerModule(new ParanamerModule());
   }
 
-  /** Index Spectra in the Json file */
-  private List<IndexElement> index = new ArrayList<>();
+  /** Format of the {@link IndexFile}s written for PRIDE json files */
+  private static final String INDEX_FORMAT = "pride-json";
 
-  /**  Index in the file to {@link ArchiveSpectrum} */
-  private HashMap<Integer, Spectrum> indexSpectra = new HashMap<>();
+  /** Buffers used to read the spectra from the files */
+  private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(64, 4 * 1024 * 1024);
 
-  /** Usi to {@link ArchiveSpectrum} */
-  private HashMap<String, Spectrum> peakLists = new HashMap<>();
+  /** Index Spectra in the Json file, the usi of the spectra are used as ids */
+  private SpectrumIndex index = SpectrumIndex.EMPTY;
 
-  /** Indicates whether the cache should be used */
-  private boolean useCache = false;
+  /** Cache of the spectra read from the file, null if the spectra are not cached */
+  private transient volatile SpectrumCache spectrumCache;
 
-  private Map<String, IndexElement> keys = new HashMap<>();
+  /** Channel shared by all threads reading spectra from the file, opened on first use */
+  private transient volatile FileChannel channel;
+
+  /** Spectra closer than this are read at once by {@link #getSpectra(Collection)} */
+  private int maxCoalescedGap = CoalescedRangeReader.DEFAULT_MAX_GAP;
+
+  /** The parts of the spectra bound by {@link #spectrumMapper} */
+  private SpectrumFields spectrumFields = SpectrumFields.ALL;
+
+  /** Binds the spectra read by {@link #getSpectrum(int)}, it skips the parts that are not selected */
+  private transient volatile ObjectMapper spectrumMapper = objectMapper;
+
+  /** Filter on the header of the spectra returned by the {@link SpectrumIterator}s created afterwards */
+  private SpectrumFilter spectrumFilter;
 
   /**
    * Constructor of {@link PrideJsonIndexedReader}
    * @param source File with the spectra
-   * @param inMemory Load in memory all the spectra
+   * @param inMemory Keep the spectra in a {@link LruSpectrumCache} with the default size
    * @throws PgatkIOException
    */
   public PrideJsonIndexedReader(File source, boolean inMemory) throws PgatkIOException {
+    this(source, inMemory, new IndexingOptions());
+  }
+
+  /**
+   * Constructor of {@link PrideJsonIndexedReader}. If the options enable index files the
+   * index is read from the file's {@link IndexFile} when it is up to date.
+   * @param source File with the spectra
+   * @param inMemory Keep the spectra in a {@link LruSpectrumCache} with the default size
+   * @param options Options used to build the index
+   * @throws PgatkIOException
+   */
+  public PrideJsonIndexedReader(File source, boolean inMemory, IndexingOptions options) throws PgatkIOException {
     this.source = source;
-    this.useCache = inMemory;
+    if (inMemory)
+      this.spectrumCache = new LruSpectrumCache();
+
+    IndexFile indexFile = options.isUseIndexFile() ? IndexFile.read(source, INDEX_FORMAT, options) : null;
+    if (indexFile != null && indexFile.getIds() != null && indexFile.getMsLevels() != null) {
+      index = SpectrumIndex.fromIndexFile(indexFile);
+      return;
+    }
 
     // open the file
     try {
@@ -53,19 +93,22 @@ public class PrideJsonIndexedReader implements MzReader {
       // process the file line by line
       String line;
       long beginIonsIndex = 0; // the index where the last "BEGIN IONS" was encountered
+      SpectrumIndex.Builder builder = new SpectrumIndex.Builder();
       while ((line = braf.getNextLine()) != null) {
         int size = (int) (braf.getFilePointer() - beginIonsIndex);
-        index.add(new IndexElementImpl(beginIonsIndex, size));
         ArchiveSpectrum spectrum = objectMapper.readValue(line, ArchiveSpectrum.class);
-        keys.put(spectrum.usi, new IndexElementImpl(beginIonsIndex, size));
-        if(this.useCache){
-          indexSpectra.put(index.size()-1, spectrum);
-          peakLists.put(spectrum.usi, spectrum);
-        }
+        builder.add(beginIonsIndex, size, (spectrum.msLevel != null) ? spectrum.msLevel : 0, spectrum.usi);
+        if (spectrumCache != null)
+          spectrumCache.put(this, builder.size() - 1, spectrum);
         //always update file pointer before continue
         beginIonsIndex = braf.getFilePointer();
       }
       braf.close();
+      index = builder.build();
+
+      if (options.isUseIndexFile()) {
+        index.toIndexFile(null).write(source, INDEX_FORMAT, options);
+      }
     } catch (IOException e) {
       throw new PgatkIOException("Failed to read from PrideJson file.", e);
     }
@@ -89,34 +132,343 @@ public class PrideJsonIndexedReader implements MzReader {
 
   @Override
   public List<String> getSpectraIds() {
-    return new ArrayList<>(keys.keySet());
+    return index.getIds();
   }
 
   @Override
-  public Spectrum getSpectrumById(String id) {
-    if(useCache){
-      return peakLists.get(id);
+  public Spectrum getSpectrumById(String id) throws PgatkIOException {
+    int position = index.getOrdinal(id);
+    if (position < 0)
+      return null;
+    return getSpectrum(position);
+  }
+
+  @Override
+  public Spectrum getSpectrumByIndex(int index) throws PgatkIOException {
+    if (index < 1 || index > this.index.size())
+      return null;
+    return getSpectrum(index - 1);
+  }
+
+  @Override
+  public List<Spectrum> getSpectra(Collection<String> ids) throws PgatkIOException {
+    int[] positions = new int[ids.size()];
+    int i = 0;
+    for (String id : ids)
+      positions[i++] = index.getOrdinal(id);
+    return getSpectra(positions);
+  }
+
+  @Override
+  public List<Spectrum> getSpectraByIndex(int[] indexes) throws PgatkIOException {
+    int[] positions = new int[indexes.length];
+    for (int i = 0; i < indexes.length; i++)
+      positions[i] = (indexes[i] < 1 || indexes[i] > index.size()) ? -1 : indexes[i] - 1;
+    return getSpectra(positions);
+  }
+
+  @Override
+  public void setMaxCoalescedGap(int maxCoalescedGap) {
+    this.maxCoalescedGap = maxCoalescedGap;
+  }
+
+  /**
+   * Returns the spectra from the cache or reads them in file order, spectra close to each
+   * other are read at once and parsed in parallel.
+   * @param positions 0-based indexes of the spectra in the file, -1 for missing spectra
+   * @return the spectra in the order of the positions, null for missing spectra
+   */
+  private List<Spectrum> getSpectra(int[] positions) throws PgatkIOException {
+    Spectrum[] spectra = new Spectrum[positions.length];
+    SpectrumCache cache = spectrumCache;
+
+    // the spectra that are read from the file
+    int count = 0;
+    int[] requests = new int[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      if (positions[i] < 0)
+        continue;
+      if (cache != null)
+        spectra[i] = cache.get(this, positions[i]);
+      if (spectra[i] == null)
+        requests[count++] = i;
+    }
+
+    int[] ordinals = new int[count];
+    for (int i = 0; i < count; i++)
+      ordinals[i] = positions[requests[i]];
+    Spectrum[] read = new Spectrum[count];
+    ObjectMapper mapper = spectrumMapper;
+    CoalescedRangeReader.read(index, ordinals, read, maxCoalescedGap, BUFFER_POOL, this::readRegion, (bytes, offset, length, ordinal) -> {
+      try {
+        return mapper.readValue(bytes, offset, length, ArchiveSpectrum.class);
+      } catch (IOException e) {
+        throw new PgatkIOException("Failed to read from PrideJson file.", e);
+      }
+    });
+
+    for (int i = 0; i < count; i++) {
+      spectra[requests[i]] = read[i];
+      if (cache != null)
+        cache.put(this, ordinals[i], read[i]);
+    }
+    return Arrays.asList(spectra);
+  }
+
+  /**
+   * Reads a region of the file into a buffer of the {@link #BUFFER_POOL}.
+   */
+  private ByteBuffer readRegion(long start, int length) throws IOException {
+    try {
+      return BUFFER_POOL.read(getChannel(), start, length);
+    } catch (ClosedChannelException e) {
+      // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+      if (e instanceof ClosedByInterruptException)
+        throw e;
+      return BUFFER_POOL.read(getChannel(), start, length);
     }
-    return null;
   }
 
+  /**
+   * Returns the spectrum from the cache or reads it from the file.
+   * @param position 0-based index of the spectrum in the file
+   */
+  private Spectrum getSpectrum(int position) throws PgatkIOException {
+    SpectrumCache cache = spectrumCache;
+    if (cache != null) {
+      Spectrum cached = cache.get(this, position);
+      if (cached != null)
+        return cached;
+    }
+
+    IndexElement element = index.getIndexElement(position);
+    ByteBuffer buffer = null;
+    try {
+      buffer = BUFFER_POOL.read(getChannel(), element.getStart(), element.getSize());
+      ArchiveSpectrum spectrum = spectrumMapper.readValue(buffer.array(), buffer.arrayOffset(), buffer.limit(), ArchiveSpectrum.class);
+      if (cache != null)
+        cache.put(this, position, spectrum);
+      return spectrum;
+    } catch (IOException e) {
+      throw new PgatkIOException("Failed to read from PrideJson file.", e);
+    } finally {
+      BUFFER_POOL.release(buffer);
+    }
+  }
+
+  /**
+   * Returns the JSON line of a spectrum as it is stored in the PrideJson file, without parsing it.
+   *
+   * @param index The 1-based index of the spectrum.
+   * @return A new buffer holding the bytes between 0 and its limit.
+   */
   @Override
-  public Spectrum getSpectrumByIndex(int index) {
-    return null;
+  public ByteBuffer getRawSpectrumBytes(int index) throws PgatkIOException {
+    if (index < 1 || index > this.index.size())
+      throw new PgatkIOException("Spectrum index out of range.");
+    return readRawRecord(this.index.getStart(index - 1), this.index.getSize(index - 1));
+  }
+
+  /**
+   * Copies the JSON lines of the spectra to a channel as they are stored in the PrideJson file, without
+   * parsing them. The lines form a PRIDE json file holding the selected spectra.
+   *
+   * @param indexes The 1-based indexes of the spectra.
+   * @param target  The channel the spectra are written to in the order of the indexes.
+   * @return The number of bytes written.
+   */
+  @Override
+  public long writeSpectra(int[] indexes, WritableByteChannel target) throws PgatkIOException {
+    int[] ordinals = new int[indexes.length];
+    for (int i = 0; i < indexes.length; i++)
+      ordinals[i] = indexes[i] - 1;
+    try {
+      return RecordSubsetWriter.write(this.index, ordinals, 0, getChannel(), target);
+    } catch (IOException e) {
+      throw new PgatkIOException("Failed to read from PrideJson file.", e);
+    }
+  }
+
+  /**
+   * Reads a record of the file into a new buffer, the bytes are read directly into it.
+   */
+  private ByteBuffer readRawRecord(long start, int size) throws PgatkIOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    try {
+      try {
+        ByteBufferPool.readFully(getChannel(), buffer, start);
+      } catch (ClosedChannelException e) {
+        // the shared channel is closed when a reading thread is interrupted, the other threads retry once
+        if (e instanceof ClosedByInterruptException)
+          throw e;
+        buffer.clear();
+        ByteBufferPool.readFully(getChannel(), buffer, start);
+      }
+    } catch (IOException e) {
+      throw new PgatkIOException("Failed to read from PrideJson file.", e);
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Returns the channel shared by all threads, (re)opening it if needed.
+   */
+  private FileChannel getChannel() throws IOException {
+    FileChannel current = channel;
+    if (current != null && current.isOpen())
+      return current;
+
+    synchronized (this) {
+      if (channel == null || !channel.isOpen())
+        channel = new RandomAccessFile(source, "r").getChannel();
+      return channel;
+    }
+  }
+
+  /**
+   * Closes the file and removes the spectra of this reader from the cache.
+   * Further calls reopen the file.
+   */
+  @Override
+  public synchronized void close() throws PgatkIOException {
+    if (spectrumCache != null)
+      spectrumCache.invalidate(this);
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new PgatkIOException("Failed to close PrideJson file.", e);
+      }
+      channel = null;
+    }
+  }
+
+  @Override
+  public SpectrumCache getSpectrumCache() {
+    return spectrumCache;
+  }
+
+  @Override
+  public void setSpectrumCache(SpectrumCache spectrumCache) {
+    if (this.spectrumCache != null && this.spectrumCache != spectrumCache)
+      this.spectrumCache.invalidate(this);
+    this.spectrumCache = spectrumCache;
+  }
+
+  @Override
+  public SpectrumFields getSpectrumFields() {
+    return spectrumFields;
+  }
+
+  @Override
+  public synchronized void setSpectrumFields(SpectrumFields fields) {
+    if (fields == spectrumFields)
+      return;
+    if (spectrumCache != null)
+      spectrumCache.invalidate(this);
+    this.spectrumMapper = fields.isAll() ? objectMapper : SpectrumMappers.create(ArchiveSpectrum.class, fields);
+    this.spectrumFields = fields;
+  }
+
+  /**
+   * Sets a filter on the header values of the spectra returned by the {@link SpectrumIterator}s created
+   * afterwards. The spectra are first bound without their peaks and parameters, only the accepted ones
+   * are bound completely.
+   * @param filter the filter or null to iterate over all the spectra
+   */
+  public void setSpectrumFilter(SpectrumFilter filter) {
+    this.spectrumFilter = filter;
+  }
+
+  /**
+   * Iterates over the spectra in the order of the file. The file is read ahead with a
+   * {@link SequentialRecordReader}, the index is only used to cut the spectra.
+   */
+  public class SpectrumIterator implements Iterator<Spectrum> {
+
+    private final SpectrumFilter filter = spectrumFilter;
+
+    private final ObjectMapper mapper = spectrumMapper;
+
+    /** Binds the header of the spectra that are tested by the filter, null if the mapper already skips the rest */
+    private final ObjectMapper headerMapper = (spectrumFilter != null && spectrumFields != SpectrumFields.HEADER)
+        ? SpectrumMappers.create(ArchiveSpectrum.class, SpectrumFields.HEADER) : null;
+
+    private final SequentialRecordReader records = new SequentialRecordReader(index, PrideJsonIndexedReader.this::readRegion,
+        BUFFER_POOL, SequentialRecordReader.DEFAULT_READ_AHEAD);
+
+    private int position = 0;
+
+    /** The next spectrum accepted by the filter, null if it was not read yet */
+    private Spectrum nextAccepted;
+
+    @Override
+    public boolean hasNext() {
+      try {
+        while (nextAccepted == null && position < index.size())
+          nextAccepted = read(position++);
+      } catch (PgatkIOException e) {
+        records.close();
+        throw new RuntimeException("Failed to read spectrum " + position + ": " + e.getMessage(), e);
+      }
+      if (nextAccepted == null)
+        records.close();
+      return nextAccepted != null;
+    }
+
+    @Override
+    public Spectrum next() {
+      if (!hasNext())
+        throw new NoSuchElementException("No more spectra in " + source);
+      Spectrum next = nextAccepted;
+      nextAccepted = null;
+      return next;
+    }
+
+    /**
+     * @return the spectrum or null if it is rejected by the filter
+     */
+    private Spectrum read(int ordinal) throws PgatkIOException {
+      SpectrumCache cache = spectrumCache;
+      Spectrum cached = (cache != null) ? cache.get(PrideJsonIndexedReader.this, ordinal) : null;
+      if (cached != null)
+        return (filter == null || filter.test(cached)) ? cached : null;
+
+      return records.read(ordinal, (bytes, offset, length, n) -> {
+        try {
+          if (filter != null) {
+            ArchiveSpectrum header = ((headerMapper != null) ? headerMapper : mapper).readValue(bytes, offset, length, ArchiveSpectrum.class);
+            if (!filter.test(header))
+              return null;
+            if (headerMapper == null)
+              return header;
+          }
+          return mapper.readValue(bytes, offset, length, ArchiveSpectrum.class);
+        } catch (IOException e) {
+          throw new PgatkIOException("Failed to read from PrideJson file.", e);
+        }
+      });
+    }
   }
 
   @Override
   public List<IndexElement> getMsNIndexes(int msLevel) {
-    return null;
+    return index.getIndexElements(msLevel);
   }
 
   @Override
   public List<Integer> getMsLevels() {
-    return null;
+    return index.getMsLevels();
   }
 
   @Override
   public Map<String, IndexElement> getIndexElementForIds() {
-    return null;
+    return index.getIndexElementForIds();
+  }
+
+  @Override
+  public SpectrumIndex getSpectrumIndex() {
+    return index;
   }
 }
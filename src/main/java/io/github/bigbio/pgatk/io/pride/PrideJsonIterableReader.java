@@ -6,11 +6,16 @@ import com.fasterxml.jackson.module.paranamer.ParanamerModule;
 import io.github.bigbio.pgatk.io.braf.BufferedRandomAccessFile;
 import io.github.bigbio.pgatk.io.common.MzIterableReader;
 import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.PipelinedIterableReader;
+import io.github.bigbio.pgatk.io.common.RecordSpliterator;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class PrideJsonIterableReader implements MzIterableReader {
 
@@ -20,6 +25,14 @@ public class PrideJsonIterableReader implements MzIterableReader {
     private BufferedRandomAccessFile braf;
     private String line = null;
 
+    /** Binds the spectra, it skips the parts that are not selected */
+    private ObjectMapper spectrumMapper = objectMapper;
+
+    private SpectrumFilter spectrumFilter;
+
+    /** Binds the header of the spectra that are tested by the filter */
+    private ObjectMapper headerMapper;
+
     static {
         objectMapper = new ObjectMapper();
         objectMapper.registerModule(new ParanamerModule());
@@ -47,6 +60,10 @@ public class PrideJsonIterableReader implements MzIterableReader {
         // process the file line by line
         try {
             line = braf.getNextLine();
+            // the lines rejected by the filter are only bound without their peaks and properties
+            while (line != null && spectrumFilter != null
+                    && !spectrumFilter.test((Spectrum) headerMapper.readValue(line, classMapper)))
+                line = braf.getNextLine();
             return (line != null);
         } catch (IOException e) {
             e.printStackTrace();
@@ -57,12 +74,61 @@ public class PrideJsonIterableReader implements MzIterableReader {
     @Override
     public Spectrum next() throws NoSuchElementException {
         try {
-            return (Spectrum) objectMapper.readValue(line, classMapper);
+            return (Spectrum) spectrumMapper.readValue(line, classMapper);
         } catch (JsonProcessingException e) {
             throw new NoSuchElementException(e.getMessage());
         }
     }
 
+    /**
+     * Selects the parts of the following spectra that are decoded, the peaks and additional
+     * parameters are skipped if they are not selected.
+     * @param fields the fields to decode
+     */
+    public void setSpectrumFields(SpectrumFields fields) {
+        this.spectrumMapper = fields.isAll() ? objectMapper : SpectrumMappers.create(classMapper, fields);
+    }
+
+    @Override
+    public void setSpectrumFilter(SpectrumFilter filter) {
+        if (filter != null && headerMapper == null)
+            headerMapper = SpectrumMappers.create(classMapper, SpectrumFields.HEADER);
+        this.spectrumFilter = filter;
+    }
+
+    /**
+     * Creates a reader that cuts the JSON lines out of the file on an I/O thread and parses them
+     * on a pool of worker threads, the spectra are returned in the order of the file.
+     *
+     * @param threads the number of parser threads
+     * @return the reader
+     */
+    public static MzIterableReader pipelined(File source, Class classMapper, int threads) throws PgatkIOException {
+        return new PipelinedIterableReader(source, line -> !line.isBlank(), line -> true,
+                (record, length, index) -> parseRecord(record, length, index, classMapper), threads);
+    }
+
+    /**
+     * Creates a stream over the spectra of a file, a parallel stream is split between the JSON lines. The
+     * stream holds the file open until it is closed.
+     *
+     * @param source the file with one JSON spectrum per line
+     * @param parallel true for a parallel stream
+     * @return the stream
+     */
+    public static Stream<Spectrum> stream(File source, Class classMapper, boolean parallel) throws PgatkIOException {
+        return RecordSpliterator.stream(source, line -> !line.isBlank(), line -> true,
+                (record, length, index) -> parseRecord(record, length, index, classMapper), parallel);
+    }
+
+    private static Spectrum parseRecord(byte[] record, int length, long index, Class classMapper) throws PgatkIOException {
+        try {
+            return (Spectrum) objectMapper.readValue(record, 0, length, classMapper);
+        } catch (IOException e) {
+            throw new PgatkIOException("Error parsing the spectrum " + index, e);
+        }
+    }
+
     @Override
     public void close() throws PgatkIOException {
         try{
@@ -0,0 +1,47 @@
+package io.github.bigbio.pgatk.io.pride;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paranamer.ParanamerModule;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+
+/**
+ * Creates the {@link ObjectMapper}s of the PRIDE json readers. The properties of the parts of the spectra
+ * that are not selected by a {@link SpectrumFields} are skipped by the parser without being bound.
+ *
+ * @author ypriverol
+ */
+final class SpectrumMappers {
+
+    private SpectrumMappers() {
+    }
+
+    /**
+     * @param spectrumClass the class the spectra are bound to
+     * @param fields        the parts of the spectra that are bound
+     * @return a new mapper
+     */
+    static ObjectMapper create(Class<?> spectrumClass, SpectrumFields fields) {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new ParanamerModule());
+        if (fields.hasPeaks() && !fields.hasParams())
+            mapper.addMixIn(spectrumClass, SkipParams.class);
+        else if (!fields.hasPeaks() && fields.hasParams())
+            mapper.addMixIn(spectrumClass, SkipPeaks.class);
+        else if (!fields.isAll())
+            mapper.addMixIn(spectrumClass, SkipPeaksAndParams.class);
+        return mapper;
+    }
+
+    @JsonIgnoreProperties(value = {"masses", "intensities", "binaryPeaks"}, ignoreUnknown = true)
+    private abstract static class SkipPeaks {
+    }
+
+    @JsonIgnoreProperties(value = {"properties", "qualityEstimationMethods"}, ignoreUnknown = true)
+    private abstract static class SkipParams {
+    }
+
+    @JsonIgnoreProperties(value = {"masses", "intensities", "binaryPeaks", "properties", "qualityEstimationMethods"}, ignoreUnknown = true)
+    private abstract static class SkipPeaksAndParams {
+    }
+}
@@ -0,0 +1,180 @@
+package io.github.bigbio.pgatk.io.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal numbers directly from ASCII bytes or characters without creating a String.
+ *
+ * Plain decimal values ("-12.345", "1.5E-3") whose digits fit into 53 bits and whose exponent is
+ * small enough are computed with a single exact multiplication or division, which gives the correctly
+ * rounded result. All other values (long mantissas, large exponents, "NaN", hexadecimal values, ...)
+ * are passed to {@link Double#parseDouble(String)}, so the result is always the same as the one of
+ * {@link Double#parseDouble(String)}, including the {@link NumberFormatException} on invalid input.
+ *
+ * @author ypriverol
+ */
+public final class AsciiNumberParser {
+
+    /** Powers of ten that are exactly representable as a double */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+            1e21, 1e22
+    };
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** Maximum number of significant digits kept in a long without overflow */
+    private static final int MAX_DIGITS = 18;
+
+    /** Exponents larger than this are left to {@link Double#parseDouble(String)} */
+    private static final int MAX_EXPONENT_DIGITS_VALUE = 10000;
+
+    private AsciiNumberParser() {
+    }
+
+    /**
+     * Parses a double from a region of a byte array.
+     *
+     * @param bytes the bytes
+     * @param from the first byte of the number
+     * @param to the position after the last byte of the number
+     * @return the same value as {@link Double#parseDouble(String)}
+     * @throws NumberFormatException if the bytes are not a valid number
+     */
+    public static double parseDouble(byte[] bytes, int from, int to) {
+        return parseDouble(new AsciiBytes(bytes), from, to);
+    }
+
+    /**
+     * Parses a double from a region of a character sequence.
+     *
+     * @param chars the characters
+     * @param from the first character of the number
+     * @param to the position after the last character of the number
+     * @return the same value as {@link Double#parseDouble(String)}
+     * @throws NumberFormatException if the characters are not a valid number
+     */
+    public static double parseDouble(CharSequence chars, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (chars.charAt(i) == '-' || chars.charAt(i) == '+')) {
+            negative = chars.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+
+        for (; i < to; i++) {
+            int d = chars.charAt(i) - '0';
+            if (d < 0 || d > 9)
+                break;
+            anyDigit = true;
+            if (mantissa == 0 && d == 0)
+                continue;
+            if (++digits > MAX_DIGITS)
+                return fallback(chars, from, to);
+            mantissa = mantissa * 10 + d;
+        }
+
+        if (i < to && chars.charAt(i) == '.') {
+            for (i++; i < to; i++) {
+                int d = chars.charAt(i) - '0';
+                if (d < 0 || d > 9)
+                    break;
+                anyDigit = true;
+                exponent--;
+                if (mantissa == 0 && d == 0)
+                    continue;
+                if (++digits > MAX_DIGITS)
+                    return fallback(chars, from, to);
+                mantissa = mantissa * 10 + d;
+            }
+        }
+
+        if (!anyDigit)
+            return fallback(chars, from, to);
+
+        if (i < to && (chars.charAt(i) == 'e' || chars.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (chars.charAt(i) == '-' || chars.charAt(i) == '+')) {
+                negativeExponent = chars.charAt(i) == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int value = 0;
+            for (; i < to; i++) {
+                int d = chars.charAt(i) - '0';
+                if (d < 0 || d > 9)
+                    break;
+                value = value * 10 + d;
+                if (value > MAX_EXPONENT_DIGITS_VALUE)
+                    return fallback(chars, from, to);
+            }
+            if (i == exponentStart)
+                return fallback(chars, from, to);
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if (i != to)
+            return fallback(chars, from, to);
+        // zero has no rounding error whatever its exponent
+        if (mantissa == 0)
+            return negative ? -0.0 : 0.0;
+        if (mantissa >= MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22)
+            return fallback(chars, from, to);
+
+        double value = mantissa;
+        if (exponent < 0)
+            value /= POWERS_OF_TEN[-exponent];
+        else if (exponent > 0)
+            value *= POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a double from a String.
+     *
+     * @param value the number
+     * @return the same value as {@link Double#parseDouble(String)}
+     * @throws NumberFormatException if the String is not a valid number
+     */
+    public static double parseDouble(String value) {
+        return parseDouble(value, 0, value.length());
+    }
+
+    private static double fallback(CharSequence chars, int from, int to) {
+        return Double.parseDouble(chars.subSequence(from, to).toString());
+    }
+
+    /**
+     * Reads ASCII bytes as characters, so the bytes and the characters are parsed by the same code.
+     */
+    private static final class AsciiBytes implements CharSequence {
+
+        private final byte[] bytes;
+
+        private AsciiBytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
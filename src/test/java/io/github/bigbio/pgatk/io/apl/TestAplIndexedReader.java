@@ -6,10 +6,17 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 import java.io.File;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -54,6 +61,19 @@ public class TestAplIndexedReader {
         }
     }
 
+    @Test
+    public void testGetSpectraByIndex() throws Exception {
+        int[] indexes = {10, 1, 3, 3};
+        List<Spectrum> spectra = aplIndexedReader.getSpectraByIndex(indexes);
+        Assert.assertEquals(indexes.length, spectra.size());
+        for (int i = 0; i < indexes.length; i++)
+            Assert.assertEquals(aplIndexedReader.getSpectrumByIndex(indexes[i]).toString(), spectra.get(i).toString());
+
+        spectra = aplIndexedReader.getSpectra(Arrays.asList("2", "1"));
+        Assert.assertEquals(aplIndexedReader.getSpectrumById("2").toString(), spectra.get(0).toString());
+        Assert.assertEquals(aplIndexedReader.getSpectrumById("1").toString(), spectra.get(1).toString());
+    }
+
     @Test
     public void testGetPeakListCount() {
         Assert.assertEquals(10, aplIndexedReader.getPeakListCount());
@@ -101,4 +121,100 @@ public class TestAplIndexedReader {
             System.out.println(e.getMessage());
         }
     }
+
+    @Test
+    public void testSpectrumCache() throws Exception {
+        aplIndexedReader.setUseCache(true);
+        List<String> spectra = new ArrayList<>();
+        while (aplIndexedReader.hasNext())
+            spectra.add(aplIndexedReader.next().toString());
+        Assert.assertEquals(10, spectra.size());
+        Assert.assertEquals(10, aplIndexedReader.getSpectrumCache().size());
+
+        for (int i = 1; i <= 10; i++)
+            Assert.assertEquals(spectra.get(i - 1), aplIndexedReader.getSpectrumByIndex(i).toString());
+        Assert.assertEquals(10, aplIndexedReader.getSpectrumCache().getHitCount());
+
+        aplIndexedReader.close();
+        Assert.assertEquals(0, aplIndexedReader.getSpectrumCache().size());
+    }
+
+    @Test
+    public void testSpectrumFields() throws Exception {
+        AplIndexedReader reader = new AplIndexedReader(sourceFile);
+        reader.setSpectrumFields(SpectrumFields.HEADER);
+        for (int i = 1; i <= aplIndexedReader.getSpectraCount(); i++) {
+            Spectrum expected = aplIndexedReader.getSpectrumByIndex(i);
+            Spectrum header = reader.getSpectrumByIndex(i);
+            Assert.assertEquals(expected.getId(), header.getId());
+            Assert.assertEquals(expected.getPrecursorMZ(), header.getPrecursorMZ());
+            Assert.assertEquals(expected.getPrecursorCharge(), header.getPrecursorCharge());
+            Assert.assertEquals(0, header.getNumberOfPeaks());
+        }
+        Assert.assertEquals(0, reader.getSpectraByIndex(new int[]{2, 1}).get(0).getNumberOfPeaks());
+        reader.close();
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        List<String> all = new ArrayList<>();
+        while (aplIndexedReader.hasNext())
+            all.add(aplIndexedReader.next().toString());
+
+        // the peak lists below the median precursor m/z
+        double[] mz = new double[all.size()];
+        for (int i = 0; i < mz.length; i++)
+            mz[i] = aplIndexedReader.getSpectrumByIndex(i + 1).getPrecursorMZ();
+        double median = Arrays.stream(mz).sorted().toArray()[mz.length / 2];
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < mz.length; i++) {
+            if (mz[i] < median)
+                expected.add(all.get(i));
+        }
+
+        AplIndexedReader reader = new AplIndexedReader(sourceFile);
+        reader.setSpectrumFilter(SpectrumFilter.precursorMz(0, Math.nextDown(median)));
+        List<String> filtered = new ArrayList<>();
+        while (reader.hasNext())
+            filtered.add(reader.next().toString());
+        Assert.assertEquals(expected, filtered);
+        reader.close();
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        aplIndexedReader.seek(4);
+        for (int i = 4; i <= 10; i++)
+            Assert.assertEquals(aplIndexedReader.getSpectrumByIndex(i).toString(), aplIndexedReader.next().toString());
+        Assert.assertFalse(aplIndexedReader.hasNext());
+
+        aplIndexedReader.seek(10);
+        Assert.assertEquals("10", aplIndexedReader.next().getId());
+        aplIndexedReader.seek(1);
+        Assert.assertEquals("1", aplIndexedReader.next().getId());
+    }
+
+    @Test
+    public void testWriteSpectra() throws Exception {
+        String raw = StandardCharsets.UTF_8.decode(aplIndexedReader.getRawSpectrumBytes(2)).toString();
+        Assert.assertTrue(raw.startsWith("peaklist start"));
+        Assert.assertTrue(raw.trim().endsWith("peaklist end"));
+
+        int[] indexes = {7, 1, 2};
+        File subset = Files.createTempFile("apl-subset-", ".apl").toFile();
+        subset.deleteOnExit();
+        try (FileChannel target = FileChannel.open(subset.toPath(), StandardOpenOption.WRITE)) {
+            Assert.assertEquals(aplIndexedReader.writeSpectra(indexes, target), target.size());
+        }
+
+        AplIndexedReader reader = new AplIndexedReader(subset);
+        Assert.assertEquals(indexes.length, reader.getSpectraCount());
+        for (int i = 0; i < indexes.length; i++) {
+            Spectrum expected = aplIndexedReader.getSpectrumByIndex(indexes[i]);
+            Spectrum copy = reader.getSpectrumByIndex(i + 1);
+            Assert.assertEquals(expected.getPrecursorMZ(), copy.getPrecursorMZ());
+            Assert.assertEquals(expected.getPeakArrays(), copy.getPeakArrays());
+        }
+        reader.close();
+    }
 }
@@ -11,6 +11,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by jg on 01.08.14.
@@ -35,6 +37,22 @@ public class ClusteringFileReaderTest {
         reader.readClustersIteratively(listeners);
     }
 
+    @Test
+    public void testStream() throws Exception {
+        List<ICluster> expected = new ClusteringFileReader(testFile).readAllClusters();
+
+        List<ICluster> clusters;
+        try (Stream<ICluster> stream = ClusteringFileReader.stream(testFile, true)) {
+            clusters = stream.collect(Collectors.toList());
+        }
+        Assert.assertEquals(expected.size(), clusters.size());
+        for (int i = 0; i < clusters.size(); i++) {
+            Assert.assertEquals(expected.get(i).getId(), clusters.get(i).getId());
+            Assert.assertEquals(expected.get(i).getPrecursorMZ(), clusters.get(i).getPrecursorMZ());
+            Assert.assertEquals(expected.get(i).getSpecCount(), clusters.get(i).getSpecCount());
+        }
+    }
+
     @Test
     public void testReadAllClusters() throws Exception {
         IClusterSourceReader reader = new ClusteringFileReader(testFile);
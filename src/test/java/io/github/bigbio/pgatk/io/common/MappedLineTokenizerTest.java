@@ -0,0 +1,94 @@
+package io.github.bigbio.pgatk.io.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedLineTokenizerTest {
+
+    private static File createFile(byte[] content) throws Exception {
+        File file = Files.createTempFile("lines", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static List<String> readLines(File file, int segmentSize, List<Long> starts) throws Exception {
+        List<String> lines = new ArrayList<>();
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            MappedLineTokenizer tokenizer = new MappedLineTokenizer(accessFile.getChannel(), segmentSize);
+            while (tokenizer.nextLine()) {
+                lines.add(tokenizer.toString());
+                if (starts != null)
+                    starts.add(tokenizer.getLineStart());
+            }
+            Assert.assertFalse(tokenizer.nextLine());
+        }
+        return lines;
+    }
+
+    @Test
+    public void testLineEnds() throws Exception {
+        String content = "first\r\nsecond\rthird\n\nlast";
+        File file = createFile(content.getBytes(StandardCharsets.ISO_8859_1));
+
+        // every segment size splits the lines and the "\r\n" at another position
+        for (int segmentSize = 1; segmentSize <= content.length() + 1; segmentSize++) {
+            List<Long> starts = new ArrayList<>();
+            List<String> lines = readLines(file, segmentSize, starts);
+            Assert.assertEquals("segment size " + segmentSize, "[first, second, third, , last]", lines.toString());
+            Assert.assertEquals("[0, 7, 14, 20, 21]", starts.toString());
+        }
+    }
+
+    @Test
+    public void testByteOrderMark() throws Exception {
+        byte[] content = "\ufeffBEGIN IONS\nEND IONS\n".getBytes(StandardCharsets.UTF_8);
+        List<Long> starts = new ArrayList<>();
+        Assert.assertEquals("[BEGIN IONS, END IONS]", readLines(createFile(content), 2, starts).toString());
+        Assert.assertEquals(3L, starts.get(0).longValue());
+    }
+
+    @Test
+    public void testLongLines() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            content.append(i).append(".125\t").append(i * 10).append("E-1 x\n");
+        File file = createFile(content.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            MappedLineTokenizer tokenizer = new MappedLineTokenizer(accessFile.getChannel(), 7);
+            for (int i = 0; i < 2000; i++) {
+                Assert.assertTrue(tokenizer.nextLine());
+                int separator = tokenizer.indexOf('\t', 0);
+                Assert.assertEquals(i + 0.125, tokenizer.parseDouble(0, separator), 0.0);
+                Assert.assertEquals(i, tokenizer.parseDouble(separator + 1, tokenizer.indexOf(' ', separator)), 1e-9);
+                Assert.assertTrue(tokenizer.startsWith("x", tokenizer.length() - 1));
+                Assert.assertEquals(i + ".125", tokenizer.subSequence(0, separator).toString());
+            }
+            Assert.assertFalse(tokenizer.nextLine());
+        }
+    }
+
+    @Test
+    public void testTrim() throws Exception {
+        File file = createFile(" \t END IONS \r\n   \n".getBytes(StandardCharsets.ISO_8859_1));
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            MappedLineTokenizer tokenizer = new MappedLineTokenizer(accessFile.getChannel());
+            Assert.assertTrue(tokenizer.nextLine());
+            Assert.assertEquals(3, tokenizer.trimStart());
+            Assert.assertEquals(11, tokenizer.trimEnd());
+            Assert.assertEquals(3, tokenizer.indexOf("END IONS"));
+            Assert.assertFalse(tokenizer.isBlank());
+            Assert.assertTrue(tokenizer.nextLine());
+            Assert.assertTrue(tokenizer.isBlank());
+            Assert.assertFalse(tokenizer.nextLine());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.bigbio.pgatk.io.common;
+
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PipelinedIterableReaderTest {
+
+    /**
+     * Creates a file of records "START id" ... "END", with a line of noise between the records.
+     */
+    private static File createFile(int records) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= records; i++)
+            content.append("noise\nSTART ").append(i).append("\n").append(i).append(".5\nEND\n");
+        File file = Files.createTempFile("records", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static Spectrum parse(byte[] record, int length, long index) throws PgatkIOException {
+        String[] lines = new String(record, 0, length, StandardCharsets.US_ASCII).split("\n");
+        if (lines.length != 3 || !"END".equals(lines[2]))
+            throw new PgatkIOException("Invalid record " + index);
+        // the records are parsed out of order
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+        } catch (InterruptedException e) {
+            throw new PgatkIOException("Interrupted", e);
+        }
+        return new DefaultSpectrum(lines[0].substring(6), index, 1, Double.parseDouble(lines[1]), 0,
+                new PeakArrays(0), 2, Collections.emptyList());
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        MzIterableReader reader = new PipelinedIterableReader(createFile(500),
+                line -> line.startsWith("START", 0), line -> line.startsWith("END", 0),
+                PipelinedIterableReaderTest::parse, 4, 3);
+        for (int i = 1; i <= 500; i++) {
+            Assert.assertTrue(reader.hasNext());
+            Spectrum spectrum = reader.next();
+            Assert.assertEquals(String.valueOf(i), spectrum.getId());
+            Assert.assertEquals(i, spectrum.getIndex().intValue());
+            Assert.assertEquals(i + 0.5, spectrum.getPrecursorMZ(), 0.0);
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        MzIterableReader reader = new PipelinedIterableReader(createFile(500),
+                line -> line.startsWith("START", 0), line -> line.startsWith("END", 0),
+                PipelinedIterableReaderTest::parse, 4, 3);
+        Assert.assertEquals("1", reader.next().getId());
+        // the records already parsed are tested when they are returned
+        reader.setSpectrumFilter(SpectrumFilter.precursorMz(100, 200));
+        for (int i = 100; i < 200; i++) {
+            Assert.assertTrue(reader.hasNext());
+            Assert.assertEquals(i, reader.next().getIndex().intValue());
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testParseError() throws Exception {
+        // the records never end, the last one is parsed at the end of the file and fails
+        MzIterableReader reader = new PipelinedIterableReader(createFile(2),
+                line -> line.startsWith("START", 0), line -> false,
+                PipelinedIterableReaderTest::parse, 2);
+        Assert.assertTrue(reader.hasNext());
+        try {
+            reader.next();
+            Assert.fail("The record is invalid");
+        } catch (NoSuchElementException e) {
+            Assert.assertTrue(e.getCause() instanceof PgatkIOException);
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        // the reader waits for the caller, closing it stops the I/O thread
+        MzIterableReader reader = new PipelinedIterableReader(createFile(1000),
+                line -> line.startsWith("START", 0), line -> line.startsWith("END", 0),
+                PipelinedIterableReaderTest::parse, 2, 2);
+        Assert.assertEquals("1", reader.next().getId());
+        reader.close();
+    }
+}
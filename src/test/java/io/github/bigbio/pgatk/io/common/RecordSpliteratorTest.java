@@ -0,0 +1,97 @@
+package io.github.bigbio.pgatk.io.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class RecordSpliteratorTest {
+
+    private static final int RECORDS = 80000;
+
+    /**
+     * Creates a file of records "START id" ... "END" of different lengths, with noise between the records.
+     */
+    private static File createFile() throws Exception {
+        StringBuilder content = new StringBuilder("header\n");
+        for (int i = 1; i <= RECORDS; i++) {
+            content.append("START ").append(i).append("\r\n");
+            for (int line = 0; line < i % 7; line++)
+                content.append("data ").append(i).append(' ').append(line).append('\n');
+            content.append("END\n");
+            if (i % 3 == 0)
+                content.append("noise\n\n");
+        }
+        File file = Files.createTempFile("records", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static String parse(byte[] record, int length, long index) throws PgatkIOException {
+        String[] lines = new String(record, 0, length, StandardCharsets.US_ASCII).split("\n");
+        String id = lines[0].substring(6);
+        if (!id.equals(String.valueOf(index)) || lines.length != Integer.parseInt(id) % 7 + 2 || !"END".equals(lines[lines.length - 1]))
+            throw new PgatkIOException("Invalid record " + index + " -- " + lines[0]);
+        return id;
+    }
+
+    @Test
+    public void testParallelStream() throws Exception {
+        File file = createFile();
+        Assert.assertTrue(file.length() > 4 * 1024 * 1024);
+
+        for (boolean parallel : new boolean[]{false, true}) {
+            try (Stream<String> stream = RecordSpliterator.stream(file, line -> line.startsWith("START", 0),
+                    line -> line.startsWith("END", 0), RecordSpliteratorTest::parse, parallel)) {
+                Assert.assertEquals(parallel, stream.isParallel());
+                List<String> ids = stream.collect(Collectors.toList());
+                Assert.assertEquals(RECORDS, ids.size());
+                for (int i = 0; i < RECORDS; i++)
+                    Assert.assertEquals(String.valueOf(i + 1), ids.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSplits() throws Exception {
+        File file = createFile();
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            // split as far as possible, the parts hold the records in order without overlap
+            List<Spliterator<String>> parts = new ArrayList<>();
+            split(new RecordSpliterator<>(accessFile.getChannel(), line -> line.startsWith("START", 0),
+                    line -> line.startsWith("END", 0), RecordSpliteratorTest::parse), parts);
+            Assert.assertTrue(parts.size() >= 4);
+
+            // the parts are traversed last to first, their first index is counted
+            List<List<String>> ids = new ArrayList<>();
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                List<String> partIds = new ArrayList<>();
+                parts.get(i).forEachRemaining(partIds::add);
+                ids.add(0, partIds);
+            }
+            List<String> all = ids.stream().flatMap(List::stream).collect(Collectors.toList());
+            Assert.assertEquals(RECORDS, all.size());
+            for (int i = 0; i < RECORDS; i++)
+                Assert.assertEquals(String.valueOf(i + 1), all.get(i));
+        }
+    }
+
+    private static void split(Spliterator<String> spliterator, List<Spliterator<String>> parts) {
+        Spliterator<String> prefix = spliterator.trySplit();
+        if (prefix == null) {
+            parts.add(spliterator);
+            return;
+        }
+        split(prefix, parts);
+        split(spliterator, parts);
+    }
+}
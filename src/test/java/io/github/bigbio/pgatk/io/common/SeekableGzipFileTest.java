@@ -0,0 +1,148 @@
+package io.github.bigbio.pgatk.io.common;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class SeekableGzipFileTest {
+
+    private File directory;
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("gzip-index-").toFile();
+
+        // text with repetitions and random bytes, so the blocks use back-references and all block types
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("BEGIN IONS\nTITLE=spectrum ").append(i).append('\n');
+            for (int j = random.nextInt(5); j >= 0; j--)
+                text.append(random.nextDouble() * 2000).append(' ').append(random.nextInt(100000)).append('\n');
+            text.append("END IONS\n");
+        }
+        content = text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        File file = new File(directory, "content.gz");
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(file))) {
+            output.write(content);
+        }
+        assertRandomAccess(file, content);
+    }
+
+    @Test
+    public void testMultipleMembers() throws Exception {
+        // concatenated members, one of them empty and one only using stored blocks
+        File file = new File(directory, "members.gz");
+        int split = content.length / 3;
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(gzip(content, 0, split, Deflater.DEFAULT_COMPRESSION));
+            output.write(gzip(content, 0, 0, Deflater.DEFAULT_COMPRESSION));
+            output.write(gzip(content, split, split, Deflater.NO_COMPRESSION));
+            output.write(gzip(content, 2 * split, content.length - 2 * split, Deflater.BEST_SPEED));
+        }
+        assertRandomAccess(file, content);
+    }
+
+    @Test
+    public void testIndexFile() throws Exception {
+        File file = new File(directory, "stored.gz");
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(file))) {
+            output.write(content);
+        }
+        IndexingOptions options = new IndexingOptions();
+        options.setGzipCheckpointSpacing(64 * 1024);
+
+        GzipCheckpointIndex index = GzipCheckpointIndex.open(file, options);
+        File indexFile = new File(directory, file.getName() + GzipCheckpointIndex.EXTENSION);
+        Assert.assertTrue(indexFile.isFile());
+        Assert.assertTrue(index.size() > 1);
+
+        GzipCheckpointIndex restored = GzipCheckpointIndex.read(file, options);
+        Assert.assertNotNull(restored);
+        Assert.assertEquals(index.size(), restored.size());
+        Assert.assertEquals(content.length, restored.getUncompressedSize());
+        for (int i = 0; i < index.size(); i++) {
+            Assert.assertEquals(index.getInputOffset(i), restored.getInputOffset(i));
+            Assert.assertEquals(index.getOutputOffset(i), restored.getOutputOffset(i));
+            Assert.assertArrayEquals(index.getWindow(i), restored.getWindow(i));
+        }
+
+        // the index of a modified file is ignored
+        Assert.assertTrue(file.setLastModified(file.lastModified() - 60000));
+        Assert.assertNull(GzipCheckpointIndex.read(file, options));
+    }
+
+    @Test
+    public void testIsGzip() throws Exception {
+        File file = new File(directory, "plain.txt");
+        Files.write(file.toPath(), content);
+        Assert.assertFalse(SeekableGzipFile.isGzip(file));
+    }
+
+    private void assertRandomAccess(File file, byte[] expected) throws IOException {
+        IndexingOptions options = new IndexingOptions();
+        options.setGzipCheckpointSpacing(16 * 1024);
+
+        try (SeekableGzipFile gzip = SeekableGzipFile.open(file, options)) {
+            Assert.assertEquals(expected.length, gzip.length());
+            Assert.assertTrue(SeekableGzipFile.isGzip(file));
+
+            Random random = new Random(7);
+            for (int i = 0; i < 500; i++) {
+                int length = random.nextInt(5000);
+                int position = random.nextInt(expected.length - length);
+                byte[] read = new byte[length];
+                gzip.readFully(position, read, 0, length);
+                for (int j = 0; j < length; j++) {
+                    if (read[j] != expected[position + j])
+                        Assert.fail("Wrong byte at position " + (position + j));
+                }
+            }
+
+            // reading in order continues the previous decompression
+            byte[] all = new byte[expected.length];
+            for (int position = 0; position < all.length; position += 1000)
+                gzip.readFully(position, all, position, Math.min(1000, all.length - position));
+            Assert.assertArrayEquals(expected, all);
+
+            try (InputStream input = gzip.newInputStream()) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = input.read(buffer)) > 0)
+                    output.write(buffer, 0, n);
+                Assert.assertArrayEquals(expected, output.toByteArray());
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] data, int offset, int length, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream output = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            output.write(data, offset, length);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.bigbio.pgatk.io.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SpectrumIndexTest {
+
+    @Test
+    public void testIds() {
+        SpectrumIndex.Builder builder = new SpectrumIndex.Builder();
+        for (int i = 0; i < 1000; i++)
+            builder.add(i * 100L, 100, (i % 3 == 0) ? 1 : 2, "scan=" + i);
+        // duplicate ids refer to the last spectrum
+        builder.add(100000L, 50, 2, "scan=7");
+        SpectrumIndex index = builder.build();
+
+        Assert.assertEquals(1001, index.size());
+        Assert.assertTrue(index.hasIds());
+        Assert.assertEquals(0, index.getOrdinal("scan=0"));
+        Assert.assertEquals(999, index.getOrdinal("scan=999"));
+        Assert.assertEquals(1000, index.getOrdinal("scan=7"));
+        Assert.assertEquals(-1, index.getOrdinal("scan=1000"));
+        Assert.assertEquals(-1, index.getOrdinal(null));
+        Assert.assertEquals(50000L, index.getStart(500));
+        Assert.assertEquals(100, index.getSize(500));
+        Assert.assertEquals("scan=500", index.getIds().get(500));
+
+        Map<String, IndexElement> ids = index.getIndexElementForIds();
+        Assert.assertEquals(1000, ids.size());
+        Assert.assertEquals(100000L, ids.get("scan=7").getStart());
+        Assert.assertFalse(ids.containsKey("scan=1000"));
+        Map<String, IndexElement> copy = new HashMap<>(ids);
+        Assert.assertEquals(1000, copy.size());
+        Assert.assertEquals(50, copy.get("scan=7").getSize());
+    }
+
+    @Test
+    public void testMsLevels() {
+        SpectrumIndex index = new SpectrumIndex(new long[]{0, 10, 20, 30}, new int[]{10, 10, 10, 10},
+                new byte[]{1, 2, 2, -1}, new String[]{"a", "b", "c", null});
+
+        Assert.assertEquals(Arrays.asList(-1, 1, 2), index.getMsLevels());
+        Assert.assertEquals(2, index.getMsLevelCount(2));
+        List<IndexElement> ms2 = index.getIndexElements(2);
+        Assert.assertEquals(2, ms2.size());
+        Assert.assertEquals(10L, ms2.get(0).getStart());
+        Assert.assertEquals(20L, ms2.get(1).getStart());
+        Assert.assertTrue(index.getIndexElements(3).isEmpty());
+        Assert.assertEquals(3, index.getIndexElementForIds().size());
+        Assert.assertNull(index.getId(3));
+    }
+
+    @Test
+    public void testWithoutIds() {
+        SpectrumIndex index = SpectrumIndex.fromIndexElements(Arrays.asList(
+                new IndexElementImpl(0, 5), new IndexElementImpl(5, 7), new IndexElementImpl(12, 3)));
+
+        Assert.assertFalse(index.hasIds());
+        Assert.assertFalse(index.hasMsLevels());
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), index.getIds());
+        Assert.assertEquals(1, index.getOrdinal("2"));
+        Assert.assertEquals(-1, index.getOrdinal("4"));
+        Assert.assertEquals(-1, index.getOrdinal("x"));
+        Assert.assertEquals(Collections.emptyList(), index.getMsLevels());
+        Assert.assertEquals(12L, index.getIndexElementForIds().get("3").getStart());
+        Assert.assertEquals(3, index.getIndexElements().size());
+        Assert.assertEquals(7, index.getIndexElements().get(1).getSize());
+
+        Assert.assertEquals(index, SpectrumIndex.fromIndexFile(index.toIndexFile(null)));
+        Assert.assertEquals(0, SpectrumIndex.EMPTY.getIndexElementForIds().size());
+    }
+}
@@ -0,0 +1,213 @@
+package io.github.bigbio.pgatk.io.mgf;
+
+import io.github.bigbio.pgatk.io.common.MzIterableReader;
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class MgfIterableReaderTest {
+
+    @Test
+    public void testSameAsIndexedReader() throws Exception {
+        for (String name : new String[]{"small.mgf", "F001257.mgf", "custom_tags.mgf"}) {
+            URL testFile = getClass().getClassLoader().getResource(name);
+            Assert.assertNotNull("Error loading mgf test file", testFile);
+            File sourceFile = new File(testFile.toURI());
+
+            MgfIndexedReader indexedReader = new MgfIndexedReader(sourceFile, true, false);
+            MgfIterableReader iterableReader = new MgfIterableReader(sourceFile, false, false, true);
+            for (int i = 0; i < indexedReader.getSpectraCount(); i++) {
+                Assert.assertTrue(iterableReader.hasNext());
+                Assert.assertTrue(iterableReader.hasNext());
+                Spectrum spectrum = iterableReader.next();
+                Spectrum expected = indexedReader.getSpectrumByIndex(i + 1);
+                Assert.assertEquals(i + 1, spectrum.getIndex().intValue());
+                Assert.assertEquals(expected.getPrecursorMZ(), spectrum.getPrecursorMZ());
+                Assert.assertEquals(expected.getPrecursorCharge(), spectrum.getPrecursorCharge());
+                Assert.assertEquals(expected.getPeakArrays(), spectrum.getPeakArrays());
+                Assert.assertEquals(expected.toString(), spectrum.toString());
+            }
+            Assert.assertFalse(iterableReader.hasNext());
+            iterableReader.close();
+        }
+    }
+
+    @Test
+    public void testReuseSpectrum() throws Exception {
+        for (String name : new String[]{"small.mgf", "F001257.mgf", "custom_tags.mgf"}) {
+            URL testFile = getClass().getClassLoader().getResource(name);
+            Assert.assertNotNull("Error loading mgf test file", testFile);
+            File sourceFile = new File(testFile.toURI());
+
+            MgfIterableReader reader = new MgfIterableReader(sourceFile, false, false, true);
+            MgfIterableReader reusingReader = new MgfIterableReader(sourceFile, false, false, true);
+            reusingReader.setReuseSpectrum(true);
+            Spectrum previous = null;
+            while (reader.hasNext()) {
+                Ms2Query expected = (Ms2Query) reader.next();
+                Assert.assertTrue(reusingReader.hasNext());
+                MutableSpectrum spectrum = (MutableSpectrum) reusingReader.next();
+                Assert.assertTrue(previous == null || previous == spectrum);
+                previous = spectrum;
+
+                Assert.assertEquals(expected.getIndex(), spectrum.getIndex());
+                Assert.assertEquals(expected.getId(), spectrum.getId());
+                Assert.assertEquals(expected.getMsLevel(), spectrum.getMsLevel());
+                Assert.assertEquals(expected.getPrecursorMZ(), spectrum.getPrecursorMZ());
+                Assert.assertEquals(expected.getPrecursorIntensity(), spectrum.getPrecursorIntensity());
+                Assert.assertEquals(expected.getPrecursorCharge(), spectrum.getPrecursorCharge());
+                Assert.assertEquals(expected.getTitle() == null ? "" : expected.getTitle(), spectrum.getTitle().toString());
+                Assert.assertEquals(expected.getPeakArrays(), spectrum.getPeakArrays());
+                Assert.assertEquals(expected.getPeakArrays().size(), spectrum.getPeakCount());
+                Assert.assertEquals(expected.getPeakArrays(), spectrum.copy().getPeakArrays());
+            }
+            Assert.assertFalse(reusingReader.hasNext());
+            reader.close();
+            reusingReader.close();
+        }
+    }
+
+    @Test
+    public void testHeaderOnly() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("F001257.mgf");
+        Assert.assertNotNull("Error loading mgf test file", testFile);
+        File sourceFile = new File(testFile.toURI());
+
+        MgfIndexedReader indexedReader = new MgfIndexedReader(sourceFile, true, false);
+        MgfIterableReader iterableReader = new MgfIterableReader(sourceFile, false, false, true);
+        iterableReader.setSpectrumFields(SpectrumFields.HEADER);
+        for (int i = 0; i < indexedReader.getSpectraCount(); i++) {
+            Spectrum spectrum = iterableReader.next();
+            Spectrum expected = indexedReader.getSpectrumByIndex(i + 1);
+            Assert.assertEquals(expected.getId(), spectrum.getId());
+            Assert.assertEquals(expected.getPrecursorMZ(), spectrum.getPrecursorMZ());
+            Assert.assertEquals(expected.getPrecursorCharge(), spectrum.getPrecursorCharge());
+            Assert.assertEquals(0, spectrum.getNumberOfPeaks());
+        }
+        Assert.assertFalse(iterableReader.hasNext());
+        iterableReader.close();
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("F001257.mgf");
+        Assert.assertNotNull("Error loading mgf test file", testFile);
+        File sourceFile = new File(testFile.toURI());
+        SpectrumFilter filter = SpectrumFilter.precursorMz(413, 413.5);
+
+        List<String> expected = new ArrayList<>();
+        MgfIterableReader reader = new MgfIterableReader(sourceFile, false, false, true);
+        while (reader.hasNext()) {
+            Spectrum spectrum = reader.next();
+            if (filter.test(spectrum))
+                expected.add(spectrum.getIndex() + " " + spectrum);
+        }
+        reader.close();
+        Assert.assertFalse(expected.isEmpty());
+
+        // the rejected spectra are skipped and the accepted ones keep their index in the file
+        reader = new MgfIterableReader(sourceFile, false, false, true);
+        reader.setSpectrumFilter(filter);
+        List<String> filtered = new ArrayList<>();
+        while (reader.hasNext()) {
+            Spectrum spectrum = reader.next();
+            filtered.add(spectrum.getIndex() + " " + spectrum);
+        }
+        reader.close();
+        Assert.assertEquals(expected, filtered);
+
+        // the pipelined reader passes the filter to its parsers
+        MzIterableReader pipelined = MgfIterableReader.pipelined(sourceFile, false, false, 4);
+        pipelined.setSpectrumFilter(filter);
+        filtered.clear();
+        while (pipelined.hasNext()) {
+            Spectrum spectrum = pipelined.next();
+            filtered.add(spectrum.getIndex() + " " + spectrum);
+        }
+        pipelined.close();
+        Assert.assertEquals(expected, filtered);
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("small.mgf");
+        Assert.assertNotNull("Error loading mgf test file", testFile);
+        File sourceFile = new File(testFile.toURI());
+
+        MgfIterableReader reader = new MgfIterableReader(sourceFile, false, false, true);
+        MzIterableReader pipelined = MgfIterableReader.pipelined(sourceFile, false, false, 4);
+        int count = 0;
+        while (reader.hasNext()) {
+            Assert.assertTrue(pipelined.hasNext());
+            Spectrum expected = reader.next();
+            Spectrum spectrum = pipelined.next();
+            Assert.assertEquals(expected.getIndex(), spectrum.getIndex());
+            Assert.assertEquals(expected.toString(), spectrum.toString());
+            count++;
+        }
+        Assert.assertFalse(pipelined.hasNext());
+        Assert.assertEquals(1001, count);
+        reader.close();
+        pipelined.close();
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("small.mgf");
+        Assert.assertNotNull("Error loading mgf test file", testFile);
+        File sourceFile = new File(testFile.toURI());
+
+        MgfIterableReader reader = new MgfIterableReader(sourceFile, false, false, true);
+        List<Spectrum> spectra;
+        try (Stream<Spectrum> stream = MgfIterableReader.stream(sourceFile, true)) {
+            spectra = stream.collect(Collectors.toList());
+        }
+        Assert.assertEquals(1001, spectra.size());
+        for (Spectrum spectrum : spectra)
+            Assert.assertEquals(reader.next().toString(), spectrum.toString());
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testNoMoreSpectra() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("strange_eol.mgf");
+        Assert.assertNotNull("Error loading mgf test file", testFile);
+        MgfIterableReader reader = new MgfIterableReader(new File(testFile.toURI()), true, false, true);
+        // the file only uses '\r' as line ends
+        int count = 0;
+        while (reader.hasNext()) {
+            Assert.assertFalse(reader.next().getPeakList().isEmpty());
+            count++;
+        }
+        Assert.assertEquals(5, count);
+        reader.next();
+    }
+
+    @Test
+    public void testReadError() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("small.mgf");
+        Assert.assertNotNull("Error loading mgf test file", testFile);
+        MgfIterableReader reader = new MgfIterableReader(new File(testFile.toURI()), true, false, true);
+        // a read error is not taken for the end of the file
+        reader.close();
+        try {
+            reader.hasNext();
+            Assert.fail("The read error was not reported");
+        } catch (NoSuchElementException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
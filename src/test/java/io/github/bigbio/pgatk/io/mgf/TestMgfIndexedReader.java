@@ -1,15 +1,37 @@
 package io.github.bigbio.pgatk.io.mgf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 import io.github.bigbio.pgatk.io.common.IndexElement;
+import io.github.bigbio.pgatk.io.common.IndexFile;
+import io.github.bigbio.pgatk.io.common.IndexingOptions;
+import io.github.bigbio.pgatk.io.common.LruSpectrumCache;
+import io.github.bigbio.pgatk.io.common.GzipCheckpointIndex;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
 
 public class TestMgfIndexedReader {
 
@@ -467,6 +489,214 @@ public class TestMgfIndexedReader {
         Assert.assertEquals(s.toString(), s1.toString());
     }
 
+    @Test
+    public void testIndexBoundaries() throws Exception {
+        List<IndexElement> index = mgfFile.getIndex();
+        Assert.assertEquals(10, index.size());
+        try (RandomAccessFile file = new RandomAccessFile(sourceFile, "r")) {
+            for (IndexElement element : index) {
+                byte[] bytes = new byte[element.getSize()];
+                file.seek(element.getStart());
+                file.readFully(bytes);
+                String query = new String(bytes);
+                Assert.assertTrue(query.startsWith("BEGIN IONS"));
+                Assert.assertTrue(query.trim().endsWith("END IONS"));
+                Assert.assertTrue(query.endsWith("\n"));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelIndex() throws Exception {
+        for (String name : new String[]{"F001257.mgf", "small.mgf", "strange_eol.mgf"}) {
+            File file = new File(getClass().getClassLoader().getResource(name).toURI());
+            List<IndexElement> sequential = new MgfIndexedReader(file, true, true).getIndex();
+
+            for (long chunkSize : new long[]{512, 4096, file.length()}) {
+                MgfIndexedReader reader = new MgfIndexedReader(file, true, true, new IndexingOptions(4, chunkSize));
+                List<IndexElement> parallel = reader.getIndex();
+                Assert.assertEquals(sequential.size(), parallel.size());
+                for (int i = 0; i < sequential.size(); i++) {
+                    Assert.assertEquals(sequential.get(i).getStart(), parallel.get(i).getStart());
+                    Assert.assertEquals(sequential.get(i).getSize(), parallel.get(i).getSize());
+                }
+            }
+        }
+
+        MgfIndexedReader reader = new MgfIndexedReader(sourceFile, false, true, new IndexingOptions(3, 512));
+        Assert.assertEquals("Trypsin", reader.getEnzyme());
+        Assert.assertEquals(3, reader.getUserParameter().size());
+        Assert.assertEquals(mgfFile.getSpectrumByIndex(10).toString(), reader.getSpectrumByIndex(10).toString());
+    }
+
+    @Test
+    public void testPeakArrays() throws Exception {
+        Ms2Query query = new Ms2Query("BEGIN IONS\nPEPMASS=406.283\n217.142900 75\n145.119100 8\n438.314735 46\n145.119100 9\nEND IONS\n", 1, false, true);
+        Assert.assertEquals(3, query.getNumberOfPeaks());
+        Assert.assertArrayEquals(new double[]{145.1191, 217.1429, 438.314735}, query.getMzArray(), 0.0);
+        Assert.assertArrayEquals(new double[]{9, 75, 46}, query.getIntensityArray(), 0.0);
+        Assert.assertEquals(3, query.getPeakList().size());
+        Assert.assertEquals(9.0, query.getPeakList().get(145.1191), 0.0);
+
+        for (int i = 1; i <= mgfFile.getSpectraCount(); i++) {
+            Spectrum spectrum = mgfFile.getSpectrumByIndex(i);
+            double[] mz = spectrum.getMzArray();
+            double[] intensity = spectrum.getIntensityArray();
+            Assert.assertEquals(spectrum.getPeakList().size(), spectrum.getNumberOfPeaks());
+            for (int peak = 0; peak < mz.length; peak++) {
+                if (peak > 0)
+                    Assert.assertTrue(mz[peak - 1] < mz[peak]);
+                Assert.assertEquals(spectrum.getPeakList().get(mz[peak]), intensity[peak], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("small.mgf").toURI());
+        MgfIndexedReader sequentialReader = new MgfIndexedReader(file);
+        int count = sequentialReader.getSpectraCount();
+        List<String> expected = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++)
+            expected.add(sequentialReader.getSpectrumByIndex(i).toString());
+
+        for (boolean useCache : new boolean[]{false, true}) {
+            MgfIndexedReader reader = new MgfIndexedReader(file);
+            reader.setUseCache(useCache);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Integer>> results = new ArrayList<>();
+                for (int thread = 0; thread < 8; thread++) {
+                    long seed = thread;
+                    results.add(executor.submit((Callable<Integer>) () -> {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            int index = random.nextInt(count) + 1;
+                            Spectrum spectrum = (i % 2 == 0) ? reader.getSpectrumByIndex(index) : reader.getSpectrumById(Integer.toString(index));
+                            Assert.assertEquals(expected.get(index - 1), spectrum.toString());
+                        }
+                        return 2000;
+                    }));
+                }
+                for (Future<Integer> result : results)
+                    Assert.assertEquals(2000, result.get().intValue());
+            } finally {
+                executor.shutdown();
+                reader.close();
+            }
+
+            // the reader can still be used after being closed
+            Assert.assertEquals(expected.get(0), reader.getSpectrumByIndex(1).toString());
+        }
+    }
+
+    @Test
+    public void testIndexFile() throws Exception {
+        File directory = Files.createTempDirectory("mgf-index-").toFile();
+        File file = new File(directory, sourceFile.getName());
+        Files.copy(sourceFile.toPath(), file.toPath());
+        File indexFile = IndexFile.getIndexFile(file, null);
+
+        IndexingOptions options = new IndexingOptions();
+        options.setUseIndexFile(true);
+
+        // the first reader writes the index file
+        MgfIndexedReader reader = new MgfIndexedReader(file, false, true, options);
+        Assert.assertTrue(indexFile.isFile());
+        IndexFile stored = IndexFile.read(file, "mgf", options);
+        Assert.assertNotNull(stored);
+        Assert.assertEquals(reader.getIndex().size(), stored.size());
+        Assert.assertNull(IndexFile.read(file, "apl", options));
+
+        // the second reader restores the index and the header
+        MgfIndexedReader restored = new MgfIndexedReader(file, false, true, options);
+        Assert.assertEquals(reader.getIndex().size(), restored.getIndex().size());
+        for (int i = 0; i < reader.getIndex().size(); i++) {
+            Assert.assertEquals(reader.getIndex().get(i).getStart(), restored.getIndex().get(i).getStart());
+            Assert.assertEquals(reader.getIndex().get(i).getSize(), restored.getIndex().get(i).getSize());
+        }
+        Assert.assertEquals("Trypsin", restored.getEnzyme());
+        Assert.assertEquals(mgfFile.getAccessions(), restored.getAccessions());
+        Assert.assertEquals(3, restored.getUserParameter().size());
+        Assert.assertEquals(mgfFile.getSpectrumByIndex(10).toString(), restored.getSpectrumByIndex(10).toString());
+
+        // index files of modified spectrum files are ignored
+        Assert.assertTrue(file.setLastModified(file.lastModified() - 60000));
+        Assert.assertNull(IndexFile.read(file, "mgf", options));
+        Assert.assertEquals(10, new MgfIndexedReader(file, false, true, options).getIndex().size());
+        Assert.assertNotNull(IndexFile.read(file, "mgf", options));
+
+        // corrupted index files are ignored
+        try (RandomAccessFile access = new RandomAccessFile(indexFile, "rw")) {
+            access.seek(access.length() / 2);
+            access.write(~access.read());
+        }
+        Assert.assertNull(IndexFile.read(file, "mgf", options));
+        Assert.assertEquals(10, new MgfIndexedReader(file, false, true, options).getIndex().size());
+
+        // index files are not used unless enabled
+        Assert.assertTrue(indexFile.delete());
+        new MgfIndexedReader(file);
+        Assert.assertFalse(indexFile.exists());
+
+        // index files can be stored in another directory
+        File indexDirectory = new File(directory, "index");
+        Assert.assertTrue(indexDirectory.mkdir());
+        options.setIndexDirectory(indexDirectory);
+        new MgfIndexedReader(file, false, true, options);
+        Assert.assertTrue(new File(indexDirectory, file.getName() + IndexFile.EXTENSION).isFile());
+
+        restored.close();
+        reader.close();
+    }
+
+    @Test
+    public void testSpectrumCache() throws Exception {
+        File smallFile = new File(getClass().getClassLoader().getResource("small.mgf").toURI());
+        MgfIndexedReader smallReader = new MgfIndexedReader(smallFile);
+
+        // every spectrum weighs 1, at most 5 are kept in a single least recently used order
+        LruSpectrumCache cache = new LruSpectrumCache(5, spectrum -> 1, 1);
+        mgfFile.setSpectrumCache(cache);
+        smallReader.setSpectrumCache(cache);
+        Assert.assertTrue(mgfFile.isUseCache());
+
+        Spectrum first = mgfFile.getSpectrumByIndex(1);
+        Assert.assertSame(first, mgfFile.getSpectrumByIndex(1));
+        Assert.assertNotSame(first, smallReader.getSpectrumByIndex(1));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(2, cache.size());
+
+        for (int i = 1; i <= 10; i++)
+            smallReader.getSpectrumByIndex(i);
+        Assert.assertEquals(5, cache.size());
+        Assert.assertEquals(5, cache.getWeight());
+        Assert.assertEquals(6, cache.getEvictionCount());
+        Assert.assertEquals(2, cache.getHitCount());
+
+        // the least recently used spectra were evicted
+        Assert.assertNotSame(first, mgfFile.getSpectrumByIndex(1));
+        Spectrum last = smallReader.getSpectrumByIndex(10);
+        Assert.assertSame(last, smallReader.getSpectrumByIndex(10));
+        Assert.assertEquals(last.toString(), new MgfIndexedReader(smallFile).getSpectrumByIndex(10).toString());
+
+        smallReader.close();
+        Assert.assertEquals(1, cache.size());
+
+        // the default cache is bounded by the estimated size of the spectra
+        MgfIndexedReader reader = new MgfIndexedReader(smallFile);
+        reader.setUseCache(true);
+        LruSpectrumCache defaultCache = (LruSpectrumCache) reader.getSpectrumCache();
+        Assert.assertEquals(LruSpectrumCache.DEFAULT_MAX_WEIGHT, defaultCache.getMaxWeight());
+        Assert.assertEquals(LruSpectrumCache.DEFAULT_SEGMENTS, defaultCache.getSegmentCount());
+        Spectrum spectrum = reader.getSpectrumByIndex(2);
+        Assert.assertEquals(LruSpectrumCache.estimateWeight(spectrum), defaultCache.getWeight());
+        reader.setUseCache(false);
+        Assert.assertNull(reader.getSpectrumCache());
+        Assert.assertEquals(0, defaultCache.size());
+    }
+
     @Test
     public void testPerformanceTime() throws Exception {
         long time = System.currentTimeMillis();
@@ -486,4 +716,170 @@ public class TestMgfIndexedReader {
 
 
 
+
+    @Test
+    public void testGetSpectraByIndex() throws Exception {
+        int count = mgfFile.getSpectraCount();
+        int[] indexes = {count, 1, 5, 4, 5, count / 2};
+
+        // every spectrum read alone, then with the whole file coalesced into one read
+        for (int gap : new int[]{-1, 1 << 20}) {
+            MgfIndexedReader reader = new MgfIndexedReader(sourceFile);
+            reader.setMaxCoalescedGap(gap);
+            List<Spectrum> spectra = reader.getSpectraByIndex(indexes);
+            Assert.assertEquals(indexes.length, spectra.size());
+            for (int i = 0; i < indexes.length; i++)
+                Assert.assertEquals(mgfFile.getSpectrumByIndex(indexes[i]).toString(), spectra.get(i).toString());
+
+            spectra = reader.getSpectra(Arrays.asList("3", "2"));
+            Assert.assertEquals(mgfFile.getSpectrumById("3").toString(), spectra.get(0).toString());
+            Assert.assertEquals(mgfFile.getSpectrumById("2").toString(), spectra.get(1).toString());
+            reader.close();
+        }
+
+        // cached queries are not read again
+        MgfIndexedReader reader = new MgfIndexedReader(sourceFile);
+        reader.setUseCache(true);
+        Spectrum cached = reader.getSpectrumByIndex(5);
+        Assert.assertSame(cached, reader.getSpectraByIndex(indexes).get(2));
+        Assert.assertSame(reader.getSpectrumByIndex(1), reader.getSpectraByIndex(indexes).get(1));
+        reader.close();
+    }
+
+    @Test
+    public void testSpectrumFields() throws Exception {
+        MgfIndexedReader reader = new MgfIndexedReader(sourceFile);
+        reader.setSpectrumFields(SpectrumFields.HEADER);
+        Assert.assertEquals(SpectrumFields.HEADER, reader.getSpectrumFields());
+        List<Spectrum> headers = reader.getSpectraByIndex(new int[]{1, 5});
+        for (int i = 1; i <= mgfFile.getSpectraCount(); i++) {
+            Spectrum expected = mgfFile.getSpectrumByIndex(i);
+            Spectrum header = reader.getSpectrumByIndex(i);
+            Assert.assertEquals(expected.getId(), header.getId());
+            Assert.assertEquals(expected.getPrecursorMZ(), header.getPrecursorMZ());
+            Assert.assertEquals(expected.getPrecursorCharge(), header.getPrecursorCharge());
+            Assert.assertEquals(((Ms2Query) expected).getTitle(), ((Ms2Query) header).getTitle());
+            Assert.assertEquals(0, header.getNumberOfPeaks());
+        }
+        Assert.assertEquals(0, headers.get(1).getNumberOfPeaks());
+        Assert.assertEquals(mgfFile.getSpectrumByIndex(5).getPrecursorMZ(), headers.get(1).getPrecursorMZ());
+
+        reader.setSpectrumFields(SpectrumFields.PEAKS);
+        Assert.assertEquals(mgfFile.getSpectrumByIndex(3).getPeakArrays(), reader.getSpectrumByIndex(3).getPeakArrays());
+        reader.close();
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        SpectrumFilter filter = SpectrumFilter.precursorMz(413, 413.5);
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= mgfFile.getSpectraCount(); i++) {
+            Spectrum spectrum = mgfFile.getSpectrumByIndex(i);
+            if (filter.test(spectrum))
+                expected.add(spectrum.toString());
+        }
+        Assert.assertFalse(expected.isEmpty());
+
+        MgfIndexedReader reader = new MgfIndexedReader(sourceFile);
+        reader.setSpectrumFilter(filter);
+        List<String> filtered = new ArrayList<>();
+        while (reader.hasNext())
+            filtered.add(reader.next().toString());
+        Assert.assertEquals(expected, filtered);
+        reader.close();
+    }
+
+    @Test
+    public void testCommentLines() throws Exception {
+        byte[] bytes = ("BEGIN IONS\nTITLE=commented\n# a comment\nPEPMASS=400.5\n"
+                + "100.0 1.0\n; another comment\n200.0 2.0\nEND IONS\n").getBytes(StandardCharsets.UTF_8);
+        Ms2Query query = new Ms2Query(bytes, 0, bytes.length, 1, false, false);
+        Assert.assertEquals("commented", query.getTitle());
+        Assert.assertEquals(400.5, query.getPrecursorMZ(), 0);
+        Assert.assertEquals(2, query.getNumberOfPeaks());
+        Assert.assertEquals(200.0, query.getPeakArrays().getMz()[1], 0);
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        int count = mgfFile.getSpectraCount();
+        MgfIndexedReader reader = new MgfIndexedReader(sourceFile);
+        reader.seek(count / 2);
+        for (int i = count / 2; i <= count; i++)
+            Assert.assertEquals(mgfFile.getSpectrumByIndex(i).toString(), reader.next().toString());
+        Assert.assertFalse(reader.hasNext());
+
+        // back to the start, with a filter
+        SpectrumFilter filter = SpectrumFilter.precursorMz(413, 413.5);
+        reader.setSpectrumFilter(filter);
+        reader.seek(1);
+        for (int i = 1; i <= count; i++) {
+            Spectrum expected = mgfFile.getSpectrumByIndex(i);
+            if (filter.test(expected))
+                Assert.assertEquals(expected.toString(), reader.next().toString());
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testWriteSpectra() throws Exception {
+        String raw = StandardCharsets.UTF_8.decode(mgfFile.getRawSpectrumBytes(3)).toString();
+        Assert.assertTrue(raw.startsWith("BEGIN IONS"));
+        Assert.assertTrue(raw.trim().endsWith("END IONS"));
+
+        int[] indexes = {5, 2, 3};
+        File subset = Files.createTempFile("mgf-subset-", ".mgf").toFile();
+        subset.deleteOnExit();
+        try (FileChannel target = FileChannel.open(subset.toPath(), StandardOpenOption.WRITE)) {
+            Assert.assertEquals(mgfFile.writeSpectra(indexes, target), target.size());
+        }
+
+        // the global parameters and the queries are copied unchanged
+        MgfIndexedReader reader = new MgfIndexedReader(subset);
+        Assert.assertEquals("Trypsin", reader.getEnzyme());
+        Assert.assertEquals(indexes.length, reader.getSpectraCount());
+        for (int i = 0; i < indexes.length; i++) {
+            Ms2Query expected = (Ms2Query) mgfFile.getSpectrumByIndex(indexes[i]);
+            Ms2Query copy = (Ms2Query) reader.getSpectrumByIndex(i + 1);
+            Assert.assertEquals(expected.getTitle(), copy.getTitle());
+            Assert.assertEquals(expected.getPrecursorMZ(), copy.getPrecursorMZ());
+            Assert.assertEquals(expected.getPeakArrays(), copy.getPeakArrays());
+            Assert.assertEquals(mgfFile.getRawSpectrumBytes(indexes[i]), reader.getRawSpectrumBytes(i + 1));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        File directory = Files.createTempDirectory("mgf-gzip-").toFile();
+        File file = new File(directory, sourceFile.getName() + ".gz");
+        try (OutputStream output = new GZIPOutputStream(new FileOutputStream(file))) {
+            Files.copy(sourceFile.toPath(), output);
+        }
+
+        IndexingOptions options = new IndexingOptions();
+        options.setGzipCheckpointSpacing(1024);
+        MgfIndexedReader reader = new MgfIndexedReader(file, false, true, options);
+        Assert.assertTrue(new File(directory, file.getName() + GzipCheckpointIndex.EXTENSION).isFile());
+
+        // the positions are the uncompressed ones
+        Assert.assertEquals(mgfFile.getIndex().size(), reader.getIndex().size());
+        for (int i = 0; i < mgfFile.getIndex().size(); i++)
+            Assert.assertEquals(mgfFile.getIndex().get(i).getStart(), reader.getIndex().get(i).getStart());
+        Assert.assertEquals("Trypsin", reader.getEnzyme());
+
+        // random and static access
+        for (int i = mgfFile.getSpectraCount(); i > 0; i -= 3)
+            Assert.assertEquals(mgfFile.getSpectrumByIndex(i).toString(), reader.getSpectrumByIndex(i).toString());
+        Assert.assertEquals(mgfFile.getSpectrumByIndex(5).toString(),
+                MgfIndexedReader.getIndexedSpectrum(file, reader.getIndex().get(4), true).toString());
+        Assert.assertEquals(mgfFile.getRawSpectrumBytes(7), reader.getRawSpectrumBytes(7));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        mgfFile.writeSpectra(new int[]{4, 1, 2}, Channels.newChannel(expected));
+        reader.writeSpectra(new int[]{4, 1, 2}, Channels.newChannel(copy));
+        Assert.assertArrayEquals(expected.toByteArray(), copy.toByteArray());
+        reader.close();
+    }
 }
@@ -0,0 +1,221 @@
+package io.github.bigbio.pgatk.io.mzml;
+
+import io.github.bigbio.pgatk.io.common.PgatkIOException;
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import io.github.bigbio.pgatk.io.utils.msnumpress.MSNumpress;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+
+public class MzMlIterableReaderTest {
+
+    @Test
+    public void testReadSpectra() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("dta_example.mzML");
+        Assert.assertNotNull("Error loading mzML test file", testFile);
+
+        MzMlIterableReader reader = new MzMlIterableReader(new File(testFile.toURI()));
+        int count = 0;
+        while (reader.hasNext()) {
+            Spectrum spectrum = reader.next();
+            count++;
+            if (count == 1) {
+                Assert.assertEquals("scan=3", spectrum.getId());
+                Assert.assertEquals(1L, spectrum.getIndex().longValue());
+                Assert.assertEquals(2, spectrum.getMsLevel().intValue());
+                Assert.assertEquals(1, spectrum.getPrecursorCharge().intValue());
+                Assert.assertEquals(419.115, spectrum.getPrecursorMZ(), 0.0);
+                Assert.assertEquals(92, spectrum.getNumberOfPeaks());
+                Assert.assertEquals(5876118.0, spectrum.getPeakList().get(419.0830078125), 0.0);
+                Assert.assertEquals(5, spectrum.getAdditional().size());
+            }
+        }
+        reader.close();
+        Assert.assertEquals(10, count);
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("dta_example.mzML");
+        Assert.assertNotNull("Error loading mzML test file", testFile);
+        File file = new File(testFile.toURI());
+        SpectrumFilter filter = SpectrumFilter.msLevels(2).and(SpectrumFilter.precursorMz(400, 500));
+
+        List<String> expected = new ArrayList<>();
+        MzMlIterableReader reader = new MzMlIterableReader(file);
+        while (reader.hasNext()) {
+            Spectrum spectrum = reader.next();
+            if (filter.test(spectrum))
+                expected.add(spectrum.getIndex() + " " + spectrum.getId() + " " + spectrum.getPeakArrays());
+        }
+        reader.close();
+
+        List<String> filtered = new ArrayList<>();
+        reader = new MzMlIterableReader(file);
+        reader.setSpectrumFilter(filter);
+        while (reader.hasNext()) {
+            Spectrum spectrum = reader.next();
+            filtered.add(spectrum.getIndex() + " " + spectrum.getId() + " " + spectrum.getPeakArrays());
+        }
+        reader.close();
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, filtered);
+    }
+
+    @Test
+    public void testEncodings() throws Exception {
+        double[] mz = {100.5, 200.25, 300.125, 400.0625};
+        double[] intensity = {10, 2000, 300, 40};
+
+        // 64-bit zlib compressed m/z values and numpress slof intensities with a referenceable param group
+        byte[] slof = new byte[8 + intensity.length * 2];
+        int slofLength = MSNumpress.encodeSlof(intensity, intensity.length, slof, MSNumpress.optimalSlofFixedPoint(intensity, intensity.length));
+        byte[] linear = new byte[8 + mz.length * 5];
+        int linearLength = MSNumpress.encodeLinear(mz, mz.length, linear, MSNumpress.optimalLinearFixedPoint(mz, mz.length));
+
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<mzML xmlns=\"http://psi.hupo.org/ms/mzml\">\n"
+                + "<referenceableParamGroupList count=\"1\"><referenceableParamGroup id=\"mzParams\">"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000514\" name=\"m/z array\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000523\" name=\"64-bit float\"/>"
+                + "</referenceableParamGroup></referenceableParamGroupList>\n"
+                + "<run id=\"run\"><spectrumList count=\"2\">\n"
+                + "<spectrum id=\"scan=1\" index=\"0\" defaultArrayLength=\"4\">"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>"
+                + "<binaryDataArrayList count=\"2\"><binaryDataArray encodedLength=\"0\">"
+                + "<referenceableParamGroupRef ref=\"mzParams\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000574\" name=\"zlib compression\"/>"
+                + "<binary>" + base64(zlib(doubles(mz))) + "</binary></binaryDataArray>"
+                + "<binaryDataArray encodedLength=\"0\">"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000515\" name=\"intensity array\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1002748\" name=\"MS-Numpress short logged float compression followed by zlib compression\"/>"
+                + "<binary>\n" + base64(zlib(Arrays.copyOf(slof, slofLength))) + "\n</binary></binaryDataArray>"
+                + "</binaryDataArrayList></spectrum>\n"
+                + "<spectrum id=\"scan=2\" index=\"1\" defaultArrayLength=\"4\">"
+                + "<binaryDataArrayList count=\"2\"><binaryDataArray encodedLength=\"0\">"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000514\" name=\"m/z array\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1002312\" name=\"MS-Numpress linear prediction compression\"/>"
+                + "<binary>" + base64(Arrays.copyOf(linear, linearLength)) + "</binary></binaryDataArray>"
+                + "<binaryDataArray encodedLength=\"0\">"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000515\" name=\"intensity array\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000521\" name=\"32-bit float\"/>"
+                + "<binary>" + base64(floats(intensity)) + "</binary></binaryDataArray>"
+                + "</binaryDataArrayList></spectrum>\n"
+                + "</spectrumList></run>\n</mzML>\n";
+
+        File file = Files.createTempFile("encodings", ".mzML").toFile();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+        MzMlIterableReader reader = new MzMlIterableReader(file);
+        Spectrum first = reader.next();
+        Assert.assertEquals(1, first.getMsLevel().intValue());
+        Assert.assertNull(first.getPrecursorMZ());
+        Assert.assertArrayEquals(mz, first.getMzArray(), 0.0);
+        for (int i = 0; i < intensity.length; i++)
+            Assert.assertEquals(intensity[i], first.getIntensityArray()[i], intensity[i] * 0.001);
+
+        Spectrum second = reader.next();
+        Assert.assertEquals("scan=2", second.getId());
+        Assert.assertArrayEquals(mz, second.getMzArray(), 0.0001);
+        Assert.assertArrayEquals(intensity, second.getIntensityArray(), 0.0);
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+
+        // the indexed reader decodes the same spectra from the byte ranges of its index
+        MzMlIndexedReader indexed = new MzMlIndexedReader(file);
+        Spectrum byIndex = indexed.getSpectrumByIndex(1);
+        Assert.assertEquals(first.getPeakArrays(), byIndex.getPeakArrays());
+        Assert.assertEquals(new ArrayList<>(first.getAdditional()), new ArrayList<>(byIndex.getAdditional()));
+        Assert.assertEquals(second.getPeakArrays(), indexed.getSpectrumById("scan=2").getPeakArrays());
+        indexed.close();
+    }
+
+    @Test
+    public void testTruncatedZlib() throws Exception {
+        byte[] compressed = zlib(doubles(new double[]{100.5, 200.25, 300.125, 400.0625}));
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<mzML xmlns=\"http://psi.hupo.org/ms/mzml\">\n"
+                + "<run id=\"run\"><spectrumList count=\"1\">\n"
+                + "<spectrum id=\"scan=1\" index=\"0\" defaultArrayLength=\"4\">"
+                + "<binaryDataArrayList count=\"1\"><binaryDataArray encodedLength=\"0\">"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000514\" name=\"m/z array\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000523\" name=\"64-bit float\"/>"
+                + "<cvParam cvRef=\"MS\" accession=\"MS:1000574\" name=\"zlib compression\"/>"
+                + "<binary>" + base64(Arrays.copyOf(compressed, compressed.length / 2)) + "</binary></binaryDataArray>"
+                + "</binaryDataArrayList></spectrum>\n"
+                + "</spectrumList></run>\n</mzML>\n";
+
+        File file = Files.createTempFile("truncated", ".mzML").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+        MzMlIterableReader reader = new MzMlIterableReader(file);
+        try {
+            reader.hasNext();
+            Assert.fail("The zlib stream is truncated");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof PgatkIOException);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testSameAsIndexedReader() throws Exception {
+        URL testFile = getClass().getClassLoader().getResource("dta_example.mzML");
+        Assert.assertNotNull("Error loading mzML test file", testFile);
+        File file = new File(testFile.toURI());
+
+        MzMlIterableReader reader = new MzMlIterableReader(file);
+        MzMlIndexedReader indexed = new MzMlIndexedReader(file);
+        for (int i = 1; reader.hasNext(); i++) {
+            Spectrum expected = reader.next();
+            Spectrum spectrum = indexed.getSpectrumByIndex(i);
+            Assert.assertEquals(expected.getId(), spectrum.getId());
+            Assert.assertEquals(expected.getMsLevel(), spectrum.getMsLevel());
+            Assert.assertEquals(expected.getPrecursorCharge(), spectrum.getPrecursorCharge());
+            Assert.assertEquals(expected.getPrecursorMZ(), spectrum.getPrecursorMZ());
+            Assert.assertEquals(expected.getPeakArrays(), spectrum.getPeakArrays());
+            Assert.assertEquals(new ArrayList<>(expected.getAdditional()), new ArrayList<>(spectrum.getAdditional()));
+        }
+        reader.close();
+        indexed.close();
+    }
+
+    private static byte[] doubles(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values)
+            buffer.putDouble(value);
+        return buffer.array();
+    }
+
+    private static byte[] floats(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values)
+            buffer.putFloat((float) value);
+        return buffer.array();
+    }
+
+    private static byte[] zlib(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static String base64(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+}
@@ -1,13 +1,19 @@
 package io.github.bigbio.pgatk.io.mzml;
 
 import io.github.bigbio.pgatk.io.common.IndexElement;
+import io.github.bigbio.pgatk.io.common.SpectrumIndex;
 import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 
 public class MzMlTest {
@@ -111,5 +117,56 @@ public class MzMlTest {
         }
     }
 
+    @Test
+    public void testSpectrumIndex() throws Exception {
+        // the ids and MS levels are read without unmarshalling the spectra
+        Assert.assertEquals("scan=3", wrapper.getSpectraIds().get(0));
+        Assert.assertEquals(0, wrapper.getSpectrumIndex().getOrdinal("scan=3"));
+        Assert.assertEquals(10, wrapper.getSpectrumIndex().getMsLevelCount(2));
+
+        try (RandomAccessFile file = new RandomAccessFile(sourcefile, "r")) {
+            Assert.assertEquals(wrapper.getSpectrumIndex(), MzMlIndexScanner.scanSpectra(file.getChannel()));
+            Assert.assertEquals(10, MzMlIndexScanner.scan(file.getChannel()).size());
+        }
+    }
+
+    @Test
+    public void testIndexList() throws Exception {
+        // add an indexList to the test file
+        String content = new String(Files.readAllBytes(sourcefile.toPath()), StandardCharsets.UTF_8);
+        StringBuilder indexed = new StringBuilder(content.substring(0, content.lastIndexOf("</mzML>") + "</mzML>".length()));
+        indexed.append("\n<indexList count=\"1\">\n<index name=\"spectrum\">\n");
+        for (int position = indexed.indexOf("<spectrum "); position >= 0; position = indexed.indexOf("<spectrum ", position + 1)) {
+            String id = indexed.substring(indexed.indexOf("id=\"", position) + 4, indexed.indexOf("\"", indexed.indexOf("id=\"", position) + 4));
+            indexed.append("<offset idRef=\"").append(id).append("\">").append(position).append("</offset>\n");
+        }
+        indexed.append("</index>\n</indexList>\n<indexListOffset>").append(content.lastIndexOf("</mzML>") + "</mzML>".length() + 1)
+                .append("</indexListOffset>\n</indexedmzML>\n");
+
+        File file = Files.createTempFile("indexed", ".mzML").toFile();
+        Files.write(file.toPath(), indexed.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            SpectrumIndex index = MzMlIndexScanner.readIndexList(accessFile.getChannel());
+            Assert.assertNotNull(index);
+            Assert.assertEquals(wrapper.getSpectraIds(), index.getIds());
+            Assert.assertEquals(10, index.getMsLevelCount(2));
+            for (int i = 0; i < index.size(); i++)
+                Assert.assertEquals(wrapper.getSpectrumIndex().getStart(i), index.getStart(i));
+        }
+    }
 
+    @Test
+    public void testRawSpectrumBytes() throws Exception {
+        String raw = StandardCharsets.UTF_8.decode(wrapper.getRawSpectrumBytes(2)).toString();
+        Assert.assertTrue(raw.startsWith("<spectrum "));
+        Assert.assertTrue(raw.contains("id=\"" + wrapper.getSpectraIds().get(1) + "\""));
+        Assert.assertTrue(raw.trim().endsWith("</spectrum>"));
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        long written = wrapper.writeSpectra(new int[]{3, 1}, Channels.newChannel(copy));
+        Assert.assertEquals(copy.size(), written);
+        Assert.assertEquals(StandardCharsets.UTF_8.decode(wrapper.getRawSpectrumBytes(3)).toString()
+                + StandardCharsets.UTF_8.decode(wrapper.getRawSpectrumBytes(1)), copy.toString("UTF-8"));
+    }
 }
@@ -0,0 +1,166 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.IndexFile;
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.mzxml.mzxml.model.Scan;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class MzXMLIndexScannerTest {
+
+    private static final String PEAKS = "<peaks precision=\"32\" byteOrder=\"network\" pairOrder=\"m/z-int\">Q0gAAEJIAAA=</peaks>\n";
+
+    /**
+     * Creates a mzXML file with two MS1 scans each holding nested MS2 scans and an optional scan index.
+     */
+    static File createFile(boolean withIndex, boolean validIndex) throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<mzXML>\n<msRun scanCount=\"5\">\n");
+        long[] offsets = new long[5];
+        int num = 0;
+        for (int parent = 0; parent < 2; parent++) {
+            offsets[num] = xml.length();
+            xml.append("<scan num=\"").append(++num).append("\"\n msLevel=\"1\" peaksCount=\"1\">\n").append(PEAKS);
+            for (int child = 0; child < (parent == 0 ? 2 : 1); child++) {
+                xml.append("  ");
+                offsets[num] = xml.length();
+                xml.append("<scan num=\"").append(++num).append("\" msLevel=\"2\" peaksCount=\"1\" polarity=\"+\" centroided=\"1\" retentionTime=\"PT12.50S\" totIonCurrent=\"15\">\n")
+                        .append("  <precursorMz precursorIntensity=\"1000\" precursorCharge=\"2\">500.5</precursorMz>\n  ").append(PEAKS)
+                        .append("  <nameValue name=\"x\" value=\"y\"/>\n  </scan>\n");
+            }
+            xml.append("</scan>\n");
+        }
+        xml.append("</msRun>\n");
+
+        if (withIndex) {
+            long indexOffset = xml.length();
+            xml.append("<index name=\"scan\">\n");
+            for (int i = 0; i < offsets.length; i++)
+                xml.append("<offset id=\"").append(i + 1).append("\">").append(validIndex ? offsets[i] : offsets[i] + 1).append("</offset>\n");
+            xml.append("</index>\n<indexOffset>").append(indexOffset).append("</indexOffset>\n");
+        }
+        xml.append("</mzXML>\n");
+
+        File file = Files.createTempFile("scans", ".mzXML").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return file;
+    }
+
+    @Test
+    public void testScanIndex() throws Exception {
+        File file = createFile(true, true);
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            IndexFile index = MzXMLIndexScanner.readScanIndex(accessFile.getChannel());
+            Assert.assertNotNull(index);
+            Assert.assertEquals(MzXMLIndexScanner.scanScans(accessFile.getChannel()), index);
+
+            // level 1 scans first, then the nested level 2 scans
+            Assert.assertArrayEquals(new String[]{"1", "4", "2", "3", "5"}, index.getIds());
+            Assert.assertArrayEquals(new byte[]{1, 1, 2, 2, 2}, index.getMsLevels());
+            Assert.assertEquals("2", index.getMetadata().get(0));
+
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+            for (int i = 0; i < index.size(); i++) {
+                String scan = content.substring((int) index.getOffsets()[i], (int) index.getOffsets()[i] + index.getSizes()[i]);
+                Assert.assertTrue(scan.startsWith("<scan num=\"" + index.getIds()[i] + "\""));
+                Assert.assertTrue(scan.endsWith("</scan>"));
+            }
+            // the first level 1 scan contains its two level 2 scans
+            Assert.assertEquals(3, content.substring((int) index.getOffsets()[0], (int) index.getOffsets()[0] + index.getSizes()[0]).split("</scan>", -1).length - 1);
+        }
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        File withoutIndex = createFile(false, false);
+        File invalidIndex = createFile(true, false);
+        try (RandomAccessFile first = new RandomAccessFile(withoutIndex, "r");
+             RandomAccessFile second = new RandomAccessFile(invalidIndex, "r")) {
+            Assert.assertNull(MzXMLIndexScanner.readScanIndex(first.getChannel()));
+            Assert.assertNull(MzXMLIndexScanner.readScanIndex(second.getChannel()));
+
+            IndexFile index = MzXMLIndexScanner.scan(second.getChannel());
+            Assert.assertEquals(MzXMLIndexScanner.scan(first.getChannel()), index);
+            Assert.assertEquals(5, index.size());
+        }
+    }
+
+    @Test
+    public void testReader() throws Exception {
+        MzXMLIndexedReader reader = new MzXMLIndexedReader(createFile(true, true));
+        Assert.assertEquals(5, reader.getSpectraCount());
+        Assert.assertEquals(2, reader.getMS1ScanCount());
+        Assert.assertEquals(3, reader.getMS2ScanCount());
+        Assert.assertEquals(500.5, reader.getSpectrumById("3").getPrecursorMZ(), 0.0);
+        Assert.assertEquals(1, reader.getSpectrumById("4").getPeakArrays().size());
+    }
+
+    @Test
+    public void testGetScansByNum() throws Exception {
+        MzXMLIndexedReader reader = new MzXMLIndexedReader(createFile(true, true));
+
+        // the scans are returned in request order, the nested scans are read with their parent
+        List<Scan> scans = reader.getScansByNum(Arrays.asList(5L, 1L, 3L, 2L, 5L));
+        Assert.assertEquals(5, scans.size());
+        long[] nums = {5, 1, 3, 2, 5};
+        for (int i = 0; i < nums.length; i++)
+            Assert.assertEquals(nums[i], scans.get(i).getNum().longValue());
+        Assert.assertEquals(2, scans.get(1).getScan().size());
+
+        // without coalescing every scan is read on its own
+        reader.setMaxCoalescedGap(-1);
+        List<Scan> separateScans = reader.getScansByNum(Arrays.asList(5L, 1L, 3L, 2L, 5L));
+        for (int i = 0; i < nums.length; i++)
+            Assert.assertEquals(nums[i], separateScans.get(i).getNum().longValue());
+
+        // concurrent retrieval through a single reader
+        List<String> ids = reader.getSpectraIds();
+        List<Integer> peakCounts = IntStream.range(0, 200).parallel()
+                .mapToObj(i -> {
+                    try {
+                        return reader.getSpectrumById(ids.get(i % ids.size())).getPeakArrays().size();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }).collect(Collectors.toList());
+        Assert.assertEquals(200, peakCounts.stream().filter(count -> count == 1).count());
+
+        // batches are returned in request order whether the scans are read at once or not
+        List<String> batch = Arrays.asList(ids.get(ids.size() - 1), ids.get(0), ids.get(ids.size() - 1));
+        for (int gap : new int[]{0, 1 << 20}) {
+            reader.setMaxCoalescedGap(gap);
+            List<Spectrum> spectra = reader.getSpectra(batch);
+            Assert.assertEquals(batch.size(), spectra.size());
+            for (int i = 0; i < batch.size(); i++)
+                Assert.assertEquals(batch.get(i), spectra.get(i).getId());
+            spectra = reader.getSpectraByIndex(new int[]{2, 1});
+            Assert.assertEquals(ids.get(1), spectra.get(0).getId());
+            Assert.assertEquals(ids.get(0), spectra.get(1).getId());
+        }
+    }
+
+    @Test
+    public void testSpectrumFields() throws Exception {
+        MzXMLIndexedReader reader = new MzXMLIndexedReader(createFile(true, true));
+        reader.setSpectrumFields(SpectrumFields.HEADER);
+        Spectrum header = reader.getSpectrumById("3");
+        Assert.assertEquals(500.5, header.getPrecursorMZ(), 0.0);
+        Assert.assertEquals(2, header.getPrecursorCharge().intValue());
+        Assert.assertEquals(2, header.getMsLevel().intValue());
+        Assert.assertEquals(0, header.getNumberOfPeaks());
+        Assert.assertEquals(0, reader.getSpectraByIndex(new int[]{1}).get(0).getNumberOfPeaks());
+
+        reader.setSpectrumFields(SpectrumFields.ALL);
+        Assert.assertEquals(1, reader.getSpectrumById("3").getNumberOfPeaks());
+    }
+}
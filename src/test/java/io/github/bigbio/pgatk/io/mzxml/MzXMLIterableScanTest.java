@@ -0,0 +1,143 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.spectra.MutableSpectrum;
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class MzXMLIterableScanTest {
+
+    @Test
+    public void testNestedScans() throws Exception {
+        MzXMLIterableReader reader = new MzXMLIterableReader(MzXMLIndexScannerTest.createFile(true, true));
+        String[] ids = {"2", "3", "5"};
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertTrue(reader.hasNext());
+            Spectrum spectrum = reader.next();
+            Assert.assertEquals(ids[i], spectrum.getId());
+            Assert.assertEquals(i + 1, spectrum.getIndex().intValue());
+            Assert.assertEquals(500.5, spectrum.getPrecursorMZ(), 0.0);
+            Assert.assertEquals(2, spectrum.getPrecursorCharge().intValue());
+            Assert.assertEquals(1000, spectrum.getPrecursorIntensity(), 0.0);
+            Assert.assertEquals(1, spectrum.getPeakArrays().size());
+            Assert.assertEquals(200.0, spectrum.getMzArray()[0], 0.0);
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testReuseSpectrum() throws Exception {
+        MzXMLIterableReader reader = new MzXMLIterableReader(MzXMLIndexScannerTest.createFile(true, true));
+        reader.setReuseSpectrum(true);
+        String[] ids = {"2", "3", "5"};
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertTrue(reader.hasNext());
+            MutableSpectrum spectrum = (MutableSpectrum) reader.next();
+            Assert.assertEquals(ids[i], spectrum.getIdSequence().toString());
+            Assert.assertEquals(i + 1, spectrum.getIndexValue());
+            Assert.assertEquals(2, spectrum.getMsLevelValue());
+            Assert.assertEquals(500.5, spectrum.getPrecursorMzValue(), 0.0);
+            Assert.assertEquals(2, spectrum.getPrecursorChargeValue());
+            Assert.assertEquals(1000, spectrum.getPrecursorIntensityValue(), 0.0);
+            Assert.assertEquals(1, spectrum.getPeakCount());
+            Assert.assertEquals(200.0, spectrum.getMz(0), 0.0);
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testWindowBoundaries() throws Exception {
+        // scans spread over several mapped windows, with tags and peaks split between them
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<mzXML>\n<msRun>\n");
+        for (int num = 1; num <= 3000; num++) {
+            xml.append("<scan num=\"").append(num).append("\" msLevel=\"").append(num % 3 == 0 ? 1 : 2)
+                    .append("\" retentionTime=\"PT").append(num).append(".5S\">\n")
+                    .append("<precursorMz precursorCharge=\"").append(num % 4 + 1).append("\">").append(num).append(".25</precursorMz>\n")
+                    .append("<peaks precision=\"32\" byteOrder=\"network\" pairOrder=\"m/z-int\">Q0gAAEJIAABDSIAAQkgAAA==</peaks>\n</scan>\n");
+        }
+        xml.append("</msRun>\n</mzXML>\n");
+        File file = Files.createTempFile("windows", ".mzXML").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        MzXMLIterableReader reader = new MzXMLIterableReader(file);
+        int count = 0;
+        for (int num = 1; num <= 3000; num++) {
+            if (num % 3 == 0)
+                continue;
+            Spectrum spectrum = reader.next();
+            count++;
+            Assert.assertEquals(String.valueOf(num), spectrum.getId());
+            Assert.assertEquals(num + 0.25, spectrum.getPrecursorMZ(), 0.0);
+            Assert.assertEquals(num % 4 + 1, spectrum.getPrecursorCharge().intValue());
+            Assert.assertEquals(2, spectrum.getPeakArrays().size());
+            Assert.assertEquals(num + ".5", spectrum.getAdditional().iterator().next().getValue());
+        }
+        Assert.assertEquals(2000, count);
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<mzXML>\n<msRun>\n");
+        for (int num = 1; num <= 12; num++) {
+            xml.append("<scan num=\"").append(num).append("\" msLevel=\"2\">\n")
+                    .append("<precursorMz precursorCharge=\"").append(num % 4 + 1).append("\">").append(num).append(".25</precursorMz>\n")
+                    .append("<peaks precision=\"32\" byteOrder=\"network\" pairOrder=\"m/z-int\">Q0gAAEJIAAA=</peaks>\n</scan>\n");
+        }
+        xml.append("</msRun>\n</mzXML>\n");
+        File file = Files.createTempFile("filter", ".mzXML").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        // the rejected scans keep their index
+        MzXMLIterableReader reader = new MzXMLIterableReader(file);
+        reader.setSpectrumFilter(SpectrumFilter.charges(2, 3));
+        for (int num = 1; num <= 12; num++) {
+            if (num % 4 != 1 && num % 4 != 2)
+                continue;
+            Spectrum spectrum = reader.next();
+            Assert.assertEquals(String.valueOf(num), spectrum.getId());
+            Assert.assertEquals(num, spectrum.getIndex().intValue());
+            Assert.assertEquals(1, spectrum.getNumberOfPeaks());
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testSkipsMs1Payload() throws Exception {
+        // the MS1 payloads are not valid zlib data, they must be skipped without being decoded
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<mzXML>\n<msRun>\n");
+        for (int num = 1; num <= 6; num++) {
+            boolean ms1 = num % 2 == 1;
+            xml.append("<scan num=\"").append(num).append("\" msLevel=\"").append(ms1 ? 1 : 2).append("\">\n");
+            if (!ms1)
+                xml.append("<precursorMz precursorCharge=\"2\">").append(num).append(".25</precursorMz>\n");
+            xml.append("<peaks precision=\"32\" byteOrder=\"network\" pairOrder=\"m/z-int\"")
+                    .append(ms1 ? " compressionType=\"zlib\"" : "").append(">Q0gAAEJIAAA=</peaks>\n</scan>\n");
+        }
+        xml.append("</msRun>\n</mzXML>\n");
+        File file = Files.createTempFile("ms1", ".mzXML").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        MzXMLIterableReader reader = new MzXMLIterableReader(file);
+        for (int num = 2; num <= 6; num += 2) {
+            Spectrum spectrum = reader.next();
+            Assert.assertEquals(String.valueOf(num), spectrum.getId());
+            Assert.assertEquals(1, spectrum.getNumberOfPeaks());
+            Assert.assertEquals(200.0, spectrum.getMzArray()[0], 0.0);
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.spectra.PeakArrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+public class MzXMLPeakDecoderTest {
+
+    private static byte[] encode(int peaks, boolean doublePrecision) {
+        ByteBuffer buffer = ByteBuffer.allocate(peaks * (doublePrecision ? 16 : 8));
+        for (int i = 0; i < peaks; i++) {
+            // whole m/z values and constant intensities compress by more than the initial inflate buffer
+            if (doublePrecision)
+                buffer.putDouble(100 + i).putDouble(1000);
+            else
+                buffer.putFloat(100 + i).putFloat(1000);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] compressed = new byte[data.length + 64];
+        int length = deflater.deflate(compressed);
+        deflater.end();
+
+        byte[] result = new byte[length];
+        System.arraycopy(compressed, 0, result, 0, length);
+        return result;
+    }
+
+    private static void check(PeakArrays peaks, int count) {
+        Assert.assertEquals(count, peaks.size());
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(100 + i, peaks.getMz()[i], 0.0);
+            Assert.assertEquals(1000, peaks.getIntensity()[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] floats = encode(50000, false);
+        byte[] doubles = encode(50000, true);
+
+        check(MzXMLPeakDecoder.decode(floats, null, "network", 32), 50000);
+        check(MzXMLPeakDecoder.decode(doubles, "none", "network", 64), 50000);
+
+        byte[] compressed = compress(doubles);
+        Assert.assertTrue(compressed.length * 4 < doubles.length);
+        check(MzXMLPeakDecoder.decode(compressed, "zlib", "network", 64), 50000);
+
+        // base64 text without padding, as cut by the iterable reader
+        String base64 = Base64.getEncoder().encodeToString(compress(floats));
+        check(MzXMLIterableReader.convertPeaksToArrays(base64, "zlib", "network", 32), 50000);
+        check(MzXMLIterableReader.convertPeaksToArrays(base64.replace("=", ""), "zlib", "network", 32), 50000);
+        check(MzXMLIterableReader.convertPeaksToArrays(Base64.getEncoder().encodeToString(encode(3, true)), null, "network", 64), 3);
+    }
+
+    @Test(expected = MzXMLParsingException.class)
+    public void testTruncated() throws Exception {
+        byte[] compressed = compress(encode(1000, false));
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        MzXMLPeakDecoder.decode(truncated, "zlib", "network", 32);
+    }
+
+    @Test(expected = MzXMLParsingException.class)
+    public void testByteOrder() throws Exception {
+        MzXMLPeakDecoder.decode(encode(3, false), null, "little", 32);
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.bigbio.pgatk.io.mzxml;
+
+import io.github.bigbio.pgatk.io.common.spectra.Spectrum;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFields;
+import io.github.bigbio.pgatk.io.common.spectra.SpectrumFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MzXMLScanDecoderTest {
+
+    @Test
+    public void testSameAsJaxb() throws Exception {
+        MzXMLIndexedReader reader = new MzXMLIndexedReader(MzXMLIndexScannerTest.createFile(true, true));
+
+        for (String num : new String[]{"1", "2", "4", "5"}) {
+            Spectrum decoded = reader.getSpectrumById(num);
+            Spectrum unmarshalled = new MzXMLSpectrum(reader.getScanByStringNum(num));
+
+            Assert.assertEquals(unmarshalled.getId(), decoded.getId());
+            Assert.assertEquals(unmarshalled.getMsLevel(), decoded.getMsLevel());
+            Assert.assertEquals(unmarshalled.getPrecursorMZ(), decoded.getPrecursorMZ());
+            Assert.assertEquals(unmarshalled.getPrecursorIntensity(), decoded.getPrecursorIntensity());
+            Assert.assertEquals(unmarshalled.getPrecursorCharge(), decoded.getPrecursorCharge());
+            Assert.assertEquals(unmarshalled.getPeakArrays(), decoded.getPeakArrays());
+            Assert.assertEquals(unmarshalled.getAdditional().toString(), decoded.getAdditional().toString());
+            Assert.assertEquals(unmarshalled.toString(), decoded.toString());
+        }
+
+        // the level 1 scan holds its nested scans, only its own peaks are read
+        Assert.assertEquals(1, reader.getSpectrumById("1").getPeakArrays().size());
+        Assert.assertNull(reader.getSpectrumById("1").getPrecursorMZ());
+        Assert.assertEquals(3, reader.getSpectrumById("2").getAdditional().size());
+    }
+
+    @Test
+    public void testSpectrumFilter() throws Exception {
+        MzXMLIndexedReader reader = new MzXMLIndexedReader(MzXMLIndexScannerTest.createFile(true, true));
+        reader.setSpectrumFilter(SpectrumFilter.msLevels(2).and(SpectrumFilter.charges(2)));
+
+        List<String> ids = new ArrayList<>();
+        MzXMLIndexedReader.SpectrumIterator iterator = reader.new SpectrumIterator();
+        while (iterator.hasNext()) {
+            Spectrum spectrum = iterator.next();
+            Assert.assertEquals(1, spectrum.getPeakArrays().size());
+            ids.add(spectrum.getId());
+        }
+        Assert.assertEquals(Arrays.asList("2", "3", "5"), ids);
+
+        // the level 1 scans have no precursor, their peaks are not decoded
+        byte[] xml = ("<scan num=\"1\" msLevel=\"1\" peaksCount=\"1\">\n"
+                + "<peaks precision=\"32\" byteOrder=\"network\" pairOrder=\"m/z-int\">Q0gAAEJIAAA=</peaks>\n</scan>\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        Assert.assertNull(MzXMLScanDecoder.decode(xml, 0, xml.length, SpectrumFields.ALL, SpectrumFilter.msLevels(2)));
+        Assert.assertNotNull(MzXMLScanDecoder.decode(xml, 0, xml.length, SpectrumFields.ALL, SpectrumFilter.msLevels(1)));
+    }
+
+    @Test
+    public void testRawSpectrumBytes() throws Exception {
+        MzXMLIndexedReader reader = new MzXMLIndexedReader(MzXMLIndexScannerTest.createFile(true, true));
+        String raw = StandardCharsets.ISO_8859_1.decode(reader.getRawSpectrumBytes(3)).toString();
+        Assert.assertTrue(raw.startsWith("<scan num=\"3\""));
+        Assert.assertTrue(raw.endsWith("</scan>"));
+
+        // the level 1 scan holds its nested scans
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        long written = reader.writeSpectra(new int[]{5, 4}, Channels.newChannel(copy));
+        Assert.assertEquals(copy.size(), written);
+        String scans = copy.toString("ISO-8859-1");
+        Assert.assertTrue(scans.startsWith("<scan num=\"5\""));
+        Assert.assertTrue(scans.indexOf("<scan num=\"4\"") > 0);
+        Assert.assertEquals(3, scans.split("</scan>", -1).length - 1);
+    }
+
+    @Test(expected = MzXMLParsingException.class)
+    public void testMissingPeaks() throws Exception {
+        byte[] xml = "<scan num=\"1\" msLevel=\"1\"></scan>".getBytes(StandardCharsets.US_ASCII);
+        MzXMLScanDecoder.decode(xml, 0, xml.length);
+    }
+}
@@ -12,7 +12,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -62,4 +66,41 @@ public class PrideJsonWriterTest {
     prideJsonfile.close();
     outpFile.deleteOnExit();
   }
+
+  @Test
+  public void writeSpectraSubset() throws PgatkIOException, IOException {
+    int count = 0;
+    while (mspIterableReader.hasNext()) {
+      MspSpectrum spectrum = (MspSpectrum) mspIterableReader.next();
+      Double[] masses = Arrays.stream(spectrum.getMzArray()).boxed().toArray(Double[]::new);
+      Double[] intensities = Arrays.stream(spectrum.getIntensityArray()).boxed().toArray(Double[]::new);
+      prideJsonfile.write(new ArchiveSpectrum(spectrum.getIndex().toString(), null, null, null, null,
+        null, masses, intensities, masses.length, 2, spectrum.getPrecursorCharge(), spectrum.getPrecursorMZ(), null, null,
+        spectrum.getPeptideSequence(), 0, null, null, false, null, true, null, null));
+      count++;
+    }
+    prideJsonfile.close();
+    outpFile.deleteOnExit();
+
+    // the raw lines of a subset form a new file
+    File subset = File.createTempFile("subset", ".json");
+    subset.deleteOnExit();
+    String raw;
+    String[] ids;
+    try (PrideJsonIndexedReader reader = new PrideJsonIndexedReader(outpFile, false);
+         FileChannel target = FileChannel.open(subset.toPath(), StandardOpenOption.WRITE)) {
+      Assert.assertEquals(count, reader.getSpectraCount());
+      raw = StandardCharsets.UTF_8.decode(reader.getRawSpectrumBytes(2)).toString();
+      Assert.assertTrue(raw.startsWith("{") && raw.endsWith("\n"));
+      Assert.assertEquals(reader.writeSpectra(new int[]{2, 1}, target), target.size());
+      ids = new String[]{reader.getSpectrumByIndex(2).getId(), reader.getSpectrumByIndex(1).getId()};
+    }
+
+    try (PrideJsonIndexedReader subsetReader = new PrideJsonIndexedReader(subset, false)) {
+      Assert.assertEquals(2, subsetReader.getSpectraCount());
+      Assert.assertEquals(ids[0], subsetReader.getSpectrumByIndex(1).getId());
+      Assert.assertEquals(ids[1], subsetReader.getSpectrumByIndex(2).getId());
+      Assert.assertEquals(raw, StandardCharsets.UTF_8.decode(subsetReader.getRawSpectrumBytes(1)).toString());
+    }
+  }
 }
@@ -0,0 +1,64 @@
+package io.github.bigbio.pgatk.io.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class AsciiNumberParserTest {
+
+    private static void assertSameAsJdk(String value) {
+        double expected = Double.parseDouble(value);
+        byte[] bytes = ("x" + value + "x").getBytes(StandardCharsets.US_ASCII);
+        Assert.assertEquals(value, Double.doubleToRawLongBits(expected),
+                Double.doubleToRawLongBits(AsciiNumberParser.parseDouble(bytes, 1, bytes.length - 1)));
+        Assert.assertEquals(value, Double.doubleToRawLongBits(expected),
+                Double.doubleToRawLongBits(AsciiNumberParser.parseDouble(value)));
+    }
+
+    @Test
+    public void testSameAsParseDouble() {
+        String[] values = {"0", "-0", "0.0", "-0.0", "1", "+1", "-1", "1.", ".5", "+.5", "-.5", "007.250",
+                "145.119100", "1271.13935636076", "0.000123", "1e10", "1E-10", "2.5e+3", "-4.9E-324",
+                "1.7976931348623157E308", "123456789012345678901234567890", "0.1000000000000000055511151231257827",
+                "9007199254740993", "1e23", "1e-23", "3.4028235E38", "NaN", "-Infinity", "1.5d", "2f", " 3.5 ",
+                "0x1.8p1", "1e0000000000000000001"};
+        for (String value : values)
+            assertSameAsJdk(value);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            assertSameAsJdk(Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(20) - 10)));
+            assertSameAsJdk(String.format("%." + random.nextInt(10) + "f", random.nextDouble() * 2000));
+            assertSameAsJdk(Long.toString(random.nextLong()));
+        }
+    }
+
+    @Test
+    public void testZeroWithLargeExponent() {
+        String[] values = {"0e30", "0E-23", "-0e30", "0.000000000000000000000000", "-0.000000000000000000000000",
+                "0e10000", "000.000e-400", "+0E22", "0.0E23"};
+        for (String value : values)
+            assertSameAsJdk(value);
+    }
+
+    @Test
+    public void testInvalidNumbers() {
+        for (String value : new String[]{"", "-", ".", "e5", "1e", "1.2.3", "1,5", "abc", "1 2"}) {
+            byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+            try {
+                AsciiNumberParser.parseDouble(bytes, 0, bytes.length);
+                Assert.fail("No exception for '" + value + "'");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+            try {
+                AsciiNumberParser.parseDouble(value);
+                Assert.fail("No exception for '" + value + "'");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+}